@@ -0,0 +1,91 @@
+package io.sensefly.logging.log4j;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@code append()} for the calling thread, with 1 to N producers contending on the buffer.
+ * The sender runs against {@link StubAWSLogs} so the buffer is mostly full and the overflow policy is measured too.
+ * Each producer appends its own event, {@link BenchmarkEvents immutable or mutable}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AppendBenchmark {
+
+  @Param({ "DROP_NEWEST", "DROP_OLDEST" })
+  public OverflowPolicy overflowPolicy;
+
+  @Param({ "true", "false" })
+  public boolean metrics;
+
+  @Param({ "immutable", "mutable" })
+  public String eventType;
+
+  private CloudWatchAppender appender;
+
+  /**
+   * The event of a producer thread, reused across its calls
+   */
+  @State(Scope.Thread)
+  public static class Producer {
+
+    private LogEvent event;
+
+    @Setup
+    public void setUp(AppendBenchmark benchmark) {
+      event = BenchmarkEvents.create(benchmark.eventType, "AppendBenchmark", "Benchmark message");
+    }
+
+  }
+
+  @Setup
+  public void setUp() {
+    AppenderSettings settings = new AppenderSettings()
+        .withOverflowPolicy(overflowPolicy)
+        .withMetricsEnabled(metrics)
+        .withMaxRequestsPerSecond(0);
+    StubAWSLogs awsLogs = new StubAWSLogs();
+    // a null layout is the default pattern layout
+    appender = new CloudWatchAppender("benchmark", null,
+        CloudWatchLogService.createShards("benchmark", "benchmark", settings, awsLogs, new SyncLogTransport(awsLogs),
+            Clock.systemUTC(), "benchmark"), settings);
+    appender.start();
+  }
+
+  @TearDown
+  public void tearDown() {
+    appender.stop();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void append_1_thread(Producer producer) {
+    appender.append(producer.event);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void append_4_threads(Producer producer) {
+    appender.append(producer.event);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public void append_max_threads(Producer producer) {
+    appender.append(producer.event);
+  }
+
+}
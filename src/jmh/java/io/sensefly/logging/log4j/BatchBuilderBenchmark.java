@@ -0,0 +1,62 @@
+package io.sensefly.logging.log4j;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Cost of assembling a batch: adding the events, sorting them and splitting them on the request limits.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BatchBuilderBenchmark {
+
+  @Param({ "128", "10000" })
+  public int batchSize;
+
+  /**
+   * Events out of order, as sent by several producer threads
+   */
+  @Param({ "true", "false" })
+  public boolean shuffled;
+
+  private BatchBuilder batchBuilder;
+  private long[] timestamps;
+  private String[] messages;
+  private int[] messageBytes;
+
+  @Setup
+  public void setUp() {
+    batchBuilder = new BatchBuilder(batchSize, BatchBuilder.MAX_BATCH_BYTES, true);
+    timestamps = new long[batchSize];
+    messages = new String[batchSize];
+    messageBytes = new int[batchSize];
+    long now = System.currentTimeMillis();
+    for(int i = 0; i < batchSize; i++) {
+      timestamps[i] = shuffled ? now + ThreadLocalRandom.current().nextInt(100) : now + i / 100;
+      messages[i] = "INFO [main] io.sensefly.logging.log4j.BatchBuilderBenchmark : message " + i;
+      messageBytes[i] = messages[i].getBytes(UTF_8).length;
+    }
+  }
+
+  @Benchmark
+  public void build(Blackhole blackhole) {
+    for(int i = 0; i < batchSize; i++) {
+      batchBuilder.add(timestamps[i], messages[i], messageBytes[i]);
+    }
+    blackhole.consume(batchBuilder.build());
+  }
+
+}
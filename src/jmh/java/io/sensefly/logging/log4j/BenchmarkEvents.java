@@ -0,0 +1,45 @@
+package io.sensefly.logging.log4j;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.impl.MutableLogEvent;
+import org.apache.logging.log4j.message.ReusableSimpleMessage;
+import org.apache.logging.log4j.message.SimpleMessage;
+
+/**
+ * Events appended by the benchmarks, as built by the loggers: {@code immutable} like a {@link Log4jLogEvent} of the
+ * default configuration, {@code mutable} like the event reused by a thread when the thread locals are enabled, or by
+ * the async loggers, holding a {@link ReusableSimpleMessage}.
+ */
+final class BenchmarkEvents {
+
+  private BenchmarkEvents() {
+  }
+
+  static LogEvent create(String type, String loggerName, String message) {
+    switch(type) {
+      case "immutable":
+        return Log4jLogEvent.newBuilder()
+            .setLoggerName(loggerName)
+            .setLevel(Level.INFO)
+            .setThreadName("main")
+            .setTimeMillis(System.currentTimeMillis())
+            .setMessage(new SimpleMessage(message))
+            .build();
+      case "mutable":
+        ReusableSimpleMessage reusable = new ReusableSimpleMessage();
+        reusable.set(message);
+        MutableLogEvent event = new MutableLogEvent();
+        event.setLoggerName(loggerName);
+        event.setLevel(Level.INFO);
+        event.setThreadName("main");
+        event.setTimeMillis(System.currentTimeMillis());
+        event.setMessage(reusable);
+        return event;
+      default:
+        throw new IllegalArgumentException("Unknown event type " + type);
+    }
+  }
+
+}
@@ -0,0 +1,62 @@
+package io.sensefly.logging.log4j;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Cost of encoding one event per layout, through the reusable {@link LogEventEncoder} buffers and through
+ * {@code toByteArray} as a baseline, for an {@link BenchmarkEvents immutable or mutable} event. Run with the
+ * {@code gc} profiler to compare the allocations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EncodeBenchmark {
+
+  @Param({ "%m%n", "%d{ISO8601} %-5p [%t] %c{1.} : %m%n%xEx" })
+  public String pattern;
+
+  @Param({ "immutable", "mutable" })
+  public String eventType;
+
+  private PatternLayout layout;
+  private LogEventEncoder encoder;
+  private BatchBuilder batchBuilder;
+  private LogEvent event;
+
+  @Setup
+  public void setUp() {
+    layout = PatternLayout.newBuilder().withPattern(pattern).withCharset(UTF_8).build();
+    encoder = new LogEventEncoder(layout);
+    batchBuilder = new BatchBuilder(BatchBuilder.MAX_BATCH_EVENTS, BatchBuilder.MAX_BATCH_BYTES, true);
+    event = BenchmarkEvents.create(eventType, "io.sensefly.logging.log4j.EncodeBenchmark",
+        "Benchmark message with some text to encode");
+  }
+
+  @Benchmark
+  public BatchBuilder encoder() {
+    if(batchBuilder.isFull()) {
+      batchBuilder.build();
+    }
+    encoder.encode(event, batchBuilder);
+    return batchBuilder;
+  }
+
+  @Benchmark
+  public String to_byte_array() {
+    return new String(layout.toByteArray(event), UTF_8);
+  }
+
+}
@@ -0,0 +1,75 @@
+package io.sensefly.logging.log4j;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Events per second going through the whole appender, from {@code append()} to a {@link StubAWSLogs} request,
+ * without loss: the buffer blocks when full and every invocation waits for its events to be sent. The event,
+ * {@link BenchmarkEvents immutable or mutable}, is appended again and again like by a single logging thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class EndToEndBenchmark {
+
+  private static final int EVENTS = 10_000;
+
+  @Param({ "1", "4" })
+  public int streamShards;
+
+  @Param({ "immutable", "mutable" })
+  public String eventType;
+
+  private StubAWSLogs awsLogs;
+  private CloudWatchAppender appender;
+  private LogEvent event;
+  private long expectedEvents;
+
+  @Setup
+  public void setUp() {
+    AppenderSettings settings = new AppenderSettings()
+        .withOverflowPolicy(OverflowPolicy.BLOCK)
+        .withOverflowTimeoutMs(Long.MAX_VALUE)
+        .withStreamShards(streamShards)
+        .withLingerMs(1)
+        .withMaxRequestsPerSecond(0);
+    awsLogs = new StubAWSLogs();
+    // a null layout is the default pattern layout
+    appender = new CloudWatchAppender("benchmark", null,
+        CloudWatchLogService.createShards("benchmark", "benchmark", settings, awsLogs, new SyncLogTransport(awsLogs),
+            Clock.systemUTC(), "benchmark"), settings);
+    appender.start();
+    event = BenchmarkEvents.create(eventType, "EndToEndBenchmark", "Benchmark message");
+  }
+
+  @TearDown
+  public void tearDown() {
+    appender.stop();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(EVENTS)
+  public void append_and_send() {
+    for(int i = 0; i < EVENTS; i++) {
+      appender.append(event);
+    }
+    expectedEvents += EVENTS;
+    while(awsLogs.getReceivedEvents() < expectedEvents) {
+      Thread.yield();
+    }
+  }
+
+}
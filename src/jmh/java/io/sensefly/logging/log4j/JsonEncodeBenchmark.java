@@ -0,0 +1,69 @@
+package io.sensefly.logging.log4j;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.JsonLayout;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Cost of encoding one event as JSON with {@link CloudWatchJsonLayout} through the {@link LogEventEncoder} and with
+ * the Jackson based compact {@link JsonLayout} as a baseline. Run with the {@code gc} profiler to compare the
+ * allocations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JsonEncodeBenchmark {
+
+  private LogEventEncoder encoder;
+  private JsonLayout jsonLayout;
+  private BatchBuilder batchBuilder;
+  private LogEvent event;
+
+  @Setup
+  public void setUp() {
+    encoder = new LogEventEncoder(
+        CloudWatchJsonLayout.createLayout(CloudWatchJsonLayout.DEFAULT_MAX_STACK_FRAMES, true));
+    jsonLayout = JsonLayout.newBuilder().setCompact(true).setEventEol(false).setProperties(true).setCharset(UTF_8)
+        .build();
+    batchBuilder = new BatchBuilder(BatchBuilder.MAX_BATCH_EVENTS, BatchBuilder.MAX_BATCH_BYTES, true);
+    SortedArrayStringMap contextData = new SortedArrayStringMap();
+    contextData.putValue("requestId", "5f1c3c9e-8a7d-4b2e-9b1a-2d6f0e4c7a31");
+    event = Log4jLogEvent.newBuilder()
+        .setLoggerName("io.sensefly.logging.log4j.JsonEncodeBenchmark")
+        .setLevel(Level.INFO)
+        .setThreadName("main")
+        .setTimeMillis(System.currentTimeMillis())
+        .setMessage(new ParameterizedMessage("Benchmark message with {} to \"encode\"", "some text"))
+        .setContextData(contextData)
+        .build();
+  }
+
+  @Benchmark
+  public BatchBuilder cloud_watch_json_layout() {
+    if(batchBuilder.isFull()) {
+      batchBuilder.build();
+    }
+    encoder.encode(event, batchBuilder);
+    return batchBuilder;
+  }
+
+  @Benchmark
+  public String json_layout() {
+    return new String(jsonLayout.toByteArray(event), UTF_8);
+  }
+
+}
@@ -0,0 +1,54 @@
+package io.sensefly.logging.log4j;
+
+import com.amazonaws.services.logs.AbstractAWSLogs;
+import com.amazonaws.services.logs.model.CreateLogGroupRequest;
+import com.amazonaws.services.logs.model.CreateLogGroupResult;
+import com.amazonaws.services.logs.model.CreateLogStreamRequest;
+import com.amazonaws.services.logs.model.CreateLogStreamResult;
+import com.amazonaws.services.logs.model.DescribeLogGroupsRequest;
+import com.amazonaws.services.logs.model.DescribeLogGroupsResult;
+import com.amazonaws.services.logs.model.DescribeLogStreamsRequest;
+import com.amazonaws.services.logs.model.DescribeLogStreamsResult;
+import com.amazonaws.services.logs.model.PutLogEventsRequest;
+import com.amazonaws.services.logs.model.PutLogEventsResult;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory {@code AWSLogs} accepting every request, so benchmarks measure the appender and not the network.
+ */
+class StubAWSLogs extends AbstractAWSLogs {
+
+  private final LongAdder receivedEvents = new LongAdder();
+
+  @Override
+  public PutLogEventsResult putLogEvents(PutLogEventsRequest request) {
+    receivedEvents.add(request.getLogEvents().size());
+    return new PutLogEventsResult();
+  }
+
+  @Override
+  public DescribeLogGroupsResult describeLogGroups(DescribeLogGroupsRequest request) {
+    return new DescribeLogGroupsResult();
+  }
+
+  @Override
+  public CreateLogGroupResult createLogGroup(CreateLogGroupRequest request) {
+    return new CreateLogGroupResult();
+  }
+
+  @Override
+  public DescribeLogStreamsResult describeLogStreams(DescribeLogStreamsRequest request) {
+    return new DescribeLogStreamsResult();
+  }
+
+  @Override
+  public CreateLogStreamResult createLogStream(CreateLogStreamRequest request) {
+    return new CreateLogStreamResult();
+  }
+
+  long getReceivedEvents() {
+    return receivedEvents.sum();
+  }
+
+}
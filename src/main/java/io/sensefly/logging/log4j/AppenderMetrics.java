@@ -0,0 +1,326 @@
+package io.sensefly.logging.log4j;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import static io.sensefly.logging.log4j.CloudWatchDebugger.debug;
+
+/**
+ * Counts what goes through the appender with striped counters, so recording never takes a lock.
+ * Histograms are only recorded by the sender threads, and report the last one to two minutes rather than everything
+ * since startup, so a degraded latency shows up. When disabled, nothing is recorded nor registered in JMX.
+ */
+class AppenderMetrics implements AppenderMetricsMXBean {
+
+  static final AppenderMetrics DISABLED = new AppenderMetrics(null, false);
+
+  private static final String DOMAIN = "io.sensefly.logging.log4j";
+  private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final long HISTOGRAM_WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+  private final LogEventBuffer buffer;
+  private final boolean enabled;
+  private final List<MetricsListener> listeners = new CopyOnWriteArrayList<>();
+
+  private final LongAdder appendedEvents = new LongAdder();
+  private final LongAdder suppressedEvents = new LongAdder();
+  private final LongAdder sentEvents = new LongAdder();
+  private final LongAdder sentBytes = new LongAdder();
+  private final LongAdder sentRequests = new LongAdder();
+  private final LongAdder failedRequests = new LongAdder();
+  private final LongAdder failedEvents = new LongAdder();
+  private final LongAdder rejectedEvents = new LongAdder();
+  private final LongAdder retries = new LongAdder();
+  private final LongAdder throttles = new LongAdder();
+  private final LongAdder sequenceTokenConflicts = new LongAdder();
+  private final Histogram batchEvents = new Histogram(HISTOGRAM_WINDOW_NANOS, System::nanoTime);
+  private final Histogram batchBytes = new Histogram(HISTOGRAM_WINDOW_NANOS, System::nanoTime);
+  private final Histogram latencyNanos = new Histogram(HISTOGRAM_WINDOW_NANOS, System::nanoTime);
+
+  private ObjectName objectName;
+
+  AppenderMetrics(LogEventBuffer buffer, boolean enabled) {
+    this.buffer = buffer;
+    this.enabled = enabled;
+  }
+
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  void addListener(MetricsListener listener) {
+    listeners.add(listener);
+  }
+
+  void onAppended() {
+    if(enabled) {
+      appendedEvents.increment();
+    }
+  }
+
+  void onSuppressed() {
+    if(enabled) {
+      suppressedEvents.increment();
+    }
+  }
+
+  void onRequestSent(int events, long bytes, long latency) {
+    if(!enabled) {
+      return;
+    }
+    sentRequests.increment();
+    sentEvents.add(events);
+    sentBytes.add(bytes);
+    batchEvents.record(events);
+    batchBytes.record(bytes);
+    latencyNanos.record(latency);
+    for(MetricsListener listener : listeners) {
+      try {
+        listener.onRequestSent(events, bytes, latency);
+      } catch(RuntimeException e) {
+        debug("Metrics listener error", e);
+      }
+    }
+  }
+
+  void onRequestFailed(int events, ErrorClass errorClass) {
+    if(!enabled) {
+      return;
+    }
+    failedRequests.increment();
+    failedEvents.add(events);
+    if(!errorClass.isRetryable()) {
+      rejectedEvents.add(events);
+    }
+    for(MetricsListener listener : listeners) {
+      try {
+        listener.onRequestFailed(events, errorClass.name());
+      } catch(RuntimeException e) {
+        debug("Metrics listener error", e);
+      }
+    }
+  }
+
+  /**
+   * Counts the error of a request, retried or not
+   */
+  void onError(ErrorClass errorClass) {
+    if(!enabled) {
+      return;
+    }
+    if(errorClass == ErrorClass.THROTTLING) {
+      throttles.increment();
+    } else if(errorClass == ErrorClass.SEQUENCE_TOKEN) {
+      sequenceTokenConflicts.increment();
+    }
+  }
+
+  void onRetry(ErrorClass errorClass) {
+    if(!enabled) {
+      return;
+    }
+    retries.increment();
+    for(MetricsListener listener : listeners) {
+      try {
+        listener.onRetry(errorClass.name());
+      } catch(RuntimeException e) {
+        debug("Metrics listener error", e);
+      }
+    }
+  }
+
+  /**
+   * Registers these metrics in the platform MBean server, unless disabled or already registered by another appender.
+   */
+  synchronized void register(String appenderName) {
+    if(!enabled || objectName != null) {
+      return;
+    }
+    try {
+      ObjectName name = new ObjectName(DOMAIN + ":type=CloudWatchAppender,name=" + ObjectName.quote(appenderName));
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if(server.isRegistered(name)) {
+        debug("CloudWatch appender metrics already registered as " + name);
+        return;
+      }
+      server.registerMBean(this, name);
+      objectName = name;
+    } catch(JMException | SecurityException e) {
+      debug("Cannot register CloudWatch appender metrics", e);
+    }
+  }
+
+  synchronized void unregister() {
+    if(objectName == null) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    } catch(JMException | SecurityException e) {
+      debug("Cannot unregister CloudWatch appender metrics", e);
+    }
+    objectName = null;
+  }
+
+  // visible for testing
+  synchronized ObjectName getObjectName() {
+    return objectName;
+  }
+
+  @Override
+  public int getQueueDepth() {
+    return buffer == null ? 0 : buffer.size() - buffer.prioritySize();
+  }
+
+  @Override
+  public int getQueueCapacity() {
+    return buffer == null ? 0 : buffer.capacity();
+  }
+
+  @Override
+  public int getPriorityQueueDepth() {
+    return buffer == null ? 0 : buffer.prioritySize();
+  }
+
+  @Override
+  public int getPriorityQueueCapacity() {
+    return buffer == null ? 0 : buffer.priorityCapacity();
+  }
+
+  @Override
+  public long getQueueBytes() {
+    return buffer == null ? 0 : buffer.bytes();
+  }
+
+  @Override
+  public long getQueueMaxBytes() {
+    return buffer == null ? 0 : buffer.maxBytes();
+  }
+
+  @Override
+  public long getQueueBytesHighWaterMark() {
+    return buffer == null ? 0 : buffer.highWaterBytes();
+  }
+
+  @Override
+  public long getAppendedEvents() {
+    return appendedEvents.sum();
+  }
+
+  @Override
+  public long getDroppedEvents() {
+    return buffer == null ? 0 : buffer.getDroppedCount();
+  }
+
+  @Override
+  public long getSuppressedEvents() {
+    return suppressedEvents.sum();
+  }
+
+  @Override
+  public long getPriorityDroppedEvents() {
+    return buffer == null ? 0 : buffer.getPriorityDroppedCount();
+  }
+
+  @Override
+  public long getSpilledEvents() {
+    return buffer == null ? 0 : buffer.getSpilledCount();
+  }
+
+  @Override
+  public long getSentEvents() {
+    return sentEvents.sum();
+  }
+
+  @Override
+  public long getSentBytes() {
+    return sentBytes.sum();
+  }
+
+  @Override
+  public long getSentRequests() {
+    return sentRequests.sum();
+  }
+
+  @Override
+  public long getFailedRequests() {
+    return failedRequests.sum();
+  }
+
+  @Override
+  public long getFailedEvents() {
+    return failedEvents.sum();
+  }
+
+  @Override
+  public long getRejectedEvents() {
+    return rejectedEvents.sum();
+  }
+
+  @Override
+  public long getRetries() {
+    return retries.sum();
+  }
+
+  @Override
+  public long getThrottles() {
+    return throttles.sum();
+  }
+
+  @Override
+  public long getSequenceTokenConflicts() {
+    return sequenceTokenConflicts.sum();
+  }
+
+  @Override
+  public double getBatchEventsMean() {
+    return batchEvents.getMean();
+  }
+
+  @Override
+  public long getBatchEventsMax() {
+    return batchEvents.getMax();
+  }
+
+  @Override
+  public double getBatchBytesMean() {
+    return batchBytes.getMean();
+  }
+
+  @Override
+  public long getBatchBytesMax() {
+    return batchBytes.getMax();
+  }
+
+  @Override
+  public double getLatencyMillisMean() {
+    return latencyNanos.getMean() / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getLatencyMillisP50() {
+    return latencyNanos.getPercentile(50) / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getLatencyMillisP90() {
+    return latencyNanos.getPercentile(90) / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getLatencyMillisP99() {
+    return latencyNanos.getPercentile(99) / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getLatencyMillisMax() {
+    return latencyNanos.getMax() / NANOS_PER_MILLI;
+  }
+
+}
@@ -0,0 +1,73 @@
+package io.sensefly.logging.log4j;
+
+/**
+ * Measures of a {@link CloudWatchAppender}, registered as
+ * {@code io.sensefly.logging.log4j:type=CloudWatchAppender,name=<appender name>}.
+ * The batch sizes and latencies cover the last one to two minutes, the counters everything since startup.
+ */
+public interface AppenderMetricsMXBean {
+
+  int getQueueDepth();
+
+  int getQueueCapacity();
+
+  int getPriorityQueueDepth();
+
+  long getQueueBytes();
+
+  long getQueueMaxBytes();
+
+  long getQueueBytesHighWaterMark();
+
+  int getPriorityQueueCapacity();
+
+  long getAppendedEvents();
+
+  long getDroppedEvents();
+
+  long getSuppressedEvents();
+
+  long getPriorityDroppedEvents();
+
+  long getSpilledEvents();
+
+  long getSentEvents();
+
+  long getSentBytes();
+
+  long getSentRequests();
+
+  long getFailedRequests();
+
+  long getFailedEvents();
+
+  /**
+   * @return the failed events rejected for good, dropped instead of spilled
+   */
+  long getRejectedEvents();
+
+  long getRetries();
+
+  long getThrottles();
+
+  long getSequenceTokenConflicts();
+
+  double getBatchEventsMean();
+
+  long getBatchEventsMax();
+
+  double getBatchBytesMean();
+
+  long getBatchBytesMax();
+
+  double getLatencyMillisMean();
+
+  double getLatencyMillisP50();
+
+  double getLatencyMillisP90();
+
+  double getLatencyMillisP99();
+
+  double getLatencyMillisMax();
+
+}
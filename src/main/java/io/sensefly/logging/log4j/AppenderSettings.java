@@ -0,0 +1,445 @@
+package io.sensefly.logging.log4j;
+
+import org.apache.logging.log4j.Level;
+
+/**
+ * Tuning of the appender pipeline, populated from the plugin attributes.
+ */
+class AppenderSettings {
+
+  static final int DEFAULT_QUEUE_LENGTH = 1024;
+  static final int DEFAULT_MESSAGE_BATCH_SIZE = 128;
+  static final int DEFAULT_MAX_BATCH_BYTES = BatchBuilder.MAX_BATCH_BYTES;
+  static final long DEFAULT_LINGER_MS = 200;
+  static final String DEFAULT_OVERFLOW_POLICY = "DROP_NEWEST";
+  static final long DEFAULT_OVERFLOW_TIMEOUT_MS = 100;
+  static final String DEFAULT_OVERFLOW_LEVEL = "WARN";
+  static final long DEFAULT_SPILL_MAX_BYTES = 256L * 1024 * 1024;
+  static final int DEFAULT_MAX_RETRIES = 3;
+  static final long DEFAULT_RETRY_BASE_DELAY_MS = 100;
+  static final long DEFAULT_RETRY_MAX_DELAY_MS = 20_000;
+  static final int DEFAULT_MAX_REQUESTS_PER_SECOND = 50;
+  static final String DEFAULT_LOG_STREAM_ROLLOVER = "MONTH";
+  static final int DEFAULT_ROUTE_CACHE_SIZE = 256;
+  static final int DEFAULT_PRIORITY_QUEUE_LENGTH = 0;
+  static final String DEFAULT_PRIORITY_LEVEL = "ERROR";
+  static final long DEFAULT_SHUTDOWN_TIMEOUT_MS = 10_000;
+  static final String DEFAULT_METRIC_NAMESPACE = "aws-embedded-metrics";
+  static final long DEFAULT_METRIC_INTERVAL_MS = 60_000;
+  static final int DEFAULT_STACK_TRACE_CACHE_SIZE = ThrowableRenderer.DEFAULT_CACHE_SIZE;
+
+  private int queueLength = DEFAULT_QUEUE_LENGTH;
+  private int messagesBatchSize = DEFAULT_MESSAGE_BATCH_SIZE;
+  private int maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+  private long lingerMs = DEFAULT_LINGER_MS;
+  private boolean splitOversizedEvents = true;
+  private OverflowPolicy overflowPolicy = OverflowPolicy.valueOf(DEFAULT_OVERFLOW_POLICY);
+  private long overflowTimeoutMs = DEFAULT_OVERFLOW_TIMEOUT_MS;
+  private Level overflowLevel = Level.getLevel(DEFAULT_OVERFLOW_LEVEL);
+  private int streamShards = 1;
+  private int maxInFlightRequests = 1;
+  private String spillDirectory;
+  private long spillMaxBytes = DEFAULT_SPILL_MAX_BYTES;
+  private int maxRetries = DEFAULT_MAX_RETRIES;
+  private long retryBaseDelayMs = DEFAULT_RETRY_BASE_DELAY_MS;
+  private long retryMaxDelayMs = DEFAULT_RETRY_MAX_DELAY_MS;
+  private int maxRequestsPerSecond = DEFAULT_MAX_REQUESTS_PER_SECOND;
+  private boolean metricsEnabled = true;
+  private String region;
+  private boolean assumeExists;
+  private String logGroupNamePattern;
+  private String logStreamNamePattern;
+  private int routeCacheSize = DEFAULT_ROUTE_CACHE_SIZE;
+  private int priorityQueueLength = DEFAULT_PRIORITY_QUEUE_LENGTH;
+  private Level priorityLevel = Level.getLevel(DEFAULT_PRIORITY_LEVEL);
+  private long dedupWindowMs;
+  private int rateLimitPerSecond;
+  private long shutdownTimeoutMs = DEFAULT_SHUTDOWN_TIMEOUT_MS;
+  private long maxBufferBytes;
+  private boolean encodeOnAppend;
+  private boolean explicitFlush;
+  private int senderThreads;
+  private String senderExecutor;
+  private int stackTraceMaxFrames;
+  private String stackTraceFilters;
+  private long stackTraceWindowMs;
+  private int stackTraceCacheSize = DEFAULT_STACK_TRACE_CACHE_SIZE;
+  private String metricMarker;
+  private String metricNamespace = DEFAULT_METRIC_NAMESPACE;
+  private String metricDimensions;
+  private long metricIntervalMs = DEFAULT_METRIC_INTERVAL_MS;
+  private LogStreamRollover logStreamRollover = LogStreamRollover.valueOf(DEFAULT_LOG_STREAM_ROLLOVER);
+
+  int getQueueLength() {
+    return queueLength;
+  }
+
+  AppenderSettings withQueueLength(int queueLength) {
+    this.queueLength = queueLength;
+    return this;
+  }
+
+  int getMessagesBatchSize() {
+    return messagesBatchSize;
+  }
+
+  AppenderSettings withMessagesBatchSize(int messagesBatchSize) {
+    this.messagesBatchSize = messagesBatchSize;
+    return this;
+  }
+
+  int getMaxBatchBytes() {
+    return maxBatchBytes;
+  }
+
+  AppenderSettings withMaxBatchBytes(int maxBatchBytes) {
+    this.maxBatchBytes = maxBatchBytes;
+    return this;
+  }
+
+  long getLingerMs() {
+    return lingerMs;
+  }
+
+  AppenderSettings withLingerMs(long lingerMs) {
+    this.lingerMs = lingerMs;
+    return this;
+  }
+
+  boolean isSplitOversizedEvents() {
+    return splitOversizedEvents;
+  }
+
+  AppenderSettings withSplitOversizedEvents(boolean splitOversizedEvents) {
+    this.splitOversizedEvents = splitOversizedEvents;
+    return this;
+  }
+
+  OverflowPolicy getOverflowPolicy() {
+    return overflowPolicy;
+  }
+
+  AppenderSettings withOverflowPolicy(OverflowPolicy overflowPolicy) {
+    this.overflowPolicy = overflowPolicy;
+    return this;
+  }
+
+  long getOverflowTimeoutMs() {
+    return overflowTimeoutMs;
+  }
+
+  AppenderSettings withOverflowTimeoutMs(long overflowTimeoutMs) {
+    this.overflowTimeoutMs = overflowTimeoutMs;
+    return this;
+  }
+
+  Level getOverflowLevel() {
+    return overflowLevel;
+  }
+
+  AppenderSettings withOverflowLevel(Level overflowLevel) {
+    this.overflowLevel = overflowLevel;
+    return this;
+  }
+
+  int getStreamShards() {
+    return streamShards;
+  }
+
+  AppenderSettings withStreamShards(int streamShards) {
+    this.streamShards = streamShards;
+    return this;
+  }
+
+  int getMaxInFlightRequests() {
+    return maxInFlightRequests;
+  }
+
+  AppenderSettings withMaxInFlightRequests(int maxInFlightRequests) {
+    this.maxInFlightRequests = maxInFlightRequests;
+    return this;
+  }
+
+  String getSpillDirectory() {
+    return spillDirectory;
+  }
+
+  AppenderSettings withSpillDirectory(String spillDirectory) {
+    this.spillDirectory = spillDirectory;
+    return this;
+  }
+
+  long getSpillMaxBytes() {
+    return spillMaxBytes;
+  }
+
+  AppenderSettings withSpillMaxBytes(long spillMaxBytes) {
+    this.spillMaxBytes = spillMaxBytes;
+    return this;
+  }
+
+  int getMaxRetries() {
+    return maxRetries;
+  }
+
+  AppenderSettings withMaxRetries(int maxRetries) {
+    this.maxRetries = maxRetries;
+    return this;
+  }
+
+  long getRetryBaseDelayMs() {
+    return retryBaseDelayMs;
+  }
+
+  AppenderSettings withRetryBaseDelayMs(long retryBaseDelayMs) {
+    this.retryBaseDelayMs = retryBaseDelayMs;
+    return this;
+  }
+
+  long getRetryMaxDelayMs() {
+    return retryMaxDelayMs;
+  }
+
+  AppenderSettings withRetryMaxDelayMs(long retryMaxDelayMs) {
+    this.retryMaxDelayMs = retryMaxDelayMs;
+    return this;
+  }
+
+  int getMaxRequestsPerSecond() {
+    return maxRequestsPerSecond;
+  }
+
+  AppenderSettings withMaxRequestsPerSecond(int maxRequestsPerSecond) {
+    this.maxRequestsPerSecond = maxRequestsPerSecond;
+    return this;
+  }
+
+  boolean isMetricsEnabled() {
+    return metricsEnabled;
+  }
+
+  AppenderSettings withMetricsEnabled(boolean metricsEnabled) {
+    this.metricsEnabled = metricsEnabled;
+    return this;
+  }
+
+  String getRegion() {
+    return region;
+  }
+
+  /**
+   * @param region null to resolve the region from the default provider chain
+   */
+  AppenderSettings withRegion(String region) {
+    this.region = region;
+    return this;
+  }
+
+  boolean isAssumeExists() {
+    return assumeExists;
+  }
+
+  AppenderSettings withAssumeExists(boolean assumeExists) {
+    this.assumeExists = assumeExists;
+    return this;
+  }
+
+  LogStreamRollover getLogStreamRollover() {
+    return logStreamRollover;
+  }
+
+  AppenderSettings withLogStreamRollover(LogStreamRollover logStreamRollover) {
+    this.logStreamRollover = logStreamRollover;
+    return this;
+  }
+
+  String getLogGroupNamePattern() {
+    return logGroupNamePattern;
+  }
+
+  AppenderSettings withLogGroupNamePattern(String logGroupNamePattern) {
+    this.logGroupNamePattern = logGroupNamePattern;
+    return this;
+  }
+
+  String getLogStreamNamePattern() {
+    return logStreamNamePattern;
+  }
+
+  AppenderSettings withLogStreamNamePattern(String logStreamNamePattern) {
+    this.logStreamNamePattern = logStreamNamePattern;
+    return this;
+  }
+
+  int getRouteCacheSize() {
+    return routeCacheSize;
+  }
+
+  AppenderSettings withRouteCacheSize(int routeCacheSize) {
+    this.routeCacheSize = routeCacheSize;
+    return this;
+  }
+
+  int getPriorityQueueLength() {
+    return priorityQueueLength;
+  }
+
+  AppenderSettings withPriorityQueueLength(int priorityQueueLength) {
+    this.priorityQueueLength = priorityQueueLength;
+    return this;
+  }
+
+  Level getPriorityLevel() {
+    return priorityLevel;
+  }
+
+  AppenderSettings withPriorityLevel(Level priorityLevel) {
+    this.priorityLevel = priorityLevel;
+    return this;
+  }
+
+  long getDedupWindowMs() {
+    return dedupWindowMs;
+  }
+
+  AppenderSettings withDedupWindowMs(long dedupWindowMs) {
+    this.dedupWindowMs = dedupWindowMs;
+    return this;
+  }
+
+  int getRateLimitPerSecond() {
+    return rateLimitPerSecond;
+  }
+
+  AppenderSettings withRateLimitPerSecond(int rateLimitPerSecond) {
+    this.rateLimitPerSecond = rateLimitPerSecond;
+    return this;
+  }
+
+  long getShutdownTimeoutMs() {
+    return shutdownTimeoutMs;
+  }
+
+  AppenderSettings withShutdownTimeoutMs(long shutdownTimeoutMs) {
+    this.shutdownTimeoutMs = shutdownTimeoutMs;
+    return this;
+  }
+
+  long getMaxBufferBytes() {
+    return maxBufferBytes;
+  }
+
+  AppenderSettings withMaxBufferBytes(long maxBufferBytes) {
+    this.maxBufferBytes = maxBufferBytes;
+    return this;
+  }
+
+  boolean isEncodeOnAppend() {
+    return encodeOnAppend;
+  }
+
+  AppenderSettings withEncodeOnAppend(boolean encodeOnAppend) {
+    this.encodeOnAppend = encodeOnAppend;
+    return this;
+  }
+
+  boolean isExplicitFlush() {
+    return explicitFlush;
+  }
+
+  AppenderSettings withExplicitFlush(boolean explicitFlush) {
+    this.explicitFlush = explicitFlush;
+    return this;
+  }
+
+  int getSenderThreads() {
+    return senderThreads;
+  }
+
+  AppenderSettings withSenderThreads(int senderThreads) {
+    this.senderThreads = senderThreads;
+    return this;
+  }
+
+  String getSenderExecutor() {
+    return senderExecutor;
+  }
+
+  AppenderSettings withSenderExecutor(String senderExecutor) {
+    this.senderExecutor = senderExecutor;
+    return this;
+  }
+
+  int getStackTraceMaxFrames() {
+    return stackTraceMaxFrames;
+  }
+
+  AppenderSettings withStackTraceMaxFrames(int stackTraceMaxFrames) {
+    this.stackTraceMaxFrames = stackTraceMaxFrames;
+    return this;
+  }
+
+  String getStackTraceFilters() {
+    return stackTraceFilters;
+  }
+
+  AppenderSettings withStackTraceFilters(String stackTraceFilters) {
+    this.stackTraceFilters = stackTraceFilters;
+    return this;
+  }
+
+  long getStackTraceWindowMs() {
+    return stackTraceWindowMs;
+  }
+
+  AppenderSettings withStackTraceWindowMs(long stackTraceWindowMs) {
+    this.stackTraceWindowMs = stackTraceWindowMs;
+    return this;
+  }
+
+  int getStackTraceCacheSize() {
+    return stackTraceCacheSize;
+  }
+
+  AppenderSettings withStackTraceCacheSize(int stackTraceCacheSize) {
+    this.stackTraceCacheSize = stackTraceCacheSize;
+    return this;
+  }
+
+  String getMetricMarker() {
+    return metricMarker;
+  }
+
+  AppenderSettings withMetricMarker(String metricMarker) {
+    this.metricMarker = metricMarker;
+    return this;
+  }
+
+  String getMetricNamespace() {
+    return metricNamespace;
+  }
+
+  AppenderSettings withMetricNamespace(String metricNamespace) {
+    this.metricNamespace = metricNamespace;
+    return this;
+  }
+
+  String getMetricDimensions() {
+    return metricDimensions;
+  }
+
+  AppenderSettings withMetricDimensions(String metricDimensions) {
+    this.metricDimensions = metricDimensions;
+    return this;
+  }
+
+  long getMetricIntervalMs() {
+    return metricIntervalMs;
+  }
+
+  AppenderSettings withMetricIntervalMs(long metricIntervalMs) {
+    this.metricIntervalMs = metricIntervalMs;
+    return this;
+  }
+
+}
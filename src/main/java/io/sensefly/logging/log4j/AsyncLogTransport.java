@@ -0,0 +1,95 @@
+package io.sensefly.logging.log4j;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.logs.AWSLogsAsync;
+import com.amazonaws.services.logs.model.PutLogEventsRequest;
+import com.amazonaws.services.logs.model.PutLogEventsResult;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Pipelines requests through {@link AWSLogsAsync}: up to {@code maxInFlightRequests} requests are sent without waiting
+ * for the previous responses, so the sender keeps batching while requests travel. The callers send one request at a
+ * time per stream, as each request needs the sequence token returned by the previous one.
+ * Past the window, requests wait in a queue and are sent as the responses come back, so no caller ever blocks.
+ */
+class AsyncLogTransport implements LogTransport {
+
+  private final AWSLogsAsync awsLogs;
+  private final int maxInFlightRequests;
+
+  /**
+   * The requests sent and the requests waiting for the window, guarded by this transport
+   */
+  private int inFlightRequests;
+  private final Queue<Call> waiting = new ArrayDeque<>();
+
+  AsyncLogTransport(AWSLogsAsync awsLogs, int maxInFlightRequests) {
+    this.awsLogs = awsLogs;
+    this.maxInFlightRequests = Math.max(1, maxInFlightRequests);
+  }
+
+  @Override
+  public CompletableFuture<PutLogEventsResult> putLogEvents(PutLogEventsRequest request) {
+    Call call = new Call(request);
+    synchronized(this) {
+      if(inFlightRequests >= maxInFlightRequests) {
+        waiting.add(call);
+        return call.future;
+      }
+      inFlightRequests++;
+    }
+    send(call);
+    return call.future;
+  }
+
+  private void send(Call call) {
+    try {
+      awsLogs.putLogEventsAsync(call.request, new AsyncHandler<PutLogEventsRequest, PutLogEventsResult>() {
+        @Override
+        public void onError(Exception exception) {
+          release();
+          call.future.completeExceptionally(exception);
+        }
+
+        @Override
+        public void onSuccess(PutLogEventsRequest request, PutLogEventsResult result) {
+          release();
+          call.future.complete(result);
+        }
+      });
+    } catch(RuntimeException e) {
+      release();
+      call.future.completeExceptionally(e);
+    }
+  }
+
+  /**
+   * Hands the place in the window of a completed request to the next waiting one
+   */
+  private void release() {
+    Call next;
+    synchronized(this) {
+      next = waiting.poll();
+      if(next == null) {
+        inFlightRequests--;
+        return;
+      }
+    }
+    send(next);
+  }
+
+  private static final class Call {
+
+    private final PutLogEventsRequest request;
+    private final CompletableFuture<PutLogEventsResult> future = new CompletableFuture<>();
+
+    private Call(PutLogEventsRequest request) {
+      this.request = request;
+    }
+
+  }
+
+}
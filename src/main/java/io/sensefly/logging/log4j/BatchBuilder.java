@@ -0,0 +1,235 @@
+package io.sensefly.logging.log4j;
+
+import com.amazonaws.services.logs.model.InputLogEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static io.sensefly.logging.log4j.CloudWatchDebugger.debug;
+
+/**
+ * Packs events into batches which comply with the PutLogEvents limits: at most {@link #MAX_BATCH_EVENTS} events,
+ * at most {@link #MAX_BATCH_BYTES} bytes (UTF-8 messages plus {@link #EVENT_OVERHEAD_BYTES} per event), events in
+ * chronological order and a batch never spans more than 24 hours.
+ * Events larger than {@link #MAX_EVENT_BYTES} are split in several events or truncated.
+ * Pending entries are recycled from one batch to the next.
+ */
+class BatchBuilder {
+
+  static final int MAX_BATCH_BYTES = 1_048_576;
+  static final int MAX_BATCH_EVENTS = 10_000;
+  static final int MAX_EVENT_BYTES = 262_144;
+  static final int EVENT_OVERHEAD_BYTES = 26;
+  static final long MAX_BATCH_SPAN_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+  private static final int MAX_MESSAGE_BYTES = MAX_EVENT_BYTES - EVENT_OVERHEAD_BYTES;
+
+  private final int maxEvents;
+  private final int maxBytes;
+  private final boolean splitOversizedEvents;
+
+  private final List<Entry> entries = new ArrayList<>();
+  private int size;
+  private int bytes;
+
+  BatchBuilder(int maxEvents, int maxBytes, boolean splitOversizedEvents) {
+    this.maxEvents = Math.max(1, Math.min(maxEvents, MAX_BATCH_EVENTS));
+    this.maxBytes = Math.min(maxBytes, MAX_BATCH_BYTES);
+    this.splitOversizedEvents = splitOversizedEvents;
+  }
+
+  void add(long timestamp, String message, int messageBytes) {
+    if(messageBytes > MAX_MESSAGE_BYTES) {
+      addOversized(timestamp, message);
+      return;
+    }
+    if(size == entries.size()) {
+      entries.add(new Entry());
+    }
+    entries.get(size++).set(timestamp, message, messageBytes + EVENT_OVERHEAD_BYTES);
+    bytes += messageBytes + EVENT_OVERHEAD_BYTES;
+  }
+
+  /**
+   * @return true when enough events are pending to fill at least one request
+   */
+  boolean isFull() {
+    return size >= maxEvents || bytes >= maxBytes;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  int size() {
+    return size;
+  }
+
+  int bytes() {
+    return bytes;
+  }
+
+  /**
+   * Sorts the pending events chronologically, packs them into batches and resets this builder.
+   */
+  List<List<InputLogEvent>> build() {
+    return build(false);
+  }
+
+  /**
+   * Like {@link #build()}, but only returns the batches filled up by count, bytes or time span: the events of the last
+   * batch, when it is not full, are kept for the next one instead of being sent in a small request.
+   */
+  List<List<InputLogEvent>> buildFull() {
+    return build(true);
+  }
+
+  private List<List<InputLogEvent>> build(boolean keepPartial) {
+    List<List<InputLogEvent>> batches = new ArrayList<>();
+    if(size == 0) {
+      return batches;
+    }
+    sortChronologically();
+
+    List<InputLogEvent> batch = new ArrayList<>();
+    int batchStart = 0;
+    int batchBytes = 0;
+    long firstTimestamp = entries.get(0).timestamp;
+    for(int i = 0; i < size; i++) {
+      Entry entry = entries.get(i);
+      if(!batch.isEmpty() && (batch.size() >= maxEvents
+          || batchBytes + entry.bytes > maxBytes
+          || entry.timestamp - firstTimestamp >= MAX_BATCH_SPAN_MILLIS)) {
+        batches.add(batch);
+        batch = new ArrayList<>();
+        batchStart = i;
+        batchBytes = 0;
+      }
+      if(batch.isEmpty()) {
+        firstTimestamp = entry.timestamp;
+      }
+      batch.add(new InputLogEvent().withTimestamp(entry.timestamp).withMessage(entry.message));
+      batchBytes += entry.bytes;
+    }
+    int kept = 0;
+    if(keepPartial && batch.size() < maxEvents && batchBytes < maxBytes) {
+      kept = size - batchStart;
+    } else {
+      batches.add(batch);
+      batchStart = size;
+      batchBytes = 0;
+    }
+    for(int i = 0; i < batchStart; i++) {
+      entries.get(i).set(0, null, 0);
+    }
+    // the kept entries move to the front, the recycled ones after them
+    for(int i = 0; i < kept; i++) {
+      Entry entry = entries.get(i);
+      entries.set(i, entries.get(batchStart + i));
+      entries.set(batchStart + i, entry);
+    }
+    size = kept;
+    bytes = batchBytes;
+    return batches;
+  }
+
+  /**
+   * Insertion sort: events are taken from a FIFO buffer so they are almost always already sorted,
+   * which makes it linear and allocation-free. Stable, so events with the same timestamp keep their order.
+   */
+  private void sortChronologically() {
+    for(int i = 1; i < size; i++) {
+      Entry entry = entries.get(i);
+      int j = i - 1;
+      while(j >= 0 && entries.get(j).timestamp > entry.timestamp) {
+        entries.set(j + 1, entries.get(j));
+        j--;
+      }
+      entries.set(j + 1, entry);
+    }
+  }
+
+  private void addOversized(long timestamp, String message) {
+    int start = 0;
+    while(start < message.length()) {
+      int end = endOfChunk(message, start);
+      String chunk = message.substring(start, end);
+      add(timestamp, chunk, utf8Length(message, start, end));
+      if(!splitOversizedEvents) {
+        debug("Truncated log event of " + message.length() + " characters");
+        return;
+      }
+      start = end;
+    }
+  }
+
+  /**
+   * @return the end index of the longest chunk starting at {@code start} which fits in {@link #MAX_MESSAGE_BYTES}
+   * without splitting a surrogate pair
+   */
+  private static int endOfChunk(String message, int start) {
+    int chunkBytes = 0;
+    int index = start;
+    while(index < message.length()) {
+      char c = message.charAt(index);
+      int charCount = Character.isHighSurrogate(c) && index + 1 < message.length() ? 2 : 1;
+      int charBytes = charCount == 2 ? 4 : utf8Length(c);
+      if(chunkBytes + charBytes > MAX_MESSAGE_BYTES) {
+        break;
+      }
+      chunkBytes += charBytes;
+      index += charCount;
+    }
+    return index;
+  }
+
+  /**
+   * @return the size of the events as counted by {@code PutLogEvents}
+   */
+  static long requestBytes(List<InputLogEvent> inputLogEvents) {
+    long bytes = 0;
+    for(InputLogEvent inputLogEvent : inputLogEvents) {
+      String message = inputLogEvent.getMessage();
+      bytes += EVENT_OVERHEAD_BYTES + (message == null ? 0 : utf8Length(message, 0, message.length()));
+    }
+    return bytes;
+  }
+
+  /**
+   * @return the number of bytes of the characters in UTF-8
+   */
+  static int utf8Length(CharSequence message, int start, int end) {
+    int length = 0;
+    for(int index = start; index < end; index++) {
+      char c = message.charAt(index);
+      if(Character.isHighSurrogate(c) && index + 1 < end) {
+        length += 4;
+        index++;
+      } else {
+        length += utf8Length(c);
+      }
+    }
+    return length;
+  }
+
+  private static int utf8Length(char c) {
+    if(c < 0x80) return 1;
+    if(c < 0x800) return 2;
+    return 3;
+  }
+
+  private static final class Entry {
+
+    private long timestamp;
+    private String message;
+    private int bytes;
+
+    private void set(long timestamp, String message, int bytes) {
+      this.timestamp = timestamp;
+      this.message = message;
+      this.bytes = bytes;
+    }
+  }
+
+}
@@ -1,57 +1,136 @@
 package io.sensefly.logging.log4j;
 
 import com.amazonaws.services.logs.model.InputLogEvent;
+import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.Appender;
 import org.apache.logging.log4j.core.Layout;
 import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.Configuration;
 import org.apache.logging.log4j.core.config.plugins.Plugin;
 import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginConfiguration;
 import org.apache.logging.log4j.core.config.plugins.PluginElement;
 import org.apache.logging.log4j.core.config.plugins.PluginFactory;
 import org.apache.logging.log4j.core.config.plugins.validation.constraints.Required;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
 import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.message.ReusableMessage;
 
 import java.io.Serializable;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import static io.sensefly.logging.log4j.AppenderSettings.DEFAULT_LINGER_MS;
+import static io.sensefly.logging.log4j.AppenderSettings.DEFAULT_LOG_STREAM_ROLLOVER;
+import static io.sensefly.logging.log4j.AppenderSettings.DEFAULT_MAX_BATCH_BYTES;
+import static io.sensefly.logging.log4j.AppenderSettings.DEFAULT_MAX_REQUESTS_PER_SECOND;
+import static io.sensefly.logging.log4j.AppenderSettings.DEFAULT_MAX_RETRIES;
+import static io.sensefly.logging.log4j.AppenderSettings.DEFAULT_MESSAGE_BATCH_SIZE;
+import static io.sensefly.logging.log4j.AppenderSettings.DEFAULT_METRIC_INTERVAL_MS;
+import static io.sensefly.logging.log4j.AppenderSettings.DEFAULT_METRIC_NAMESPACE;
+import static io.sensefly.logging.log4j.AppenderSettings.DEFAULT_OVERFLOW_LEVEL;
+import static io.sensefly.logging.log4j.AppenderSettings.DEFAULT_OVERFLOW_POLICY;
+import static io.sensefly.logging.log4j.AppenderSettings.DEFAULT_OVERFLOW_TIMEOUT_MS;
+import static io.sensefly.logging.log4j.AppenderSettings.DEFAULT_PRIORITY_LEVEL;
+import static io.sensefly.logging.log4j.AppenderSettings.DEFAULT_PRIORITY_QUEUE_LENGTH;
+import static io.sensefly.logging.log4j.AppenderSettings.DEFAULT_QUEUE_LENGTH;
+import static io.sensefly.logging.log4j.AppenderSettings.DEFAULT_RETRY_BASE_DELAY_MS;
+import static io.sensefly.logging.log4j.AppenderSettings.DEFAULT_RETRY_MAX_DELAY_MS;
+import static io.sensefly.logging.log4j.AppenderSettings.DEFAULT_ROUTE_CACHE_SIZE;
+import static io.sensefly.logging.log4j.AppenderSettings.DEFAULT_SHUTDOWN_TIMEOUT_MS;
+import static io.sensefly.logging.log4j.AppenderSettings.DEFAULT_SPILL_MAX_BYTES;
+import static io.sensefly.logging.log4j.AppenderSettings.DEFAULT_STACK_TRACE_CACHE_SIZE;
 import static io.sensefly.logging.log4j.CloudWatchDebugger.debug;
-import static java.nio.charset.StandardCharsets.UTF_8;
-import static java.util.stream.Collectors.toList;
 
 @Plugin(name = "CloudWatchAppender", category = "Core", elementType = Appender.ELEMENT_TYPE, printObject = true)
 public class CloudWatchAppender extends AbstractAppender {
 
-  private static final int DEFAULT_QUEUE_LENGTH = 1024;
-  private static final int DEFAULT_MESSAGE_BATCH_SIZE = 128;
-  private static final int DAEMON_SLEEP = 20;
+  /**
+   * The buffer used to queue log entries
+   */
+  private final LogEventBuffer logEventsQueue;
 
   /**
-   * The queue used to buffer log entries
+   * One sender lane per log stream shard
    */
-  private final LinkedBlockingQueue<LogEvent> logEventsQueue;
+  private final List<SenderLane> senderLanes = new ArrayList<>();
 
   /**
-   * The maximum number of log entries to send in one go to the AWS CloudWatch Log service
+   * Runs the sender lanes, shared with the other appenders of the manager
    */
-  private final int messagesBatchSize;
+  private final SenderPool senderPool;
 
-  private final AtomicBoolean appenderInitialised = new AtomicBoolean(false);
+  /**
+   * The client and sender pool shared with the other appenders, null when the services are given
+   */
+  private final CloudWatchManager manager;
+
+  /**
+   * Keeps on disk the events which could not be buffered or sent, null when no spill directory is configured or it is
+   * locked by another appender
+   */
+  private final SpillStore spillStore;
+
+  /**
+   * Collapses the repeated events and limits the events per logger before they are buffered
+   */
+  private final LogSuppressor suppressor;
+
+  /**
+   * Writes the summaries of the suppressed events, rescheduled while the appender is running
+   */
+  private final Runnable flushSuppressed = this::flushSuppressed;
+  private final long flushSuppressedNanos;
+
+  /**
+   * Aggregates the metric events into Embedded Metric Format documents instead of buffering them
+   */
+  private final MetricAggregator metricAggregator;
+
+  /**
+   * Writes the aggregated metrics, rescheduled while the appender is running
+   */
+  private final Runnable flushMetrics = this::flushMetrics;
+  private final long flushMetricsNanos;
+
+  /**
+   * Encodes every event on the appending thread and flushes the lanes at the end of the batches of the async loggers,
+   * otherwise only the mutable events are encoded on append
+   */
+  private final boolean encodeOnAppend;
+
+  /**
+   * The encoders lent to the appending threads, released on stop
+   */
+  private final EncoderPool encoders;
+
+  private final LogDestinationRouter router;
 
-  private final CloudWatchLogService cloudWatchLogService;
+  /**
+   * The maximum time {@link #stop(long, TimeUnit)} waits for the buffered events to be sent, zero to wait until sent
+   */
+  private final long shutdownTimeoutMs;
+
+  private final AppenderMetrics metrics;
+
+  private final AtomicBoolean appenderInitialised = new AtomicBoolean(false);
 
   private CloudWatchAppender(
       String name,
       String logGroupName,
       String logStreamNamePrefix,
-      int queueLength,
-      int messagesBatchSize,
-      Layout<Serializable> layout) {
-    this(name, queueLength, messagesBatchSize, layout, new CloudWatchLogService(logGroupName, logStreamNamePrefix));
+      Layout<Serializable> layout,
+      AppenderSettings settings,
+      Configuration configuration,
+      CloudWatchManager manager) {
+    this(name, layout, CloudWatchLogService.createShards(logGroupName, logStreamNamePrefix, settings, manager),
+        settings, configuration, manager);
   }
 
   // visible for testing
@@ -61,12 +140,92 @@ public class CloudWatchAppender extends AbstractAppender {
       int messagesBatchSize,
       Layout<Serializable> layout,
       CloudWatchLogService cloudWatchLogService) {
+    this(name, layout, cloudWatchLogService, new AppenderSettings()
+        .withQueueLength(queueLength)
+        .withMessagesBatchSize(messagesBatchSize));
+  }
+
+  // visible for testing
+  CloudWatchAppender(
+      String name,
+      Layout<Serializable> layout,
+      CloudWatchLogService cloudWatchLogService,
+      AppenderSettings settings) {
+    this(name, layout, Collections.singletonList(cloudWatchLogService), settings);
+  }
+
+  // visible for testing
+  CloudWatchAppender(
+      String name,
+      Layout<Serializable> layout,
+      List<CloudWatchLogService> cloudWatchLogServices,
+      AppenderSettings settings) {
+    this(name, layout, cloudWatchLogServices, settings, null);
+  }
+
+  // visible for testing
+  CloudWatchAppender(
+      String name,
+      Layout<Serializable> layout,
+      List<CloudWatchLogService> cloudWatchLogServices,
+      AppenderSettings settings,
+      Configuration configuration) {
+    this(name, layout, cloudWatchLogServices, settings, configuration, null);
+  }
+
+  private CloudWatchAppender(
+      String name,
+      Layout<Serializable> layout,
+      List<CloudWatchLogService> cloudWatchLogServices,
+      AppenderSettings settings,
+      Configuration configuration,
+      CloudWatchManager manager) {
     super(name, null, layout == null ? PatternLayout.createDefaultLayout() : layout, false);
-    this.messagesBatchSize = messagesBatchSize;
-    this.cloudWatchLogService = cloudWatchLogService;
-    logEventsQueue = new LinkedBlockingQueue<>(queueLength);
+    this.manager = manager;
+    this.shutdownTimeoutMs = settings.getShutdownTimeoutMs();
+    this.encodeOnAppend = settings.isEncodeOnAppend();
+    ThrowableRenderer throwableRenderer = ThrowableRenderer.create(settings.getStackTraceMaxFrames(),
+        settings.getStackTraceFilters(), settings.getStackTraceWindowMs(), settings.getStackTraceCacheSize());
+    this.encoders = new EncoderPool(Runtime.getRuntime().availableProcessors(),
+        () -> new LogEventEncoder(getLayout(), throwableRenderer));
+    senderPool = manager == null
+        ? SenderPool.create(settings.getSenderThreads(), settings.getSenderExecutor())
+        : manager.getSenderPool();
+    spillStore = settings.getSpillDirectory() == null || settings.getSpillMaxBytes() <= 0
+        ? null
+        : SpillStore.open(Paths.get(settings.getSpillDirectory()), settings.getSpillMaxBytes());
+    logEventsQueue = new LogEventBuffer(settings.getQueueLength(), settings.getOverflowPolicy(),
+        settings.getOverflowTimeoutMs(), settings.getOverflowLevel(), this::spill, settings.getPriorityQueueLength(),
+        settings.getPriorityLevel(), settings.getMaxBufferBytes());
+    metrics = new AppenderMetrics(logEventsQueue, settings.isMetricsEnabled());
+    suppressor = new LogSuppressor(settings.getDedupWindowMs(), settings.getRateLimitPerSecond(), this::enqueue);
+    flushSuppressedNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(settings.getDedupWindowMs(), 1000));
+    metricAggregator = new MetricAggregator(settings.getMetricMarker(), settings.getMetricNamespace(),
+        settings.getMetricDimensions(), this::enqueue);
+    flushMetricsNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(settings.getMetricIntervalMs(), 1000));
+    router = LogDestinationRouter.create(settings.getLogGroupNamePattern(),
+        settings.getLogStreamNamePattern(), configuration);
+    for(CloudWatchLogService cloudWatchLogService : cloudWatchLogServices) {
+      // a single lane replays the spilled events to keep them in order
+      senderLanes.add(new SenderLane(logEventsQueue, cloudWatchLogService, getLayout(), throwableRenderer, settings,
+          senderLanes.isEmpty() ? spillStore : null, router, senderPool));
+      if(spillStore != null) {
+        cloudWatchLogService.setFailedEventsHandler(this::spill);
+      }
+      cloudWatchLogService.setMetrics(metrics);
+    }
 
-    initDaemon();
+    senderPool.addLanes(senderLanes.size());
+    for(SenderLane senderLane : senderLanes) {
+      senderLane.start();
+    }
+    // flushed explicitly, the appender runs no periodic task
+    if(suppressor.isEnabled() && !settings.isExplicitFlush()) {
+      senderPool.schedule(flushSuppressed, flushSuppressedNanos);
+    }
+    if(metricAggregator.isEnabled() && !settings.isExplicitFlush()) {
+      senderPool.schedule(flushMetrics, flushMetricsNanos);
+    }
     appenderInitialised.set(true);
   }
 
@@ -76,63 +235,380 @@ public class CloudWatchAppender extends AbstractAppender {
       @PluginAttribute("logGroupName") @Required(message = "logGroupName is required") String logGroupName,
       @PluginAttribute("logStreamNamePrefix") String logStreamNamePrefix,
       @PluginAttribute(value = "queueLength", defaultInt = DEFAULT_QUEUE_LENGTH) int queueLength,
+      @PluginAttribute(value = "maxBufferBytes", defaultLong = 0) long maxBufferBytes,
       @PluginAttribute(value = "messagesBatchSize", defaultInt = DEFAULT_MESSAGE_BATCH_SIZE) int messagesBatchSize,
+      @PluginAttribute(value = "maxBatchBytes", defaultInt = DEFAULT_MAX_BATCH_BYTES) int maxBatchBytes,
+      @PluginAttribute(value = "lingerMs", defaultLong = DEFAULT_LINGER_MS) long lingerMs,
+      @PluginAttribute(value = "splitOversizedEvents", defaultBoolean = true) boolean splitOversizedEvents,
+      @PluginAttribute(value = "overflowPolicy", defaultString = DEFAULT_OVERFLOW_POLICY) OverflowPolicy overflowPolicy,
+      @PluginAttribute(value = "overflowTimeoutMs", defaultLong = DEFAULT_OVERFLOW_TIMEOUT_MS) long overflowTimeoutMs,
+      @PluginAttribute(value = "overflowLevel", defaultString = DEFAULT_OVERFLOW_LEVEL) Level overflowLevel,
+      @PluginAttribute(value = "streamShards", defaultInt = 1) int streamShards,
+      @PluginAttribute(value = "maxInFlightRequests", defaultInt = 1) int maxInFlightRequests,
+      @PluginAttribute("spillDirectory") String spillDirectory,
+      @PluginAttribute(value = "spillMaxBytes", defaultLong = DEFAULT_SPILL_MAX_BYTES) long spillMaxBytes,
+      @PluginAttribute(value = "maxRetries", defaultInt = DEFAULT_MAX_RETRIES) int maxRetries,
+      @PluginAttribute(value = "retryBaseDelayMs", defaultLong = DEFAULT_RETRY_BASE_DELAY_MS) long retryBaseDelayMs,
+      @PluginAttribute(value = "retryMaxDelayMs", defaultLong = DEFAULT_RETRY_MAX_DELAY_MS) long retryMaxDelayMs,
+      @PluginAttribute(value = "maxRequestsPerSecond", defaultInt = DEFAULT_MAX_REQUESTS_PER_SECOND)
+          int maxRequestsPerSecond,
+      @PluginAttribute(value = "metrics", defaultBoolean = true) boolean metricsEnabled,
+      @PluginAttribute("region") String region,
+      @PluginAttribute(value = "assumeExists", defaultBoolean = false) boolean assumeExists,
+      @PluginAttribute(value = "logStreamRollover", defaultString = DEFAULT_LOG_STREAM_ROLLOVER)
+          LogStreamRollover logStreamRollover,
+      @PluginAttribute("logGroupNamePattern") String logGroupNamePattern,
+      @PluginAttribute("logStreamNamePattern") String logStreamNamePattern,
+      @PluginAttribute(value = "routeCacheSize", defaultInt = DEFAULT_ROUTE_CACHE_SIZE) int routeCacheSize,
+      @PluginAttribute(value = "priorityQueueLength", defaultInt = DEFAULT_PRIORITY_QUEUE_LENGTH)
+          int priorityQueueLength,
+      @PluginAttribute(value = "priorityLevel", defaultString = DEFAULT_PRIORITY_LEVEL) Level priorityLevel,
+      @PluginAttribute(value = "dedupWindowMs", defaultLong = 0) long dedupWindowMs,
+      @PluginAttribute(value = "rateLimitPerSecond", defaultInt = 0) int rateLimitPerSecond,
+      @PluginAttribute(value = "shutdownTimeoutMs", defaultLong = DEFAULT_SHUTDOWN_TIMEOUT_MS) long shutdownTimeoutMs,
+      @PluginAttribute(value = "encodeOnAppend", defaultBoolean = false) boolean encodeOnAppend,
+      @PluginAttribute(value = "explicitFlush", defaultBoolean = false) boolean explicitFlush,
+      @PluginAttribute(value = "senderThreads", defaultInt = 0) int senderThreads,
+      @PluginAttribute("senderExecutor") String senderExecutor,
+      @PluginAttribute(value = "stackTraceMaxFrames", defaultInt = 0) int stackTraceMaxFrames,
+      @PluginAttribute("stackTraceFilters") String stackTraceFilters,
+      @PluginAttribute(value = "stackTraceWindowMs", defaultLong = 0) long stackTraceWindowMs,
+      @PluginAttribute(value = "stackTraceCacheSize", defaultInt = DEFAULT_STACK_TRACE_CACHE_SIZE)
+          int stackTraceCacheSize,
+      @PluginAttribute("metricMarker") String metricMarker,
+      @PluginAttribute(value = "metricNamespace", defaultString = DEFAULT_METRIC_NAMESPACE) String metricNamespace,
+      @PluginAttribute("metricDimensions") String metricDimensions,
+      @PluginAttribute(value = "metricIntervalMs", defaultLong = DEFAULT_METRIC_INTERVAL_MS) long metricIntervalMs,
+      @PluginConfiguration Configuration configuration,
       @PluginElement("Layout") Layout<Serializable> layout) {
-    return new CloudWatchAppender(name, logGroupName, logStreamNamePrefix, queueLength, messagesBatchSize, layout);
+    AppenderSettings settings = new AppenderSettings()
+        .withQueueLength(queueLength)
+        .withMaxBufferBytes(maxBufferBytes)
+        .withMessagesBatchSize(messagesBatchSize)
+        .withMaxBatchBytes(maxBatchBytes)
+        .withLingerMs(lingerMs)
+        .withSplitOversizedEvents(splitOversizedEvents)
+        .withOverflowPolicy(overflowPolicy)
+        .withOverflowTimeoutMs(overflowTimeoutMs)
+        .withOverflowLevel(overflowLevel)
+        .withStreamShards(streamShards)
+        .withMaxInFlightRequests(maxInFlightRequests)
+        .withSpillDirectory(spillDirectory)
+        .withSpillMaxBytes(spillMaxBytes)
+        .withMaxRetries(maxRetries)
+        .withRetryBaseDelayMs(retryBaseDelayMs)
+        .withRetryMaxDelayMs(retryMaxDelayMs)
+        .withMaxRequestsPerSecond(maxRequestsPerSecond)
+        .withMetricsEnabled(metricsEnabled)
+        .withRegion(region)
+        .withAssumeExists(assumeExists)
+        .withLogStreamRollover(logStreamRollover)
+        .withLogGroupNamePattern(logGroupNamePattern)
+        .withLogStreamNamePattern(logStreamNamePattern)
+        .withRouteCacheSize(routeCacheSize)
+        .withPriorityQueueLength(priorityQueueLength)
+        .withPriorityLevel(priorityLevel)
+        .withDedupWindowMs(dedupWindowMs)
+        .withRateLimitPerSecond(rateLimitPerSecond)
+        .withShutdownTimeoutMs(shutdownTimeoutMs)
+        .withEncodeOnAppend(encodeOnAppend)
+        .withExplicitFlush(explicitFlush)
+        .withSenderThreads(senderThreads)
+        .withSenderExecutor(senderExecutor)
+        .withStackTraceMaxFrames(stackTraceMaxFrames)
+        .withStackTraceFilters(stackTraceFilters)
+        .withStackTraceWindowMs(stackTraceWindowMs)
+        .withStackTraceCacheSize(stackTraceCacheSize)
+        .withMetricMarker(metricMarker)
+        .withMetricNamespace(metricNamespace)
+        .withMetricDimensions(metricDimensions)
+        .withMetricIntervalMs(metricIntervalMs);
+    return new CloudWatchAppender(name, logGroupName, logStreamNamePrefix, layout, settings, configuration,
+        CloudWatchManager.getManager(settings));
+  }
+
+  /**
+   * Runs the sender lanes of the appenders configured with {@code senderExecutor="<name>"} on an executor of the
+   * application, which must be registered before the appenders are created and is not shut down with them.
+   */
+  public static void registerSenderExecutor(String name, Executor executor) {
+    SenderPool.registerExecutor(name, executor);
+  }
+
+  public static void unregisterSenderExecutor(String name) {
+    SenderPool.unregisterExecutor(name);
+  }
+
+  /**
+   * @return the number of events dropped because the buffer was full
+   */
+  long getDroppedCount() {
+    return logEventsQueue.getDroppedCount();
+  }
+
+  /**
+   * @return the number of events written to the spill store because the buffer was full
+   */
+  long getSpilledCount() {
+    return logEventsQueue.getSpilledCount();
+  }
+
+  /**
+   * @return the measures of this appender, all zero when metrics are disabled
+   */
+  public AppenderMetricsMXBean getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Bridges the measures of this appender to a metrics library. Ignored when metrics are disabled.
+   */
+  public void addMetricsListener(MetricsListener listener) {
+    metrics.addListener(listener);
+  }
+
+  /**
+   * Writes an event which does not fit in the buffer to the spill store, encoding it on the calling thread.
+   *
+   * @return false if there is no spill store or it is full
+   */
+  private boolean spill(LogEvent event) {
+    if(spillStore == null) {
+      return false;
+    }
+    LogDestination destination;
+    String message;
+    if(event instanceof EncodedLogEvent) {
+      destination = ((EncodedLogEvent) event).getDestination();
+      message = ((EncodedLogEvent) event).getText();
+    } else {
+      destination = router.isDynamic() ? router.route(event) : null;
+      message = encode(event, null).getText();
+    }
+    return spillStore.append(destination == null ? LogDestination.DEFAULT : destination, event.getTimeMillis(),
+        message);
+  }
+
+  /**
+   * Writes the events of a failed request to the spill store, replayed to the same destination.
+   */
+  private void spill(LogDestination destination, List<InputLogEvent> inputLogEvents) {
+    for(InputLogEvent inputLogEvent : inputLogEvents) {
+      if(!spillStore.append(destination, inputLogEvent.getTimestamp(), inputLogEvent.getMessage())) {
+        debug("Spill store full or closed, dropping failed log events");
+        return;
+      }
+    }
   }
 
   @Override
   @SuppressWarnings("squid:S899") // Return values should not be ignored when they contain the operation status code
   public void append(LogEvent event) {
     if(appenderInitialised.get()) {
-      logEventsQueue.offer(event);
+      metrics.onAppended();
+      if(metricAggregator.accept(event)) {
+        return;
+      }
+      if(suppressor.accept(event)) {
+        enqueue(capture(event));
+        if(encodeOnAppend && event.isEndOfBatch()) {
+          for(SenderLane senderLane : senderLanes) {
+            senderLane.flush();
+          }
+        }
+      } else {
+        metrics.onSuppressed();
+      }
     } else {
       debug("Cannot append as appender not yet initialised");
     }
   }
 
-  private void sendMessages() {
+  /**
+   * Encodes the events which cannot be kept as they are: the events of the async loggers and of the garbage-free
+   * loggers, and their messages, are reused once appended.
+   */
+  private LogEvent capture(LogEvent event) {
+    if(!encodeOnAppend && event instanceof Log4jLogEvent && !(event.getMessage() instanceof ReusableMessage)) {
+      return event;
+    }
+    return encode(event, router.isDynamic() ? router.route(event) : null);
+  }
 
-    Collection<LogEvent> loggingEvents = new ArrayList<>();
+  private EncodedLogEvent encode(LogEvent event, LogDestination destination) {
+    LogEventEncoder encoder = encoders.acquire();
+    try {
+      return encoder.capture(event, destination);
+    } finally {
+      encoders.release(encoder);
+    }
+  }
 
-    LogEvent polledLoggingEvent = logEventsQueue.poll();
-    while(polledLoggingEvent != null && loggingEvents.size() <= messagesBatchSize) {
-      loggingEvents.add(polledLoggingEvent);
-      polledLoggingEvent = logEventsQueue.poll();
+  @SuppressWarnings("squid:S899")
+  private void enqueue(LogEvent event) {
+    logEventsQueue.offer(event);
+    for(SenderLane senderLane : senderLanes) {
+      if(senderLane.signal()) {
+        break;
+      }
     }
+  }
 
-    List<InputLogEvent> inputLogEvents = loggingEvents.stream()
-        .map(event -> new InputLogEvent()
-            .withTimestamp(event.getTimeMillis())
-            .withMessage(new String(getLayout().toByteArray(event), UTF_8)))
-        .collect(toList());
+  private void flushSuppressed() {
+    if(logEventsQueue.isClosed()) {
+      return;
+    }
+    try {
+      suppressor.flush(System.currentTimeMillis());
+    } catch(RuntimeException e) {
+      debug("Cannot write the suppressed events summaries", e);
+    }
+    senderPool.schedule(flushSuppressed, flushSuppressedNanos);
+  }
 
-    cloudWatchLogService.sendMessages(inputLogEvents);
+  private void flushMetrics() {
+    if(logEventsQueue.isClosed()) {
+      return;
+    }
+    try {
+      metricAggregator.flush(System.currentTimeMillis());
+    } catch(RuntimeException e) {
+      debug("Cannot write the aggregated metrics", e);
+    }
+    senderPool.schedule(flushMetrics, flushMetricsNanos);
+  }
+
+  /**
+   * Sends the events appended so far, with the aggregated metrics and the summaries of the suppressed events, without
+   * stopping the appender: the lanes send full batches in parallel without lingering. To call at the end of an
+   * invocation of a serverless function or of a batch job, before the runtime is frozen or exits.
+   *
+   * @return false if some events were not sent within the timeout
+   */
+  public boolean flush(long timeout, TimeUnit timeUnit) {
+    if(!isStarted() || logEventsQueue.isClosed()) {
+      return false;
+    }
+    long start = System.nanoTime();
+    long timeoutNanos = timeUnit.toNanos(timeout);
+    long now = System.currentTimeMillis();
+    if(suppressor.isEnabled()) {
+      suppressor.flush(now);
+    }
+    if(metricAggregator.isEnabled()) {
+      metricAggregator.flush(now);
+    }
+    long[] requests = new long[senderLanes.size()];
+    for(int i = 0; i < requests.length; i++) {
+      requests[i] = senderLanes.get(i).flush();
+      // an idle lane has nothing pending but must acknowledge the request
+      senderLanes.get(i).wakeUp();
+    }
+    try {
+      for(int i = 0; i < requests.length; i++) {
+        long remaining = remainingNanos(start, timeoutNanos);
+        if(!senderLanes.get(i).awaitFlushed(requests[i], remaining, TimeUnit.NANOSECONDS)) {
+          return false;
+        }
+      }
+      for(SenderLane senderLane : senderLanes) {
+        if(!senderLane.awaitIdle(remainingNanos(start, timeoutNanos), TimeUnit.NANOSECONDS)) {
+          return false;
+        }
+      }
+      return true;
+    } catch(InterruptedException e) {
+      debug("Interrupted while flushing the sender lanes", e);
+      Thread.currentThread().interrupt();
+      return false;
+    }
   }
 
   @Override
-  public void stop() {
-    super.stop();
-    while(logEventsQueue != null && !logEventsQueue.isEmpty()) {
-      sendMessages();
+  public void start() {
+    super.start();
+    metrics.register(getName());
+  }
+
+  /**
+   * Sends what is left in parallel, with full batches, within the smaller of the given timeout and
+   * {@code shutdownTimeoutMs}. Past this deadline, the buffered events and those of the requests not sent yet are
+   * written to the spill store, or dropped, and the requests in flight are left to complete on the daemon threads.
+   *
+   * @param timeout zero to only wait for {@code shutdownTimeoutMs}
+   * @return false if some events could not be sent within the deadline
+   */
+  @Override
+  public boolean stop(long timeout, TimeUnit timeUnit) {
+    setStopping();
+    metrics.unregister();
+    long timeoutNanos = shutdownTimeoutNanos(timeout, timeUnit);
+    long start = System.nanoTime();
+    if(suppressor.isEnabled()) {
+      suppressor.flush(Long.MAX_VALUE);
+    }
+    if(metricAggregator.isEnabled()) {
+      metricAggregator.flush(System.currentTimeMillis());
+    }
+    // the lanes send what is left in parallel then exit, failing the events if the log group was never reached
+    logEventsQueue.close();
+    for(SenderLane senderLane : senderLanes) {
+      senderLane.closeBootstrap();
+      senderLane.wakeUp();
+    }
+    boolean drained = awaitDrained(start, timeoutNanos);
+    if(!drained) {
+      int discarded = logEventsQueue.discard();
+      debug("CloudWatch appender " + getName() + " not drained within " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos)
+          + " ms, " + discarded + " buffered events handed to the spill store or dropped");
+    }
+    for(SenderLane senderLane : senderLanes) {
+      senderLane.close();
     }
+    if(manager == null) {
+      senderPool.shutdown(remainingNanos(start, timeoutNanos), TimeUnit.NANOSECONDS);
+    } else {
+      manager.stop(senderLanes.size(), remainingNanos(start, timeoutNanos), TimeUnit.NANOSECONDS);
+    }
+    encoders.close();
+    // the lanes still sending past the timeout drop their failed events
+    if(spillStore != null) {
+      spillStore.close();
+    }
+    setStopped();
+    return drained;
   }
 
-  private void initDaemon() {
-    new Thread(() -> {
-      while(true) {
-        try {
-          if(!logEventsQueue.isEmpty()) {
-            sendMessages();
-          }
-          Thread.sleep(DAEMON_SLEEP);
-        } catch(InterruptedException e) {
-          debug("CloudWatch appender error", e);
-          // Restore interrupted state...
-          Thread.currentThread().interrupt();
+  private long shutdownTimeoutNanos(long timeout, TimeUnit timeUnit) {
+    long configured = shutdownTimeoutMs > 0 ? TimeUnit.MILLISECONDS.toNanos(shutdownTimeoutMs) : Long.MAX_VALUE;
+    return timeout > 0 ? Math.min(timeUnit.toNanos(timeout), configured) : configured;
+  }
+
+  private static long remainingNanos(long start, long timeoutNanos) {
+    return timeoutNanos == Long.MAX_VALUE ? Long.MAX_VALUE : timeoutNanos - (System.nanoTime() - start);
+  }
+
+  /**
+   * @return false if the lanes did not send everything before the timeout
+   */
+  private boolean awaitDrained(long start, long timeoutNanos) {
+    try {
+      for(SenderLane senderLane : senderLanes) {
+        if(!senderLane.awaitTermination(remainingNanos(start, timeoutNanos), TimeUnit.NANOSECONDS)) {
+          return false;
+        }
+      }
+      for(SenderLane senderLane : senderLanes) {
+        if(!senderLane.awaitIdle(remainingNanos(start, timeoutNanos), TimeUnit.NANOSECONDS)) {
+          return false;
         }
       }
-    }).start();
+      return true;
+    } catch(InterruptedException e) {
+      debug("Interrupted while waiting for the sender lanes", e);
+      Thread.currentThread().interrupt();
+      return false;
+    }
   }
 
 }
@@ -0,0 +1,320 @@
+package io.sensefly.logging.log4j;
+
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.Node;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.core.layout.AbstractStringLayout;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+import org.apache.logging.log4j.core.util.Constants;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+import org.apache.logging.log4j.util.StringBuilderFormattable;
+import org.apache.logging.log4j.util.TriConsumer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Writes events as compact single-line JSON objects, whose top-level fields are discovered by CloudWatch Logs
+ * Insights: {@code timestamp} (epoch millis), {@code level}, {@code logger}, {@code thread}, {@code message}, and
+ * when present {@code marker}, {@code context} (the context map) and {@code exception} ({@code class},
+ * {@code message} and {@code stackTrace}, at most {@code maxStackFrames} frames per throwable, with the suppressed
+ * throwables).
+ * <p>
+ * Fields are written and escaped straight into a reusable {@link StringBuilder}, without Jackson nor intermediate
+ * strings, and the appender takes the text as is instead of encoding it to bytes and decoding it back.
+ */
+@Plugin(name = "CloudWatchJsonLayout", category = Node.CATEGORY, elementType = Layout.ELEMENT_TYPE, printObject = true)
+public final class CloudWatchJsonLayout extends AbstractStringLayout {
+
+  static final int DEFAULT_MAX_STACK_FRAMES = 32;
+
+  private static final String TIMESTAMP = "{\"timestamp\":";
+  private static final String LEVEL = ",\"level\":\"";
+  private static final String LOGGER = "\",\"logger\":\"";
+  private static final String THREAD = "\",\"thread\":\"";
+  private static final String MESSAGE = "\",\"message\":\"";
+  private static final String MARKER = ",\"marker\":\"";
+  private static final String CONTEXT = ",\"context\":{";
+  private static final String EXCEPTION = ",\"exception\":{\"class\":\"";
+  private static final String EXCEPTION_MESSAGE = "\",\"message\":\"";
+  private static final String STACK_TRACE = "\",\"stackTrace\":\"";
+  private static final String CAUSED_BY = "Caused by: ";
+  private static final String SUPPRESSED = "Suppressed: ";
+  private static final String TAB = "\\t";
+  private static final String AT = "\\tat ";
+  private static final String NEW_LINE = "\\n";
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private static final int MAX_CAUSES = 8;
+
+  /**
+   * Messages formatted over this size do not keep their buffer
+   */
+  private static final int MAX_RETAINED_CAPACITY = 16 * 1024;
+
+  private static final TriConsumer<String, Object, StringBuilder> CONTEXT_WRITER = (key, value, text) -> {
+    if(text.charAt(text.length() - 1) != '{') {
+      text.append(',');
+    }
+    text.append('"');
+    escape(key, text);
+    text.append("\":\"");
+    escape(value instanceof CharSequence ? (CharSequence) value : String.valueOf(value), text);
+    text.append('"');
+  };
+
+  /**
+   * Static like the builders of {@code AbstractStringLayout}: one per thread, not per layout left behind by a
+   * reconfiguration
+   */
+  private static final ThreadLocal<StringBuilder> MESSAGES = ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+  private final int maxStackFrames;
+  private final boolean includeContext;
+
+  private CloudWatchJsonLayout(int maxStackFrames, boolean includeContext) {
+    super(UTF_8);
+    this.maxStackFrames = Math.max(0, maxStackFrames);
+    this.includeContext = includeContext;
+  }
+
+  @PluginFactory
+  public static CloudWatchJsonLayout createLayout(
+      @PluginAttribute(value = "maxStackFrames", defaultInt = DEFAULT_MAX_STACK_FRAMES) int maxStackFrames,
+      @PluginAttribute(value = "includeContext", defaultBoolean = true) boolean includeContext) {
+    return new CloudWatchJsonLayout(maxStackFrames, includeContext);
+  }
+
+  @Override
+  public String getContentType() {
+    return "application/json; charset=" + getCharset();
+  }
+
+  @Override
+  public String toSerializable(LogEvent event) {
+    StringBuilder text = getStringBuilder();
+    format(event, text);
+    return text.toString();
+  }
+
+  @Override
+  public void encode(LogEvent event, ByteBufferDestination destination) {
+    if(!Constants.ENABLE_DIRECT_ENCODERS) {
+      super.encode(event, destination);
+      return;
+    }
+    StringBuilder text = getStringBuilder();
+    format(event, text);
+    getStringBuilderEncoder().encode(text, destination);
+  }
+
+  /**
+   * Appends the JSON object of the event to the text
+   */
+  void format(LogEvent event, StringBuilder text) {
+    format(event, text, null);
+  }
+
+  /**
+   * Appends the JSON object of the event to the text
+   *
+   * @param throwableRenderer renders the stack trace in place of the layout, null to render it with
+   * {@code maxStackFrames}
+   */
+  void format(LogEvent event, StringBuilder text, ThrowableRenderer throwableRenderer) {
+    text.append(TIMESTAMP).append(event.getTimeMillis());
+    text.append(LEVEL).append(event.getLevel().name());
+    text.append(LOGGER);
+    escape(event.getLoggerName(), text);
+    text.append(THREAD);
+    escape(event.getThreadName(), text);
+    text.append(MESSAGE);
+    formatMessage(event.getMessage(), text);
+    text.append('"');
+    Marker marker = event.getMarker();
+    if(marker != null) {
+      text.append(MARKER);
+      escape(marker.getName(), text);
+      text.append('"');
+    }
+    ReadOnlyStringMap contextData = event.getContextData();
+    if(includeContext && contextData != null && !contextData.isEmpty()) {
+      text.append(CONTEXT);
+      contextData.forEach(CONTEXT_WRITER, text);
+      text.append('}');
+    }
+    Throwable thrown = event.getThrown();
+    if(thrown != null && throwableRenderer != null) {
+      formatThrowable(thrown, event.getTimeMillis(), throwableRenderer, text);
+    } else if(thrown != null) {
+      formatThrowable(thrown, text);
+    }
+    text.append('}');
+  }
+
+  private void formatMessage(Message message, StringBuilder text) {
+    if(message == null) {
+      return;
+    }
+    if(!(message instanceof StringBuilderFormattable)) {
+      escape(message.getFormattedMessage(), text);
+      return;
+    }
+    StringBuilder formatted = MESSAGES.get();
+    formatted.setLength(0);
+    ((StringBuilderFormattable) message).formatTo(formatted);
+    escape(formatted, text);
+    if(formatted.capacity() > MAX_RETAINED_CAPACITY) {
+      MESSAGES.remove();
+    }
+  }
+
+  private void formatThrowable(Throwable thrown, StringBuilder text) {
+    text.append(EXCEPTION);
+    escape(thrown.getClass().getName(), text);
+    text.append(EXCEPTION_MESSAGE);
+    escape(thrown.getMessage(), text);
+    text.append(STACK_TRACE);
+    formatCauses(thrown, "", "", Collections.newSetFromMap(new IdentityHashMap<>()), text);
+    text.append("\"}");
+  }
+
+  /**
+   * Writes a throwable and its causes like {@link Throwable#printStackTrace()}: the suppressed throwables of each one
+   * follow its frames, one tab further, and cycles are cut at the first throwable already written.
+   */
+  private void formatCauses(Throwable thrown, String caption, String indent, Set<Throwable> seen, StringBuilder text) {
+    Throwable current = thrown;
+    for(int cause = 0; current != null; cause++) {
+      if(cause > 0 || !indent.isEmpty()) {
+        text.append(NEW_LINE);
+      }
+      text.append(indent);
+      if(cause == MAX_CAUSES) {
+        text.append("... ").append(countCauses(current, seen)).append(" more causes");
+        return;
+      }
+      text.append(cause == 0 ? caption : CAUSED_BY);
+      if(!seen.add(current)) {
+        text.append("[CIRCULAR REFERENCE: ");
+        formatHeader(current, text);
+        text.append(']');
+        return;
+      }
+      formatHeader(current, text);
+      StackTraceElement[] frames = current.getStackTrace();
+      int written = Math.min(frames.length, maxStackFrames);
+      for(int i = 0; i < written; i++) {
+        text.append(NEW_LINE).append(indent).append(AT);
+        formatFrame(frames[i], text);
+      }
+      if(written < frames.length) {
+        text.append(NEW_LINE).append(indent).append("\\t... ").append(frames.length - written).append(" more");
+      }
+      for(Throwable suppressed : current.getSuppressed()) {
+        formatCauses(suppressed, SUPPRESSED, indent + TAB, seen, text);
+      }
+      current = current.getCause();
+    }
+  }
+
+  private void formatHeader(Throwable thrown, StringBuilder text) {
+    escape(thrown.getClass().getName(), text);
+    if(thrown.getMessage() != null) {
+      text.append(": ");
+      escape(thrown.getMessage(), text);
+    }
+  }
+
+  /**
+   * @return the number of throwables left in the chain, up to the first one already written
+   */
+  private static int countCauses(Throwable thrown, Set<Throwable> seen) {
+    Set<Throwable> counted = Collections.newSetFromMap(new IdentityHashMap<>());
+    for(Throwable current = thrown; current != null && !seen.contains(current); current = current.getCause()) {
+      if(!counted.add(current)) {
+        break;
+      }
+    }
+    return counted.size();
+  }
+
+  private void formatThrowable(Throwable thrown, long timeMillis, ThrowableRenderer throwableRenderer,
+      StringBuilder text) {
+    text.append(EXCEPTION);
+    escape(thrown.getClass().getName(), text);
+    text.append(EXCEPTION_MESSAGE);
+    escape(thrown.getMessage(), text);
+    text.append(STACK_TRACE);
+    StringBuilder trace = MESSAGES.get();
+    trace.setLength(0);
+    throwableRenderer.render(thrown, timeMillis, trace);
+    escape(trace, text);
+    if(trace.capacity() > MAX_RETAINED_CAPACITY) {
+      MESSAGES.remove();
+    }
+    text.append("\"}");
+  }
+
+  private static void formatFrame(StackTraceElement frame, StringBuilder text) {
+    escape(frame.getClassName(), text);
+    text.append('.');
+    escape(frame.getMethodName(), text);
+    text.append('(');
+    if(frame.isNativeMethod()) {
+      text.append("Native Method");
+    } else if(frame.getFileName() == null) {
+      text.append("Unknown Source");
+    } else {
+      escape(frame.getFileName(), text);
+      if(frame.getLineNumber() >= 0) {
+        text.append(':').append(frame.getLineNumber());
+      }
+    }
+    text.append(')');
+  }
+
+  /**
+   * Appends the characters as the content of a JSON string
+   */
+  static void escape(CharSequence chars, StringBuilder text) {
+    if(chars == null) {
+      return;
+    }
+    for(int i = 0, length = chars.length(); i < length; i++) {
+      char c = chars.charAt(i);
+      if(c >= 0x20 && c != '"' && c != '\\') {
+        text.append(c);
+        continue;
+      }
+      switch(c) {
+        case '"':
+          text.append("\\\"");
+          break;
+        case '\\':
+          text.append("\\\\");
+          break;
+        case '\n':
+          text.append("\\n");
+          break;
+        case '\r':
+          text.append("\\r");
+          break;
+        case '\t':
+          text.append("\\t");
+          break;
+        default:
+          text.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+          break;
+      }
+    }
+  }
+
+}
@@ -1,61 +1,587 @@
 package io.sensefly.logging.log4j;
 
 import com.amazonaws.services.logs.AWSLogs;
+import com.amazonaws.services.logs.AWSLogsAsync;
+import com.amazonaws.services.logs.AWSLogsAsyncClientBuilder;
 import com.amazonaws.services.logs.AWSLogsClientBuilder;
+import com.amazonaws.services.logs.model.DataAlreadyAcceptedException;
 import com.amazonaws.services.logs.model.InputLogEvent;
 import com.amazonaws.services.logs.model.InvalidSequenceTokenException;
 import com.amazonaws.services.logs.model.PutLogEventsRequest;
-import com.amazonaws.services.logs.model.PutLogEventsResult;
+import org.apache.logging.log4j.core.util.Log4jThreadFactory;
+import org.apache.logging.log4j.core.util.NetUtils;
 
 import java.time.Clock;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import static io.sensefly.logging.log4j.CloudWatchDebugger.debug;
 
 class CloudWatchLogService {
 
+  /**
+   * The maximum time a request waits for the bootstrap, when sent before it is done
+   */
+  static final long BOOTSTRAP_TIMEOUT_MS = 30_000;
+
   private final String logGroupName;
   private final String logStreamNamePrefix;
-  private final AWSLogs awsLogs;
-  private final LogStreamProvider logStreamProvider;
-  private final AtomicReference<String> lastSequenceToken = new AtomicReference<>();
+  private final String logStreamNameSuffix;
+  private final LogBootstrap bootstrap;
+  private final Clock clock;
+  private final AppenderSettings settings;
+  private final RetryPolicy retryPolicy;
+  private final RateController rateController;
 
-  CloudWatchLogService(String logGroupName, String logStreamNamePrefix) {
-    this(logGroupName, logStreamNamePrefix, AWSLogsClientBuilder.defaultClient(), Clock.systemUTC());
-  }
+  /**
+   * Set once the bootstrap succeeded
+   */
+  private volatile LogBootstrap.Client client;
+  private volatile LogTransport transport;
+
+  /**
+   * The destinations recently sent to, only accessed by the sender thread. A route with a request in flight or waiting
+   * is not evicted, as its requests are chained by its sequence token.
+   */
+  private final LruCache<LogDestination, Route> routes;
+
+  /**
+   * Requests sent, waiting for their stream or waiting for a retry, guarded by {@code idleLock} for
+   * {@link #awaitIdle(long, TimeUnit)}
+   */
+  private final AtomicInteger pendingRequests = new AtomicInteger();
+  private final Object idleLock = new Object();
+
+  /**
+   * The pending requests past which the service is busy
+   */
+  private final int maxPendingRequests;
+
+  /**
+   * Called when the service is no longer busy
+   */
+  private volatile Runnable readyListener = () -> {};
+
+  /**
+   * Runs the delayed and the resent requests, shared with the other appenders, null to run them at once
+   */
+  private volatile SenderPool senderPool;
+
+  /**
+   * Receives the events of the requests which failed with a retryable error and their destination, to keep them for
+   * later
+   */
+  private volatile BiConsumer<LogDestination, List<InputLogEvent>> failedEventsHandler = (destination, events) -> {};
+
+  private volatile AppenderMetrics metrics = AppenderMetrics.DISABLED;
+
+  /**
+   * False since the last request failed, until a request succeeds
+   */
+  private volatile boolean available = true;
+
+  /**
+   * Released by {@link #close()}, after which requests are failed instead of sent or retried
+   */
+  private final CountDownLatch closed = new CountDownLatch(1);
 
   // visible for testing
   CloudWatchLogService(String logGroupName, String logStreamNamePrefix, AWSLogs awsLogs, Clock clock) {
+    this(logGroupName, logStreamNamePrefix, newBootstrap(logGroupName, new AppenderSettings(),
+        () -> new LogBootstrap.Client(awsLogs, new SyncLogTransport(awsLogs))), new AppenderSettings(),
+        newRetryPolicy(new AppenderSettings()), new RateController(new AppenderSettings().getMaxRequestsPerSecond()),
+        clock, null);
+  }
+
+  private CloudWatchLogService(String logGroupName, String logStreamNamePrefix, LogBootstrap bootstrap,
+      AppenderSettings settings, RetryPolicy retryPolicy, RateController rateController, Clock clock,
+      String logStreamNameSuffix) {
     this.logGroupName = logGroupName;
     this.logStreamNamePrefix = logStreamNamePrefix;
-    this.awsLogs = awsLogs;
-    new LogGroupProvider(awsLogs).ensureExists(logGroupName);
-    logStreamProvider = new LogStreamProvider(awsLogs, clock);
+    this.logStreamNameSuffix = logStreamNameSuffix;
+    this.bootstrap = bootstrap;
+    this.settings = settings;
+    this.retryPolicy = retryPolicy;
+    this.rateController = rateController;
+    this.clock = clock;
+    this.routes = new LruCache<>(settings.getRouteCacheSize(), Route::isIdle);
+    this.maxPendingRequests = Math.max(1, settings.getMaxInFlightRequests());
+    bootstrap.addListener(this::bootstrapped);
+  }
+
+  /**
+   * Creates one service per log stream shard, all sharing the same AWS client, transport, retry budget and rate, the
+   * client and rate being shared with the other appenders of the manager.
+   * With more than one shard, stream names are suffixed with {@code <host>-<shard>}
+   * so several hosts and shards never write to the same stream.
+   * With more than one request in flight, requests are pipelined through the asynchronous client, one at a time per
+   * stream as they are chained by their sequence tokens.
+   * The client of the manager is only built when the bootstrap starts, off the calling thread.
+   */
+  static List<CloudWatchLogService> createShards(String logGroupName, String logStreamNamePrefix,
+      AppenderSettings settings, CloudWatchManager manager) {
+    return createShards(logGroupName, logStreamNamePrefix, settings, manager::getClient, manager.getRateController(),
+        Clock.systemUTC(), NetUtils.getLocalHostname());
+  }
+
+  // visible for testing
+  static List<CloudWatchLogService> createShards(String logGroupName, String logStreamNamePrefix,
+      AppenderSettings settings, AWSLogs awsLogs, LogTransport transport, Clock clock, String hostName) {
+    return createShards(logGroupName, logStreamNamePrefix, settings, () -> new LogBootstrap.Client(awsLogs, transport),
+        new RateController(settings.getMaxRequestsPerSecond()), clock, hostName);
+  }
+
+  private static List<CloudWatchLogService> createShards(String logGroupName, String logStreamNamePrefix,
+      AppenderSettings settings, Supplier<LogBootstrap.Client> clientFactory, RateController rateController,
+      Clock clock, String hostName) {
+    LogBootstrap bootstrap = newBootstrap(logGroupName, settings, clientFactory);
+    RetryPolicy retryPolicy = newRetryPolicy(settings);
+    int shards = settings.getStreamShards();
+    if(shards <= 1) {
+      return Collections.singletonList(new CloudWatchLogService(logGroupName, logStreamNamePrefix, bootstrap,
+          settings, retryPolicy, rateController, clock, null));
+    }
+    List<CloudWatchLogService> services = new ArrayList<>(shards);
+    for(int shard = 0; shard < shards; shard++) {
+      services.add(new CloudWatchLogService(logGroupName, logStreamNamePrefix, bootstrap, settings, retryPolicy,
+          rateController, clock, hostName + "-" + shard));
+    }
+    return services;
+  }
+
+  static LogBootstrap.Client newClient(AppenderSettings settings) {
+    int maxInFlightRequests = settings.getMaxInFlightRequests();
+    if(maxInFlightRequests > 1) {
+      AWSLogsAsyncClientBuilder builder = AWSLogsAsyncClientBuilder.standard()
+          .withExecutorFactory(() -> Executors.newFixedThreadPool(maxInFlightRequests,
+              Log4jThreadFactory.createDaemonThreadFactory("CloudWatchTransport")));
+      if(settings.getRegion() != null) {
+        builder.withRegion(settings.getRegion());
+      }
+      AWSLogsAsync awsLogs = builder.build();
+      return new LogBootstrap.Client(awsLogs, new AsyncLogTransport(awsLogs, maxInFlightRequests));
+    }
+    AWSLogsClientBuilder builder = AWSLogsClientBuilder.standard();
+    if(settings.getRegion() != null) {
+      builder.withRegion(settings.getRegion());
+    }
+    AWSLogs awsLogs = builder.build();
+    return new LogBootstrap.Client(awsLogs, new SyncLogTransport(awsLogs));
+  }
+
+  private static LogBootstrap newBootstrap(String logGroupName, AppenderSettings settings,
+      Supplier<LogBootstrap.Client> clientFactory) {
+    return new LogBootstrap(clientFactory, logGroupName, settings.isAssumeExists(), newRetryPolicy(settings));
+  }
+
+  private static RetryPolicy newRetryPolicy(AppenderSettings settings) {
+    return new RetryPolicy(settings.getMaxRetries(), settings.getRetryBaseDelayMs(), settings.getRetryMaxDelayMs());
+  }
+
+  /**
+   * Builds the client and makes sure the log group exists in the background, ahead of the first request.
+   */
+  void startBootstrap() {
+    bootstrap.start();
+  }
+
+  /**
+   * Stops retrying the bootstrap, so the events of a log group which could not be reached fail instead of waiting.
+   */
+  void closeBootstrap() {
+    bootstrap.close();
   }
 
-  @SuppressWarnings("OverlyBroadCatchBlock")
   void sendMessages(List<InputLogEvent> inputLogEvents) {
+    sendMessages(LogDestination.DEFAULT, inputLogEvents);
+  }
+
+  /**
+   * Sends the events to the log group and stream of the destination, first waiting for the bootstrap. The request
+   * waits for the previous one of its stream, so it is sent with the sequence token returned by the previous one.
+   */
+  void sendMessages(LogDestination destination, List<InputLogEvent> inputLogEvents) {
+    sendMessages(destination, inputLogEvents, null);
+  }
+
+  /**
+   * Sends the events like {@link #sendMessages(LogDestination, List)}, then calls the listener, on any thread, with
+   * null once they are sent or with the class of the error once they failed for good. The events of a failed request
+   * are left to the listener instead of the failed events handler.
+   */
+  @SuppressWarnings("OverlyBroadCatchBlock")
+  void sendMessages(LogDestination destination, List<InputLogEvent> inputLogEvents, Consumer<ErrorClass> listener) {
+    pendingRequests.incrementAndGet();
+    if(isClosed()) {
+      failed(destination, inputLogEvents, ErrorClass.SERVICE_UNAVAILABLE, listener);
+      done();
+      return;
+    }
+    PendingRequest pending;
     try {
-      PutLogEventsRequest request = new PutLogEventsRequest(logGroupName,
-          logStreamProvider.getName(logStreamNamePrefix, logGroupName), inputLogEvents)
-          .withSequenceToken(lastSequenceToken.get());
-      send(request);
+      Route route = route(destination);
+      pending = new PendingRequest(destination, route,
+          new PutLogEventsRequest(route.logGroupName, route.logStreamProvider.getName(), inputLogEvents), listener);
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      failed(destination, inputLogEvents, ErrorClass.SERVICE_UNAVAILABLE, listener);
+      done();
+      return;
     } catch(Exception e) {
-      debug("Error while sending logs:", e);
+      debug("Error while sending " + inputLogEvents.size() + " logs:", e);
+      failed(destination, inputLogEvents, errorClass(e), listener);
+      done();
+      return;
+    }
+    synchronized(pending.route) {
+      if(pending.route.sending) {
+        pending.route.waiting.add(pending);
+        return;
+      }
+      pending.route.sending = true;
     }
+    send(pending);
   }
 
-  private void send(PutLogEventsRequest request) {
-    try {
-      PutLogEventsResult result = awsLogs.putLogEvents(request);
-      lastSequenceToken.set(result.getNextSequenceToken());
-    } catch(InvalidSequenceTokenException e) {
-      debug("InvalidSequenceTokenException while sending logs", e);
-      request.setSequenceToken(e.getExpectedSequenceToken());
-      PutLogEventsResult result = awsLogs.putLogEvents(request);
-      lastSequenceToken.set(result.getNextSequenceToken());
+  /**
+   * @return the class of an error resolving a destination: the log group may be reachable later unless the bootstrap
+   * failed for good
+   */
+  private ErrorClass errorClass(Exception e) {
+    if(bootstrap.isReady()) {
+      return ErrorClass.of(e);
     }
+    return bootstrap.isFailed() ? ErrorClass.PERMANENT : ErrorClass.SERVICE_UNAVAILABLE;
+  }
+
+  /**
+   * Resolves the destination, making sure its log group exists the first time it is seen.
+   */
+  private Route route(LogDestination destination) throws InterruptedException {
+    Route route = routes.get(destination);
+    if(route != null) {
+      return route;
+    }
+    if(client == null) {
+      client = bootstrap.await(BOOTSTRAP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      transport = client.transport;
+    }
+    String groupName = destination.logGroupName == null ? logGroupName : destination.logGroupName;
+    String streamNamePrefix = destination.logStreamNamePrefix == null
+        ? logStreamNamePrefix
+        : destination.logStreamNamePrefix;
+    if(!settings.isAssumeExists()) {
+      client.logGroupProvider.ensureExists(groupName);
+    }
+    route = new Route(groupName, new LogStreamProvider(client.awsLogs, clock, groupName, streamNamePrefix,
+        logStreamNameSuffix, settings.getLogStreamRollover(), settings.isAssumeExists()));
+    routes.put(destination, route);
+    return route;
+  }
+
+  void setFailedEventsHandler(BiConsumer<LogDestination, List<InputLogEvent>> failedEventsHandler) {
+    this.failedEventsHandler = failedEventsHandler;
+  }
+
+  void setMetrics(AppenderMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * @param readyListener called, on any thread, when the service is no longer busy
+   */
+  void setReadyListener(Runnable readyListener) {
+    this.readyListener = readyListener;
+  }
+
+  /**
+   * @param senderPool runs the requests resent or delayed by the rate controller
+   */
+  void setSenderPool(SenderPool senderPool) {
+    this.senderPool = senderPool;
+  }
+
+  /**
+   * @return true while bootstrapping, or while as many requests as can be in flight are pending: the next ones would
+   * only wait
+   */
+  boolean isBusy() {
+    return !isClosed() && (!bootstrap.isDone() || pendingRequests.get() >= maxPendingRequests);
+  }
+
+  private void bootstrapped() {
+    readyListener.run();
+  }
+
+  /**
+   * @return false if the last request failed
+   */
+  boolean isAvailable() {
+    return available;
+  }
+
+  /**
+   * Fails the requests of this service waiting for a retry and the next ones to the failed events handler. Requests in
+   * flight complete but are not retried. The retries of the other shards are left to them.
+   */
+  void close() {
+    closed.countDown();
+    bootstrap.close();
+    for(Runnable retry : retryPolicy.cancel(this)) {
+      retry.run();
+    }
+  }
+
+  private boolean isClosed() {
+    return closed.getCount() == 0;
+  }
+
+  /**
+   * Waits for the requests in flight or waiting for a retry to complete.
+   *
+   * @return false if some requests are still pending after the timeout
+   */
+  boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+    long nanos = unit.toNanos(timeout);
+    synchronized(idleLock) {
+      while(pendingRequests.get() > 0) {
+        if(nanos <= 0) {
+          return false;
+        }
+        long start = System.nanoTime();
+        TimeUnit.NANOSECONDS.timedWait(idleLock, nanos);
+        nanos -= System.nanoTime() - start;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Sends the request of a stream with its last sequence token, delayed to the pace of the rate controller. On
+   * completion, updates the sequence token or handles the error according to its {@link ErrorClass}: a first
+   * sequence token conflict is resent at once with the expected token, other retryable errors are resent after a
+   * backoff, and the events are handed to the failed events handler when no retry is left. The next request of the
+   * stream is sent once the request succeeds or fails for good.
+   */
+  private void send(PendingRequest pending) {
+    long waitNanos = isClosed() ? 0 : rateController.reserve();
+    if(waitNanos > 0) {
+      schedule(() -> transmit(pending), waitNanos);
+    } else {
+      transmit(pending);
+    }
+  }
+
+  private void transmit(PendingRequest pending) {
+    PutLogEventsRequest request = pending.request;
+    if(isClosed()) {
+      failed(pending.destination, request.getLogEvents(), ErrorClass.SERVICE_UNAVAILABLE, pending.listener);
+      complete(pending);
+      return;
+    }
+    request.setSequenceToken(pending.route.lastSequenceToken.get());
+    transport.putLogEvents(request).whenComplete((result, throwable) -> {
+      if(throwable == null) {
+        succeeded(pending, result == null ? null : result.getNextSequenceToken());
+        return;
+      }
+      Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+      ErrorClass errorClass = ErrorClass.of(cause);
+      metrics.onError(errorClass);
+      switch(errorClass) {
+        case DATA_ALREADY_ACCEPTED:
+          succeeded(pending, ((DataAlreadyAcceptedException) cause).getExpectedSequenceToken());
+          return;
+        case SEQUENCE_TOKEN:
+          // a second conflict means another writer uses the stream: resending would conflict again
+          if(!pending.resentOnConflict) {
+            debug("InvalidSequenceTokenException while sending logs", cause);
+            pending.resentOnConflict = true;
+            pending.route.lastSequenceToken.set(((InvalidSequenceTokenException) cause).getExpectedSequenceToken());
+            metrics.onRetry(errorClass);
+            resend(pending);
+            return;
+          }
+          break;
+        case THROTTLING:
+          rateController.onThrottled();
+          break;
+        default:
+          break;
+      }
+      if(errorClass == ErrorClass.SEQUENCE_TOKEN || isClosed() || !retryPolicy.tryRetry(errorClass, pending.retries)) {
+        debug("Error while sending " + request.getLogEvents().size() + " logs:", cause);
+        failed(pending.destination, request.getLogEvents(), errorClass, pending.listener);
+        complete(pending);
+        return;
+      }
+      pending.retries++;
+      metrics.onRetry(errorClass);
+      debug(errorClass + " while sending logs, retry " + pending.retries, cause);
+      retry(pending, retryPolicy.backoffMillis(pending.retries));
+    });
+  }
+
+  /**
+   * Resends the request after the delay, the next requests of its stream waiting for it while the service is busy.
+   */
+  private void retry(PendingRequest pending, long delayMs) {
+    schedule(() -> send(pending), TimeUnit.MILLISECONDS.toNanos(delayMs));
+  }
+
+  /**
+   * Sends the request again, or the next one of its stream, off the callback threads of the asynchronous client.
+   */
+  private void resend(PendingRequest pending) {
+    if(transport.isSynchronous()) {
+      send(pending);
+    } else {
+      schedule(() -> send(pending), 0);
+    }
+  }
+
+  /**
+   * Runs the task on the sender pool after the delay, so no sender thread waits. The retry policy hands back the
+   * delayed tasks of this service still waiting when it is closed: these, like the tasks scheduled once closed or before
+   * a lane gave the pool, run at once and only fail their events.
+   */
+  private void schedule(Runnable task, long delayNanos) {
+    SenderPool pool = senderPool;
+    if(isClosed() || pool == null) {
+      task.run();
+    } else if(delayNanos <= 0) {
+      pool.execute(task);
+    } else {
+      retryPolicy.schedule(this, task, delayNanos, pool);
+    }
+  }
+
+  private void succeeded(PendingRequest pending, String nextSequenceToken) {
+    available = true;
+    if(metrics.isEnabled()) {
+      List<InputLogEvent> events = pending.request.getLogEvents();
+      metrics.onRequestSent(events.size(), BatchBuilder.requestBytes(events), System.nanoTime() - pending.startNanos);
+    }
+    if(nextSequenceToken != null) {
+      pending.route.lastSequenceToken.set(nextSequenceToken);
+    }
+    retryPolicy.onSuccess();
+    rateController.onSuccess();
+    if(pending.listener != null) {
+      pending.listener.accept(null);
+    }
+    complete(pending);
+  }
+
+  /**
+   * Hands the events to the listener of the request if any, otherwise to the failed events handler unless CloudWatch
+   * rejected them for good: replaying them would be rejected again, so they are dropped and counted.
+   */
+  private void failed(LogDestination destination, List<InputLogEvent> inputLogEvents, ErrorClass errorClass,
+      Consumer<ErrorClass> listener) {
+    metrics.onRequestFailed(inputLogEvents.size(), errorClass);
+    if(errorClass.isRetryable()) {
+      available = false;
+    }
+    if(listener != null) {
+      listener.accept(errorClass);
+    } else if(!errorClass.isRetryable()) {
+      debug("Dropping " + inputLogEvents.size() + " log events rejected with " + errorClass);
+    } else {
+      failedEventsHandler.accept(destination, inputLogEvents);
+    }
+  }
+
+  /**
+   * Sends the next request of the stream, if any, once a request succeeded or failed for good
+   */
+  private void complete(PendingRequest pending) {
+    Route route = pending.route;
+    PendingRequest next;
+    synchronized(route) {
+      next = route.waiting.poll();
+      route.sending = next != null;
+    }
+    done();
+    if(next != null) {
+      resend(next);
+    }
+  }
+
+  private void done() {
+    int pending = pendingRequests.decrementAndGet();
+    if(pending == maxPendingRequests - 1) {
+      readyListener.run();
+    }
+    if(pending == 0) {
+      synchronized(idleLock) {
+        idleLock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * A request until it succeeds or fails for good
+   */
+  private static final class PendingRequest {
+
+    private final LogDestination destination;
+    private final Route route;
+    private final PutLogEventsRequest request;
+    private final Consumer<ErrorClass> listener;
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * Times the request was resent after an error other than a sequence token conflict
+     */
+    private int retries;
+    private boolean resentOnConflict;
+
+    private PendingRequest(LogDestination destination, Route route, PutLogEventsRequest request,
+        Consumer<ErrorClass> listener) {
+      this.destination = destination;
+      this.route = route;
+      this.request = request;
+      this.listener = listener;
+    }
+
+  }
+
+  /**
+   * A resolved destination, the sequence token of its current stream and the requests waiting for the one in flight
+   */
+  private static final class Route {
+
+    private final String logGroupName;
+    private final LogStreamProvider logStreamProvider;
+    private final AtomicReference<String> lastSequenceToken = new AtomicReference<>();
+
+    /**
+     * True while a request is in flight or waiting for a retry, guarded by the route
+     */
+    private boolean sending;
+    private final ArrayDeque<PendingRequest> waiting = new ArrayDeque<>();
+
+    private Route(String logGroupName, LogStreamProvider logStreamProvider) {
+      this.logGroupName = logGroupName;
+      this.logStreamProvider = logStreamProvider;
+    }
+
+    private synchronized boolean isIdle() {
+      return !sending && waiting.isEmpty();
+    }
+
   }
 
 }
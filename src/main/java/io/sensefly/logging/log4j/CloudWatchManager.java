@@ -0,0 +1,86 @@
+package io.sensefly.logging.log4j;
+
+import org.apache.logging.log4j.core.appender.AbstractManager;
+import org.apache.logging.log4j.core.appender.ManagerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The AWS client, the sender pool and the request rate shared by the appenders of a region, counted by reference like
+ * the other Log4j managers: the first appender builds it and the last one to stop shuts it down. The client is only
+ * built when the first appender bootstraps. CloudWatch throttles per account and region, so the appenders pace their
+ * requests together, at the {@code maxRequestsPerSecond} of the first one. Appenders with a different number of
+ * requests in flight, or a different sender executor, use a different manager.
+ */
+class CloudWatchManager extends AbstractManager {
+
+  private static final ManagerFactory<CloudWatchManager, AppenderSettings> FACTORY = CloudWatchManager::new;
+
+  private final AppenderSettings settings;
+  private final SenderPool senderPool;
+  private final RateController rateController;
+  private LogBootstrap.Client client;
+
+  private CloudWatchManager(String name, AppenderSettings settings) {
+    super(null, name);
+    this.settings = settings;
+    this.senderPool = SenderPool.create(settings.getSenderThreads(), settings.getSenderExecutor());
+    this.rateController = new RateController(settings.getMaxRequestsPerSecond());
+  }
+
+  static CloudWatchManager getManager(AppenderSettings settings) {
+    return getManager(getName(settings), FACTORY, settings);
+  }
+
+  // visible for testing
+  static String getName(AppenderSettings settings) {
+    StringBuilder name = new StringBuilder("CloudWatch[region=")
+        .append(settings.getRegion() == null ? "default" : settings.getRegion())
+        .append(",maxInFlightRequests=").append(Math.max(1, settings.getMaxInFlightRequests()));
+    if(settings.getSenderThreads() > 0) {
+      name.append(",senderThreads=").append(settings.getSenderThreads());
+    }
+    if(settings.getSenderExecutor() != null && !settings.getSenderExecutor().isEmpty()) {
+      name.append(",senderExecutor=").append(settings.getSenderExecutor());
+    }
+    return name.append(']').toString();
+  }
+
+  /**
+   * Builds the client the first time
+   */
+  synchronized LogBootstrap.Client getClient() {
+    if(client == null) {
+      client = CloudWatchLogService.newClient(settings);
+    }
+    return client;
+  }
+
+  SenderPool getSenderPool() {
+    return senderPool;
+  }
+
+  RateController getRateController() {
+    return rateController;
+  }
+
+  /**
+   * Releases the threads of the lanes of a stopping appender, then the manager itself
+   *
+   * @return false if the manager, released by the last appender, did not shut down within the timeout
+   */
+  boolean stop(int lanes, long timeout, TimeUnit timeUnit) {
+    senderPool.removeLanes(lanes);
+    return stop(timeout, timeUnit);
+  }
+
+  @Override
+  protected synchronized boolean releaseSub(long timeout, TimeUnit timeUnit) {
+    boolean terminated = senderPool.shutdown(timeout, timeUnit);
+    if(client != null) {
+      client.awsLogs.shutdown();
+    }
+    return terminated;
+  }
+
+}
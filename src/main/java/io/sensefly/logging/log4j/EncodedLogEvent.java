@@ -0,0 +1,85 @@
+package io.sensefly.logging.log4j;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.AbstractLogEvent;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.SimpleMessage;
+
+/**
+ * An event encoded on the appending thread: keeps the text of the layout, with the level and logger used by the
+ * buffer, instead of the event. The events of the async loggers and of the garbage-free loggers are reused once
+ * appended, and encoding them copies less than {@link LogEvent#toImmutable()}.
+ */
+final class EncodedLogEvent extends AbstractLogEvent {
+
+  private static final long serialVersionUID = 1L;
+
+  private final long timeMillis;
+  private final Level level;
+  private final String loggerName;
+  private final String text;
+  private final int bytes;
+  private final transient LogDestination destination;
+
+  /**
+   * Created on first use, as the buffer and the sender only read the text
+   */
+  private transient volatile Message message;
+
+  EncodedLogEvent(LogEvent event, String text, int bytes, LogDestination destination) {
+    this.timeMillis = event.getTimeMillis();
+    this.level = event.getLevel();
+    this.loggerName = event.getLoggerName();
+    this.text = text;
+    this.bytes = bytes;
+    this.destination = destination;
+  }
+
+  /**
+   * @return the output of the layout
+   */
+  String getText() {
+    return text;
+  }
+
+  /**
+   * @return the UTF-8 size of the text
+   */
+  int getBytes() {
+    return bytes;
+  }
+
+  /**
+   * @return the destination resolved on append, null when the router is not dynamic
+   */
+  LogDestination getDestination() {
+    return destination;
+  }
+
+  @Override
+  public long getTimeMillis() {
+    return timeMillis;
+  }
+
+  @Override
+  public Level getLevel() {
+    return level;
+  }
+
+  @Override
+  public String getLoggerName() {
+    return loggerName;
+  }
+
+  @Override
+  public Message getMessage() {
+    Message created = message;
+    if(created == null) {
+      created = new SimpleMessage(text);
+      message = created;
+    }
+    return created;
+  }
+
+}
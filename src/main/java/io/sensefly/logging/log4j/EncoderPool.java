@@ -0,0 +1,74 @@
+package io.sensefly.logging.log4j;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+/**
+ * Lends encoders to the appending threads. Unlike thread locals, the encoders and their buffers belong to the
+ * appender and are released when it stops, so a reconfiguration does not leave them behind on every thread which
+ * ever logged. The idle encoders are kept in slots indexed by thread id, swapped atomically without lock: a thread
+ * finding its slot empty, because another thread of the same slot holds the encoder, creates another, dropped when
+ * returned to an occupied slot.
+ */
+class EncoderPool {
+
+  private final Supplier<LogEventEncoder> factory;
+  private final AtomicReferenceArray<LogEventEncoder> slots;
+  private final int mask;
+  private volatile boolean closed;
+
+  /**
+   * @param size the number of slots, rounded up to a power of two
+   */
+  EncoderPool(int size, Supplier<LogEventEncoder> factory) {
+    this.factory = factory;
+    int slotCount = Integer.highestOneBit(Math.max(1, size));
+    if(slotCount < size) {
+      slotCount <<= 1;
+    }
+    this.slots = new AtomicReferenceArray<>(slotCount);
+    this.mask = slotCount - 1;
+  }
+
+  LogEventEncoder acquire() {
+    LogEventEncoder encoder = slots.getAndSet(slot(), null);
+    return encoder == null ? factory.get() : encoder;
+  }
+
+  void release(LogEventEncoder encoder) {
+    if(closed) {
+      return;
+    }
+    int slot = slot();
+    if(slots.compareAndSet(slot, null, encoder) && closed) {
+      // closed meanwhile
+      slots.set(slot, null);
+    }
+  }
+
+  /**
+   * Drops the idle encoders, and those returned afterwards
+   */
+  void close() {
+    closed = true;
+    for(int i = 0; i < slots.length(); i++) {
+      slots.set(i, null);
+    }
+  }
+
+  private int slot() {
+    return (int) Thread.currentThread().getId() & mask;
+  }
+
+  // visible for testing
+  int idleSize() {
+    int idle = 0;
+    for(int i = 0; i < slots.length(); i++) {
+      if(slots.get(i) != null) {
+        idle++;
+      }
+    }
+    return idle;
+  }
+
+}
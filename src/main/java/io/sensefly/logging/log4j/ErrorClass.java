@@ -0,0 +1,88 @@
+package io.sensefly.logging.log4j;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.http.timers.client.ClientExecutionTimeoutException;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.logs.model.DataAlreadyAcceptedException;
+import com.amazonaws.services.logs.model.InvalidSequenceTokenException;
+import com.amazonaws.services.logs.model.OperationAbortedException;
+import com.amazonaws.services.logs.model.ServiceUnavailableException;
+
+import java.io.IOException;
+
+/**
+ * How a failed {@code PutLogEvents} request is handled.
+ */
+enum ErrorClass {
+
+  /**
+   * Too many requests: retried later at a lower rate
+   */
+  THROTTLING,
+
+  /**
+   * Server or network error: retried later
+   */
+  SERVICE_UNAVAILABLE,
+
+  /**
+   * Another writer moved the sequence token: resent with the expected token
+   */
+  SEQUENCE_TOKEN,
+
+  /**
+   * The batch was already received: nothing to resend
+   */
+  DATA_ALREADY_ACCEPTED,
+
+  /**
+   * Invalid request, credentials or region: resending it would fail again
+   */
+  PERMANENT;
+
+  static ErrorClass of(Throwable error) {
+    if(error instanceof DataAlreadyAcceptedException) {
+      return DATA_ALREADY_ACCEPTED;
+    }
+    if(error instanceof InvalidSequenceTokenException) {
+      return SEQUENCE_TOKEN;
+    }
+    if(error instanceof ServiceUnavailableException || error instanceof OperationAbortedException) {
+      return SERVICE_UNAVAILABLE;
+    }
+    if(error instanceof AmazonServiceException) {
+      AmazonServiceException serviceException = (AmazonServiceException) error;
+      if(RetryUtils.isThrottlingException(serviceException)) {
+        return THROTTLING;
+      }
+      return serviceException.getStatusCode() >= 500 || RetryUtils.isRetryableServiceException(serviceException)
+          ? SERVICE_UNAVAILABLE
+          : PERMANENT;
+    }
+    // client side errors are only retryable when the network failed: missing credentials or region, also flagged as
+    // retryable by the SDK, would fail again
+    if(error instanceof AmazonClientException && ((AmazonClientException) error).isRetryable()
+        && isNetworkError(error)) {
+      return SERVICE_UNAVAILABLE;
+    }
+    return PERMANENT;
+  }
+
+  private static boolean isNetworkError(Throwable error) {
+    if(error instanceof ClientExecutionTimeoutException) {
+      return true;
+    }
+    for(Throwable cause = error.getCause(); cause != null; cause = cause.getCause()) {
+      if(cause instanceof IOException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  boolean isRetryable() {
+    return this != PERMANENT && this != DATA_ALREADY_ACCEPTED;
+  }
+
+}
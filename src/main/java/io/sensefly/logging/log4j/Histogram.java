@@ -0,0 +1,164 @@
+package io.sensefly.logging.log4j;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Lock-free histogram of positive values with a relative error of 12.5%: every power of two is split in 8 buckets.
+ * <p>
+ * With a window, only the recent values are reported, so a reading shows the current latency instead of the one
+ * averaged since startup. Values are recorded in the interval of the current window and read from it and the previous
+ * one, so readings cover between one and two windows. An interval is cleared when reused two windows later: the rare
+ * values recorded while it is cleared may be lost.
+ */
+class Histogram {
+
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final long windowNanos;
+  private final LongSupplier nanoClock;
+  private final Interval[] intervals = { new Interval(), new Interval() };
+
+  /**
+   * The index of the current window, since the epoch of the clock
+   */
+  private final AtomicLong window;
+
+  /**
+   * A histogram of all the values ever recorded
+   */
+  Histogram() {
+    this(0, System::nanoTime);
+  }
+
+  /**
+   * @param windowNanos zero or less to report all the values ever recorded
+   */
+  Histogram(long windowNanos, LongSupplier nanoClock) {
+    this.windowNanos = windowNanos;
+    this.nanoClock = nanoClock;
+    this.window = new AtomicLong(currentWindow());
+  }
+
+  void record(long value) {
+    long current = rotate();
+    intervals[(int) (current & 1)].record(Math.max(0, value));
+  }
+
+  long getCount() {
+    rotate();
+    return intervals[0].count.sum() + intervals[1].count.sum();
+  }
+
+  double getMean() {
+    rotate();
+    long total = intervals[0].count.sum() + intervals[1].count.sum();
+    return total == 0 ? 0 : (double) (intervals[0].sum.sum() + intervals[1].sum.sum()) / total;
+  }
+
+  long getMax() {
+    rotate();
+    return Math.max(intervals[0].max.get(), intervals[1].max.get());
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return the upper bound of the bucket holding the percentile, never more than the maximum recorded value
+   */
+  long getPercentile(double percentile) {
+    rotate();
+    long total = 0;
+    for(int i = 0; i < BUCKETS; i++) {
+      total += bucketCount(i);
+    }
+    if(total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+    long seen = 0;
+    for(int i = 0; i < BUCKETS; i++) {
+      seen += bucketCount(i);
+      if(seen >= rank) {
+        return Math.min(upperBound(i), getMax());
+      }
+    }
+    return getMax();
+  }
+
+  private long bucketCount(int bucket) {
+    return intervals[0].buckets.get(bucket) + intervals[1].buckets.get(bucket);
+  }
+
+  private long currentWindow() {
+    return windowNanos <= 0 ? 0 : Math.floorDiv(nanoClock.getAsLong(), windowNanos);
+  }
+
+  /**
+   * Moves to the window of the current time, clearing the intervals of the windows before the previous one
+   *
+   * @return the index of the current window
+   */
+  private long rotate() {
+    long current = currentWindow();
+    long last = window.get();
+    if(current > last && window.compareAndSet(last, current)) {
+      intervals[(int) (current & 1)].clear();
+      if(current - last > 1) {
+        intervals[(int) ((current - 1) & 1)].clear();
+      }
+    }
+    return current;
+  }
+
+  // visible for testing
+  static int bucket(long value) {
+    if(value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  // visible for testing
+  static long upperBound(int bucket) {
+    if(bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    int shift = exponent - SUB_BUCKET_BITS;
+    long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    return lowerBound + (1L << shift) - 1;
+  }
+
+  private static final class Interval {
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    private void record(long value) {
+      buckets.incrementAndGet(bucket(value));
+      count.increment();
+      sum.add(value);
+      max.accumulate(value);
+    }
+
+    private void clear() {
+      for(int i = 0; i < BUCKETS; i++) {
+        buckets.set(i, 0);
+      }
+      count.reset();
+      sum.reset();
+      max.reset();
+    }
+
+  }
+
+}
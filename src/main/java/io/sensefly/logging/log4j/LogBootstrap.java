@@ -0,0 +1,194 @@
+package io.sensefly.logging.log4j;
+
+import com.amazonaws.services.logs.AWSLogs;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.util.Log4jThreadFactory;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import static io.sensefly.logging.log4j.CloudWatchDebugger.debug;
+
+/**
+ * Builds the AWS client and makes sure the log group exists on a daemon thread, so loading the configuration neither
+ * waits for the credentials and region chains nor fails when AWS is unreachable. Failed attempts are retried with
+ * backoff while the appender keeps buffering events, and the listeners are told once it is done, so the senders do
+ * not wait for it. A permanent error, like a denied access or an invalid configuration, is reported to the status
+ * logger and not retried.
+ * Shared by all the streams of an appender.
+ */
+class LogBootstrap {
+
+  private static final Logger LOGGER = StatusLogger.getLogger();
+
+  /**
+   * The AWS client, the transport sending through it and the log groups known to exist
+   */
+  static final class Client {
+
+    final AWSLogs awsLogs;
+    final LogTransport transport;
+    final LogGroupProvider logGroupProvider;
+
+    Client(AWSLogs awsLogs, LogTransport transport) {
+      this.awsLogs = awsLogs;
+      this.transport = transport;
+      this.logGroupProvider = new LogGroupProvider(awsLogs);
+    }
+
+  }
+
+  private final Supplier<Client> clientFactory;
+  private final String logGroupName;
+  private final boolean assumeExists;
+  private final RetryPolicy retryPolicy;
+
+  private final AtomicBoolean started = new AtomicBoolean();
+  private final CountDownLatch done = new CountDownLatch(1);
+  private final CountDownLatch closed = new CountDownLatch(1);
+  private volatile Client client;
+  private volatile RuntimeException error;
+  private volatile Thread thread;
+  private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+  /**
+   * @param assumeExists true to skip the Describe and Create calls, the log group being created beforehand
+   */
+  LogBootstrap(Supplier<Client> clientFactory, String logGroupName, boolean assumeExists, RetryPolicy retryPolicy) {
+    this.clientFactory = clientFactory;
+    this.logGroupName = logGroupName;
+    this.assumeExists = assumeExists;
+    this.retryPolicy = retryPolicy;
+  }
+
+  /**
+   * Starts the bootstrap thread, once.
+   */
+  void start() {
+    if(started.compareAndSet(false, true)) {
+      thread = Log4jThreadFactory.createDaemonThreadFactory("CloudWatchBootstrap").newThread(this::bootstrap);
+      thread.start();
+    }
+  }
+
+  /**
+   * Starts the bootstrap if needed and waits for it.
+   *
+   * @throws IllegalStateException if the bootstrap failed for good, was closed before it succeeded or did not
+   * succeed within the timeout
+   */
+  Client await(long timeout, TimeUnit unit) throws InterruptedException {
+    start();
+    boolean finished = done.await(timeout, unit);
+    Client ready = client;
+    if(ready == null) {
+      throw new IllegalStateException("Log group " + logGroupName + " not ready"
+          + (finished ? "" : " within " + unit.toMillis(timeout) + " ms"), error);
+    }
+    return ready;
+  }
+
+  boolean isReady() {
+    return client != null;
+  }
+
+  /**
+   * @return true if the bootstrap stopped on a permanent error
+   */
+  boolean isFailed() {
+    return error != null;
+  }
+
+  /**
+   * @return true once the bootstrap succeeded or was closed
+   */
+  boolean isDone() {
+    return done.getCount() == 0;
+  }
+
+  /**
+   * @param listener called once the bootstrap succeeded or was closed, at once if it is already done
+   */
+  void addListener(Runnable listener) {
+    listeners.add(listener);
+    if(isDone() && listeners.remove(listener)) {
+      listener.run();
+    }
+  }
+
+  /**
+   * Stops retrying and interrupts the attempt in progress, so the AWS client gives up on it.
+   */
+  void close() {
+    closed.countDown();
+    if(started.compareAndSet(false, true)) {
+      finish();
+      return;
+    }
+    Thread running = thread;
+    if(running != null && done.getCount() > 0) {
+      running.interrupt();
+    }
+  }
+
+  private void bootstrap() {
+    Client created = null;
+    for(int attempt = 0; ; attempt++) {
+      try {
+        if(created == null) {
+          created = clientFactory.get();
+        }
+        if(!assumeExists) {
+          created.logGroupProvider.ensureExists(logGroupName);
+        }
+        client = created;
+        break;
+      } catch(RuntimeException e) {
+        if(closed.getCount() == 0) {
+          // interrupted by close
+          break;
+        }
+        if(!ErrorClass.of(e).isRetryable()) {
+          error = e;
+          LOGGER.error("Cannot bootstrap log group {}, giving up", logGroupName, e);
+          break;
+        }
+        long delayMs = retryPolicy.backoffMillis(attempt);
+        debug("Cannot bootstrap log group " + logGroupName + ", retry in " + delayMs + " ms", e);
+        if(awaitClosed(delayMs)) {
+          break;
+        }
+      }
+    }
+    // the interrupt of close must not reach the listeners
+    Thread.interrupted();
+    finish();
+  }
+
+  private void finish() {
+    done.countDown();
+    for(Runnable listener : listeners) {
+      if(listeners.remove(listener)) {
+        listener.run();
+      }
+    }
+  }
+
+  /**
+   * @return true if closed within the delay
+   */
+  private boolean awaitClosed(long delayMs) {
+    try {
+      return closed.await(delayMs, TimeUnit.MILLISECONDS);
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return true;
+    }
+  }
+
+}
@@ -0,0 +1,45 @@
+package io.sensefly.logging.log4j;
+
+import java.util.Objects;
+
+/**
+ * The log group and log stream prefix an event is routed to, null standing for the ones of the appender.
+ */
+final class LogDestination {
+
+  static final LogDestination DEFAULT = new LogDestination(null, null);
+
+  final String logGroupName;
+  final String logStreamNamePrefix;
+  private final int hash;
+
+  LogDestination(String logGroupName, String logStreamNamePrefix) {
+    this.logGroupName = logGroupName;
+    this.logStreamNamePrefix = logStreamNamePrefix;
+    this.hash = Objects.hash(logGroupName, logStreamNamePrefix);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if(this == o) {
+      return true;
+    }
+    if(!(o instanceof LogDestination)) {
+      return false;
+    }
+    LogDestination that = (LogDestination) o;
+    return Objects.equals(logGroupName, that.logGroupName)
+        && Objects.equals(logStreamNamePrefix, that.logStreamNamePrefix);
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    return logGroupName + ":" + logStreamNamePrefix;
+  }
+
+}
@@ -0,0 +1,85 @@
+package io.sensefly.logging.log4j;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+
+import java.util.regex.Pattern;
+
+/**
+ * Resolves the destination of every event from {@link PatternLayout} patterns, like {@code app-%X{tenant}} for the
+ * context map, {@code %c} for the logger or {@code %markerSimpleName} for the marker. Characters CloudWatch does not
+ * accept in names are replaced by {@code _}, and a pattern resolving to an empty name routes to the appender default.
+ */
+class LogDestinationRouter {
+
+  static final LogDestinationRouter NONE = new LogDestinationRouter(null, null);
+
+  private static final int MAX_NAME_LENGTH = 512;
+  private static final Pattern INVALID_GROUP_CHARS = Pattern.compile("[^A-Za-z0-9_\\-/.#]");
+  private static final Pattern INVALID_STREAM_CHARS = Pattern.compile("[:*]");
+
+  private final PatternLayout logGroupNamePattern;
+  private final PatternLayout logStreamNamePattern;
+
+  private LogDestinationRouter(PatternLayout logGroupNamePattern, PatternLayout logStreamNamePattern) {
+    this.logGroupNamePattern = logGroupNamePattern;
+    this.logStreamNamePattern = logStreamNamePattern;
+  }
+
+  /**
+   * @param logGroupNamePattern null to send to the appender log group
+   * @param logStreamNamePattern null to send with the appender log stream prefix
+   */
+  static LogDestinationRouter create(String logGroupNamePattern, String logStreamNamePattern,
+      Configuration configuration) {
+    if(logGroupNamePattern == null && logStreamNamePattern == null) {
+      return NONE;
+    }
+    return new LogDestinationRouter(newPattern(logGroupNamePattern, configuration),
+        newPattern(logStreamNamePattern, configuration));
+  }
+
+  private static PatternLayout newPattern(String pattern, Configuration configuration) {
+    if(pattern == null) {
+      return null;
+    }
+    return PatternLayout.newBuilder()
+        .withPattern(pattern)
+        .withConfiguration(configuration)
+        .withAlwaysWriteExceptions(false)
+        .withDisableAnsi(true)
+        .build();
+  }
+
+  /**
+   * @return false when every event goes to the appender log group and stream
+   */
+  boolean isDynamic() {
+    return logGroupNamePattern != null || logStreamNamePattern != null;
+  }
+
+  LogDestination route(LogEvent event) {
+    String logGroupName = resolve(logGroupNamePattern, event, INVALID_GROUP_CHARS);
+    String logStreamNamePrefix = resolve(logStreamNamePattern, event, INVALID_STREAM_CHARS);
+    if(logGroupName == null && logStreamNamePrefix == null) {
+      return LogDestination.DEFAULT;
+    }
+    return new LogDestination(logGroupName, logStreamNamePrefix);
+  }
+
+  private static String resolve(PatternLayout pattern, LogEvent event, Pattern invalidChars) {
+    if(pattern == null) {
+      return null;
+    }
+    String name = pattern.toSerializable(event).trim();
+    if(name.isEmpty()) {
+      return null;
+    }
+    if(name.length() > MAX_NAME_LENGTH) {
+      name = name.substring(0, MAX_NAME_LENGTH);
+    }
+    return invalidChars.matcher(name).replaceAll("_");
+  }
+
+}
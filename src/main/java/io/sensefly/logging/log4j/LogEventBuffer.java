@@ -0,0 +1,446 @@
+package io.sensefly.logging.log4j;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Buffers the appended events in a {@link RingBuffer} and applies the {@link OverflowPolicy} when it is full.
+ * Appending is lock-free: the lock is only taken to wake up a producer blocked on a full buffer and, with
+ * {@link OverflowPolicy#DROP_BELOW_LEVEL}, to poll the events. The buffer never blocks its consumer: the sender lanes
+ * poll it when woken up by the appender.
+ * Events which would be dropped are first offered to the optional overflow handler (the spill store).
+ * <p>
+ * Events at least as specific as the priority level go to a separate priority ring, polled first. When it is full,
+ * they take the place of the oldest events of the main ring, so verbose events are shed first. Polling it first
+ * reorders the events, so the priority ring is off unless configured.
+ * <p>
+ * With {@code maxBytes}, the buffered bytes are accounted with {@link LogEventSize}, estimated once per event and kept
+ * in the slot of the event so the same bytes are released when it is polled. When they would exceed {@code maxBytes},
+ * the buffer is full as if the rings were, except for an event appended to an empty buffer. Without, the events are
+ * neither estimated nor accounted.
+ * <p>
+ * {@link OverflowPolicy#DROP_BELOW_LEVEL} only evicts the events less specific than the overflow level. The events
+ * polled from the ring to reach the oldest of them are moved to a queue polled before the ring, keeping their order:
+ * the queue and the ring are polled under the same lock.
+ */
+class LogEventBuffer {
+
+  private static final int MAX_EVICTIONS = 16;
+
+  private final RingBuffer<LogEvent> ringBuffer;
+  private final int capacity;
+  private final RingBuffer<LogEvent> priorityRingBuffer;
+  private final Level priorityLevel;
+  private final OverflowPolicy overflowPolicy;
+  private final long overflowTimeoutNanos;
+  private final Level overflowLevel;
+  private final Predicate<LogEvent> overflowHandler;
+  private final long maxBytes;
+
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicLong highWaterBytes = new AtomicLong();
+
+  /**
+   * Events in the ring and in the head queue, which shares the capacity of the ring
+   */
+  private final AtomicInteger count = new AtomicInteger();
+
+  /**
+   * Events older than those of the ring and their bytes, kept while evicting the events below the overflow level,
+   * guarded by {@code lock}
+   */
+  private final Queue<LogEvent> head = new ArrayDeque<>();
+  private final Queue<Long> headBytes = new ArrayDeque<>();
+  private final AtomicInteger headSize = new AtomicInteger();
+
+  /**
+   * The negated bytes of the event last polled from the ring while moving events to the head queue, guarded by
+   * {@code lock}
+   */
+  private final AtomicLong movedBytes = new AtomicLong();
+
+  /**
+   * Events less specific than the overflow level in the ring, only counted for {@link OverflowPolicy#DROP_BELOW_LEVEL}
+   */
+  private final AtomicInteger belowLevelCount = new AtomicInteger();
+
+  private final LongAdder droppedCount = new LongAdder();
+  private final LongAdder spilledCount = new LongAdder();
+  private final LongAdder priorityDroppedCount = new LongAdder();
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notFull = lock.newCondition();
+  private final AtomicInteger waitingProducers = new AtomicInteger();
+
+  private volatile boolean closed;
+
+  LogEventBuffer(int capacity, OverflowPolicy overflowPolicy, long overflowTimeoutMs, Level overflowLevel) {
+    this(capacity, overflowPolicy, overflowTimeoutMs, overflowLevel, event -> false);
+  }
+
+  /**
+   * @param overflowHandler called with the events which do not fit in the buffer, returns false if it did not keep it
+   */
+  LogEventBuffer(int capacity, OverflowPolicy overflowPolicy, long overflowTimeoutMs, Level overflowLevel,
+      Predicate<LogEvent> overflowHandler) {
+    this(capacity, overflowPolicy, overflowTimeoutMs, overflowLevel, overflowHandler, 0, Level.OFF);
+  }
+
+  /**
+   * @param priorityCapacity zero to buffer all the events in the main ring
+   * @param priorityLevel the least specific level of the events buffered in the priority ring
+   */
+  LogEventBuffer(int capacity, OverflowPolicy overflowPolicy, long overflowTimeoutMs, Level overflowLevel,
+      Predicate<LogEvent> overflowHandler, int priorityCapacity, Level priorityLevel) {
+    this(capacity, overflowPolicy, overflowTimeoutMs, overflowLevel, overflowHandler, priorityCapacity, priorityLevel,
+        0);
+  }
+
+  /**
+   * @param maxBytes zero or less to only bound the number of events
+   */
+  LogEventBuffer(int capacity, OverflowPolicy overflowPolicy, long overflowTimeoutMs, Level overflowLevel,
+      Predicate<LogEvent> overflowHandler, int priorityCapacity, Level priorityLevel, long maxBytes) {
+    this.maxBytes = maxBytes;
+    this.ringBuffer = new RingBuffer<>(capacity, maxBytes > 0);
+    this.capacity = ringBuffer.capacity();
+    this.priorityRingBuffer = priorityCapacity > 0 ? new RingBuffer<>(priorityCapacity, maxBytes > 0) : null;
+    this.priorityLevel = priorityLevel;
+    this.overflowHandler = overflowHandler;
+    this.overflowPolicy = overflowPolicy;
+    this.overflowTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(overflowTimeoutMs);
+    this.overflowLevel = overflowLevel;
+  }
+
+  /**
+   * Buffers the event. With a priority ring, a priority event is polled before the events offered earlier, so it is
+   * sent ahead of them.
+   *
+   * @return false if the event was not buffered
+   */
+  boolean offer(LogEvent event) {
+    long size = maxBytes > 0 ? LogEventSize.estimate(event) : 0;
+    boolean added = isPriority(event)
+        ? offer(priorityRingBuffer, event, size) || offer(event, size) || offerEvictingOldest(event, size)
+        : offer(event, size) || offerOnOverflow(event, size);
+    if(!added) {
+      drop(event);
+    }
+    return added;
+  }
+
+  /**
+   * @return the oldest priority event, or else the oldest event, null if the buffer is empty
+   */
+  LogEvent poll() {
+    LogEvent event = priorityRingBuffer == null ? null : priorityRingBuffer.poll(bytes);
+    if(event == null) {
+      event = pollOldest();
+    }
+    if(event == null) {
+      return null;
+    }
+    signalIfWaiting(waitingProducers, notFull);
+    return event;
+  }
+
+  boolean isEmpty() {
+    return ringBuffer.isEmpty() && headSize.get() == 0 && (priorityRingBuffer == null || priorityRingBuffer.isEmpty());
+  }
+
+  /**
+   * Marks the buffer closed, so the sender lanes send what is left instead of waiting for new events.
+   */
+  void close() {
+    closed = true;
+  }
+
+  boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Hands the buffered events to the overflow handler, counting those it does not keep as dropped.
+   *
+   * @return the number of events taken from the buffer
+   */
+  int discard() {
+    int count = 0;
+    LogEvent event;
+    while((event = poll()) != null) {
+      drop(event);
+      count++;
+    }
+    return count;
+  }
+
+  int size() {
+    return ringBuffer.size() + headSize.get() + prioritySize();
+  }
+
+  /**
+   * @return the capacity of the ring of the other events, see {@link #priorityCapacity()}
+   */
+  int capacity() {
+    return capacity;
+  }
+
+  int prioritySize() {
+    return priorityRingBuffer == null ? 0 : priorityRingBuffer.size();
+  }
+
+  int priorityCapacity() {
+    return priorityRingBuffer == null ? 0 : priorityRingBuffer.capacity();
+  }
+
+  /**
+   * @return the number of priority events dropped, included in {@link #getDroppedCount()}
+   */
+  long getPriorityDroppedCount() {
+    return priorityDroppedCount.sum();
+  }
+
+  long getDroppedCount() {
+    return droppedCount.sum();
+  }
+
+  long getSpilledCount() {
+    return spilledCount.sum();
+  }
+
+  /**
+   * @return the estimated bytes of the buffered events, zero if the buffer is only bounded by its number of events
+   */
+  long bytes() {
+    return bytes.get();
+  }
+
+  /**
+   * @return zero if the buffer is only bounded by its number of events
+   */
+  long maxBytes() {
+    return Math.max(0, maxBytes);
+  }
+
+  /**
+   * @return the most bytes buffered at once since the buffer was created
+   */
+  long highWaterBytes() {
+    return highWaterBytes.get();
+  }
+
+  /**
+   * Reserves a place for the event then buffers it in the ring of the other events
+   */
+  private boolean offer(LogEvent event, long size) {
+    if(count.incrementAndGet() > capacity) {
+      count.decrementAndGet();
+      return false;
+    }
+    if(!offer(ringBuffer, event, size)) {
+      count.decrementAndGet();
+      return false;
+    }
+    if(isBelowOverflowLevel(event)) {
+      belowLevelCount.incrementAndGet();
+    }
+    return true;
+  }
+
+  /**
+   * Reserves the bytes of the event, when bounded by bytes, then buffers it in the ring
+   */
+  private boolean offer(RingBuffer<LogEvent> ring, LogEvent event, long size) {
+    if(maxBytes <= 0) {
+      return ring.offer(event);
+    }
+    long buffered = bytes.addAndGet(size);
+    if(buffered > maxBytes && buffered != size) {
+      bytes.addAndGet(-size);
+      return false;
+    }
+    if(!ring.offer(event, size)) {
+      bytes.addAndGet(-size);
+      return false;
+    }
+    long highWater = highWaterBytes.get();
+    while(buffered > highWater && !highWaterBytes.compareAndSet(highWater, buffered)) {
+      highWater = highWaterBytes.get();
+    }
+    return true;
+  }
+
+  /**
+   * @return the oldest of the other events, from the head queue then the ring
+   */
+  private LogEvent pollOldest() {
+    LogEvent event;
+    if(overflowPolicy == OverflowPolicy.DROP_BELOW_LEVEL) {
+      // polled under the lock moving events to the head queue, or they could be polled after newer events of the ring
+      lock.lock();
+      try {
+        event = pollHead();
+        if(event == null) {
+          event = pollRing();
+        }
+      } finally {
+        lock.unlock();
+      }
+    } else {
+      event = pollRing();
+    }
+    if(event != null) {
+      count.decrementAndGet();
+    }
+    return event;
+  }
+
+  /**
+   * Guarded by {@code lock}
+   */
+  private LogEvent pollHead() {
+    LogEvent event = head.poll();
+    if(event != null) {
+      headSize.decrementAndGet();
+      bytes.addAndGet(-headBytes.remove());
+    }
+    return event;
+  }
+
+  private LogEvent pollRing() {
+    LogEvent event = ringBuffer.poll(bytes);
+    if(event != null && isBelowOverflowLevel(event)) {
+      belowLevelCount.decrementAndGet();
+    }
+    return event;
+  }
+
+  private boolean offerOnOverflow(LogEvent event, long size) {
+    switch(overflowPolicy) {
+      case BLOCK:
+        return offerBlocking(event, size);
+      case DROP_OLDEST:
+        return offerEvictingOldest(event, size);
+      case DROP_BELOW_LEVEL:
+        return !isBelowOverflowLevel(event) && offerEvictingBelowLevel(event, size);
+      case DROP_NEWEST:
+      default:
+        return false;
+    }
+  }
+
+  private boolean offerEvictingOldest(LogEvent event, long size) {
+    for(int i = 0; i < MAX_EVICTIONS; i++) {
+      LogEvent evicted = pollOldest();
+      if(evicted != null) {
+        drop(evicted);
+      }
+      if(offer(event, size)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Drops the oldest events below the overflow level until the event fits. Fails at once when none is buffered.
+   */
+  private boolean offerEvictingBelowLevel(LogEvent event, long size) {
+    for(int i = 0; i < MAX_EVICTIONS && belowLevelCount.get() > 0; i++) {
+      LogEvent evicted = pollOldestBelowLevel();
+      if(evicted != null) {
+        drop(evicted);
+      }
+      if(offer(event, size)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the oldest event below the overflow level, the events polled before it moving to the head queue
+   */
+  private LogEvent pollOldestBelowLevel() {
+    lock.lock();
+    try {
+      LogEvent oldest;
+      while((oldest = ringBuffer.poll(movedBytes)) != null && !isBelowOverflowLevel(oldest)) {
+        // still buffered, their bytes are kept
+        head.add(oldest);
+        headBytes.add(-movedBytes.getAndSet(0));
+        headSize.incrementAndGet();
+      }
+      if(oldest != null) {
+        belowLevelCount.decrementAndGet();
+        count.decrementAndGet();
+        bytes.addAndGet(movedBytes.getAndSet(0));
+      }
+      return oldest;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private boolean offerBlocking(LogEvent event, long size) {
+    long nanos = overflowTimeoutNanos;
+    lock.lock();
+    waitingProducers.incrementAndGet();
+    try {
+      while(!offer(event, size)) {
+        if(nanos <= 0) {
+          return false;
+        }
+        nanos = notFull.awaitNanos(nanos);
+      }
+      return true;
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      waitingProducers.decrementAndGet();
+      lock.unlock();
+    }
+  }
+
+  private boolean isBelowOverflowLevel(LogEvent event) {
+    return overflowPolicy == OverflowPolicy.DROP_BELOW_LEVEL && !event.getLevel().isMoreSpecificThan(overflowLevel);
+  }
+
+  private boolean isPriority(LogEvent event) {
+    return priorityRingBuffer != null && event.getLevel().isMoreSpecificThan(priorityLevel);
+  }
+
+  private void drop(LogEvent event) {
+    if(overflowHandler.test(event)) {
+      spilledCount.increment();
+    } else {
+      droppedCount.increment();
+      if(isPriority(event)) {
+        priorityDroppedCount.increment();
+      }
+    }
+  }
+
+  private void signalIfWaiting(AtomicInteger waiting, Condition condition) {
+    if(waiting.get() > 0) {
+      lock.lock();
+      try {
+        condition.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,337 @@
+package io.sensefly.logging.log4j;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.ThreadContext;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.impl.ThrowableProxy;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+import org.apache.logging.log4j.core.layout.ByteBufferDestinationHelper;
+import org.apache.logging.log4j.core.layout.Encoder;
+import org.apache.logging.log4j.core.time.Instant;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Encodes events through {@link Encoder#encode(Object, ByteBufferDestination)} into a reusable buffer, so garbage-free
+ * layouts (like {@code PatternLayout}) do not allocate intermediate byte arrays or strings.
+ * The only allocation left per event is the message String required by the AWS SDK.
+ * A {@link CloudWatchJsonLayout} writes the text of the message directly, which is neither encoded nor decoded.
+ * The Embedded Metric Format documents are added as they are, without layout, like the events encoded on append.
+ * With a {@link ThrowableRenderer}, the layout encodes the events without their throwable, which is rendered after.
+ * Not thread-safe: every sender lane owns its encoder and reuses its buffers, the appending threads borrow theirs
+ * from an {@link EncoderPool}.
+ */
+class LogEventEncoder implements ByteBufferDestination {
+
+  private static final int INITIAL_CAPACITY = 8 * 1024;
+
+  /**
+   * Buffers grown over this size for an oversized event are released after use
+   */
+  private static final int MAX_RETAINED_CAPACITY = BatchBuilder.MAX_EVENT_BYTES;
+
+  private final Encoder<LogEvent> layout;
+
+  /**
+   * The layout when it writes text directly, null otherwise
+   */
+  private final CloudWatchJsonLayout jsonLayout;
+
+  /**
+   * Renders the throwables in place of the layout, null to let the layout render them
+   */
+  private final ThrowableRenderer throwableRenderer;
+  private final WithoutThrown withoutThrown = new WithoutThrown();
+  private StringBuilder trace;
+  private StringBuilder text;
+
+  /**
+   * The UTF-8 size of the last message encoded
+   */
+  private int messageBytes;
+  private final CharsetDecoder decoder = UTF_8.newDecoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+  private ByteBuffer byteBuffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+  private CharBuffer charBuffer = CharBuffer.allocate(INITIAL_CAPACITY);
+
+  LogEventEncoder(Encoder<LogEvent> layout) {
+    this(layout, null);
+  }
+
+  LogEventEncoder(Encoder<LogEvent> layout, ThrowableRenderer throwableRenderer) {
+    this.layout = layout;
+    this.throwableRenderer = throwableRenderer;
+    this.jsonLayout = layout instanceof CloudWatchJsonLayout ? (CloudWatchJsonLayout) layout : null;
+    this.text = jsonLayout == null ? null : new StringBuilder(INITIAL_CAPACITY);
+  }
+
+  /**
+   * Encodes the event and adds it to the batch
+   */
+  void encode(LogEvent event, BatchBuilder batchBuilder) {
+    if(event instanceof EncodedLogEvent) {
+      EncodedLogEvent encoded = (EncodedLogEvent) event;
+      batchBuilder.add(encoded.getTimeMillis(), encoded.getText(), encoded.getBytes());
+      return;
+    }
+    String message = encode(event);
+    batchBuilder.add(event.getTimeMillis(), message, messageBytes);
+  }
+
+  /**
+   * Encodes the event to keep it once appended
+   *
+   * @param destination the destination of the event, null when the router is not dynamic
+   */
+  EncodedLogEvent capture(LogEvent event, LogDestination destination) {
+    String message = encode(event);
+    return new EncodedLogEvent(event, message, messageBytes, destination);
+  }
+
+  private String encode(LogEvent event) {
+    if(MetricAggregator.isDocument(event)) {
+      String document = event.getMessage().getFormattedMessage();
+      messageBytes = BatchBuilder.utf8Length(document, 0, document.length());
+      return document;
+    }
+    if(jsonLayout != null) {
+      return formatText(event);
+    }
+    if(throwableRenderer != null && event.getThrown() != null) {
+      return encodeWithTrace(event);
+    }
+    byteBuffer.clear();
+    layout.encode(event, this);
+    byteBuffer.flip();
+    messageBytes = byteBuffer.remaining();
+    String message = decode();
+    release();
+    return message;
+  }
+
+  private String encodeWithTrace(LogEvent event) {
+    byteBuffer.clear();
+    try {
+      layout.encode(withoutThrown.wrap(event), this);
+    } finally {
+      withoutThrown.wrap(null);
+    }
+    byteBuffer.flip();
+    int layoutBytes = byteBuffer.remaining();
+    String layoutText = decode();
+    release();
+    if(trace == null) {
+      trace = new StringBuilder(INITIAL_CAPACITY);
+    }
+    trace.setLength(0);
+    if(!layoutText.isEmpty() && layoutText.charAt(layoutText.length() - 1) != '\n') {
+      trace.append('\n');
+    }
+    throwableRenderer.render(event.getThrown(), event.getTimeMillis(), trace);
+    messageBytes = layoutBytes + BatchBuilder.utf8Length(trace, 0, trace.length());
+    String message = layoutText.concat(trace.toString());
+    if(trace.capacity() > MAX_RETAINED_CAPACITY) {
+      trace = null;
+    }
+    return message;
+  }
+
+  private String formatText(LogEvent event) {
+    text.setLength(0);
+    jsonLayout.format(event, text, throwableRenderer);
+    messageBytes = BatchBuilder.utf8Length(text, 0, text.length());
+    String message = text.toString();
+    if(text.capacity() > MAX_RETAINED_CAPACITY) {
+      text = new StringBuilder(INITIAL_CAPACITY);
+    }
+    return message;
+  }
+
+  @Override
+  public ByteBuffer getByteBuffer() {
+    return byteBuffer;
+  }
+
+  /**
+   * Events are kept in memory until sent: grows the buffer instead of writing it out.
+   */
+  @Override
+  public ByteBuffer drain(ByteBuffer buf) {
+    buf.flip();
+    ByteBuffer grown = ByteBuffer.allocate(Math.max(buf.capacity() * 2, INITIAL_CAPACITY));
+    grown.put(buf);
+    byteBuffer = grown;
+    return byteBuffer;
+  }
+
+  @Override
+  public void writeBytes(ByteBuffer data) {
+    ByteBufferDestinationHelper.writeToUnsynchronized(data, this);
+  }
+
+  @Override
+  public void writeBytes(byte[] data, int offset, int length) {
+    ByteBufferDestinationHelper.writeToUnsynchronized(data, offset, length, this);
+  }
+
+  private String decode() {
+    if(charBuffer.capacity() < byteBuffer.remaining()) {
+      charBuffer = CharBuffer.allocate(byteBuffer.remaining());
+    }
+    charBuffer.clear();
+    decoder.reset();
+    decoder.decode(byteBuffer, charBuffer, true);
+    decoder.flush(charBuffer);
+    charBuffer.flip();
+    return new String(charBuffer.array(), 0, charBuffer.limit());
+  }
+
+  private void release() {
+    if(byteBuffer.capacity() > MAX_RETAINED_CAPACITY) {
+      byteBuffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+    }
+    if(charBuffer.capacity() > MAX_RETAINED_CAPACITY) {
+      charBuffer = CharBuffer.allocate(INITIAL_CAPACITY);
+    }
+  }
+
+  /**
+   * The event without its throwable, for the layout
+   */
+  private static final class WithoutThrown implements LogEvent {
+
+    private static final long serialVersionUID = 1L;
+
+    private transient LogEvent event;
+
+    WithoutThrown wrap(LogEvent event) {
+      this.event = event;
+      return this;
+    }
+
+    @Override
+    public Throwable getThrown() {
+      return null;
+    }
+
+    @Override
+    public ThrowableProxy getThrownProxy() {
+      return null;
+    }
+
+    @Override
+    public LogEvent toImmutable() {
+      return Log4jLogEvent.createMemento(this);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public Map<String, String> getContextMap() {
+      return event.getContextMap();
+    }
+
+    @Override
+    public ReadOnlyStringMap getContextData() {
+      return event.getContextData();
+    }
+
+    @Override
+    public ThreadContext.ContextStack getContextStack() {
+      return event.getContextStack();
+    }
+
+    @Override
+    public String getLoggerFqcn() {
+      return event.getLoggerFqcn();
+    }
+
+    @Override
+    public Level getLevel() {
+      return event.getLevel();
+    }
+
+    @Override
+    public String getLoggerName() {
+      return event.getLoggerName();
+    }
+
+    @Override
+    public Marker getMarker() {
+      return event.getMarker();
+    }
+
+    @Override
+    public Message getMessage() {
+      return event.getMessage();
+    }
+
+    @Override
+    public long getTimeMillis() {
+      return event.getTimeMillis();
+    }
+
+    @Override
+    public Instant getInstant() {
+      return event.getInstant();
+    }
+
+    @Override
+    public StackTraceElement getSource() {
+      return event.getSource();
+    }
+
+    @Override
+    public String getThreadName() {
+      return event.getThreadName();
+    }
+
+    @Override
+    public long getThreadId() {
+      return event.getThreadId();
+    }
+
+    @Override
+    public int getThreadPriority() {
+      return event.getThreadPriority();
+    }
+
+    @Override
+    public boolean isEndOfBatch() {
+      return event.isEndOfBatch();
+    }
+
+    @Override
+    public boolean isIncludeLocation() {
+      return event.isIncludeLocation();
+    }
+
+    @Override
+    public void setEndOfBatch(boolean endOfBatch) {
+      event.setEndOfBatch(endOfBatch);
+    }
+
+    @Override
+    public void setIncludeLocation(boolean locationRequired) {
+      event.setIncludeLocation(locationRequired);
+    }
+
+    @Override
+    public long getNanoTime() {
+      return event.getNanoTime();
+    }
+
+  }
+
+}
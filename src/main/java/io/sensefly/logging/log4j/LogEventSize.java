@@ -0,0 +1,65 @@
+package io.sensefly.logging.log4j;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.message.Message;
+
+/**
+ * Estimates the heap retained by a buffered event without formatting it: the event itself, its message template and
+ * parameters, its context data and its throwables. Estimated once when the event is buffered: a parameter may still
+ * change afterwards, so the buffer releases the bytes it estimated rather than estimating again.
+ */
+final class LogEventSize {
+
+  static final int EVENT_BYTES = 256;
+  static final int PARAMETER_BYTES = 32;
+  static final int CONTEXT_ENTRY_BYTES = 96;
+
+  /**
+   * A throwable with a stack trace of a few dozen frames, which are not counted to avoid copying them
+   */
+  static final int THROWABLE_BYTES = 4096;
+
+  private static final int MAX_CAUSES = 8;
+
+  private LogEventSize() {
+  }
+
+  static int estimate(LogEvent event) {
+    if(event instanceof EncodedLogEvent) {
+      return (int) Math.min(Integer.MAX_VALUE, EVENT_BYTES + chars(((EncodedLogEvent) event).getText()));
+    }
+    long bytes = EVENT_BYTES + estimate(event.getMessage());
+    if(event.getContextData() != null) {
+      bytes += (long) event.getContextData().size() * CONTEXT_ENTRY_BYTES;
+    }
+    Throwable thrown = event.getThrown();
+    for(int i = 0; thrown != null && i < MAX_CAUSES; i++) {
+      bytes += THROWABLE_BYTES + chars(thrown.getMessage());
+      thrown = thrown.getCause();
+    }
+    return (int) Math.min(Integer.MAX_VALUE, bytes);
+  }
+
+  private static long estimate(Message message) {
+    if(message == null) {
+      return 0;
+    }
+    String format = message.getFormat();
+    long bytes = chars(format == null ? message.getFormattedMessage() : format);
+    Object[] parameters = message.getParameters();
+    if(parameters != null) {
+      for(Object parameter : parameters) {
+        bytes += PARAMETER_BYTES;
+        if(parameter instanceof CharSequence) {
+          bytes += chars((CharSequence) parameter);
+        }
+      }
+    }
+    return bytes;
+  }
+
+  private static long chars(CharSequence chars) {
+    return chars == null ? 0 : 2L * chars.length();
+  }
+
+}
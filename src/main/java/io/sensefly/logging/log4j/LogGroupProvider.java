@@ -5,20 +5,33 @@ import com.amazonaws.services.logs.model.CreateLogGroupRequest;
 import com.amazonaws.services.logs.model.DescribeLogGroupsRequest;
 import com.amazonaws.services.logs.model.DescribeLogGroupsResult;
 import com.amazonaws.services.logs.model.LogGroup;
+import com.amazonaws.services.logs.model.ResourceAlreadyExistsException;
 
 import java.util.Optional;
 
 import static io.sensefly.logging.log4j.CloudWatchDebugger.debug;
 
+/**
+ * Creates the log groups which do not exist. The groups found or created are cached, up to {@link #CACHE_SIZE}
+ * of them, so routing to many groups does not describe them on every batch. Shared by the sender threads.
+ */
 class LogGroupProvider {
 
+  static final int CACHE_SIZE = 1024;
+
   private final AWSLogs awsLogs;
+  private final LruCache<String, Boolean> ensured = new LruCache<>(CACHE_SIZE);
 
   LogGroupProvider(AWSLogs awsLogs) {
     this.awsLogs = awsLogs;
   }
 
   void ensureExists(String name) {
+    synchronized(ensured) {
+      if(ensured.get(name) != null) {
+        return;
+      }
+    }
     DescribeLogGroupsRequest request = new DescribeLogGroupsRequest().withLogGroupNamePrefix(name);
 
     DescribeLogGroupsResult groupsResult = awsLogs.describeLogGroups(request);
@@ -29,8 +42,16 @@ class LogGroupProvider {
 
       if(!existing.isPresent()) {
         debug("Creates LogGroup: " + name);
-        awsLogs.createLogGroup(new CreateLogGroupRequest().withLogGroupName(name));
+        try {
+          awsLogs.createLogGroup(new CreateLogGroupRequest().withLogGroupName(name));
+        } catch(ResourceAlreadyExistsException e) {
+          // created by another host in the meantime
+          debug("LogGroup already exists: " + name);
+        }
       }
     }
+    synchronized(ensured) {
+      ensured.put(name, Boolean.TRUE);
+    }
   }
 }
@@ -2,63 +2,131 @@ package io.sensefly.logging.log4j;
 
 import com.amazonaws.services.logs.AWSLogs;
 import com.amazonaws.services.logs.model.CreateLogStreamRequest;
-import com.amazonaws.services.logs.model.DescribeLogStreamsRequest;
-import com.amazonaws.services.logs.model.DescribeLogStreamsResult;
-import com.amazonaws.services.logs.model.LogStream;
+import com.amazonaws.services.logs.model.ResourceAlreadyExistsException;
 
 import java.time.Clock;
-import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
-import java.util.Objects;
-import java.util.Optional;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.concurrent.TimeUnit;
 
 import static io.sensefly.logging.log4j.CloudWatchDebugger.debug;
 
+/**
+ * Resolves the name of the current log stream. The name and the instant of the next rollover are computed once per
+ * stream period, so between two rollovers {@link #getName()} only reads the clock. The next stream is created ahead of
+ * the rollover, and creating a stream which already exists is not an error, so no Describe call is ever made.
+ */
 class LogStreamProvider {
 
-  private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy/MM");
+  /**
+   * How long before the rollover the next stream is created
+   */
+  static final long PRE_CREATE_MILLIS = TimeUnit.MINUTES.toMillis(1);
 
   private final AWSLogs awsLogs;
   private final Clock clock;
-  private String lastName;
+  private final String logGroupName;
+  private final String prefix;
+  private final String suffix;
+  private final LogStreamRollover rollover;
+  private final boolean assumeExists;
 
-  LogStreamProvider(AWSLogs awsLogs, Clock clock) {
+  private volatile Stream current = new Stream(null, Long.MIN_VALUE);
+  private boolean nextCreateAttempted;
+  private String createdNextName;
+
+  LogStreamProvider(AWSLogs awsLogs, Clock clock, String logGroupName, String prefix) {
+    this(awsLogs, clock, logGroupName, prefix, null, LogStreamRollover.MONTH, false);
+  }
+
+  /**
+   * @param assumeExists true to never create the streams, which are created beforehand
+   */
+  LogStreamProvider(AWSLogs awsLogs, Clock clock, String logGroupName, String prefix, String suffix,
+      LogStreamRollover rollover, boolean assumeExists) {
     this.awsLogs = awsLogs;
     this.clock = clock;
+    this.logGroupName = logGroupName;
+    this.prefix = prefix;
+    this.suffix = suffix;
+    this.rollover = rollover;
+    this.assumeExists = assumeExists;
   }
 
-  String getName(String prefix, String logGroupName) {
-    String name = buildLogStreamName(prefix);
-    if(!Objects.equals(lastName, name)) {
-      ensureExists(logGroupName, name);
+  /**
+   * @return the name of the stream of the current period, created if needed
+   */
+  String getName() {
+    long now = clock.instant().toEpochMilli();
+    Stream stream = current;
+    if(now >= stream.rolloverMillis) {
+      stream = roll(now);
+    } else if(!nextCreateAttempted && now >= stream.rolloverMillis - PRE_CREATE_MILLIS) {
+      createNext(stream);
     }
-    return name;
+    return stream.name;
   }
 
-  private void ensureExists(String logGroupName, String name) {
-    DescribeLogStreamsRequest request = new DescribeLogStreamsRequest()
-        .withLogGroupName(logGroupName)
-        .withLogStreamNamePrefix(name);
-
-    DescribeLogStreamsResult streamsResult = awsLogs.describeLogStreams(request);
-    if(streamsResult != null) {
-      Optional<LogStream> existing = streamsResult.getLogStreams().stream()
-          .filter(logStream -> logStream.getLogStreamName().equalsIgnoreCase(name))
-          .findFirst();
-
-      if(!existing.isPresent()) {
-        debug("Creates LogStream: " + name + " in LogGroup: " + logGroupName);
-        awsLogs.createLogStream(new CreateLogStreamRequest().withLogGroupName(logGroupName)
-            .withLogStreamName(name));
-      }
+  private Stream roll(long now) {
+    ZonedDateTime start = rollover.start(Instant.ofEpochMilli(now).atZone(clock.getZone()));
+    String name = buildLogStreamName(start);
+    if(!name.equals(createdNextName)) {
+      create(name);
     }
-    lastName = name;
+    Stream stream = new Stream(name, rollover.next(start).toInstant().toEpochMilli());
+    current = stream;
+    nextCreateAttempted = false;
+    createdNextName = null;
+    return stream;
   }
 
-  private String buildLogStreamName(String prefix) {
-    String date = FORMATTER.format(LocalDate.now(clock));
-    return prefix == null || prefix.trim().isEmpty()
+  /**
+   * Creates the stream of the next period once, a failure being retried at the rollover.
+   */
+  private void createNext(Stream stream) {
+    nextCreateAttempted = true;
+    String name = buildLogStreamName(Instant.ofEpochMilli(stream.rolloverMillis).atZone(clock.getZone()));
+    try {
+      create(name);
+      createdNextName = name;
+    } catch(RuntimeException e) {
+      debug("Cannot create next LogStream: " + name, e);
+    }
+  }
+
+  private void create(String name) {
+    if(assumeExists) {
+      return;
+    }
+    try {
+      debug("Creates LogStream: " + name + " in LogGroup: " + logGroupName);
+      awsLogs.createLogStream(new CreateLogStreamRequest().withLogGroupName(logGroupName).withLogStreamName(name));
+    } catch(ResourceAlreadyExistsException e) {
+      debug("LogStream already exists: " + name);
+    }
+  }
+
+  private String buildLogStreamName(ZonedDateTime start) {
+    String date = rollover.format(start);
+    String name = prefix == null || prefix.trim().isEmpty()
         ? date
         : prefix + "/" + date;
+    return suffix == null ? name : name + "/" + suffix;
+  }
+
+  /**
+   * A stream name and the instant it rolls over
+   */
+  private static final class Stream {
+
+    private final String name;
+    private final long rolloverMillis;
+
+    private Stream(String name, long rolloverMillis) {
+      this.name = name;
+      this.rolloverMillis = rolloverMillis;
+    }
+
   }
+
 }
@@ -0,0 +1,56 @@
+package io.sensefly.logging.log4j;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * How often a new log stream is started, the date of its start being appended to the stream name.
+ */
+public enum LogStreamRollover {
+
+  /**
+   * Streams named {@code <prefix>/yyyy/MM/dd/HH}
+   */
+  HOUR("yyyy/MM/dd/HH", ChronoUnit.HOURS),
+
+  /**
+   * Streams named {@code <prefix>/yyyy/MM/dd}
+   */
+  DAY("yyyy/MM/dd", ChronoUnit.DAYS),
+
+  /**
+   * Streams named {@code <prefix>/yyyy/MM}
+   */
+  MONTH("yyyy/MM", ChronoUnit.MONTHS);
+
+  private final DateTimeFormatter formatter;
+  private final ChronoUnit unit;
+
+  LogStreamRollover(String pattern, ChronoUnit unit) {
+    this.formatter = DateTimeFormatter.ofPattern(pattern);
+    this.unit = unit;
+  }
+
+  /**
+   * @return the start of the stream period holding the given time
+   */
+  ZonedDateTime start(ZonedDateTime time) {
+    if(unit == ChronoUnit.MONTHS) {
+      return time.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1);
+    }
+    return time.truncatedTo(unit);
+  }
+
+  /**
+   * @return the start of the stream period following the one starting at {@code start}
+   */
+  ZonedDateTime next(ZonedDateTime start) {
+    return start.plus(1, unit);
+  }
+
+  String format(ZonedDateTime start) {
+    return formatter.format(start);
+  }
+
+}
@@ -0,0 +1,233 @@
+package io.sensefly.logging.log4j;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.SimpleMessage;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Suppresses log storms before the events are buffered and encoded. Within {@code dedupWindowMs}, only the first
+ * event of a logger, level and message template is kept and its repeats are counted. Beyond
+ * {@code rateLimitPerSecond} events of a logger and level, with a burst of one second, the events are counted and
+ * dropped. The counts are written as summary events by {@link #flush(long)}.
+ * Counting is lock-free; a repeat racing with the end of its window may be left out of the summaries.
+ */
+class LogSuppressor {
+
+  /**
+   * Beyond this number of keys, new keys are not tracked until {@link #flush(long)} removes the idle ones
+   */
+  static final int MAX_KEYS = 4096;
+
+  private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+  private static final long NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final long dedupWindowMs;
+  private final int rateLimitPerSecond;
+  private final long intervalNanos;
+  private final long burstNanos;
+  private final Consumer<LogEvent> summarySink;
+  private final ConcurrentMap<Key, Window> windows = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Key, Bucket> buckets = new ConcurrentHashMap<>();
+
+  /**
+   * @param dedupWindowMs zero or less to keep the repeated events
+   * @param rateLimitPerSecond zero or less to not limit the events per logger
+   * @param summarySink buffers the summary events
+   */
+  LogSuppressor(long dedupWindowMs, int rateLimitPerSecond, Consumer<LogEvent> summarySink) {
+    this.dedupWindowMs = dedupWindowMs;
+    this.rateLimitPerSecond = rateLimitPerSecond;
+    this.intervalNanos = rateLimitPerSecond > 0 ? NANOS_PER_SECOND / rateLimitPerSecond : 0;
+    this.burstNanos = NANOS_PER_SECOND;
+    this.summarySink = summarySink;
+  }
+
+  boolean isEnabled() {
+    return dedupWindowMs > 0 || rateLimitPerSecond > 0;
+  }
+
+  /**
+   * @return false if the event is suppressed
+   */
+  boolean accept(LogEvent event) {
+    return (dedupWindowMs <= 0 || acceptRepeat(event)) && (rateLimitPerSecond <= 0 || acquire(event));
+  }
+
+  private boolean acceptRepeat(LogEvent event) {
+    long now = event.getTimeMillis();
+    Key key = new Key(event.getLoggerName(), event.getLevel(), template(event.getMessage()));
+    Window window = windows.get(key);
+    while(true) {
+      if(window == null) {
+        if(windows.size() >= MAX_KEYS) {
+          return true;
+        }
+        window = windows.putIfAbsent(key, new Window(now + dedupWindowMs));
+        if(window == null) {
+          return true;
+        }
+      }
+      if(now < window.end) {
+        window.repeats.increment();
+        return false;
+      }
+      // the first event of a new window is kept, after the summary of the previous one
+      if(windows.replace(key, window, new Window(now + dedupWindowMs))) {
+        summarizeRepeats(key, window, now);
+        return true;
+      }
+      window = windows.get(key);
+    }
+  }
+
+  /**
+   * Generic cell rate algorithm: the bucket keeps the time at which it is empty again
+   */
+  private boolean acquire(LogEvent event) {
+    long now = event.getTimeMillis() * NANOS_PER_MILLI;
+    Key key = new Key(event.getLoggerName(), event.getLevel(), null);
+    Bucket bucket = buckets.get(key);
+    if(bucket == null) {
+      if(buckets.size() >= MAX_KEYS) {
+        return true;
+      }
+      Bucket created = new Bucket(now);
+      bucket = buckets.putIfAbsent(key, created);
+      if(bucket == null) {
+        bucket = created;
+      }
+    }
+    while(true) {
+      long emptyAt = bucket.emptyAt.get();
+      long next = Math.max(emptyAt, now) + intervalNanos;
+      if(next - now > burstNanos) {
+        bucket.suppressed.increment();
+        return false;
+      }
+      if(bucket.emptyAt.compareAndSet(emptyAt, next)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Writes the summaries of the windows ended at the given time and of the rate limited events, and forgets the
+   * idle keys.
+   */
+  void flush(long nowMillis) {
+    for(Map.Entry<Key, Window> entry : windows.entrySet()) {
+      if(nowMillis >= entry.getValue().end && windows.remove(entry.getKey(), entry.getValue())) {
+        summarizeRepeats(entry.getKey(), entry.getValue(), nowMillis);
+      }
+    }
+    long now = nowMillis == Long.MAX_VALUE ? Long.MAX_VALUE : nowMillis * NANOS_PER_MILLI;
+    for(Iterator<Map.Entry<Key, Bucket>> it = buckets.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<Key, Bucket> entry = it.next();
+      Key key = entry.getKey();
+      Bucket bucket = entry.getValue();
+      long suppressed = bucket.suppressed.sumThenReset();
+      if(suppressed > 0) {
+        summarize(key, nowMillis, "Suppressed " + suppressed + " events of " + key.loggerName + " over "
+            + rateLimitPerSecond + " events per second");
+      } else if(bucket.emptyAt.get() < now) {
+        it.remove();
+      }
+    }
+  }
+
+  private void summarizeRepeats(Key key, Window window, long nowMillis) {
+    long repeats = window.repeats.sum();
+    if(repeats > 0) {
+      summarize(key, Math.min(nowMillis, window.end), "Suppressed " + repeats + " repeats within " + dedupWindowMs
+          + " ms of: " + key.template);
+    }
+  }
+
+  private void summarize(Key key, long timeMillis, String message) {
+    summarySink.accept(Log4jLogEvent.newBuilder()
+        .setLoggerName(key.loggerName)
+        .setLevel(key.level)
+        .setMessage(new SimpleMessage(message))
+        .setTimeMillis(timeMillis == Long.MAX_VALUE ? System.currentTimeMillis() : timeMillis)
+        .build());
+  }
+
+  private static String template(Message message) {
+    String format = message.getFormat();
+    return format == null ? message.getFormattedMessage() : format;
+  }
+
+  private static final class Window {
+
+    final long end;
+    final LongAdder repeats = new LongAdder();
+
+    Window(long end) {
+      this.end = end;
+    }
+
+  }
+
+  private static final class Bucket {
+
+    final AtomicLong emptyAt;
+    final LongAdder suppressed = new LongAdder();
+
+    Bucket(long now) {
+      this.emptyAt = new AtomicLong(now);
+    }
+
+  }
+
+  private static final class Key {
+
+    final String loggerName;
+    final Level level;
+    final String template;
+    private final int hash;
+
+    Key(String loggerName, Level level, String template) {
+      this.loggerName = loggerName;
+      this.level = level;
+      this.template = template;
+      int h = loggerName == null ? 0 : loggerName.hashCode();
+      h = 31 * h + level.hashCode();
+      this.hash = 31 * h + (template == null ? 0 : template.hashCode());
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if(this == o) {
+        return true;
+      }
+      if(!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return hash == other.hash && level == other.level && equals(loggerName, other.loggerName)
+          && equals(template, other.template);
+    }
+
+    private static boolean equals(String a, String b) {
+      return a == null ? b == null : a.equals(b);
+    }
+
+  }
+
+}
@@ -0,0 +1,22 @@
+package io.sensefly.logging.log4j;
+
+import com.amazonaws.services.logs.model.PutLogEventsRequest;
+import com.amazonaws.services.logs.model.PutLogEventsResult;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends {@code PutLogEvents} requests. Implementations may complete the returned future on another thread.
+ */
+interface LogTransport {
+
+  CompletableFuture<PutLogEventsResult> putLogEvents(PutLogEventsRequest request);
+
+  /**
+   * @return true if the returned futures are already completed, on the calling thread
+   */
+  default boolean isSynchronous() {
+    return false;
+  }
+
+}
@@ -0,0 +1,40 @@
+package io.sensefly.logging.log4j;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Map evicting its least recently accessed entries beyond a capacity. Entries whose value is not evictable are
+ * skipped, and kept over the capacity until evictable. Not thread-safe.
+ */
+class LruCache<K, V> extends LinkedHashMap<K, V> {
+
+  private static final long serialVersionUID = 1L;
+
+  private final int capacity;
+  private final transient Predicate<? super V> evictable;
+
+  LruCache(int capacity) {
+    this(capacity, value -> true);
+  }
+
+  LruCache(int capacity, Predicate<? super V> evictable) {
+    super(16, 0.75f, true);
+    this.capacity = Math.max(1, capacity);
+    this.evictable = evictable;
+  }
+
+  @Override
+  protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+    Iterator<V> values = values().iterator();
+    while(size() > capacity && values.hasNext()) {
+      if(evictable.test(values.next())) {
+        values.remove();
+      }
+    }
+    return false;
+  }
+
+}
@@ -0,0 +1,426 @@
+package io.sensefly.logging.log4j;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.MapMessage;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.IndexedReadOnlyStringMap;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+/**
+ * Aggregates the metric events, marked with {@code metricMarker} and carrying a {@link MapMessage}, instead of
+ * buffering them: {@link #flush(long)} writes one CloudWatch Embedded Metric Format document per set of dimensions.
+ * Numeric values are metrics and the others dimensions, unless {@code metricDimensions} lists the dimensions.
+ * Every metric is written as a histogram of at most {@value #MAX_VALUES} values, with its minimum, maximum, sum and
+ * count. Each set of dimensions has its own lock, so only the events of the same dimensions contend.
+ */
+class MetricAggregator {
+
+  /**
+   * Marks the documents, written as they are instead of through the layout
+   */
+  static final Marker DOCUMENT_MARKER = MarkerManager.getMarker("CloudWatchEmbeddedMetricDocument");
+
+  static final String DOCUMENT_LOGGER_NAME = "CloudWatchEmbeddedMetrics";
+
+  /**
+   * Limits of the Embedded Metric Format: the events beyond are logged as they are
+   */
+  static final int MAX_DIMENSIONS = 30;
+  static final int MAX_METRICS = 100;
+  static final int MAX_VALUES = 100;
+
+  /**
+   * Beyond this number of dimension sets within an interval, the metric events are logged as they are
+   */
+  static final int MAX_KEYS = 4096;
+
+  /**
+   * Values within 10% of each other share a histogram bucket
+   */
+  private static final double LOG_BUCKET_RATIO = Math.log(1.1);
+
+  /**
+   * Shifts the bucket indexes of the positive doubles over zero
+   */
+  private static final long BUCKET_OFFSET = 8192;
+
+  private final String metricMarker;
+  private final String namespace;
+  private final Set<String> dimensionNames;
+  private final Consumer<LogEvent> documentSink;
+  private final ConcurrentMap<Key, Aggregate> aggregates = new ConcurrentHashMap<>();
+
+  /**
+   * @param metricMarker null to log the metric events as they are
+   * @param dimensionNames comma separated, null to use the non-numeric values as dimensions
+   * @param documentSink buffers the documents
+   */
+  MetricAggregator(String metricMarker, String namespace, String dimensionNames, Consumer<LogEvent> documentSink) {
+    this.metricMarker = metricMarker;
+    this.namespace = namespace;
+    this.dimensionNames = dimensionNames == null ? null : split(dimensionNames);
+    this.documentSink = documentSink;
+  }
+
+  boolean isEnabled() {
+    return metricMarker != null;
+  }
+
+  static boolean isDocument(LogEvent event) {
+    return event.getMarker() == DOCUMENT_MARKER;
+  }
+
+  /**
+   * @return true if the event is aggregated, false to log it
+   */
+  boolean accept(LogEvent event) {
+    if(metricMarker == null || event.getMarker() == null || !event.getMarker().isInstanceOf(metricMarker)
+        || !(event.getMessage() instanceof MapMessage)) {
+      return false;
+    }
+    Sample sample = sample(((MapMessage<?, ?>) event.getMessage()).getIndexedReadOnlyStringMap());
+    if(sample == null) {
+      return false;
+    }
+    while(true) {
+      Aggregate aggregate = aggregates.get(sample.key);
+      if(aggregate == null) {
+        if(aggregates.size() >= MAX_KEYS) {
+          return false;
+        }
+        Aggregate created = new Aggregate();
+        aggregate = aggregates.putIfAbsent(sample.key, created);
+        if(aggregate == null) {
+          aggregate = created;
+        }
+      }
+      synchronized(aggregate) {
+        // a flushed aggregate was removed, the next one is looked up again
+        if(!aggregate.flushed) {
+          return aggregate.add(sample);
+        }
+      }
+    }
+  }
+
+  /**
+   * Splits the values of the message into dimensions and metrics
+   *
+   * @return null if the message has no metric or too many dimensions
+   */
+  private Sample sample(IndexedReadOnlyStringMap data) {
+    int size = data.size();
+    String[] dimensions = new String[2 * size];
+    String[] metricNames = new String[size];
+    double[] metricValues = new double[size];
+    int dimensionCount = 0;
+    int metricCount = 0;
+    for(int i = 0; i < size; i++) {
+      String name = data.getKeyAt(i);
+      Object value = data.getValueAt(i);
+      if(dimensionNames != null && dimensionNames.contains(name) || dimensionNames == null && !isNumber(value)) {
+        dimensions[2 * dimensionCount] = name;
+        dimensions[2 * dimensionCount + 1] = String.valueOf(value);
+        dimensionCount++;
+      } else if(isNumber(value)) {
+        metricNames[metricCount] = name;
+        metricValues[metricCount] = toDouble(value);
+        metricCount++;
+      }
+    }
+    if(metricCount == 0 || dimensionCount > MAX_DIMENSIONS) {
+      return null;
+    }
+    return new Sample(new Key(Arrays.copyOf(dimensions, 2 * dimensionCount)), metricNames, metricValues, metricCount);
+  }
+
+  /**
+   * Writes the documents of the metrics aggregated so far, timestamped with the given time
+   */
+  void flush(long timeMillis) {
+    for(Map.Entry<Key, Aggregate> entry : aggregates.entrySet()) {
+      Aggregate aggregate = entry.getValue();
+      if(aggregates.remove(entry.getKey(), aggregate)) {
+        synchronized(aggregate) {
+          aggregate.flushed = true;
+        }
+        write(entry.getKey(), aggregate, timeMillis);
+      }
+    }
+  }
+
+  private void write(Key key, Aggregate aggregate, long timeMillis) {
+    Map.Entry<?, ?>[] metrics = aggregate.distributions.entrySet().toArray(new Map.Entry<?, ?>[0]);
+    for(int from = 0; from < metrics.length; from += MAX_METRICS) {
+      int to = Math.min(metrics.length, from + MAX_METRICS);
+      StringBuilder document = new StringBuilder(256 + 128 * (to - from));
+      document.append("{\"_aws\":{\"Timestamp\":").append(timeMillis)
+          .append(",\"CloudWatchMetrics\":[{\"Namespace\":\"");
+      CloudWatchJsonLayout.escape(namespace, document);
+      document.append("\",\"Dimensions\":[[");
+      for(int i = 0; i < key.dimensions.length; i += 2) {
+        appendString(i > 0 ? "," : "", key.dimensions[i], document);
+      }
+      document.append("]],\"Metrics\":[");
+      for(int i = from; i < to; i++) {
+        document.append(i > from ? ",{\"Name\":\"" : "{\"Name\":\"");
+        CloudWatchJsonLayout.escape((String) metrics[i].getKey(), document);
+        document.append("\"}");
+      }
+      document.append("]}]}");
+      for(int i = 0; i < key.dimensions.length; i += 2) {
+        appendString(",", key.dimensions[i], document);
+        appendString(":", key.dimensions[i + 1], document);
+      }
+      for(int i = from; i < to; i++) {
+        appendString(",", (String) metrics[i].getKey(), document);
+        document.append(':');
+        ((DistributionValues) metrics[i].getValue()).write(document);
+      }
+      document.append('}');
+      documentSink.accept(Log4jLogEvent.newBuilder()
+          .setLoggerName(DOCUMENT_LOGGER_NAME)
+          .setLevel(Level.INFO)
+          .setMarker(DOCUMENT_MARKER)
+          .setMessage(new SimpleMessage(document.toString()))
+          .setTimeMillis(timeMillis)
+          .build());
+    }
+  }
+
+  private static void appendString(String separator, String value, StringBuilder document) {
+    document.append(separator).append('"');
+    CloudWatchJsonLayout.escape(value, document);
+    document.append('"');
+  }
+
+  private static Set<String> split(String names) {
+    Set<String> split = new HashSet<>();
+    for(String name : names.split(",")) {
+      if(!name.trim().isEmpty()) {
+        split.add(name.trim());
+      }
+    }
+    return Collections.unmodifiableSet(split);
+  }
+
+  private static boolean isNumber(Object value) {
+    if(value instanceof Number) {
+      return !Double.isNaN(toDouble(value)) && !Double.isInfinite(toDouble(value));
+    }
+    if(!(value instanceof CharSequence) || !looksNumeric((CharSequence) value)) {
+      return false;
+    }
+    try {
+      double parsed = Double.parseDouble(value.toString());
+      return !Double.isNaN(parsed) && !Double.isInfinite(parsed);
+    } catch(NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Avoids the exception of parsing the dimension values
+   */
+  private static boolean looksNumeric(CharSequence value) {
+    if(value.length() == 0) {
+      return false;
+    }
+    for(int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if((c < '0' || c > '9') && c != '-' && c != '+' && c != '.' && c != 'e' && c != 'E') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static double toDouble(Object value) {
+    return value instanceof Number ? ((Number) value).doubleValue() : Double.parseDouble(value.toString());
+  }
+
+  /**
+   * Writes integral values without fraction, CloudWatch parses both
+   */
+  private static void appendNumber(double value, StringBuilder document) {
+    if(value == Math.rint(value) && Math.abs(value) < 1e15) {
+      document.append((long) value);
+    } else {
+      document.append(value);
+    }
+  }
+
+  /**
+   * Orders the buckets like their values
+   */
+  private static long bucket(double value) {
+    if(value == 0) {
+      return 0;
+    }
+    long index = (long) Math.floor(Math.log(Math.abs(value)) / LOG_BUCKET_RATIO) + BUCKET_OFFSET + 1;
+    return value > 0 ? index : -index;
+  }
+
+  private static final class Sample {
+
+    final Key key;
+    final String[] metricNames;
+    final double[] metricValues;
+    final int metricCount;
+
+    Sample(Key key, String[] metricNames, double[] metricValues, int metricCount) {
+      this.key = key;
+      this.metricNames = metricNames;
+      this.metricValues = metricValues;
+      this.metricCount = metricCount;
+    }
+
+  }
+
+  /**
+   * The metrics of a set of dimensions, guarded by its own monitor
+   */
+  private static final class Aggregate {
+
+    final Map<String, DistributionValues> distributions = new LinkedHashMap<>();
+    boolean flushed;
+
+    /**
+     * @return false if a new metric would exceed the metrics of a document
+     */
+    boolean add(Sample sample) {
+      for(int i = 0; i < sample.metricCount; i++) {
+        if(!distributions.containsKey(sample.metricNames[i]) && distributions.size() >= MAX_METRICS) {
+          return false;
+        }
+      }
+      for(int i = 0; i < sample.metricCount; i++) {
+        distributions.computeIfAbsent(sample.metricNames[i], name -> new DistributionValues())
+            .add(sample.metricValues[i]);
+      }
+      return true;
+    }
+
+  }
+
+  /**
+   * The {@code Values} and {@code Counts} of a metric, unlike the lock-free {@link Histogram} of the appender metrics.
+   * Counts the values per bucket, sorted by bucket. Each bucket keeps the first value seen, exact for the repeated
+   * values. Past {@value #MAX_VALUES} buckets, the values are counted in the nearest bucket.
+   */
+  private static final class DistributionValues {
+
+    private long[] buckets = new long[8];
+    private double[] values = new double[8];
+    private long[] counts = new long[8];
+    private int size;
+    private long count;
+    private double sum;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    void add(double value) {
+      count++;
+      sum += value;
+      min = Math.min(min, value);
+      max = Math.max(max, value);
+      long bucket = bucket(value);
+      int index = Arrays.binarySearch(buckets, 0, size, bucket);
+      if(index < 0) {
+        index = size < MAX_VALUES ? insert(-index - 1, bucket, value) : nearest(-index - 1, bucket);
+      }
+      counts[index]++;
+    }
+
+    private int insert(int index, long bucket, double value) {
+      if(size == buckets.length) {
+        int capacity = Math.min(MAX_VALUES, 2 * size);
+        buckets = Arrays.copyOf(buckets, capacity);
+        values = Arrays.copyOf(values, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+      }
+      System.arraycopy(buckets, index, buckets, index + 1, size - index);
+      System.arraycopy(values, index, values, index + 1, size - index);
+      System.arraycopy(counts, index, counts, index + 1, size - index);
+      buckets[index] = bucket;
+      values[index] = value;
+      counts[index] = 0;
+      size++;
+      return index;
+    }
+
+    private int nearest(int insertion, long bucket) {
+      if(insertion == 0) {
+        return 0;
+      }
+      if(insertion == size) {
+        return size - 1;
+      }
+      return bucket - buckets[insertion - 1] <= buckets[insertion] - bucket ? insertion - 1 : insertion;
+    }
+
+    void write(StringBuilder document) {
+      document.append("{\"Values\":[");
+      for(int i = 0; i < size; i++) {
+        if(i > 0) {
+          document.append(',');
+        }
+        appendNumber(values[i], document);
+      }
+      document.append("],\"Counts\":[");
+      for(int i = 0; i < size; i++) {
+        if(i > 0) {
+          document.append(',');
+        }
+        document.append(counts[i]);
+      }
+      document.append("],\"Max\":");
+      appendNumber(max, document);
+      document.append(",\"Min\":");
+      appendNumber(min, document);
+      document.append(",\"Count\":").append(count).append(",\"Sum\":");
+      appendNumber(sum, document);
+      document.append('}');
+    }
+
+  }
+
+  /**
+   * The dimension names and values, in the order of the message (sorted by name)
+   */
+  private static final class Key {
+
+    final String[] dimensions;
+    private final int hash;
+
+    Key(String[] dimensions) {
+      this.dimensions = dimensions;
+      this.hash = Arrays.hashCode(dimensions);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return this == o || o instanceof Key && hash == ((Key) o).hash && Arrays.equals(dimensions, ((Key) o).dimensions);
+    }
+
+  }
+
+}
@@ -0,0 +1,32 @@
+package io.sensefly.logging.log4j;
+
+/**
+ * Receives the measures of a {@link CloudWatchAppender}, to bridge them to a metrics library like Micrometer or
+ * Dropwizard Metrics. Called on the sender threads, implementations must be thread-safe and return quickly.
+ * Counters without a callback (queue depth, appended or dropped events) are read from {@link AppenderMetricsMXBean}.
+ */
+public interface MetricsListener {
+
+  /**
+   * A {@code PutLogEvents} request succeeded
+   *
+   * @param latencyNanos time from sending the request to receiving its response, retries included
+   */
+  default void onRequestSent(int events, long bytes, long latencyNanos) {
+  }
+
+  /**
+   * A {@code PutLogEvents} request failed and will not be retried
+   *
+   * @param errorClass {@code THROTTLING}, {@code SERVICE_UNAVAILABLE}, {@code SEQUENCE_TOKEN} or {@code PERMANENT}
+   */
+  default void onRequestFailed(int events, String errorClass) {
+  }
+
+  /**
+   * A failed request is resent
+   */
+  default void onRetry(String errorClass) {
+  }
+
+}
@@ -0,0 +1,29 @@
+package io.sensefly.logging.log4j;
+
+/**
+ * What to do with an event appended while the buffer is full.
+ */
+public enum OverflowPolicy {
+
+  /**
+   * Waits up to {@code overflowTimeoutMs} for free space then drops the event
+   */
+  BLOCK,
+
+  /**
+   * Drops the appended event
+   */
+  DROP_NEWEST,
+
+  /**
+   * Drops the oldest buffered events to make room for the appended event
+   */
+  DROP_OLDEST,
+
+  /**
+   * Drops the appended event if it is less specific than {@code overflowLevel}, otherwise drops the oldest buffered
+   * events less specific than {@code overflowLevel} to make room for it, or the appended event if there is none
+   */
+  DROP_BELOW_LEVEL
+
+}
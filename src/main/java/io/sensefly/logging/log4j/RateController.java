@@ -0,0 +1,74 @@
+package io.sensefly.logging.log4j;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces the requests with an additive-increase/multiplicative-decrease rate: throttling halves the rate, at most once
+ * per second as the requests in flight are throttled together, and successful requests raise it back by a tenth of
+ * the maximum each second. Shared by all the streams of the appenders of a {@link CloudWatchManager}, as CloudWatch
+ * throttles per account and region.
+ */
+class RateController {
+
+  static final double MIN_REQUESTS_PER_SECOND = 1;
+  private static final double DECREASE_FACTOR = 0.5;
+  private static final double INCREASE_FRACTION_PER_SECOND = 0.1;
+  private static final long DECREASE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private final double maxRequestsPerSecond;
+  private final long decreaseIntervalNanos;
+  private double requestsPerSecond;
+  private long nextPermitNanos = System.nanoTime();
+  private long lastDecreaseNanos = System.nanoTime() - DECREASE_INTERVAL_NANOS;
+
+  /**
+   * @param maxRequestsPerSecond zero or less to never pace requests
+   */
+  RateController(double maxRequestsPerSecond) {
+    this(maxRequestsPerSecond, DECREASE_INTERVAL_NANOS);
+  }
+
+  // visible for testing
+  RateController(double maxRequestsPerSecond, long decreaseIntervalNanos) {
+    this.maxRequestsPerSecond = maxRequestsPerSecond;
+    this.decreaseIntervalNanos = decreaseIntervalNanos;
+    this.requestsPerSecond = maxRequestsPerSecond;
+  }
+
+  /**
+   * Reserves the next request at the current rate, without waiting for it.
+   *
+   * @return the nanoseconds to wait before sending the request
+   */
+  long reserve() {
+    if(maxRequestsPerSecond <= 0) {
+      return 0;
+    }
+    synchronized(this) {
+      long now = System.nanoTime();
+      long permit = Math.max(now, nextPermitNanos);
+      nextPermitNanos = permit + (long) (NANOS_PER_SECOND / requestsPerSecond);
+      return permit - now;
+    }
+  }
+
+  synchronized void onSuccess() {
+    double increase = maxRequestsPerSecond * INCREASE_FRACTION_PER_SECOND / requestsPerSecond;
+    requestsPerSecond = Math.min(maxRequestsPerSecond, requestsPerSecond + increase);
+  }
+
+  synchronized void onThrottled() {
+    long now = System.nanoTime();
+    if(now - lastDecreaseNanos < decreaseIntervalNanos) {
+      return;
+    }
+    lastDecreaseNanos = now;
+    requestsPerSecond = Math.max(MIN_REQUESTS_PER_SECOND, requestsPerSecond * DECREASE_FACTOR);
+  }
+
+  synchronized double getRequestsPerSecond() {
+    return requestsPerSecond;
+  }
+
+}
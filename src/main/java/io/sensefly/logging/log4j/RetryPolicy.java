@@ -0,0 +1,136 @@
+package io.sensefly.logging.log4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides whether and when a failed request is resent.
+ * Delays grow exponentially with the attempt, with jitter so the hosts of a fleet throttled together do not retry
+ * together. Retries are taken from a budget refilled by successful requests, so a long outage does not turn every
+ * request into {@code maxRetries + 1} requests.
+ * Shared by the shards of an appender, which cancel their own retries when closed. The retries are timed by the sender
+ * pool, so the appenders sharing it do not start a thread each.
+ */
+class RetryPolicy {
+
+  static final int BUDGET_CAPACITY = 100;
+  static final int RETRY_COST = 5;
+
+  private final int maxRetries;
+  private final long baseDelayMs;
+  private final long maxDelayMs;
+  private final AtomicInteger budget = new AtomicInteger(BUDGET_CAPACITY);
+
+  private final Set<Retry> pending = ConcurrentHashMap.newKeySet();
+
+  RetryPolicy(int maxRetries, long baseDelayMs, long maxDelayMs) {
+    this.maxRetries = maxRetries;
+    this.baseDelayMs = Math.max(1, baseDelayMs);
+    this.maxDelayMs = Math.max(this.baseDelayMs, maxDelayMs);
+  }
+
+  /**
+   * Takes a retry from the budget.
+   *
+   * @param attempt the number of times the request was already resent
+   * @return false if the error is not retryable, the request was resent too many times or the budget is exhausted
+   */
+  boolean tryRetry(ErrorClass errorClass, int attempt) {
+    if(!errorClass.isRetryable() || attempt >= maxRetries) {
+      return false;
+    }
+    int tokens = budget.get();
+    while(tokens >= RETRY_COST) {
+      if(budget.compareAndSet(tokens, tokens - RETRY_COST)) {
+        return true;
+      }
+      tokens = budget.get();
+    }
+    return false;
+  }
+
+  /**
+   * Gives back part of the budget
+   */
+  void onSuccess() {
+    int tokens = budget.get();
+    while(tokens < BUDGET_CAPACITY && !budget.compareAndSet(tokens, tokens + 1)) {
+      tokens = budget.get();
+    }
+  }
+
+  /**
+   * Equal jitter: half of the exponential delay plus a random part of the other half.
+   *
+   * @param attempt the number of times the request was already resent
+   */
+  long backoffMillis(int attempt) {
+    long delay = attempt >= 62 ? maxDelayMs : Math.min(maxDelayMs, baseDelayMs << Math.min(attempt, 30));
+    long half = delay / 2;
+    return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+  }
+
+  /**
+   * Runs the retry on the sender pool after the delay, unless cancelled with the retries of its owner
+   *
+   * @param owner the caller scheduling the retry, see {@link #cancel(Object)}
+   */
+  void schedule(Object owner, Runnable retry, long delayNanos, SenderPool senderPool) {
+    Retry scheduled = new Retry(owner, retry);
+    pending.add(scheduled);
+    if(!senderPool.schedule(scheduled, delayNanos)) {
+      // shut down: runs now unless cancelled meanwhile
+      scheduled.run();
+    }
+  }
+
+  /**
+   * Takes the retries of the owner which did not run yet, leaving those of the other owners scheduled.
+   *
+   * @return the retries taken, for the owner to run
+   */
+  List<Runnable> cancel(Object owner) {
+    List<Runnable> retries = new ArrayList<>();
+    for(Retry retry : pending) {
+      if(retry.owner == owner && retry.take()) {
+        retries.add(retry.task);
+      }
+    }
+    return retries;
+  }
+
+  // visible for testing
+  int getBudget() {
+    return budget.get();
+  }
+
+  private final class Retry implements Runnable {
+
+    private final Object owner;
+    private final Runnable task;
+    private final AtomicBoolean taken = new AtomicBoolean();
+
+    private Retry(Object owner, Runnable task) {
+      this.owner = owner;
+      this.task = task;
+    }
+
+    private boolean take() {
+      pending.remove(this);
+      return taken.compareAndSet(false, true);
+    }
+
+    @Override
+    public void run() {
+      if(take()) {
+        task.run();
+      }
+    }
+  }
+
+}
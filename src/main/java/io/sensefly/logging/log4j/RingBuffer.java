@@ -0,0 +1,135 @@
+package io.sensefly.logging.log4j;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Preallocated lock-free bounded queue (Dmitry Vyukov's bounded MPMC queue).
+ * Each slot carries a sequence number telling producers and consumers whether it is free or filled for their lap,
+ * so producers only contend on one CAS and {@link #offer(Object)} never allocates.
+ * <p>
+ * The slots are rounded up to a power of two, but no more elements than the requested capacity are buffered.
+ * A weighted ring keeps a weight with each element in a parallel array, released when the element is polled.
+ */
+class RingBuffer<E> {
+
+  private final int capacity;
+  private final int mask;
+  private final AtomicReferenceArray<E> elements;
+  private final AtomicLongArray sequences;
+
+  /**
+   * Written before the sequence of their slot publishes the element, null unless weighted
+   */
+  private final long[] weights;
+  private final AtomicLong tail = new AtomicLong();
+  private final AtomicLong head = new AtomicLong();
+
+  RingBuffer(int capacity) {
+    this(capacity, false);
+  }
+
+  RingBuffer(int capacity, boolean weighted) {
+    this.capacity = Math.max(1, capacity);
+    int slots = slotsFor(this.capacity);
+    mask = slots - 1;
+    elements = new AtomicReferenceArray<>(slots);
+    sequences = new AtomicLongArray(slots);
+    weights = weighted ? new long[slots] : null;
+    for(int i = 0; i < slots; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  /**
+   * @return false if the buffer is full
+   */
+  boolean offer(E element) {
+    return offer(element, 0);
+  }
+
+  /**
+   * @param weight kept with the element if the ring is weighted
+   * @return false if the buffer is full
+   */
+  boolean offer(E element, long weight) {
+    while(true) {
+      long position = tail.get();
+      int index = (int) position & mask;
+      long difference = sequences.get(index) - position;
+      if(difference == 0) {
+        // the head is read after the tail, so a stale head only makes the buffer look fuller
+        if(position - head.get() >= capacity) {
+          return false;
+        }
+        if(tail.compareAndSet(position, position + 1)) {
+          elements.lazySet(index, element);
+          if(weights != null) {
+            weights[index] = weight;
+          }
+          sequences.set(index, position + 1);
+          return true;
+        }
+      } else if(difference < 0) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * @return null if the buffer is empty
+   */
+  E poll() {
+    return poll(null);
+  }
+
+  /**
+   * @param totalWeight null, or the total the weight of the polled element is subtracted from
+   * @return null if the buffer is empty
+   */
+  E poll(AtomicLong totalWeight) {
+    while(true) {
+      long position = head.get();
+      int index = (int) position & mask;
+      long difference = sequences.get(index) - (position + 1);
+      if(difference == 0) {
+        if(head.compareAndSet(position, position + 1)) {
+          E element = elements.get(index);
+          elements.lazySet(index, null);
+          if(weights != null && totalWeight != null) {
+            totalWeight.addAndGet(-weights[index]);
+          }
+          sequences.set(index, position + mask + 1);
+          return element;
+        }
+      } else if(difference < 0) {
+        return null;
+      }
+    }
+  }
+
+  boolean isEmpty() {
+    return size() == 0;
+  }
+
+  int size() {
+    long size = tail.get() - head.get();
+    return (int) Math.max(0, Math.min(size, capacity()));
+  }
+
+  int capacity() {
+    return capacity;
+  }
+
+  /**
+   * The slots are a power of two, and at least 2 as a single slot cannot tell a filled slot from a free one
+   */
+  private static int slotsFor(int capacity) {
+    if(capacity <= 2) {
+      return 2;
+    }
+    return Integer.highestOneBit(capacity - 1) << 1;
+  }
+
+}
@@ -0,0 +1,456 @@
+package io.sensefly.logging.log4j;
+
+import com.amazonaws.services.logs.model.InputLogEvent;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.layout.Encoder;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.sensefly.logging.log4j.CloudWatchDebugger.debug;
+
+/**
+ * Takes events from the shared buffer, batches them and sends them to the log stream of one
+ * {@link CloudWatchLogService}. Lanes run on a {@link SenderPool}, one step at a time, each one keeping the order of
+ * its own stream. A step encodes the buffered events into the batch and sends it when it is full (by count or by
+ * bytes), keeping the events left over for the next batch, or sends all the pending events when {@code lingerNanos}
+ * elapsed since the first one or when the buffer is closed; otherwise the lane
+ * lingers, and is woken up early when enough events are buffered for a batch. With {@code explicitFlush}, the lane
+ * lingers without timer until the batch fills up or the lane is flushed.
+ * A lane asked to {@link #flush()} sends the events buffered before, without lingering.
+ * A lane waits while its service is busy, until the service has room for a request again.
+ * A lane given a {@link SpillStore} replays it when no event is buffered, one batch at a time, committed once sent.
+ * With a dynamic {@link LogDestinationRouter}, events are batched per destination, and spilled events are replayed to
+ * the destination they were routed to.
+ */
+class SenderLane {
+
+  /**
+   * Minimum time between two replays of the spill store while the service is unavailable
+   */
+  private static final long REPLAY_RETRY_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+  private static final int IDLE = 0;
+  private static final int SCHEDULED = 1;
+  private static final int LINGERING = 2;
+  private static final int DONE = 3;
+  private static final int WAITING = 4;
+
+  private final LogEventBuffer buffer;
+  private final CloudWatchLogService cloudWatchLogService;
+  private final AppenderSettings settings;
+  private final SenderPool senderPool;
+
+  /**
+   * The maximum time the first event of a batch waits for the batch to fill up
+   */
+  private final long lingerNanos;
+
+  private final BatchBuilder batchBuilder;
+  private final LogDestinationRouter router;
+
+  /**
+   * The batches of the destinations seen since the last send, when routing
+   */
+  private final Map<LogDestination, BatchBuilder> routedBatchBuilders = new LinkedHashMap<>();
+  private final LogEventEncoder encoder;
+  private final SpillStore spillStore;
+  private final AtomicInteger state = new AtomicInteger(IDLE);
+  private final CountDownLatch terminated = new CountDownLatch(1);
+  private final Runnable step = this::step;
+  private final Runnable lingered = () -> {
+    if(state.compareAndSet(LINGERING, SCHEDULED)) {
+      step();
+    }
+  };
+
+  /**
+   * Events encoded since the last send and when the first one was, only written by the running step
+   */
+  private volatile int pendingEvents;
+
+  /**
+   * Events, pending or buffered, expected to fill the batch of a lingering lane, from the size of the pending ones
+   */
+  private volatile int wakeUpEvents;
+
+  /**
+   * Counts the flush requests, and the requests whose events were sent, only written by the running step
+   */
+  private final AtomicLong flushRequests = new AtomicLong();
+  private volatile long flushedRequests;
+  private final Object flushLock = new Object();
+
+  /**
+   * True to send a partial batch only when flushed
+   */
+  private final boolean explicitFlush;
+  private long batchStartNanos;
+  private long lastReplay;
+
+  /**
+   * Requests of the replayed batch not completed yet, and whether one of them failed
+   */
+  private final AtomicInteger replaying = new AtomicInteger();
+  private volatile boolean replayFailed;
+
+  SenderLane(LogEventBuffer buffer, CloudWatchLogService cloudWatchLogService, Encoder<LogEvent> layout,
+      ThrowableRenderer throwableRenderer, AppenderSettings settings, SpillStore spillStore,
+      LogDestinationRouter router, SenderPool senderPool) {
+    this.buffer = buffer;
+    this.router = router;
+    this.spillStore = spillStore;
+    this.cloudWatchLogService = cloudWatchLogService;
+    this.settings = settings;
+    this.senderPool = senderPool;
+    this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(settings.getLingerMs());
+    this.explicitFlush = settings.isExplicitFlush();
+    this.wakeUpEvents = settings.getMessagesBatchSize();
+    this.batchBuilder = newBatchBuilder();
+    this.encoder = new LogEventEncoder(layout, throwableRenderer);
+    cloudWatchLogService.setReadyListener(this::wakeUp);
+    cloudWatchLogService.setSenderPool(senderPool);
+  }
+
+  /**
+   * Starts the bootstrap of the service and schedules a first step, to replay the spilled events.
+   */
+  void start() {
+    cloudWatchLogService.startBootstrap();
+    wakeUp();
+  }
+
+  /**
+   * Schedules a step if the lane is idle, or lingering while enough events are buffered to fill its batch.
+   *
+   * @return false if the lane was already scheduled
+   */
+  boolean signal() {
+    int current = state.get();
+    // the pending events and the estimate were written before the lane started lingering
+    boolean wake = current == IDLE
+        || current == LINGERING && pendingEvents + buffer.size() >= wakeUpEvents;
+    return wake && schedule(current);
+  }
+
+  /**
+   * Schedules a step unless the lane is already scheduled, to send what is left once the buffer is closed.
+   */
+  void wakeUp() {
+    int current = state.get();
+    if(current == IDLE || current == LINGERING || current == WAITING) {
+      schedule(current);
+    }
+  }
+
+  /**
+   * Sends the events buffered so far without waiting for the batch to fill up, like at the end of a batch of the
+   * async loggers.
+   */
+  long flush() {
+    long request = flushRequests.incrementAndGet();
+    // a scheduled step reads the request before lingering, an idle lane has nothing pending
+    if(state.get() == LINGERING) {
+      wakeUp();
+    }
+    return request;
+  }
+
+  /**
+   * Waits for the lane to send the events buffered before the flush request, or to terminate.
+   *
+   * @param request returned by {@link #flush()}
+   * @return false if the events are not sent after the timeout
+   */
+  boolean awaitFlushed(long request, long timeout, TimeUnit unit) throws InterruptedException {
+    long nanos = unit.toNanos(timeout);
+    synchronized(flushLock) {
+      while(flushedRequests < request && terminated.getCount() > 0) {
+        if(nanos <= 0) {
+          return false;
+        }
+        long start = System.nanoTime();
+        TimeUnit.NANOSECONDS.timedWait(flushLock, nanos);
+        nanos -= System.nanoTime() - start;
+      }
+    }
+    return true;
+  }
+
+  private boolean schedule(int current) {
+    if(state.compareAndSet(current, SCHEDULED)) {
+      senderPool.execute(step);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Waits for the lane to send what is left once the buffer is closed.
+   *
+   * @return false if the lane is still sending after the timeout
+   */
+  boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    return terminated.await(timeout, unit);
+  }
+
+  /**
+   * Encodes the buffered events then sends the batch, lingers or goes idle.
+   */
+  private void step() {
+    try {
+      if(cloudWatchLogService.isBusy()) {
+        state.set(WAITING);
+        // the service may have become ready while going to wait
+        if(!cloudWatchLogService.isBusy()) {
+          wakeUp();
+        }
+        return;
+      }
+      // the events of the requests read before filling the batch are in the batch unless it is full
+      long requested = flushRequests.get();
+      boolean full = fill();
+      if(pendingEvents > 0) {
+        long remaining = explicitFlush ? Long.MAX_VALUE : batchStartNanos + lingerNanos - System.nanoTime();
+        if(!full && remaining > 0 && !buffer.isClosed() && requested == flushedRequests) {
+          wakeUpEvents = estimateBatchEvents();
+          linger(remaining);
+          // a flush requested or the batch filled up while going to linger would not wake up the lane
+          if(flushRequests.get() != flushedRequests || pendingEvents + buffer.size() >= wakeUpEvents) {
+            wakeUp();
+          }
+          return;
+        }
+        sendPending(full);
+      }
+      if(!full) {
+        flushed(requested);
+      }
+      if(!buffer.isEmpty() || pendingEvents > 0) {
+        // at the tail of the queue, after the lanes of the other appenders
+        senderPool.execute(step);
+        return;
+      }
+      if(buffer.isClosed()) {
+        state.set(DONE);
+        terminated.countDown();
+        synchronized(flushLock) {
+          flushLock.notifyAll();
+        }
+        return;
+      }
+      if(hasSpilledEvents()) {
+        replaySpilledEvents();
+        linger(lingerNanos);
+        if(flushRequests.get() != flushedRequests) {
+          wakeUp();
+        }
+        return;
+      }
+    } catch(RuntimeException | Error e) {
+      // the lane goes idle and is signalled again, an unexpected failure must not stop the delivery
+      debug("CloudWatch appender error", e);
+    }
+    state.set(IDLE);
+    // events appended or a flush requested while going idle would not signal the lane
+    if(!buffer.isEmpty() || buffer.isClosed() || flushRequests.get() != flushedRequests) {
+      wakeUp();
+    }
+  }
+
+  /**
+   * Encodes the buffered events until the batch is full or the buffer is empty.
+   *
+   * @return true if the batch is full
+   */
+  private boolean fill() {
+    LogEvent event;
+    while((event = buffer.poll()) != null) {
+      if(pendingEvents++ == 0) {
+        batchStartNanos = System.nanoTime();
+      }
+      BatchBuilder builder = batchBuilderFor(event);
+      encoder.encode(event, builder);
+      if(builder.isFull() || routedBatchBuilders.size() >= settings.getRouteCacheSize()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the number of events of the size of the pending ones filling a batch, by count or by bytes
+   */
+  private int estimateBatchEvents() {
+    long pendingBytes = 0;
+    if(router.isDynamic()) {
+      for(BatchBuilder builder : routedBatchBuilders.values()) {
+        pendingBytes += builder.bytes();
+      }
+    } else {
+      pendingBytes = batchBuilder.bytes();
+    }
+    long maxBytes = Math.min(settings.getMaxBatchBytes(), BatchBuilder.MAX_BATCH_BYTES);
+    long eventsForBytes = pendingBytes == 0
+        ? Long.MAX_VALUE
+        : (maxBytes * pendingEvents + pendingBytes - 1) / pendingBytes;
+    return (int) Math.max(1, Math.min(settings.getMessagesBatchSize(), eventsForBytes));
+  }
+
+  /**
+   * @param delayNanos {@code Long.MAX_VALUE} to linger until signalled
+   */
+  private void linger(long delayNanos) {
+    state.set(LINGERING);
+    if(delayNanos < Long.MAX_VALUE) {
+      senderPool.schedule(lingered, delayNanos);
+    }
+  }
+
+  private void flushed(long requested) {
+    if(flushedRequests != requested) {
+      flushedRequests = requested;
+      synchronized(flushLock) {
+        flushLock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * @param full true to only send the full batches, unless the lane batches for as many destinations as it caches
+   */
+  private void sendPending(boolean full) {
+    boolean keepPartial = full && routedBatchBuilders.size() < settings.getRouteCacheSize();
+    int left;
+    if(router.isDynamic()) {
+      left = sendRouted(keepPartial);
+    } else {
+      send(batchBuilder, keepPartial);
+      left = batchBuilder.size();
+    }
+    pendingEvents = left;
+    if(left > 0) {
+      batchStartNanos = System.nanoTime();
+    }
+  }
+
+  private BatchBuilder batchBuilderFor(LogEvent event) {
+    if(!router.isDynamic()) {
+      return batchBuilder;
+    }
+    LogDestination destination = event instanceof EncodedLogEvent
+        ? ((EncodedLogEvent) event).getDestination()
+        : router.route(event);
+    return routedBatchBuilders.computeIfAbsent(destination, routed -> newBatchBuilder());
+  }
+
+  /**
+   * @return the number of events left over
+   */
+  private int sendRouted(boolean keepPartial) {
+    int left = 0;
+    Iterator<Map.Entry<LogDestination, BatchBuilder>> entries = routedBatchBuilders.entrySet().iterator();
+    while(entries.hasNext()) {
+      Map.Entry<LogDestination, BatchBuilder> entry = entries.next();
+      BatchBuilder builder = entry.getValue();
+      for(List<InputLogEvent> batch : keepPartial ? builder.buildFull() : builder.build()) {
+        cloudWatchLogService.sendMessages(entry.getKey(), batch);
+      }
+      if(builder.isEmpty()) {
+        entries.remove();
+      } else {
+        left += builder.size();
+      }
+    }
+    return left;
+  }
+
+  private boolean hasSpilledEvents() {
+    return spillStore != null && !spillStore.isEmpty();
+  }
+
+  /**
+   * Sends one batch of spilled events, at most every {@link #REPLAY_RETRY_NANOS} while the service is unavailable,
+   * once the previous batch is committed.
+   */
+  private void replaySpilledEvents() {
+    long now = System.nanoTime();
+    if(replaying.get() > 0 || !cloudWatchLogService.isAvailable() && now - lastReplay < REPLAY_RETRY_NANOS) {
+      return;
+    }
+    lastReplay = now;
+    LogDestination destination = spillStore.readInto(batchBuilder);
+    if(destination == null) {
+      return;
+    }
+    List<List<InputLogEvent>> batches = batchBuilder.build();
+    replayFailed = false;
+    replaying.set(batches.size());
+    for(List<InputLogEvent> batch : batches) {
+      cloudWatchLogService.sendMessages(destination, batch, this::replayed);
+    }
+  }
+
+  /**
+   * Commits the replayed batch once all its requests completed, or reads it again later if one of them failed with a
+   * retryable error. The events rejected for good are committed, as replaying them would be rejected again.
+   *
+   * @param errorClass null if the request succeeded
+   */
+  private void replayed(ErrorClass errorClass) {
+    if(errorClass != null && errorClass.isRetryable()) {
+      replayFailed = true;
+    }
+    if(replaying.decrementAndGet() > 0) {
+      return;
+    }
+    if(replayFailed) {
+      spillStore.rewind();
+      // the lane may have gone idle with nothing left to replay
+      wakeUp();
+    } else {
+      spillStore.commit();
+    }
+  }
+
+  /**
+   * Stops retrying to reach the log group, so the lane does not wait for it to drain.
+   */
+  void closeBootstrap() {
+    cloudWatchLogService.closeBootstrap();
+  }
+
+  /**
+   * Waits for the requests of this lane still in flight.
+   *
+   * @return false if some requests are still pending after the timeout
+   */
+  boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+    return cloudWatchLogService.awaitIdle(timeout, unit);
+  }
+
+  /**
+   * Fails the requests not sent yet to the failed events handler: the lane drains what is left without sending it.
+   */
+  void close() {
+    cloudWatchLogService.close();
+  }
+
+  private BatchBuilder newBatchBuilder() {
+    return new BatchBuilder(settings.getMessagesBatchSize(), settings.getMaxBatchBytes(),
+        settings.isSplitOversizedEvents());
+  }
+
+  private void send(BatchBuilder builder, boolean keepPartial) {
+    for(List<InputLogEvent> batch : keepPartial ? builder.buildFull() : builder.build()) {
+      cloudWatchLogService.sendMessages(batch);
+    }
+  }
+
+}
@@ -0,0 +1,217 @@
+package io.sensefly.logging.log4j;
+
+import org.apache.logging.log4j.core.util.Log4jThreadFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static io.sensefly.logging.log4j.CloudWatchDebugger.debug;
+
+/**
+ * Runs the sender lanes of one or several appenders on a bounded number of daemon threads.
+ * A lane sends at most one batch per task then queues itself again at the tail, so the lanes are served
+ * round-robin and a busy appender cannot starve the others.
+ * The lanes can also run on an executor given by the application, registered by name with
+ * {@link #registerExecutor(String, Executor)}, or on virtual threads on Java 21 and later: the pool then only
+ * schedules the delayed tasks, on a single thread, and hands them to the executor.
+ */
+class SenderPool {
+
+  static final int MAX_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+  /**
+   * The {@code senderExecutor} running every lane step on a new virtual thread
+   */
+  static final String VIRTUAL = "virtual";
+
+  private static final ConcurrentMap<String, Executor> SHARED_EXECUTORS = new ConcurrentHashMap<>();
+
+  private final ScheduledThreadPoolExecutor scheduler;
+
+  /**
+   * Runs the lane steps, null to run them on the scheduler threads
+   */
+  private final Executor executor;
+
+  /**
+   * True if the executor is shut down with the pool, false when shared with the application
+   */
+  private final boolean ownsExecutor;
+  private final int maxThreads;
+  private int lanes;
+
+  SenderPool() {
+    this(MAX_THREADS);
+  }
+
+  SenderPool(int maxThreads) {
+    this(maxThreads, null, false);
+  }
+
+  private SenderPool(int maxThreads, Executor executor, boolean ownsExecutor) {
+    this.maxThreads = Math.max(1, maxThreads);
+    this.executor = executor;
+    this.ownsExecutor = ownsExecutor;
+    scheduler = new ScheduledThreadPoolExecutor(1, Log4jThreadFactory.createDaemonThreadFactory("CloudWatchSender"));
+  }
+
+  /**
+   * @param senderThreads the maximum number of threads of the pool, zero or less for one per processor
+   * @param senderExecutor {@value #VIRTUAL}, the name of a registered executor, or null for the pool threads
+   */
+  static SenderPool create(int senderThreads, String senderExecutor) {
+    int maxThreads = senderThreads > 0 ? senderThreads : MAX_THREADS;
+    if(senderExecutor == null || senderExecutor.isEmpty()) {
+      return new SenderPool(maxThreads);
+    }
+    if(VIRTUAL.equals(senderExecutor)) {
+      ExecutorService virtualExecutor = newVirtualThreadExecutor();
+      return virtualExecutor == null
+          ? new SenderPool(maxThreads)
+          : new SenderPool(maxThreads, virtualExecutor, true);
+    }
+    Executor shared = SHARED_EXECUTORS.get(senderExecutor);
+    if(shared == null) {
+      debug("No CloudWatch sender executor registered as " + senderExecutor + ", using the sender threads");
+      return new SenderPool(maxThreads);
+    }
+    return new SenderPool(maxThreads, shared, false);
+  }
+
+  /**
+   * Makes an executor of the application available to the appenders configured with this {@code senderExecutor}.
+   * The executor is not shut down with the appenders.
+   */
+  static void registerExecutor(String name, Executor executor) {
+    SHARED_EXECUTORS.put(name, executor);
+  }
+
+  static void unregisterExecutor(String name) {
+    SHARED_EXECUTORS.remove(name);
+  }
+
+  /**
+   * Builds {@code Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(..).factory())} by reflection, the
+   * appender being compiled for Java 8.
+   *
+   * @return null before Java 21
+   */
+  // visible for testing
+  static ExecutorService newVirtualThreadExecutor() {
+    try {
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "CloudWatchSender-", 1L);
+      ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+      Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+      return (ExecutorService) newExecutor.invoke(null, threadFactory);
+    } catch(ReflectiveOperationException | RuntimeException e) {
+      debug("Virtual threads not available, using the sender threads", e);
+      return null;
+    }
+  }
+
+  /**
+   * Adds a thread per lane, up to the maximum
+   */
+  synchronized void addLanes(int count) {
+    lanes += count;
+    resize();
+  }
+
+  /**
+   * Removes the threads of the lanes of a stopped appender, the threads above the lanes left exiting once idle
+   */
+  synchronized void removeLanes(int count) {
+    lanes = Math.max(0, lanes - count);
+    resize();
+  }
+
+  private void resize() {
+    if(executor == null) {
+      scheduler.setCorePoolSize(Math.max(1, Math.min(maxThreads, lanes)));
+    }
+  }
+
+  void execute(Runnable task) {
+    try {
+      if(executor == null) {
+        scheduler.execute(task);
+      } else {
+        executor.execute(task);
+      }
+    } catch(RejectedExecutionException e) {
+      debug("CloudWatch sender pool shut down", e);
+    }
+  }
+
+  /**
+   * Runs the task on the pool after the delay
+   *
+   * @return false if the pool is shut down
+   */
+  boolean schedule(Runnable task, long delayNanos) {
+    try {
+      scheduler.schedule(executor == null ? task : () -> execute(task), delayNanos, TimeUnit.NANOSECONDS);
+      return true;
+    } catch(RejectedExecutionException e) {
+      debug("CloudWatch sender pool shut down", e);
+      return false;
+    }
+  }
+
+  // visible for testing
+  int getThreads() {
+    return scheduler.getCorePoolSize();
+  }
+
+  void shutdown() {
+    scheduler.shutdown();
+    removeDelayedTasks();
+    if(ownsExecutor) {
+      ((ExecutorService) executor).shutdown();
+    }
+  }
+
+  /**
+   * Waits for the queued tasks until the timeout. Past it, they still run on the daemon threads, which exit once done.
+   *
+   * @return false if the tasks did not complete within the timeout
+   */
+  boolean shutdown(long timeout, TimeUnit unit) {
+    shutdown();
+    try {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      boolean terminated = scheduler.awaitTermination(timeout, unit);
+      if(ownsExecutor) {
+        terminated &= ((ExecutorService) executor)
+            .awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+      }
+      return terminated;
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Lanes are woken up before shutdown: the delayed tasks left behind would only delay it
+   */
+  private void removeDelayedTasks() {
+    for(Runnable task : scheduler.getQueue()) {
+      if(task instanceof Delayed && ((Delayed) task).getDelay(TimeUnit.NANOSECONDS) > 0) {
+        scheduler.remove(task);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,436 @@
+package io.sensefly.logging.log4j;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import static io.sensefly.logging.log4j.CloudWatchDebugger.debug;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Append-only on-disk store for events which could not be buffered in memory or sent.
+ * Events are written in memory-mapped segment files of fixed size, as records
+ * {@code [length][timestamp][log group][log stream prefix][message]} where the length counts the bytes after the
+ * timestamp, a zero length marking the end of the written part. The log group and stream prefix of the destination are
+ * written as their length, {@code -1} for the ones of the appender, followed by their bytes. The read position is kept in a memory-mapped checkpoint
+ * file so events are replayed in order after a restart; fully replayed segments are deleted.
+ * Replay is at-least-once: events read are committed once sent, and read again after a failure or a crash.
+ * The checkpoint is forced to disk on commit and a segment once full or the store closed: the events written since
+ * survive a crash of the process, kept by the operating system, but not a crash of the host.
+ * The directory is locked while the store is open, so the appender replacing this one on a reconfiguration, or another
+ * process, does not write the same segments.
+ */
+class SpillStore {
+
+  static final int DEFAULT_SEGMENT_BYTES = 8 * 1024 * 1024;
+
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String CHECKPOINT_FILE = "checkpoint";
+  private static final String LOCK_FILE = "lock";
+  private static final int RECORD_HEADER_BYTES = Integer.BYTES + Long.BYTES;
+  private static final short DEFAULT_NAME = -1;
+
+  private static final Logger LOGGER = StatusLogger.getLogger();
+
+  private final Path directory;
+  private final int segmentBytes;
+  private final int maxSegments;
+  private final LongAdder droppedCount = new LongAdder();
+
+  private final FileChannel lockChannel;
+  private final MappedByteBuffer checkpoint;
+  private final List<Long> segments = new ArrayList<>();
+
+  private MappedByteBuffer writeBuffer;
+  private ByteBuffer readBuffer;
+
+  /**
+   * The mapping of the segment read, null when it is the segment written and read through a duplicate of its buffer
+   */
+  private MappedByteBuffer readMapping;
+  private long readSegment;
+  private int readOffset;
+  private long committedSegment;
+  private int committedOffset;
+  private boolean closed;
+
+  /**
+   * @throws IllegalStateException if the directory is locked by another store
+   */
+  // visible for testing
+  SpillStore(Path directory, int segmentBytes, long maxBytes) {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.maxSegments = (int) Math.max(1, maxBytes / segmentBytes);
+    try {
+      Files.createDirectories(directory);
+      lockChannel = lock(directory);
+      try {
+        checkpoint = map(directory.resolve(CHECKPOINT_FILE), Long.BYTES + Integer.BYTES);
+        open();
+      } catch(IOException | RuntimeException e) {
+        lockChannel.close();
+        throw e;
+      }
+    } catch(IOException e) {
+      throw new UncheckedIOException("Cannot open spill directory " + directory, e);
+    }
+  }
+
+  /**
+   * Opens the store, unless the directory is locked by another store, still open in the appender being replaced or in
+   * another process: the appender then runs without spilling.
+   *
+   * @return null if the directory is locked
+   */
+  static SpillStore open(Path directory, long maxBytes) {
+    try {
+      return new SpillStore(directory, (int) Math.min(DEFAULT_SEGMENT_BYTES, maxBytes), maxBytes);
+    } catch(IllegalStateException e) {
+      LOGGER.error("{}, the CloudWatch appender does not spill", e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * @param destination where the event is replayed to
+   * @return false if the store is full or the message empty or too large for a segment
+   */
+  synchronized boolean append(LogDestination destination, long timestamp, String message) {
+    // CloudWatch rejects empty messages and a zero length marks the end of a segment
+    if(message.isEmpty()) {
+      return false;
+    }
+    if(closed) {
+      droppedCount.increment();
+      return false;
+    }
+    byte[] logGroupName = nameBytes(destination.logGroupName);
+    byte[] logStreamNamePrefix = nameBytes(destination.logStreamNamePrefix);
+    byte[] bytes = message.getBytes(UTF_8);
+    int length = nameLength(logGroupName) + nameLength(logStreamNamePrefix) + bytes.length;
+    int recordBytes = RECORD_HEADER_BYTES + length;
+    // keeps room for the zero length marking the end of the segment
+    if(recordBytes + Integer.BYTES > segmentBytes) {
+      droppedCount.increment();
+      return false;
+    }
+    try {
+      if(writeBuffer.remaining() < recordBytes + Integer.BYTES) {
+        if(segments.size() >= maxSegments) {
+          droppedCount.increment();
+          return false;
+        }
+        writeBuffer.force();
+        MappedByteBuffer written = writeBuffer;
+        writeBuffer = newSegment();
+        if(readMapping == null) {
+          // the full segment is still read through a duplicate, released once read
+          readMapping = written;
+        } else {
+          unmap(written);
+        }
+      }
+    } catch(IOException e) {
+      debug("Cannot create spill segment", e);
+      droppedCount.increment();
+      return false;
+    }
+    // the length is written last so a partially written record is never read
+    int position = writeBuffer.position();
+    writeBuffer.position(position + Integer.BYTES);
+    writeBuffer.putLong(timestamp);
+    putName(writeBuffer, logGroupName);
+    putName(writeBuffer, logStreamNamePrefix);
+    writeBuffer.put(bytes);
+    writeBuffer.putInt(position, length);
+    return true;
+  }
+
+  /**
+   * Reads the next events of the same destination into the builder until it is full, the destination changes or the
+   * store is exhausted. The read position is only persisted by {@link #commit()}.
+   *
+   * @return the destination of the events read, null if none was read
+   */
+  synchronized LogDestination readInto(BatchBuilder builder) {
+    LogDestination destination = null;
+    while(!closed && !builder.isFull()) {
+      if(readBuffer.remaining() < Integer.BYTES || readBuffer.getInt(readBuffer.position()) == 0) {
+        if(!nextReadSegment()) {
+          break;
+        }
+        continue;
+      }
+      int position = readBuffer.position();
+      int length = readBuffer.getInt();
+      long timestamp = readBuffer.getLong();
+      String logGroupName = getName(readBuffer);
+      String logStreamNamePrefix = getName(readBuffer);
+      LogDestination recordDestination = logGroupName == null && logStreamNamePrefix == null
+          ? LogDestination.DEFAULT
+          : new LogDestination(logGroupName, logStreamNamePrefix);
+      if(destination == null) {
+        destination = recordDestination;
+      } else if(!destination.equals(recordDestination)) {
+        // read with the next batch
+        readBuffer.position(position);
+        break;
+      }
+      int messageBytes = length - (readBuffer.position() - position - RECORD_HEADER_BYTES);
+      byte[] bytes = new byte[messageBytes];
+      readBuffer.get(bytes);
+      builder.add(timestamp, new String(bytes, UTF_8), messageBytes);
+      readOffset = readBuffer.position();
+    }
+    return destination;
+  }
+
+  /**
+   * Persists the read position and deletes the segments fully read.
+   */
+  synchronized void commit() {
+    if(closed) {
+      return;
+    }
+    committedSegment = readSegment;
+    committedOffset = readOffset;
+    checkpoint.putLong(0, committedSegment);
+    checkpoint.putInt(Long.BYTES, committedOffset);
+    checkpoint.force();
+    while(segments.size() > 1 && segments.get(0) < committedSegment) {
+      delete(segments.remove(0));
+    }
+  }
+
+  /**
+   * Moves the read position back to the last commit, so the events read since are read again.
+   */
+  synchronized void rewind() {
+    if(closed) {
+      return;
+    }
+    try {
+      openReadSegment(committedSegment, committedOffset);
+    } catch(IOException e) {
+      debug("Cannot reopen spill segment " + committedSegment, e);
+    }
+  }
+
+  synchronized boolean isEmpty() {
+    return closed || readSegment == segments.get(segments.size() - 1)
+        && (readBuffer.remaining() < Integer.BYTES || readBuffer.getInt(readBuffer.position()) == 0);
+  }
+
+  long getDroppedCount() {
+    return droppedCount.sum();
+  }
+
+  /**
+   * Forces the written events and the read position to disk, then releases the mappings and the directory. The events
+   * appended afterwards are dropped.
+   */
+  synchronized void close() {
+    if(closed) {
+      return;
+    }
+    closed = true;
+    writeBuffer.force();
+    checkpoint.force();
+    unmap(readMapping);
+    unmap(writeBuffer);
+    unmap(checkpoint);
+    readMapping = null;
+    readBuffer = null;
+    writeBuffer = null;
+    try {
+      // releases the lock
+      lockChannel.close();
+    } catch(IOException e) {
+      debug("Cannot unlock spill directory " + directory, e);
+    }
+  }
+
+  /**
+   * @throws IllegalStateException if the directory is locked, by this process or another one
+   */
+  private static FileChannel lock(Path directory) throws IOException {
+    FileChannel channel = FileChannel.open(directory.resolve(LOCK_FILE), CREATE, WRITE);
+    FileLock lock;
+    try {
+      lock = channel.tryLock();
+    } catch(OverlappingFileLockException e) {
+      lock = null;
+    } catch(IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+    if(lock == null) {
+      channel.close();
+      throw new IllegalStateException("Spill directory " + directory + " is locked by another appender");
+    }
+    return channel;
+  }
+
+  private void open() throws IOException {
+    try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+      for(Path file : files) {
+        String name = file.getFileName().toString();
+        segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+      }
+    }
+    segments.sort(null);
+    if(segments.isEmpty()) {
+      writeBuffer = newSegment();
+    } else {
+      long last = segments.get(segments.size() - 1);
+      writeBuffer = map(segmentPath(last), segmentBytes);
+      skipWrittenRecords(writeBuffer);
+    }
+
+    committedSegment = checkpoint.getLong(0);
+    committedOffset = checkpoint.getInt(Long.BYTES);
+    if(!segments.contains(committedSegment)) {
+      committedSegment = segments.get(0);
+      committedOffset = 0;
+    }
+    openReadSegment(committedSegment, committedOffset);
+  }
+
+  private boolean nextReadSegment() {
+    int index = segments.indexOf(readSegment);
+    if(index < 0 || index + 1 >= segments.size()) {
+      return false;
+    }
+    try {
+      openReadSegment(segments.get(index + 1), 0);
+      return true;
+    } catch(IOException e) {
+      debug("Cannot open spill segment", e);
+      return false;
+    }
+  }
+
+  private void openReadSegment(long segment, int offset) throws IOException {
+    long writeSegment = segments.get(segments.size() - 1);
+    MappedByteBuffer previous = readMapping;
+    readMapping = segment == writeSegment ? null : map(segmentPath(segment), segmentBytes);
+    readBuffer = readMapping == null ? writeBuffer.duplicate() : readMapping;
+    unmap(previous);
+    readBuffer.position(offset);
+    readBuffer.limit(segmentBytes);
+    readSegment = segment;
+    readOffset = offset;
+  }
+
+  private MappedByteBuffer newSegment() throws IOException {
+    long segment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1) + 1;
+    MappedByteBuffer buffer = map(segmentPath(segment), segmentBytes);
+    segments.add(segment);
+    return buffer;
+  }
+
+  private static void skipWrittenRecords(MappedByteBuffer buffer) {
+    while(buffer.remaining() >= Integer.BYTES) {
+      int length = buffer.getInt(buffer.position());
+      if(length <= 0 || buffer.position() + RECORD_HEADER_BYTES + length > buffer.limit()) {
+        return;
+      }
+      buffer.position(buffer.position() + RECORD_HEADER_BYTES + length);
+    }
+  }
+
+  private static byte[] nameBytes(String name) {
+    return name == null ? null : name.getBytes(UTF_8);
+  }
+
+  private static int nameLength(byte[] name) {
+    return Short.BYTES + (name == null ? 0 : name.length);
+  }
+
+  private static void putName(ByteBuffer buffer, byte[] name) {
+    if(name == null) {
+      buffer.putShort(DEFAULT_NAME);
+    } else {
+      buffer.putShort((short) name.length);
+      buffer.put(name);
+    }
+  }
+
+  private static String getName(ByteBuffer buffer) {
+    short length = buffer.getShort();
+    if(length == DEFAULT_NAME) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  private Path segmentPath(long segment) {
+    return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+  }
+
+  private void delete(long segment) {
+    try {
+      Files.deleteIfExists(segmentPath(segment));
+    } catch(IOException e) {
+      debug("Cannot delete spill segment " + segment, e);
+    }
+  }
+
+  private static MappedByteBuffer map(Path file, int size) throws IOException {
+    try(FileChannel channel = FileChannel.open(file, CREATE, READ, WRITE)) {
+      return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+  }
+
+  /**
+   * Releases the mapping now instead of when the buffer is collected, by {@code Unsafe.invokeCleaner} from Java 9 and
+   * by the cleaner of the buffer before, both by reflection, the appender being compiled for Java 8. The buffer must
+   * not be read afterwards.
+   */
+  private static void unmap(MappedByteBuffer buffer) {
+    if(buffer == null) {
+      return;
+    }
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Method invokeCleaner;
+      try {
+        invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      } catch(NoSuchMethodException e) {
+        Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+        cleanerMethod.setAccessible(true);
+        Object cleaner = cleanerMethod.invoke(buffer);
+        cleaner.getClass().getMethod("clean").invoke(cleaner);
+        return;
+      }
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      invokeCleaner.invoke(theUnsafe.get(null), buffer);
+    } catch(ReflectiveOperationException | RuntimeException e) {
+      debug("Cannot unmap spill segment, released once collected", e);
+    }
+  }
+
+}
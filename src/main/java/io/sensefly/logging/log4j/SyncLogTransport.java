@@ -0,0 +1,37 @@
+package io.sensefly.logging.log4j;
+
+import com.amazonaws.services.logs.AWSLogs;
+import com.amazonaws.services.logs.model.PutLogEventsRequest;
+import com.amazonaws.services.logs.model.PutLogEventsResult;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends requests on the calling thread: the returned future is already completed.
+ */
+class SyncLogTransport implements LogTransport {
+
+  private final AWSLogs awsLogs;
+
+  SyncLogTransport(AWSLogs awsLogs) {
+    this.awsLogs = awsLogs;
+  }
+
+  @Override
+  @SuppressWarnings("OverlyBroadCatchBlock")
+  public CompletableFuture<PutLogEventsResult> putLogEvents(PutLogEventsRequest request) {
+    CompletableFuture<PutLogEventsResult> future = new CompletableFuture<>();
+    try {
+      future.complete(awsLogs.putLogEvents(request));
+    } catch(Exception e) {
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  @Override
+  public boolean isSynchronous() {
+    return true;
+  }
+
+}
@@ -0,0 +1,297 @@
+package io.sensefly.logging.log4j;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Renders the throwables of the events in place of the layout, like {@link Throwable#printStackTrace()} with the
+ * frames common with the enclosing trace elided, and compacts them:
+ * <ul>
+ * <li>the frames of {@code filteredPackages} are collapsed, and at most {@code maxFrames} frames are written per
+ * throwable</li>
+ * <li>suppressed throwables are written as {@code Suppressed:} blocks, and past {@value #MAX_CAUSES} throwables the
+ * others are only counted, as {@code ... <n> more causes}</li>
+ * <li>each throwable is fingerprinted by the types and frames of its causes and suppressed throwables, written as
+ * {@code [stack trace <id>]}, and its rendered frames are cached in a bounded LRU, so only the messages are rendered
+ * again</li>
+ * <li>within {@code windowMs} of its full trace, a repeated throwable is only written with its messages and
+ * fingerprint</li>
+ * </ul>
+ * Thread-safe: the cache is locked for lookups only.
+ */
+class ThrowableRenderer {
+
+  static final int DEFAULT_CACHE_SIZE = 256;
+
+  private static final int MAX_CAUSES = 8;
+
+  private final int maxFrames;
+  private final String[] filteredPackages;
+  private final long windowMs;
+  private final LruCache<Long, Trace> cache;
+
+  /**
+   * @param maxFrames zero or less to write all the frames
+   * @param filteredPackages comma separated package prefixes, null to write the frames of every package
+   * @param windowMs zero or less to always write the full trace
+   */
+  ThrowableRenderer(int maxFrames, String filteredPackages, long windowMs, int cacheSize) {
+    this.maxFrames = maxFrames > 0 ? maxFrames : Integer.MAX_VALUE;
+    this.filteredPackages = split(filteredPackages);
+    this.windowMs = windowMs;
+    this.cache = new LruCache<>(cacheSize);
+  }
+
+  /**
+   * @return null if no option compacts the traces
+   */
+  static ThrowableRenderer create(int maxFrames, String filteredPackages, long windowMs, int cacheSize) {
+    if(maxFrames <= 0 && (filteredPackages == null || filteredPackages.trim().isEmpty()) && windowMs <= 0) {
+      return null;
+    }
+    return new ThrowableRenderer(maxFrames, filteredPackages, windowMs, cacheSize);
+  }
+
+  /**
+   * Appends the trace of the throwable, logged at the given time, to the text
+   */
+  void render(Throwable thrown, long timeMillis, StringBuilder text) {
+    Chain chain = new Chain();
+    chain.add(thrown, -1, 0, false);
+    long fingerprint = fingerprint(chain);
+    Trace trace;
+    synchronized(cache) {
+      trace = cache.get(fingerprint);
+    }
+    Trace rendered = trace == null ? new Trace(renderFrames(chain)) : null;
+    boolean full;
+    synchronized(cache) {
+      if(rendered != null) {
+        trace = cache.get(fingerprint);
+        if(trace == null) {
+          trace = rendered;
+          cache.put(fingerprint, trace);
+        }
+      }
+      full = windowMs <= 0 || trace.fullAt == Long.MIN_VALUE || timeMillis < trace.fullAt
+          || timeMillis - trace.fullAt >= windowMs;
+      if(full) {
+        trace.fullAt = timeMillis;
+      }
+    }
+    for(int i = 0; i < chain.size; i++) {
+      Throwable current = chain.throwables[i];
+      if(i > 0) {
+        text.append('\n');
+        indent(chain.depths[i], text);
+        text.append(chain.suppressed[i] ? "Suppressed: " : "Caused by: ");
+      }
+      text.append(current.getClass().getName());
+      if(current.getMessage() != null) {
+        text.append(": ").append(current.getMessage());
+      }
+      if(i == 0) {
+        text.append(" [stack trace ").append(Long.toHexString(fingerprint)).append(']');
+      }
+      if(full) {
+        text.append(trace.frames[i]);
+      }
+    }
+    if(chain.omitted > 0) {
+      text.append("\n... ").append(chain.omitted).append(" more causes");
+    }
+  }
+
+  /**
+   * Renders the frames of the throwables when not cached yet, outside of the cache lock as it is slow
+   */
+  private String[] renderFrames(Chain chain) {
+    String[] rendered = new String[chain.size];
+    StringBuilder text = new StringBuilder(1024);
+    for(int i = 0; i < chain.size; i++) {
+      text.setLength(0);
+      StackTraceElement[] frames = chain.frames[i];
+      int depth = chain.depths[i];
+      int enclosing = chain.enclosing[i];
+      int inCommon = enclosing < 0 ? 0 : framesInCommon(frames, chain.frames[enclosing]);
+      int written = 0;
+      int filtered = 0;
+      int last = frames.length - inCommon;
+      int frame = 0;
+      for(; frame < last && written < maxFrames; frame++) {
+        if(isFiltered(frames[frame])) {
+          filtered++;
+          continue;
+        }
+        appendFiltered(filtered, depth, text);
+        filtered = 0;
+        text.append('\n');
+        indent(depth, text);
+        text.append("\tat ").append(frames[frame]);
+        written++;
+      }
+      appendFiltered(filtered, depth, text);
+      if(last - frame + inCommon > 0) {
+        text.append('\n');
+        indent(depth, text);
+        text.append("\t... ").append(last - frame + inCommon).append(" more");
+      }
+      rendered[i] = text.toString();
+    }
+    return rendered;
+  }
+
+  private static void appendFiltered(int filtered, int depth, StringBuilder text) {
+    if(filtered > 0) {
+      text.append('\n');
+      indent(depth, text);
+      text.append("\t... ").append(filtered).append(" filtered");
+    }
+  }
+
+  private static void indent(int depth, StringBuilder text) {
+    for(int i = 0; i < depth; i++) {
+      text.append('\t');
+    }
+  }
+
+  private boolean isFiltered(StackTraceElement frame) {
+    if(filteredPackages == null) {
+      return false;
+    }
+    for(String filteredPackage : filteredPackages) {
+      if(frame.getClassName().startsWith(filteredPackage)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Like {@link Throwable#printStackTrace()}, the tail of a cause shared with the enclosing trace is not written
+   */
+  private static int framesInCommon(StackTraceElement[] frames, StackTraceElement[] enclosing) {
+    int m = frames.length - 1;
+    int n = enclosing.length - 1;
+    while(m >= 0 && n >= 0 && frames[m].equals(enclosing[n])) {
+      m--;
+      n--;
+    }
+    return frames.length - 1 - m;
+  }
+
+  private static long fingerprint(Chain chain) {
+    long hash = 1125899906842597L;
+    for(int i = 0; i < chain.size; i++) {
+      hash = 31 * hash + chain.throwables[i].getClass().getName().hashCode();
+      hash = 31 * hash + (chain.suppressed[i] ? -chain.depths[i] - 1 : chain.depths[i]);
+      for(StackTraceElement frame : chain.frames[i]) {
+        hash = 31 * hash + frame.getClassName().hashCode();
+        hash = 31 * hash + frame.getMethodName().hashCode();
+        hash = 31 * hash + frame.getLineNumber();
+      }
+    }
+    // spreads the bits, the fingerprints are compared by eye
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  private static Throwable cause(Throwable thrown) {
+    return thrown.getCause() == thrown ? null : thrown.getCause();
+  }
+
+  private static String[] split(String packages) {
+    if(packages == null || packages.trim().isEmpty()) {
+      return null;
+    }
+    String[] split = packages.split(",");
+    for(int i = 0; i < split.length; i++) {
+      split[i] = split[i].trim();
+    }
+    return split;
+  }
+
+  /**
+   * The first {@value #MAX_CAUSES} throwables of a trace, in the order of {@link Throwable#printStackTrace()}: each
+   * throwable is followed by its suppressed throwables, one level deeper, then by its cause. A throwable already seen
+   * is skipped, like a circular reference.
+   */
+  private static final class Chain {
+
+    final Throwable[] throwables = new Throwable[MAX_CAUSES];
+    final StackTraceElement[][] frames = new StackTraceElement[MAX_CAUSES][];
+
+    /**
+     * The index of the throwable enclosing each one, whose frames in common are elided, -1 for the first one
+     */
+    final int[] enclosing = new int[MAX_CAUSES];
+    final int[] depths = new int[MAX_CAUSES];
+    final boolean[] suppressed = new boolean[MAX_CAUSES];
+    int size;
+
+    /**
+     * The throwables past {@value #MAX_CAUSES}, only counted
+     */
+    int omitted;
+    private Set<Throwable> omittedThrowables;
+
+    /**
+     * Adds the throwable, its suppressed throwables and its causes
+     */
+    void add(Throwable throwable, int enclosingIndex, int depth, boolean isSuppressed) {
+      int enclosedBy = enclosingIndex;
+      boolean isSuppressedThrowable = isSuppressed;
+      for(Throwable current = throwable; current != null && !contains(current); current = cause(current)) {
+        int index = -1;
+        if(size < MAX_CAUSES) {
+          index = size++;
+          throwables[index] = current;
+          frames[index] = current.getStackTrace();
+          enclosing[index] = enclosedBy;
+          depths[index] = depth;
+          suppressed[index] = isSuppressedThrowable;
+        } else {
+          if(omittedThrowables == null) {
+            omittedThrowables = Collections.newSetFromMap(new IdentityHashMap<>());
+          }
+          omittedThrowables.add(current);
+          omitted++;
+        }
+        for(Throwable suppressedThrowable : current.getSuppressed()) {
+          add(suppressedThrowable, index, depth + 1, true);
+        }
+        enclosedBy = index;
+        isSuppressedThrowable = false;
+      }
+    }
+
+    private boolean contains(Throwable throwable) {
+      for(int i = 0; i < size; i++) {
+        if(throwables[i] == throwable) {
+          return true;
+        }
+      }
+      return omittedThrowables != null && omittedThrowables.contains(throwable);
+    }
+
+  }
+
+  private static final class Trace {
+
+    final String[] frames;
+
+    /**
+     * When the full trace was last written, guarded by the cache lock
+     */
+    long fullAt = Long.MIN_VALUE;
+
+    Trace(String[] frames) {
+      this.frames = frames;
+    }
+
+  }
+
+}
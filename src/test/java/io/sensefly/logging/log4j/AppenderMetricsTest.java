@@ -0,0 +1,58 @@
+package io.sensefly.logging.log4j;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+public class AppenderMetricsTest {
+
+  @Test
+  public void requests_should_be_counted_and_passed_to_listeners() {
+    AppenderMetrics metrics = new AppenderMetrics(null, true);
+    MetricsListener listener = mock(MetricsListener.class);
+    metrics.addListener(listener);
+
+    metrics.onRequestSent(10, 1000, TimeUnit.MILLISECONDS.toNanos(20));
+    metrics.onError(ErrorClass.THROTTLING);
+    metrics.onRetry(ErrorClass.THROTTLING);
+    metrics.onError(ErrorClass.SEQUENCE_TOKEN);
+    metrics.onRequestFailed(5, ErrorClass.SEQUENCE_TOKEN);
+
+    assertThat(metrics.getSentRequests()).isEqualTo(1);
+    assertThat(metrics.getSentEvents()).isEqualTo(10);
+    assertThat(metrics.getSentBytes()).isEqualTo(1000);
+    assertThat(metrics.getBatchEventsMax()).isEqualTo(10);
+    assertThat(metrics.getLatencyMillisMax()).isEqualTo(20.0);
+    assertThat(metrics.getThrottles()).isEqualTo(1);
+    assertThat(metrics.getRetries()).isEqualTo(1);
+    assertThat(metrics.getSequenceTokenConflicts()).isEqualTo(1);
+    assertThat(metrics.getFailedRequests()).isEqualTo(1);
+    assertThat(metrics.getFailedEvents()).isEqualTo(5);
+    assertThat(metrics.getRejectedEvents()).isZero();
+    verify(listener).onRequestSent(10, 1000, TimeUnit.MILLISECONDS.toNanos(20));
+    verify(listener).onRetry("THROTTLING");
+    verify(listener).onRequestFailed(5, "SEQUENCE_TOKEN");
+  }
+
+  @Test
+  public void disabled_metrics_should_record_nothing() {
+    AppenderMetrics metrics = new AppenderMetrics(null, false);
+    MetricsListener listener = mock(MetricsListener.class);
+    metrics.addListener(listener);
+
+    metrics.onAppended();
+    metrics.onRequestSent(10, 1000, 1);
+    metrics.register("disabled");
+
+    assertThat(metrics.getAppendedEvents()).isZero();
+    assertThat(metrics.getSentRequests()).isZero();
+    assertThat(metrics.getObjectName()).isNull();
+    verifyZeroInteractions(listener);
+  }
+
+}
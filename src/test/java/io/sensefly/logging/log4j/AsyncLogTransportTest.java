@@ -0,0 +1,72 @@
+package io.sensefly.logging.log4j;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.logs.AWSLogsAsync;
+import com.amazonaws.services.logs.model.PutLogEventsRequest;
+import com.amazonaws.services.logs.model.PutLogEventsResult;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class AsyncLogTransportTest {
+
+  @Mock
+  private AWSLogsAsync awsLogs;
+
+  @Captor
+  private ArgumentCaptor<AsyncHandler<PutLogEventsRequest, PutLogEventsResult>> handlers;
+
+  @Before
+  public void initMocks() {
+    MockitoAnnotations.initMocks(this);
+  }
+
+  @Test
+  public void requests_should_be_pipelined_up_to_window() throws InterruptedException {
+    AsyncLogTransport transport = new AsyncLogTransport(awsLogs, 2);
+
+    CompletableFuture<PutLogEventsResult> first = transport.putLogEvents(new PutLogEventsRequest());
+    CompletableFuture<PutLogEventsResult> second = transport.putLogEvents(new PutLogEventsRequest());
+    assertThat(first).isNotDone();
+    assertThat(second).isNotDone();
+
+    Thread third = new Thread(() -> transport.putLogEvents(new PutLogEventsRequest()));
+    third.start();
+    verify(awsLogs, timeout(200).times(2)).putLogEventsAsync(any(PutLogEventsRequest.class), any());
+
+    verify(awsLogs, times(2)).putLogEventsAsync(any(PutLogEventsRequest.class), handlers.capture());
+    PutLogEventsResult result = new PutLogEventsResult().withNextSequenceToken("token");
+    handlers.getAllValues().get(0).onSuccess(new PutLogEventsRequest(), result);
+
+    third.join(5000);
+    verify(awsLogs, times(3)).putLogEventsAsync(any(PutLogEventsRequest.class), any());
+    assertThat(first).isCompletedWithValue(result);
+  }
+
+  @Test
+  public void error_should_complete_exceptionally_and_release_window() {
+    AsyncLogTransport transport = new AsyncLogTransport(awsLogs, 1);
+
+    CompletableFuture<PutLogEventsResult> future = transport.putLogEvents(new PutLogEventsRequest());
+
+    verify(awsLogs).putLogEventsAsync(any(PutLogEventsRequest.class), handlers.capture());
+    handlers.getValue().onError(new IllegalStateException("error"));
+
+    assertThat(future).isCompletedExceptionally();
+    CompletableFuture<PutLogEventsResult> next = transport.putLogEvents(new PutLogEventsRequest());
+    verify(awsLogs, times(2)).putLogEventsAsync(any(PutLogEventsRequest.class), any());
+    assertThat(next).isNotDone();
+  }
+
+}
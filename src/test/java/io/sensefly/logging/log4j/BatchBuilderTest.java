@@ -0,0 +1,145 @@
+package io.sensefly.logging.log4j;
+
+import com.amazonaws.services.logs.model.InputLogEvent;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static io.sensefly.logging.log4j.BatchBuilder.EVENT_OVERHEAD_BYTES;
+import static io.sensefly.logging.log4j.BatchBuilder.MAX_BATCH_BYTES;
+import static io.sensefly.logging.log4j.BatchBuilder.MAX_BATCH_EVENTS;
+import static io.sensefly.logging.log4j.BatchBuilder.MAX_EVENT_BYTES;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BatchBuilderTest {
+
+  private static final long NOW = System.currentTimeMillis();
+
+  @Test
+  public void batch_should_not_exceed_max_events() {
+    BatchBuilder builder = new BatchBuilder(2, MAX_BATCH_BYTES, true);
+    builder.add(NOW, "message 1", 9);
+    assertThat(builder.isFull()).isFalse();
+    builder.add(NOW, "message 2", 9);
+    assertThat(builder.isFull()).isTrue();
+    builder.add(NOW, "message 3", 9);
+
+    List<List<InputLogEvent>> batches = builder.build();
+    assertThat(batches).hasSize(2);
+    assertThat(batches.get(0)).hasSize(2);
+    assertThat(batches.get(1)).hasSize(1);
+    assertThat(builder.isEmpty()).isTrue();
+  }
+
+  @Test
+  public void max_events_should_be_limited_to_service_limit() {
+    BatchBuilder builder = new BatchBuilder(Integer.MAX_VALUE, Integer.MAX_VALUE, true);
+    for(int i = 0; i <= MAX_BATCH_EVENTS; i++) {
+      builder.add(NOW, "m", 1);
+    }
+    List<List<InputLogEvent>> batches = builder.build();
+    assertThat(batches).hasSize(2);
+    assertThat(batches.get(0)).hasSize(MAX_BATCH_EVENTS);
+  }
+
+  @Test
+  public void batch_should_not_exceed_max_bytes_including_overhead() {
+    BatchBuilder builder = new BatchBuilder(MAX_BATCH_EVENTS, 2 * (10 + EVENT_OVERHEAD_BYTES), true);
+    builder.add(NOW, "0123456789", 10);
+    builder.add(NOW, "0123456789", 10);
+    builder.add(NOW, "0123456789", 10);
+
+    List<List<InputLogEvent>> batches = builder.build();
+    assertThat(batches).hasSize(2);
+    assertThat(batches.get(0)).hasSize(2);
+  }
+
+  @Test
+  public void full_batches_should_leave_the_partial_one_for_the_next_build() {
+    BatchBuilder builder = new BatchBuilder(MAX_BATCH_EVENTS, 2 * (10 + EVENT_OVERHEAD_BYTES), true);
+    builder.add(NOW, "0123456789", 10);
+    builder.add(NOW, "0123456789", 10);
+    builder.add(NOW + 1, "abcdefghij", 10);
+    assertThat(builder.isFull()).isTrue();
+
+    List<List<InputLogEvent>> batches = builder.buildFull();
+    assertThat(batches).hasSize(1);
+    assertThat(batches.get(0)).extracting(InputLogEvent::getMessage).containsExactly("0123456789", "0123456789");
+    assertThat(builder.size()).isEqualTo(1);
+    assertThat(builder.bytes()).isEqualTo(10 + EVENT_OVERHEAD_BYTES);
+
+    builder.add(NOW + 2, "klmnopqrst", 10);
+    batches = builder.buildFull();
+    assertThat(batches).hasSize(1);
+    assertThat(batches.get(0)).extracting(InputLogEvent::getMessage).containsExactly("abcdefghij", "klmnopqrst");
+    assertThat(builder.isEmpty()).isTrue();
+  }
+
+  @Test
+  public void events_should_be_sorted_chronologically() {
+    BatchBuilder builder = new BatchBuilder(MAX_BATCH_EVENTS, MAX_BATCH_BYTES, true);
+    builder.add(NOW + 2, "third", 5);
+    builder.add(NOW, "first", 5);
+    builder.add(NOW + 1, "second", 6);
+
+    List<InputLogEvent> batch = builder.build().get(0);
+    assertThat(batch).extracting(InputLogEvent::getMessage).containsExactly("first", "second", "third");
+  }
+
+  @Test
+  public void batch_should_not_span_more_than_24_hours() {
+    BatchBuilder builder = new BatchBuilder(MAX_BATCH_EVENTS, MAX_BATCH_BYTES, true);
+    builder.add(NOW, "first", 5);
+    builder.add(NOW + TimeUnit.HOURS.toMillis(23), "second", 6);
+    builder.add(NOW + TimeUnit.HOURS.toMillis(25), "third", 5);
+
+    List<List<InputLogEvent>> batches = builder.build();
+    assertThat(batches).hasSize(2);
+    assertThat(batches.get(1)).extracting(InputLogEvent::getMessage).containsExactly("third");
+  }
+
+  @Test
+  public void oversized_event_should_be_split() {
+    BatchBuilder builder = new BatchBuilder(MAX_BATCH_EVENTS, MAX_BATCH_BYTES, true);
+    builder.add(NOW, oversizedMessage(), oversizedMessage().getBytes(UTF_8).length);
+
+    List<InputLogEvent> batch = builder.build().get(0);
+    assertThat(batch).hasSize(2);
+    assertThat(batch).allSatisfy(event ->
+        assertThat(event.getMessage().getBytes(UTF_8).length + EVENT_OVERHEAD_BYTES).isLessThanOrEqualTo(MAX_EVENT_BYTES));
+    assertThat(batch.get(0).getMessage() + batch.get(1).getMessage()).isEqualTo(oversizedMessage());
+  }
+
+  @Test
+  public void oversized_event_should_be_truncated() {
+    BatchBuilder builder = new BatchBuilder(MAX_BATCH_EVENTS, MAX_BATCH_BYTES, false);
+    builder.add(NOW, oversizedMessage(), oversizedMessage().getBytes(UTF_8).length);
+
+    List<InputLogEvent> batch = builder.build().get(0);
+    assertThat(batch).hasSize(1);
+    assertThat(batch.get(0).getMessage().getBytes(UTF_8).length).isEqualTo((MAX_EVENT_BYTES - EVENT_OVERHEAD_BYTES) / 3 * 3);
+  }
+
+  @Test
+  public void builder_should_be_reusable() {
+    BatchBuilder builder = new BatchBuilder(MAX_BATCH_EVENTS, MAX_BATCH_BYTES, true);
+    builder.add(NOW, "first", 5);
+    builder.add(NOW, "second", 6);
+    assertThat(builder.build().get(0)).hasSize(2);
+
+    builder.add(NOW, "third", 5);
+    assertThat(builder.size()).isEqualTo(1);
+    assertThat(builder.build().get(0)).extracting(InputLogEvent::getMessage).containsExactly("third");
+  }
+
+  private static String oversizedMessage() {
+    StringBuilder message = new StringBuilder();
+    while(message.length() < MAX_EVENT_BYTES / 3 + 10) {
+      message.append('€'); // 3 bytes in UTF-8
+    }
+    return message.toString();
+  }
+
+}
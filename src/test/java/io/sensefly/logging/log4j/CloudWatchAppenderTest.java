@@ -1,27 +1,60 @@
 package io.sensefly.logging.log4j;
 
+import com.amazonaws.services.logs.model.InputLogEvent;
 import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.MarkerManager;
 import org.apache.logging.log4j.core.Layout;
 import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.impl.MutableLogEvent;
 import org.apache.logging.log4j.core.layout.PatternLayout;
 import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.message.StringMapMessage;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import static org.apache.logging.log4j.core.layout.PatternLayout.SIMPLE_CONVERSION_PATTERN;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyLong;
 import static org.mockito.Mockito.anyList;
+import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 public class CloudWatchAppenderTest {
 
   @Mock
   private CloudWatchLogService cloudWatchLogService;
 
+  @Mock
+  private CloudWatchLogService otherCloudWatchLogService;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
   @Before
   public void initMocks() {
     MockitoAnnotations.initMocks(this);
@@ -55,4 +88,488 @@ public class CloudWatchAppenderTest {
 
   }
 
-}
\ No newline at end of file
+  @Test
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public void full_batch_should_be_sent_before_linger() {
+
+    Layout layout = PatternLayout.newBuilder().withPattern(SIMPLE_CONVERSION_PATTERN).build();
+    CloudWatchAppender appender = new CloudWatchAppender("test-appender", layout, cloudWatchLogService,
+        new AppenderSettings().withMessagesBatchSize(2).withLingerMs(60_000));
+
+    appender.start();
+    try {
+      appender.append(newEvent("Test 1"));
+      verify(cloudWatchLogService, after(200).never()).sendMessages(anyList());
+
+      appender.append(newEvent("Test 2"));
+
+      ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+      verify(cloudWatchLogService, timeout(5000).times(1)).sendMessages(captor.capture());
+      assertThat(captor.getValue()).hasSize(2);
+
+    } finally {
+      appender.stop();
+    }
+  }
+
+  @Test
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public void batch_should_be_split_on_max_bytes() {
+
+    Layout layout = PatternLayout.newBuilder().withPattern("%m").build();
+    CloudWatchAppender appender = new CloudWatchAppender("test-appender", layout, cloudWatchLogService,
+        new AppenderSettings().withMaxBatchBytes(2 * (4 + 26)).withLingerMs(60_000));
+
+    appender.start();
+    try {
+      appender.append(newEvent("abcd"));
+      appender.append(newEvent("efgh"));
+      appender.append(newEvent("ijkl"));
+
+      ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+      verify(cloudWatchLogService, timeout(5000).times(1)).sendMessages(captor.capture());
+      assertThat(captor.getValue()).hasSize(2);
+
+    } finally {
+      appender.stop();
+    }
+  }
+
+  @Test
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public void batch_full_by_bytes_should_be_sent_before_linger() {
+
+    Layout layout = PatternLayout.newBuilder().withPattern("%m").build();
+    CloudWatchAppender appender = new CloudWatchAppender("test-appender", layout, cloudWatchLogService,
+        new AppenderSettings().withMaxBatchBytes(2 * (4 + 26)).withLingerMs(60_000));
+
+    appender.start();
+    try {
+      appender.append(newEvent("abcd"));
+      verify(cloudWatchLogService, after(200).never()).sendMessages(anyList());
+
+      appender.append(newEvent("efgh"));
+
+      ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+      verify(cloudWatchLogService, timeout(5000).times(1)).sendMessages(captor.capture());
+      assertThat(captor.getValue()).hasSize(2);
+
+    } finally {
+      appender.stop();
+    }
+  }
+
+  @Test
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public void events_left_over_by_a_batch_full_by_bytes_should_wait_for_the_next_batch() {
+
+    Layout layout = PatternLayout.newBuilder().withPattern("%m").build();
+    CloudWatchAppender appender = new CloudWatchAppender("test-appender", layout, cloudWatchLogService,
+        new AppenderSettings().withMaxBatchBytes(2 * (4 + 26)).withLingerMs(60_000));
+
+    appender.start();
+    try {
+      appender.append(newEvent("abcd"));
+      appender.append(newEvent("efgh"));
+      appender.append(newEvent("ijkl"));
+
+      ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+      verify(cloudWatchLogService, after(300).times(1)).sendMessages(captor.capture());
+      assertThat(captor.getValue()).extracting("message").containsExactly("abcd", "efgh");
+
+    } finally {
+      appender.stop();
+    }
+    verify(cloudWatchLogService, times(2)).sendMessages(anyList());
+  }
+
+  @Test
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public void every_shard_should_send_in_parallel() {
+
+    doAnswer(invocation -> slowSend()).when(cloudWatchLogService).sendMessages(anyList());
+    doAnswer(invocation -> slowSend()).when(otherCloudWatchLogService).sendMessages(anyList());
+
+    Layout layout = PatternLayout.newBuilder().withPattern("%m").build();
+    CloudWatchAppender appender = new CloudWatchAppender("test-appender", layout,
+        Arrays.asList(cloudWatchLogService, otherCloudWatchLogService),
+        new AppenderSettings().withMessagesBatchSize(1).withStreamShards(2));
+
+    appender.start();
+    try {
+      for(int i = 0; i < 100; i++) {
+        appender.append(newEvent("message " + i));
+      }
+      verify(cloudWatchLogService, timeout(5000).atLeastOnce()).sendMessages(anyList());
+      verify(otherCloudWatchLogService, timeout(5000).atLeastOnce()).sendMessages(anyList());
+
+    } finally {
+      appender.stop();
+    }
+  }
+
+  @Test
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public void events_should_be_batched_per_destination() {
+
+    Layout layout = PatternLayout.newBuilder().withPattern("%m").build();
+    CloudWatchAppender appender = new CloudWatchAppender("test-appender", layout, cloudWatchLogService,
+        new AppenderSettings().withLogStreamNamePattern("%m").withLingerMs(60_000).withMessagesBatchSize(2));
+
+    appender.start();
+    try {
+      appender.append(newEvent("first"));
+      appender.append(newEvent("second"));
+      appender.append(newEvent("first"));
+
+      ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+      verify(cloudWatchLogService, timeout(5000)).sendMessages(eq(new LogDestination(null, "first")),
+          captor.capture());
+      assertThat(captor.getValue()).hasSize(2);
+      // the partial batch waits to fill up
+      verify(cloudWatchLogService, after(200).never()).sendMessages(eq(new LogDestination(null, "second")), anyList());
+
+    } finally {
+      appender.stop();
+    }
+    verify(cloudWatchLogService).sendMessages(eq(new LogDestination(null, "second")), anyList());
+  }
+
+  @Test
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public void metrics_should_be_registered_in_jmx_while_started() throws Exception {
+
+    Layout layout = PatternLayout.newBuilder().withPattern(SIMPLE_CONVERSION_PATTERN).build();
+    CloudWatchAppender appender = new CloudWatchAppender("metrics-appender", layout, cloudWatchLogService,
+        new AppenderSettings());
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName("io.sensefly.logging.log4j:type=CloudWatchAppender,name=\"metrics-appender\"");
+
+    appender.start();
+    try {
+      appender.append(newEvent("Test"));
+
+      assertThat(server.isRegistered(name)).isTrue();
+      assertThat(server.getAttribute(name, "AppendedEvents")).isEqualTo(1L);
+      assertThat(server.getAttribute(name, "QueueCapacity")).isEqualTo(1024);
+    } finally {
+      appender.stop();
+    }
+    assertThat(server.isRegistered(name)).isFalse();
+  }
+
+  @Test
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public void disabled_metrics_should_not_be_recorded() {
+
+    Layout layout = PatternLayout.newBuilder().withPattern(SIMPLE_CONVERSION_PATTERN).build();
+    CloudWatchAppender appender = new CloudWatchAppender("disabled-metrics-appender", layout, cloudWatchLogService,
+        new AppenderSettings().withMetricsEnabled(false));
+
+    appender.start();
+    try {
+      appender.append(newEvent("Test"));
+
+      assertThat(appender.getMetrics().getAppendedEvents()).isZero();
+      assertThat(((AppenderMetrics) appender.getMetrics()).getObjectName()).isNull();
+    } finally {
+      appender.stop();
+    }
+  }
+
+  @Test
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public void repeated_events_should_be_summarized() {
+
+    Layout layout = PatternLayout.newBuilder().withPattern("%m").build();
+    CloudWatchAppender appender = new CloudWatchAppender("test-appender", layout, cloudWatchLogService,
+        new AppenderSettings().withDedupWindowMs(60_000).withLingerMs(60_000));
+
+    appender.start();
+    try {
+      for(int i = 0; i < 10; i++) {
+        appender.append(newEvent("Test"));
+      }
+      assertThat(appender.getMetrics().getSuppressedEvents()).isEqualTo(9);
+    } finally {
+      appender.stop();
+    }
+
+    ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+    verify(cloudWatchLogService).sendMessages(captor.capture());
+    assertThat(captor.getValue())
+        .extracting("message")
+        .containsExactly("Test", "Suppressed 9 repeats within 60000 ms of: Test");
+  }
+
+  @Test
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public void metric_events_should_be_sent_as_embedded_metric_documents() {
+
+    Layout layout = PatternLayout.newBuilder().withPattern("%p %m").build();
+    CloudWatchAppender appender = new CloudWatchAppender("test-appender", layout, cloudWatchLogService,
+        new AppenderSettings().withMetricMarker("METRIC").withMetricNamespace("MyApp").withLingerMs(60_000));
+
+    appender.start();
+    try {
+      for(int i = 0; i < 10; i++) {
+        appender.append(Log4jLogEvent.newBuilder()
+            .setLoggerName("TestLogger")
+            .setLevel(Level.INFO)
+            .setMarker(MarkerManager.getMarker("METRIC"))
+            .setMessage(new StringMapMessage().with("latency", 10))
+            .build());
+      }
+      appender.append(newEvent("Test"));
+    } finally {
+      appender.stop();
+    }
+
+    ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+    verify(cloudWatchLogService).sendMessages(captor.capture());
+    assertThat(captor.getValue()).extracting("message").hasSize(2).contains("INFO Test");
+    assertThat(captor.getValue()).extracting("message").element(1).asString()
+        .startsWith("{\"_aws\":{\"Timestamp\":")
+        .endsWith(",\"latency\":{\"Values\":[10],\"Counts\":[10],\"Max\":10,\"Min\":10,\"Count\":10,\"Sum\":100}}");
+  }
+
+  @Test
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public void mutable_events_should_be_captured_on_append() {
+
+    Layout layout = PatternLayout.newBuilder().withPattern("%m").build();
+    CloudWatchAppender appender = new CloudWatchAppender("test-appender", layout, cloudWatchLogService,
+        new AppenderSettings().withLingerMs(60_000));
+
+    appender.start();
+    try {
+      MutableLogEvent event = new MutableLogEvent();
+      event.setLoggerName("TestLogger");
+      event.setLevel(Level.INFO);
+      event.setMessage(new SimpleMessage("Test 1"));
+      appender.append(event);
+      // reused by the next log call, like the events of the async and garbage-free loggers
+      event.setMessage(new SimpleMessage("Test 2"));
+      appender.append(event);
+    } finally {
+      appender.stop();
+    }
+
+    ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+    verify(cloudWatchLogService).sendMessages(captor.capture());
+    assertThat(captor.getValue()).extracting("message").containsExactly("Test 1", "Test 2");
+  }
+
+  @Test
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public void end_of_batch_should_send_without_linger() {
+
+    Layout layout = PatternLayout.newBuilder().withPattern("%m").build();
+    CloudWatchAppender appender = new CloudWatchAppender("test-appender", layout, cloudWatchLogService,
+        new AppenderSettings().withEncodeOnAppend(true).withLingerMs(60_000));
+
+    appender.start();
+    try {
+      appender.append(newEvent("Test 1"));
+      verify(cloudWatchLogService, after(300).never()).sendMessages(anyList());
+
+      appender.append(Log4jLogEvent.newBuilder()
+          .setLoggerName("TestLogger")
+          .setLevel(Level.INFO)
+          .setMessage(new SimpleMessage("Test 2"))
+          .setEndOfBatch(true)
+          .build());
+
+      ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+      verify(cloudWatchLogService, timeout(5000)).sendMessages(captor.capture());
+      assertThat(captor.getValue()).extracting("message").containsExactly("Test 1", "Test 2");
+    } finally {
+      appender.stop();
+    }
+  }
+
+  @Test
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public void lane_should_keep_sending_after_an_error() {
+
+    doAnswer(invocation -> {
+      throw new NoClassDefFoundError("Unexpected");
+    }).doNothing().when(cloudWatchLogService).sendMessages(anyList());
+
+    Layout layout = PatternLayout.newBuilder().withPattern("%m").build();
+    CloudWatchAppender appender = new CloudWatchAppender("test-appender", layout, cloudWatchLogService,
+        new AppenderSettings().withMessagesBatchSize(1));
+
+    appender.start();
+    try {
+      appender.append(newEvent("Test 1"));
+      verify(cloudWatchLogService, timeout(5000)).sendMessages(anyList());
+      appender.append(newEvent("Test 2"));
+
+      ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+      verify(cloudWatchLogService, timeout(5000).times(2)).sendMessages(captor.capture());
+      assertThat(captor.getAllValues().get(1)).extracting("message").containsExactly("Test 2");
+    } finally {
+      appender.stop();
+    }
+  }
+
+  @Test
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public void flush_should_send_buffered_events_without_stopping() throws InterruptedException {
+
+    when(cloudWatchLogService.awaitIdle(anyLong(), any())).thenReturn(true);
+    when(otherCloudWatchLogService.awaitIdle(anyLong(), any())).thenReturn(true);
+
+    Layout layout = PatternLayout.newBuilder().withPattern("%m").build();
+    CloudWatchAppender appender = new CloudWatchAppender("test-appender", layout,
+        Arrays.asList(cloudWatchLogService, otherCloudWatchLogService),
+        new AppenderSettings().withLingerMs(60_000));
+
+    appender.start();
+    try {
+      appender.append(newEvent("Test 1"));
+      appender.append(newEvent("Test 2"));
+      assertThat(appender.flush(5, TimeUnit.SECONDS)).isTrue();
+
+      ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+      verify(cloudWatchLogService, atMost(2)).sendMessages(captor.capture());
+      verify(otherCloudWatchLogService, atMost(2)).sendMessages(captor.capture());
+      assertThat(captor.getAllValues()).flatExtracting(list -> (List<?>) list).extracting("message")
+          .containsExactlyInAnyOrder("Test 1", "Test 2");
+      assertThat(appender.isStarted()).isTrue();
+
+      appender.append(newEvent("Test 3"));
+      assertThat(appender.flush(5, TimeUnit.SECONDS)).isTrue();
+    } finally {
+      appender.stop();
+    }
+    assertThat(appender.flush(5, TimeUnit.SECONDS)).isFalse();
+  }
+
+  @Test
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public void explicit_flush_should_keep_partial_batches_until_flushed() throws InterruptedException {
+
+    when(cloudWatchLogService.awaitIdle(anyLong(), any())).thenReturn(true);
+
+    Layout layout = PatternLayout.newBuilder().withPattern("%m").build();
+    CloudWatchAppender appender = new CloudWatchAppender("test-appender", layout, cloudWatchLogService,
+        new AppenderSettings().withExplicitFlush(true).withLingerMs(10).withMessagesBatchSize(2));
+
+    appender.start();
+    try {
+      appender.append(newEvent("Test 1"));
+      appender.append(newEvent("Test 2"));
+      appender.append(newEvent("Test 3"));
+      // the full batch is sent, the partial one waits for the flush
+      verify(cloudWatchLogService, after(300).times(1)).sendMessages(anyList());
+
+      assertThat(appender.flush(5, TimeUnit.SECONDS)).isTrue();
+      ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+      verify(cloudWatchLogService, times(2)).sendMessages(captor.capture());
+      assertThat(captor.getAllValues().get(0)).extracting("message").containsExactly("Test 1", "Test 2");
+      assertThat(captor.getAllValues().get(1)).extracting("message").containsExactly("Test 3");
+    } finally {
+      appender.stop();
+    }
+  }
+
+  @Test
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public void stop_should_return_within_shutdown_timeout() {
+
+    doAnswer(invocation -> {
+      Thread.sleep(60_000);
+      return null;
+    }).when(cloudWatchLogService).sendMessages(anyList());
+
+    Layout layout = PatternLayout.newBuilder().withPattern("%m").build();
+    CloudWatchAppender appender = new CloudWatchAppender("test-appender", layout, cloudWatchLogService,
+        new AppenderSettings().withMessagesBatchSize(1).withShutdownTimeoutMs(200));
+
+    appender.start();
+    appender.append(newEvent("Test 1"));
+    verify(cloudWatchLogService, timeout(5000)).sendMessages(anyList());
+    appender.append(newEvent("Test 2"));
+    appender.append(newEvent("Test 3"));
+
+    long start = System.nanoTime();
+    assertThat(appender.stop(0, TimeUnit.MILLISECONDS)).isFalse();
+
+    assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(5000);
+    assertThat(appender.isStopped()).isTrue();
+    assertThat(appender.getDroppedCount()).isEqualTo(2);
+    verify(cloudWatchLogService).close();
+  }
+
+  @Test
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public void stop_should_release_spill_directory_for_next_appender() throws IOException {
+    Path directory = folder.newFolder().toPath();
+    Layout layout = PatternLayout.newBuilder().withPattern("%m").build();
+    AppenderSettings settings = new AppenderSettings().withSpillDirectory(directory.toString());
+    CloudWatchAppender appender = new CloudWatchAppender("test-appender", layout, cloudWatchLogService, settings);
+    appender.start();
+
+    // the appender replacing this one on a reconfiguration
+    CloudWatchAppender next = new CloudWatchAppender("test-appender", layout, otherCloudWatchLogService, settings);
+    next.stop();
+    assertThat(SpillStore.open(directory, 1024 * 1024)).isNull();
+
+    appender.stop();
+    SpillStore reopened = SpillStore.open(directory, 1024 * 1024);
+    assertThat(reopened).isNotNull();
+    reopened.close();
+  }
+
+  @Test
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public void spilled_events_should_be_replayed_to_their_destination() throws IOException {
+    LogDestination tenant = new LogDestination("app-acme", null);
+    when(cloudWatchLogService.isAvailable()).thenReturn(true);
+    doAnswer(invocation -> {
+      ((Consumer<ErrorClass>) invocation.getArgument(2)).accept(null);
+      return null;
+    }).when(cloudWatchLogService).sendMessages(any(LogDestination.class), anyList(), any());
+
+    Layout layout = PatternLayout.newBuilder().withPattern("%m").build();
+    CloudWatchAppender appender = new CloudWatchAppender("test-appender", layout, cloudWatchLogService,
+        new AppenderSettings()
+            .withSpillDirectory(folder.newFolder().toString())
+            .withLogGroupNamePattern("app-%X{tenant}")
+            .withLingerMs(1));
+    ArgumentCaptor<BiConsumer> failedEventsHandler = ArgumentCaptor.forClass(BiConsumer.class);
+    verify(cloudWatchLogService).setFailedEventsHandler(failedEventsHandler.capture());
+
+    appender.start();
+    try {
+      // a request of the tenant failed for the time being
+      failedEventsHandler.getValue().accept(tenant,
+          Collections.singletonList(new InputLogEvent().withTimestamp(1L).withMessage("spilled")));
+      // the lane replays once idle
+      appender.append(newEvent("Test"));
+
+      ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+      verify(cloudWatchLogService, timeout(5000)).sendMessages(eq(tenant), captor.capture(), any());
+      assertThat(captor.getValue()).extracting("message").containsExactly("spilled");
+    } finally {
+      appender.stop();
+    }
+  }
+
+  private static Object slowSend() throws InterruptedException {
+    Thread.sleep(10);
+    return null;
+  }
+
+  private static LogEvent newEvent(String message) {
+    return Log4jLogEvent.newBuilder()
+        .setLoggerName("TestLogger")
+        .setLoggerFqcn(CloudWatchAppenderTest.class.getName())
+        .setLevel(Level.INFO)
+        .setMessage(new SimpleMessage(message))
+        .build();
+  }
+
+}
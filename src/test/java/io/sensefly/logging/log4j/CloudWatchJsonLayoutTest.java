@@ -0,0 +1,172 @@
+package io.sensefly.logging.log4j;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.MarkerManager;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CloudWatchJsonLayoutTest {
+
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final CloudWatchJsonLayout layout = CloudWatchJsonLayout.createLayout(2, true);
+
+  @Test
+  public void event_should_be_written_as_compact_json() {
+    LogEvent event = newEvent(Level.INFO, new ParameterizedMessage("Hello {}", "world")).build();
+
+    assertThat(layout.toSerializable(event)).isEqualTo("{\"timestamp\":1500000000000,\"level\":\"INFO\","
+        + "\"logger\":\"TestLogger\",\"thread\":\"main\",\"message\":\"Hello world\"}");
+  }
+
+  @Test
+  public void special_characters_should_be_escaped() throws IOException {
+    String message = "quote \" backslash \\ new line \n tab \t control \u0001 unicode café €";
+    LogEvent event = newEvent(Level.INFO, new SimpleMessage(message)).build();
+
+    String json = layout.toSerializable(event);
+
+    assertThat(json).doesNotContain("\n");
+    assertThat(mapper.readTree(json).get("message").asText()).isEqualTo(message);
+  }
+
+  @Test
+  public void marker_and_context_should_be_written() throws IOException {
+    SortedArrayStringMap contextData = new SortedArrayStringMap();
+    contextData.putValue("requestId", "abc");
+    contextData.putValue("tenant", "a\"b");
+    LogEvent event = newEvent(Level.WARN, new SimpleMessage("message"))
+        .setMarker(MarkerManager.getMarker("AUDIT"))
+        .setContextData(contextData)
+        .build();
+
+    JsonNode json = mapper.readTree(layout.toSerializable(event));
+
+    assertThat(json.get("marker").asText()).isEqualTo("AUDIT");
+    assertThat(json.get("context").get("requestId").asText()).isEqualTo("abc");
+    assertThat(json.get("context").get("tenant").asText()).isEqualTo("a\"b");
+  }
+
+  @Test
+  public void context_should_be_skipped_when_excluded() throws IOException {
+    SortedArrayStringMap contextData = new SortedArrayStringMap();
+    contextData.putValue("requestId", "abc");
+    LogEvent event = newEvent(Level.INFO, new SimpleMessage("message")).setContextData(contextData).build();
+
+    JsonNode json = mapper.readTree(CloudWatchJsonLayout.createLayout(2, false).toSerializable(event));
+
+    assertThat(json.has("context")).isFalse();
+  }
+
+  @Test
+  public void exception_should_be_written_with_limited_frames() throws IOException {
+    IllegalStateException thrown = new IllegalStateException("failed", new IllegalArgumentException("cause"));
+    LogEvent event = newEvent(Level.ERROR, new SimpleMessage("message")).setThrown(thrown).build();
+
+    JsonNode exception = mapper.readTree(layout.toSerializable(event)).get("exception");
+
+    assertThat(exception.get("class").asText()).isEqualTo("java.lang.IllegalStateException");
+    assertThat(exception.get("message").asText()).isEqualTo("failed");
+    String[] lines = exception.get("stackTrace").asText().split("\n");
+    assertThat(lines[0]).isEqualTo("java.lang.IllegalStateException: failed");
+    assertThat(lines[1]).startsWith("\tat " + CloudWatchJsonLayoutTest.class.getName()
+        + ".exception_should_be_written_with_limited_frames(CloudWatchJsonLayoutTest.java:");
+    assertThat(lines[3]).matches("\t\\.\\.\\. \\d+ more");
+    assertThat(lines[4]).isEqualTo("Caused by: java.lang.IllegalArgumentException: cause");
+  }
+
+  @Test
+  public void suppressed_exceptions_should_be_written_like_print_stack_trace() throws IOException {
+    IllegalStateException thrown = new IllegalStateException("failed");
+    IllegalArgumentException suppressed = new IllegalArgumentException("closing", new RuntimeException("io"));
+    suppressed.setStackTrace(new StackTraceElement[] { new StackTraceElement("Resource", "close", "R.java", 7) });
+    thrown.addSuppressed(suppressed);
+    LogEvent event = newEvent(Level.ERROR, new SimpleMessage("message")).setThrown(thrown).build();
+
+    JsonNode exception = mapper.readTree(layout.toSerializable(event)).get("exception");
+
+    String[] lines = exception.get("stackTrace").asText().split("\n");
+    assertThat(lines[0]).isEqualTo("java.lang.IllegalStateException: failed");
+    assertThat(lines[4]).isEqualTo("\tSuppressed: java.lang.IllegalArgumentException: closing");
+    assertThat(lines[5]).isEqualTo("\t\tat Resource.close(R.java:7)");
+    assertThat(lines[6]).isEqualTo("\tCaused by: java.lang.RuntimeException: io");
+    assertThat(lines[7]).startsWith("\t\tat ");
+  }
+
+  @Test
+  public void causes_beyond_limit_should_be_counted() throws IOException {
+    Throwable thrown = new RuntimeException("cause 0");
+    for(int i = 1; i < 10; i++) {
+      thrown = new RuntimeException("cause " + i, thrown);
+    }
+    LogEvent event = newEvent(Level.ERROR, new SimpleMessage("message")).setThrown(thrown).build();
+
+    JsonNode exception = mapper.readTree(CloudWatchJsonLayout.createLayout(0, true).toSerializable(event))
+        .get("exception");
+
+    String[] lines = exception.get("stackTrace").asText().split("\n");
+    assertThat(lines).filteredOn(line -> line.startsWith("Caused by: ")).hasSize(7);
+    assertThat(lines[lines.length - 1]).isEqualTo("... 2 more causes");
+  }
+
+  @Test
+  public void circular_causes_should_be_cut() throws IOException {
+    IllegalStateException thrown = new IllegalStateException("failed");
+    IllegalArgumentException cause = new IllegalArgumentException("cause", thrown);
+    thrown.initCause(cause);
+    LogEvent event = newEvent(Level.ERROR, new SimpleMessage("message")).setThrown(thrown).build();
+
+    JsonNode exception = mapper.readTree(CloudWatchJsonLayout.createLayout(0, true).toSerializable(event))
+        .get("exception");
+
+    assertThat(exception.get("stackTrace").asText().split("\n")).containsExactly(
+        "java.lang.IllegalStateException: failed",
+        "\t... " + thrown.getStackTrace().length + " more",
+        "Caused by: java.lang.IllegalArgumentException: cause",
+        "\t... " + cause.getStackTrace().length + " more",
+        "Caused by: [CIRCULAR REFERENCE: java.lang.IllegalStateException: failed]");
+  }
+
+  @Test
+  public void throwable_renderer_should_write_stack_trace() throws IOException {
+    LogEvent event = newEvent(Level.ERROR, new SimpleMessage("message"))
+        .setThrown(new IllegalStateException("failed"))
+        .build();
+    StringBuilder text = new StringBuilder();
+    layout.format(event, text, new ThrowableRenderer(0, null, 60_000, 16));
+
+    JsonNode exception = mapper.readTree(text.toString()).get("exception");
+
+    assertThat(exception.get("class").asText()).isEqualTo("java.lang.IllegalStateException");
+    assertThat(exception.get("stackTrace").asText())
+        .startsWith("java.lang.IllegalStateException: failed [stack trace ")
+        .contains("\n\tat ");
+  }
+
+  @Test
+  public void encoded_bytes_should_match_text() {
+    LogEvent event = newEvent(Level.INFO, new SimpleMessage("café €")).build();
+
+    assertThat(new String(layout.toByteArray(event), UTF_8)).isEqualTo(layout.toSerializable(event));
+  }
+
+  private static Log4jLogEvent.Builder newEvent(Level level, org.apache.logging.log4j.message.Message message) {
+    return Log4jLogEvent.newBuilder()
+        .setLoggerName("TestLogger")
+        .setLevel(level)
+        .setThreadName("main")
+        .setTimeMillis(1_500_000_000_000L)
+        .setMessage(message);
+  }
+
+}
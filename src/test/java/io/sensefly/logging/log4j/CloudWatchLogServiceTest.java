@@ -1,24 +1,46 @@
 package io.sensefly.logging.log4j;
 
+import com.amazonaws.SdkClientException;
 import com.amazonaws.services.logs.AWSLogs;
+import com.amazonaws.services.logs.model.AWSLogsException;
+import com.amazonaws.services.logs.model.CreateLogStreamRequest;
+import com.amazonaws.services.logs.model.DataAlreadyAcceptedException;
+import com.amazonaws.services.logs.model.DescribeLogGroupsRequest;
+import com.amazonaws.services.logs.model.DescribeLogStreamsRequest;
 import com.amazonaws.services.logs.model.InputLogEvent;
+import com.amazonaws.services.logs.model.InvalidParameterException;
 import com.amazonaws.services.logs.model.InvalidSequenceTokenException;
 import com.amazonaws.services.logs.model.PutLogEventsRequest;
+import com.amazonaws.services.logs.model.PutLogEventsResult;
+import com.amazonaws.services.logs.model.ServiceUnavailableException;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.io.IOException;
 import java.time.Clock;
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.time.ZoneOffset.UTC;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
 import static org.assertj.core.util.Lists.emptyList;
 import static org.assertj.core.util.Lists.newArrayList;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -36,11 +58,18 @@ public class CloudWatchLogServiceTest {
 
   private final Clock clock = Clock.fixed(CLOCK_DATE.atStartOfDay().toInstant(UTC), UTC.normalized());
 
+  private final SenderPool senderPool = new SenderPool(1);
+
   @Before
   public void initMocks() {
     MockitoAnnotations.initMocks(this);
   }
 
+  @After
+  public void shutdownSenderPool() {
+    senderPool.shutdown();
+  }
+
   @Test
   public void should_send_message() {
     CloudWatchLogService service = new CloudWatchLogService(GROUP_NAME, STREAM_NAME_PREFIX, awsLogs, clock);
@@ -69,8 +98,434 @@ public class CloudWatchLogServiceTest {
 
     service.sendMessages(emptyList());
 
+    // the resend waits for the rate controller off the calling thread
+    verify(awsLogs, timeout(5000).times(2)).putLogEvents(any(PutLogEventsRequest.class));
+  }
+
+  @Test
+  public void shards_should_send_to_their_own_stream() {
+    List<CloudWatchLogService> services = CloudWatchLogService.createShards(GROUP_NAME, STREAM_NAME_PREFIX,
+        new AppenderSettings().withStreamShards(2), awsLogs, new SyncLogTransport(awsLogs), clock, "host");
+    assertThat(services).hasSize(2);
+
+    List<InputLogEvent> events = newArrayList(new InputLogEvent().withMessage("message").withTimestamp(0L));
+    services.get(0).sendMessages(events);
+    services.get(1).sendMessages(events);
+
+    ArgumentCaptor<PutLogEventsRequest> captor = ArgumentCaptor.forClass(PutLogEventsRequest.class);
+    verify(awsLogs, timeout(5000).times(2)).putLogEvents(captor.capture());
+    assertThat(captor.getAllValues())
+        .extracting(PutLogEventsRequest::getLogStreamName)
+        .containsExactly(STREAM_NAME + "/host-0", STREAM_NAME + "/host-1");
+    verify(awsLogs, times(1)).describeLogGroups(any(DescribeLogGroupsRequest.class));
+  }
+
+  @Test
+  public void single_shard_should_not_suffix_stream() {
+    List<CloudWatchLogService> services = CloudWatchLogService.createShards(GROUP_NAME, STREAM_NAME_PREFIX,
+        new AppenderSettings(), awsLogs, new SyncLogTransport(awsLogs), clock, "host");
+    assertThat(services).hasSize(1);
+
+    services.get(0).sendMessages(emptyList());
+
+    ArgumentCaptor<PutLogEventsRequest> captor = ArgumentCaptor.forClass(PutLogEventsRequest.class);
+    verify(awsLogs, times(1)).putLogEvents(captor.capture());
+    assertThat(captor.getValue().getLogStreamName()).isEqualTo(STREAM_NAME);
+  }
+
+  @Test
+  public void assume_exists_should_send_without_describe_calls() {
+    List<CloudWatchLogService> services = CloudWatchLogService.createShards(GROUP_NAME, STREAM_NAME_PREFIX,
+        new AppenderSettings().withAssumeExists(true), awsLogs, new SyncLogTransport(awsLogs), clock, "host");
+
+    services.get(0).sendMessages(emptyList());
+
+    verify(awsLogs, times(1)).putLogEvents(any(PutLogEventsRequest.class));
+    verify(awsLogs, never()).describeLogGroups(any(DescribeLogGroupsRequest.class));
+    verify(awsLogs, never()).describeLogStreams(any(DescribeLogStreamsRequest.class));
+  }
+
+  @Test
+  public void routed_events_should_be_sent_to_their_destination() {
+    CloudWatchLogService service = new CloudWatchLogService(GROUP_NAME, STREAM_NAME_PREFIX, awsLogs, clock);
+
+    service.sendMessages(new LogDestination("tenant_group", null), emptyList());
+    service.sendMessages(new LogDestination("tenant_group", "tenant_stream"), emptyList());
+    service.sendMessages(new LogDestination("tenant_group", null), emptyList());
+
+    ArgumentCaptor<PutLogEventsRequest> captor = ArgumentCaptor.forClass(PutLogEventsRequest.class);
+    verify(awsLogs, timeout(5000).times(3)).putLogEvents(captor.capture());
+    assertThat(captor.getAllValues())
+        .extracting(PutLogEventsRequest::getLogGroupName, PutLogEventsRequest::getLogStreamName)
+        .containsExactly(tuple("tenant_group", STREAM_NAME), tuple("tenant_group", "tenant_stream/2017/09"),
+            tuple("tenant_group", STREAM_NAME));
+    // the default group when bootstrapping then the routed group, once
+    verify(awsLogs, times(2)).describeLogGroups(any(DescribeLogGroupsRequest.class));
+    verify(awsLogs, times(2)).createLogStream(any(CreateLogStreamRequest.class));
+  }
+
+  @Test
+  public void evicted_routes_should_be_resolved_again() {
+    List<CloudWatchLogService> services = CloudWatchLogService.createShards(GROUP_NAME, STREAM_NAME_PREFIX,
+        new AppenderSettings().withRouteCacheSize(1), awsLogs, new SyncLogTransport(awsLogs), clock, "host");
+    CloudWatchLogService service = services.get(0);
+
+    service.sendMessages(new LogDestination(null, "first"), emptyList());
+    service.sendMessages(new LogDestination(null, "second"), emptyList());
+    service.sendMessages(new LogDestination(null, "first"), emptyList());
+
+    verify(awsLogs, times(3)).createLogStream(any(CreateLogStreamRequest.class));
+  }
+
+  @Test
+  public void failed_events_should_be_handed_to_handler() {
+    CloudWatchLogService service = newRetryingService(0);
+    when(awsLogs.putLogEvents(any(PutLogEventsRequest.class))).thenThrow(new ServiceUnavailableException("error"));
+    List<InputLogEvent> failed = new ArrayList<>();
+    service.setFailedEventsHandler((destination, events) -> failed.addAll(events));
+
+    service.sendMessages(newArrayList(new InputLogEvent().withMessage("message").withTimestamp(0L)));
+
+    assertThat(failed).extracting(InputLogEvent::getMessage).containsExactly("message");
+    assertThat(service.isAvailable()).isFalse();
+  }
+
+  @Test
+  public void failed_events_should_be_handed_with_their_destination() {
+    CloudWatchLogService service = newRetryingService(0);
+    when(awsLogs.putLogEvents(any(PutLogEventsRequest.class))).thenThrow(new ServiceUnavailableException("error"));
+    List<LogDestination> destinations = new ArrayList<>();
+    service.setFailedEventsHandler((destination, events) -> destinations.add(destination));
+
+    LogDestination tenant = new LogDestination("tenant", null);
+    service.sendMessages(tenant, newArrayList(new InputLogEvent().withMessage("message").withTimestamp(0L)));
+
+    assertThat(destinations).containsExactly(tenant);
+  }
+
+  @Test
+  public void request_listener_should_be_called_instead_of_handler() {
+    CloudWatchLogService service = newRetryingService(0);
+    when(awsLogs.putLogEvents(any(PutLogEventsRequest.class)))
+        .thenThrow(new ServiceUnavailableException("error"))
+        .thenReturn(new PutLogEventsResult().withNextSequenceToken("token"));
+    List<InputLogEvent> failed = new ArrayList<>();
+    service.setFailedEventsHandler((destination, events) -> failed.addAll(events));
+    List<ErrorClass> completed = new ArrayList<>();
+
+    List<InputLogEvent> events = newArrayList(new InputLogEvent().withMessage("message").withTimestamp(0L));
+    service.sendMessages(LogDestination.DEFAULT, events, completed::add);
+    service.sendMessages(LogDestination.DEFAULT, events, completed::add);
+
+    assertThat(completed).containsExactly(ErrorClass.SERVICE_UNAVAILABLE, null);
+    assertThat(failed).isEmpty();
+  }
+
+  @Test
+  public void throttled_request_should_be_retried_after_backoff() throws InterruptedException {
+    CloudWatchLogService service = newRetryingService(3);
+    AWSLogsException throttling = new AWSLogsException("Rate exceeded");
+    throttling.setErrorCode("ThrottlingException");
+    when(awsLogs.putLogEvents(any(PutLogEventsRequest.class)))
+        .thenThrow(throttling)
+        .thenReturn(new PutLogEventsResult().withNextSequenceToken("token"));
+    List<InputLogEvent> failed = new ArrayList<>();
+    service.setFailedEventsHandler((destination, events) -> failed.addAll(events));
+
+    service.sendMessages(newArrayList(new InputLogEvent().withMessage("message").withTimestamp(0L)));
+
+    assertThat(service.awaitIdle(5, TimeUnit.SECONDS)).isTrue();
     verify(awsLogs, times(2)).putLogEvents(any(PutLogEventsRequest.class));
+    assertThat(failed).isEmpty();
+    assertThat(service.isAvailable()).isTrue();
+  }
+
+  @Test
+  public void backoff_should_not_block_the_sending_thread() throws InterruptedException {
+    CloudWatchLogService service = newRetryingService(3, 60_000);
+    when(awsLogs.putLogEvents(any(PutLogEventsRequest.class))).thenThrow(new ServiceUnavailableException("error"));
+
+    long start = System.nanoTime();
+    service.sendMessages(newArrayList(new InputLogEvent().withMessage("message").withTimestamp(0L)));
+
+    assertThat(System.nanoTime() - start).isLessThan(TimeUnit.SECONDS.toNanos(5));
+    assertThat(service.awaitIdle(100, TimeUnit.MILLISECONDS)).isFalse();
+    service.close();
+    assertThat(service.awaitIdle(5, TimeUnit.SECONDS)).isTrue();
+  }
+
+  @Test
+  public void service_should_be_busy_until_bootstrapped() throws InterruptedException {
+    CloudWatchLogService service = newRetryingService(0);
+    CountDownLatch ready = new CountDownLatch(1);
+    service.setReadyListener(ready::countDown);
+    assertThat(service.isBusy()).isTrue();
+
+    service.startBootstrap();
+
+    assertThat(ready.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(service.isBusy()).isFalse();
+  }
+
+  @Test
+  public void transient_errors_should_be_handed_to_handler_when_retries_are_exhausted() throws InterruptedException {
+    CloudWatchLogService service = newRetryingService(2);
+    when(awsLogs.putLogEvents(any(PutLogEventsRequest.class))).thenThrow(new ServiceUnavailableException("error"));
+    List<InputLogEvent> failed = new ArrayList<>();
+    service.setFailedEventsHandler((destination, events) -> failed.addAll(events));
+
+    service.sendMessages(newArrayList(new InputLogEvent().withMessage("message").withTimestamp(0L)));
+
+    assertThat(service.awaitIdle(5, TimeUnit.SECONDS)).isTrue();
+    verify(awsLogs, times(3)).putLogEvents(any(PutLogEventsRequest.class));
+    assertThat(failed).extracting(InputLogEvent::getMessage).containsExactly("message");
+  }
+
+  @Test
+  public void permanent_error_should_not_be_retried_nor_handed_to_handler() throws InterruptedException {
+    CloudWatchLogService service = newRetryingService(3);
+    AppenderMetrics metrics = new AppenderMetrics(null, true);
+    service.setMetrics(metrics);
+    when(awsLogs.putLogEvents(any(PutLogEventsRequest.class))).thenThrow(new InvalidParameterException("error"));
+    List<InputLogEvent> failed = new ArrayList<>();
+    service.setFailedEventsHandler((destination, events) -> failed.addAll(events));
+
+    service.sendMessages(newArrayList(new InputLogEvent().withMessage("message").withTimestamp(0L)));
+
+    assertThat(service.awaitIdle(5, TimeUnit.SECONDS)).isTrue();
+    verify(awsLogs, times(1)).putLogEvents(any(PutLogEventsRequest.class));
+    assertThat(failed).isEmpty();
+    assertThat(metrics.getRejectedEvents()).isEqualTo(1);
+    assertThat(service.isAvailable()).isTrue();
+  }
+
+  @Test
+  public void transient_error_resolving_a_destination_should_be_handed_to_handler() {
+    CloudWatchLogService service = newRetryingService(3);
+    when(awsLogs.describeLogGroups(argThat(request -> "tenant_group".equals(request.getLogGroupNamePrefix()))))
+        .thenThrow(new SdkClientException("unreachable", new IOException("connect timed out")));
+    List<InputLogEvent> failed = new ArrayList<>();
+    service.setFailedEventsHandler((destination, events) -> failed.addAll(events));
+
+    service.sendMessages(new LogDestination("tenant_group", null),
+        newArrayList(new InputLogEvent().withMessage("message").withTimestamp(0L)));
+
+    verify(awsLogs, never()).putLogEvents(any(PutLogEventsRequest.class));
+    assertThat(failed).extracting(InputLogEvent::getMessage).containsExactly("message");
+  }
+
+  @Test
+  public void permanent_bootstrap_error_should_drop_events() {
+    CloudWatchLogService service = newRetryingService(3);
+    AppenderMetrics metrics = new AppenderMetrics(null, true);
+    service.setMetrics(metrics);
+    AWSLogsException denied = new AWSLogsException("denied");
+    denied.setErrorCode("AccessDeniedException");
+    denied.setStatusCode(400);
+    when(awsLogs.describeLogGroups(any(DescribeLogGroupsRequest.class))).thenThrow(denied);
+    List<InputLogEvent> failed = new ArrayList<>();
+    service.setFailedEventsHandler((destination, events) -> failed.addAll(events));
+
+    service.sendMessages(newArrayList(new InputLogEvent().withMessage("message").withTimestamp(0L)));
+
+    verify(awsLogs, times(1)).describeLogGroups(any(DescribeLogGroupsRequest.class));
+    verify(awsLogs, never()).putLogEvents(any(PutLogEventsRequest.class));
+    assertThat(failed).isEmpty();
+    assertThat(metrics.getRejectedEvents()).isEqualTo(1);
+  }
+
+  @Test
+  public void data_already_accepted_should_not_be_resent() {
+    CloudWatchLogService service = newRetryingService(3);
+    when(awsLogs.putLogEvents(any(PutLogEventsRequest.class)))
+        .thenThrow(new DataAlreadyAcceptedException("error").withExpectedSequenceToken("token"))
+        .thenReturn(new PutLogEventsResult());
+    List<InputLogEvent> failed = new ArrayList<>();
+    service.setFailedEventsHandler((destination, events) -> failed.addAll(events));
+
+    service.sendMessages(emptyList());
+    service.sendMessages(emptyList());
+
+    ArgumentCaptor<PutLogEventsRequest> captor = ArgumentCaptor.forClass(PutLogEventsRequest.class);
+    verify(awsLogs, timeout(1000).times(2)).putLogEvents(captor.capture());
+    assertThat(captor.getAllValues().get(1).getSequenceToken()).isEqualTo("token");
+    assertThat(failed).isEmpty();
   }
 
+  @Test
+  public void metrics_should_count_sent_requests_and_retries() throws InterruptedException {
+    CloudWatchLogService service = newRetryingService(3);
+    AppenderMetrics metrics = new AppenderMetrics(null, true);
+    service.setMetrics(metrics);
+    when(awsLogs.putLogEvents(any(PutLogEventsRequest.class)))
+        .thenThrow(new ServiceUnavailableException("error"))
+        .thenReturn(new PutLogEventsResult());
+
+    service.sendMessages(newArrayList(new InputLogEvent().withMessage("message").withTimestamp(0L)));
+
+    assertThat(service.awaitIdle(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(metrics.getSentRequests()).isEqualTo(1);
+    assertThat(metrics.getSentEvents()).isEqualTo(1);
+    assertThat(metrics.getSentBytes()).isEqualTo("message".length() + BatchBuilder.EVENT_OVERHEAD_BYTES);
+    assertThat(metrics.getRetries()).isEqualTo(1);
+  }
+
+  @Test
+  public void closed_service_should_fail_requests_to_handler() {
+    CloudWatchLogService service = newRetryingService(3);
+    List<InputLogEvent> failed = new ArrayList<>();
+    service.setFailedEventsHandler((destination, events) -> failed.addAll(events));
+
+    service.close();
+    service.sendMessages(newArrayList(new InputLogEvent().withMessage("message").withTimestamp(0L)));
+
+    verify(awsLogs, never()).putLogEvents(any(PutLogEventsRequest.class));
+    assertThat(failed).extracting(InputLogEvent::getMessage).containsExactly("message");
+  }
+
+  @Test
+  public void close_should_fail_requests_waiting_for_retry() throws InterruptedException {
+    CloudWatchLogService service = newRetryingService(3, 60_000);
+    when(awsLogs.putLogEvents(any(PutLogEventsRequest.class))).thenThrow(new ServiceUnavailableException("error"));
+    List<InputLogEvent> failed = new ArrayList<>();
+    service.setFailedEventsHandler((destination, events) -> failed.addAll(events));
+
+    Thread sender = new Thread(() -> service.sendMessages(
+        newArrayList(new InputLogEvent().withMessage("message").withTimestamp(0L))));
+    sender.start();
+    verify(awsLogs, timeout(5000)).putLogEvents(any(PutLogEventsRequest.class));
+    assertThat(service.awaitIdle(100, TimeUnit.MILLISECONDS)).isFalse();
+
+    service.close();
+
+    assertThat(service.awaitIdle(5, TimeUnit.SECONDS)).isTrue();
+    sender.join();
+    verify(awsLogs, times(1)).putLogEvents(any(PutLogEventsRequest.class));
+    assertThat(failed).extracting(InputLogEvent::getMessage).containsExactly("message");
+  }
+
+  @Test
+  public void requests_to_a_stream_should_be_sent_one_at_a_time() throws InterruptedException {
+    BlockingQueue<PendingCall> calls = new LinkedBlockingQueue<>();
+    CloudWatchLogService service = newPipelinedService(calls);
+
+    service.sendMessages(emptyList());
+    service.sendMessages(emptyList());
+    service.sendMessages(new LogDestination(null, "other"), emptyList());
+
+    PendingCall first = calls.poll(5, TimeUnit.SECONDS);
+    PendingCall other = calls.poll(5, TimeUnit.SECONDS);
+    assertThat(other.request.getLogStreamName()).startsWith("other");
+    assertThat(calls.poll(200, TimeUnit.MILLISECONDS)).isNull();
+
+    first.future.complete(new PutLogEventsResult().withNextSequenceToken("token"));
+
+    PendingCall second = calls.poll(5, TimeUnit.SECONDS);
+    assertThat(second.request.getLogStreamName()).isEqualTo(STREAM_NAME);
+    assertThat(second.sequenceToken).isEqualTo("token");
+  }
+
+  @Test
+  public void route_with_a_request_in_flight_should_not_be_evicted() throws InterruptedException {
+    BlockingQueue<PendingCall> calls = new LinkedBlockingQueue<>();
+    CloudWatchLogService service = newPipelinedService(calls, 1);
+
+    service.sendMessages(emptyList());
+    PendingCall first = calls.poll(5, TimeUnit.SECONDS);
+    service.sendMessages(new LogDestination(null, "other"), emptyList());
+    calls.poll(5, TimeUnit.SECONDS).future.complete(new PutLogEventsResult());
+    service.sendMessages(emptyList());
+    assertThat(calls.poll(200, TimeUnit.MILLISECONDS)).isNull();
+
+    first.future.complete(new PutLogEventsResult().withNextSequenceToken("token"));
+
+    assertThat(calls.poll(5, TimeUnit.SECONDS).sequenceToken).isEqualTo("token");
+  }
+
+  @Test
+  public void sequence_token_conflict_should_be_resent_off_the_callback_thread() throws InterruptedException {
+    BlockingQueue<PendingCall> calls = new LinkedBlockingQueue<>();
+    CloudWatchLogService service = newPipelinedService(calls);
+
+    service.sendMessages(emptyList());
+    calls.poll(5, TimeUnit.SECONDS).future
+        .completeExceptionally(new InvalidSequenceTokenException("error").withExpectedSequenceToken("token"));
+
+    PendingCall resent = calls.poll(5, TimeUnit.SECONDS);
+    assertThat(resent.sequenceToken).isEqualTo("token");
+    assertThat(resent.thread).isNotSameAs(Thread.currentThread());
+  }
+
+  @Test
+  public void service_should_be_busy_until_a_request_completes() throws InterruptedException {
+    BlockingQueue<PendingCall> calls = new LinkedBlockingQueue<>();
+    CloudWatchLogService service = newPipelinedService(calls);
+    CountDownLatch bootstrapped = new CountDownLatch(1);
+    service.setReadyListener(bootstrapped::countDown);
+    service.startBootstrap();
+    assertThat(bootstrapped.await(5, TimeUnit.SECONDS)).isTrue();
+    AtomicInteger ready = new AtomicInteger();
+    service.setReadyListener(ready::incrementAndGet);
+
+    service.sendMessages(emptyList());
+    service.sendMessages(emptyList());
+    assertThat(service.isBusy()).isTrue();
+
+    calls.poll(5, TimeUnit.SECONDS).future.complete(new PutLogEventsResult());
+
+    assertThat(service.isBusy()).isFalse();
+    assertThat(ready).hasValue(1);
+  }
+
+  private CloudWatchLogService newPipelinedService(BlockingQueue<PendingCall> calls) {
+    return newPipelinedService(calls, new AppenderSettings().getRouteCacheSize());
+  }
+
+  private CloudWatchLogService newPipelinedService(BlockingQueue<PendingCall> calls, int routeCacheSize) {
+    AppenderSettings settings = new AppenderSettings()
+        .withMaxInFlightRequests(2)
+        .withMaxRequestsPerSecond(0)
+        .withRouteCacheSize(routeCacheSize);
+    LogTransport transport = request -> {
+      CompletableFuture<PutLogEventsResult> future = new CompletableFuture<>();
+      calls.add(new PendingCall(request, future));
+      return future;
+    };
+    CloudWatchLogService service = CloudWatchLogService.createShards(GROUP_NAME, STREAM_NAME_PREFIX, settings,
+        awsLogs, transport, clock, "host").get(0);
+    service.setSenderPool(senderPool);
+    return service;
+  }
+
+  private CloudWatchLogService newRetryingService(int maxRetries) {
+    return newRetryingService(maxRetries, 1);
+  }
+
+  private CloudWatchLogService newRetryingService(int maxRetries, long retryDelayMs) {
+    AppenderSettings settings = new AppenderSettings()
+        .withMaxRetries(maxRetries)
+        .withRetryBaseDelayMs(retryDelayMs)
+        .withRetryMaxDelayMs(retryDelayMs * 10)
+        .withMaxRequestsPerSecond(0);
+    CloudWatchLogService service = CloudWatchLogService.createShards(GROUP_NAME, STREAM_NAME_PREFIX, settings,
+        awsLogs, new SyncLogTransport(awsLogs), clock, "host").get(0);
+    service.setSenderPool(senderPool);
+    return service;
+  }
+
+  private static final class PendingCall {
+
+    private final PutLogEventsRequest request;
+    private final String sequenceToken;
+    private final CompletableFuture<PutLogEventsResult> future;
+    private final Thread thread = Thread.currentThread();
+
+    private PendingCall(PutLogEventsRequest request, CompletableFuture<PutLogEventsResult> future) {
+      this.request = request;
+      this.sequenceToken = request.getSequenceToken();
+      this.future = future;
+    }
+
+  }
 
-}
\ No newline at end of file
+}
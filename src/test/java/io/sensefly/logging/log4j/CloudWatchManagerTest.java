@@ -0,0 +1,66 @@
+package io.sensefly.logging.log4j;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CloudWatchManagerTest {
+
+  @Test
+  public void appenders_of_a_region_should_share_manager() {
+    CloudWatchManager manager = CloudWatchManager.getManager(new AppenderSettings().withRegion("eu-west-1"));
+    CloudWatchManager other = CloudWatchManager.getManager(new AppenderSettings().withRegion("eu-west-1"));
+    CloudWatchManager otherRegion = CloudWatchManager.getManager(new AppenderSettings().withRegion("us-east-1"));
+    try {
+      assertThat(other).isSameAs(manager);
+      assertThat(other.getSenderPool()).isSameAs(manager.getSenderPool());
+      assertThat(otherRegion).isNotSameAs(manager);
+    } finally {
+      manager.close();
+      other.close();
+      otherRegion.close();
+    }
+  }
+
+  @Test
+  public void manager_should_be_released_by_last_appender() {
+    AppenderSettings settings = new AppenderSettings().withRegion("eu-central-1");
+    CloudWatchManager manager = CloudWatchManager.getManager(settings);
+    CloudWatchManager other = CloudWatchManager.getManager(settings);
+
+    manager.close();
+    assertThat(CloudWatchManager.hasManager(CloudWatchManager.getName(settings))).isTrue();
+
+    other.close();
+    assertThat(CloudWatchManager.hasManager(CloudWatchManager.getName(settings))).isFalse();
+  }
+
+  @Test
+  public void stopped_appender_should_release_the_threads_of_its_lanes() {
+    AppenderSettings settings = new AppenderSettings().withRegion("ap-southeast-1").withSenderThreads(4);
+    CloudWatchManager manager = CloudWatchManager.getManager(settings);
+    CloudWatchManager other = CloudWatchManager.getManager(settings);
+    manager.getSenderPool().addLanes(2);
+    other.getSenderPool().addLanes(2);
+    assertThat(manager.getSenderPool().getThreads()).isEqualTo(4);
+
+    manager.stop(2, 5, TimeUnit.SECONDS);
+    assertThat(other.getSenderPool().getThreads()).isEqualTo(2);
+
+    other.stop(2, 5, TimeUnit.SECONDS);
+    assertThat(CloudWatchManager.hasManager(CloudWatchManager.getName(settings))).isFalse();
+  }
+
+  @Test
+  public void manager_name_should_depend_on_transport() {
+    assertThat(CloudWatchManager.getName(new AppenderSettings()))
+        .isEqualTo("CloudWatch[region=default,maxInFlightRequests=1]");
+    assertThat(CloudWatchManager.getName(new AppenderSettings().withMaxInFlightRequests(4)))
+        .isNotEqualTo(CloudWatchManager.getName(new AppenderSettings()));
+    assertThat(CloudWatchManager.getName(new AppenderSettings().withSenderThreads(4).withSenderExecutor("virtual")))
+        .isEqualTo("CloudWatch[region=default,maxInFlightRequests=1,senderThreads=4,senderExecutor=virtual]");
+  }
+
+}
@@ -0,0 +1,59 @@
+package io.sensefly.logging.log4j;
+
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class EncoderPoolTest {
+
+  private final AtomicInteger created = new AtomicInteger();
+
+  private final EncoderPool pool = new EncoderPool(2, () -> {
+    created.incrementAndGet();
+    return new LogEventEncoder(PatternLayout.createDefaultLayout());
+  });
+
+  @Test
+  public void released_encoders_should_be_reused() {
+    LogEventEncoder encoder = pool.acquire();
+    pool.release(encoder);
+
+    assertThat(pool.acquire()).isSameAs(encoder);
+    assertThat(created).hasValue(1);
+  }
+
+  @Test
+  public void idle_encoders_should_be_bounded_by_slot() throws InterruptedException {
+    LogEventEncoder first = pool.acquire();
+    LogEventEncoder second = pool.acquire();
+    pool.release(first);
+    pool.release(second);
+
+    // a thread of the other slot
+    Thread other;
+    do {
+      other = new Thread(() -> pool.release(pool.acquire()));
+    } while(other.getId() % 2 == Thread.currentThread().getId() % 2);
+    other.start();
+    other.join();
+
+    assertThat(created).hasValue(3);
+    assertThat(pool.idleSize()).isEqualTo(2);
+    assertThat(pool.acquire()).isSameAs(first);
+  }
+
+  @Test
+  public void closed_pool_should_not_keep_encoders() {
+    LogEventEncoder lent = pool.acquire();
+    pool.release(pool.acquire());
+
+    pool.close();
+    pool.release(lent);
+
+    assertThat(pool.idleSize()).isZero();
+  }
+
+}
@@ -0,0 +1,67 @@
+package io.sensefly.logging.log4j;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.logs.model.AWSLogsException;
+import com.amazonaws.services.logs.model.DataAlreadyAcceptedException;
+import com.amazonaws.services.logs.model.InvalidParameterException;
+import com.amazonaws.services.logs.model.InvalidSequenceTokenException;
+import com.amazonaws.services.logs.model.ResourceNotFoundException;
+import com.amazonaws.services.logs.model.ServiceUnavailableException;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ErrorClassTest {
+
+  @Test
+  public void throttling_should_be_recognized_by_error_code() {
+    AWSLogsException error = new AWSLogsException("Rate exceeded");
+    error.setErrorCode("ThrottlingException");
+    error.setStatusCode(400);
+
+    assertThat(ErrorClass.of(error)).isEqualTo(ErrorClass.THROTTLING);
+  }
+
+  @Test
+  public void server_and_network_errors_should_be_service_unavailable() {
+    AWSLogsException serverError = new AWSLogsException("Internal error");
+    serverError.setStatusCode(500);
+
+    assertThat(ErrorClass.of(new ServiceUnavailableException("error"))).isEqualTo(ErrorClass.SERVICE_UNAVAILABLE);
+    assertThat(ErrorClass.of(serverError)).isEqualTo(ErrorClass.SERVICE_UNAVAILABLE);
+    assertThat(ErrorClass.of(new SdkClientException(new IOException("reset")))).isEqualTo(ErrorClass.SERVICE_UNAVAILABLE);
+  }
+
+  @Test
+  public void sequence_errors_should_be_recognized() {
+    assertThat(ErrorClass.of(new InvalidSequenceTokenException("error"))).isEqualTo(ErrorClass.SEQUENCE_TOKEN);
+    assertThat(ErrorClass.of(new DataAlreadyAcceptedException("error"))).isEqualTo(ErrorClass.DATA_ALREADY_ACCEPTED);
+  }
+
+  @Test
+  public void invalid_requests_should_be_permanent() {
+    InvalidParameterException invalidParameter = new InvalidParameterException("error");
+    invalidParameter.setStatusCode(400);
+
+    assertThat(ErrorClass.of(invalidParameter)).isEqualTo(ErrorClass.PERMANENT);
+    assertThat(ErrorClass.of(new ResourceNotFoundException("error"))).isEqualTo(ErrorClass.PERMANENT);
+    assertThat(ErrorClass.of(new IllegalStateException("error"))).isEqualTo(ErrorClass.PERMANENT);
+    assertThat(ErrorClass.PERMANENT.isRetryable()).isFalse();
+  }
+
+  @Test
+  public void missing_credentials_or_region_should_be_permanent() {
+    SdkClientException credentials =
+        new SdkClientException("Unable to load AWS credentials from any provider in the chain");
+    SdkClientException region = new SdkClientException("Unable to find a region via the region provider chain");
+
+    assertThat(credentials.isRetryable()).isTrue();
+    assertThat(ErrorClass.of(credentials)).isEqualTo(ErrorClass.PERMANENT);
+    assertThat(ErrorClass.of(region)).isEqualTo(ErrorClass.PERMANENT);
+    assertThat(ErrorClass.of(new SdkClientException("Unable to execute HTTP request",
+        new SdkClientException(new IOException("timeout"))))).isEqualTo(ErrorClass.SERVICE_UNAVAILABLE);
+  }
+
+}
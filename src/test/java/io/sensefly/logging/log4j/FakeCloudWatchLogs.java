@@ -0,0 +1,376 @@
+package io.sensefly.logging.log4j;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder.EndpointConfiguration;
+import com.amazonaws.services.logs.AWSLogs;
+import com.amazonaws.services.logs.AWSLogsAsync;
+import com.amazonaws.services.logs.AWSLogsAsyncClientBuilder;
+import com.amazonaws.services.logs.AWSLogsClientBuilder;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * In-process CloudWatch Logs endpoint speaking the JSON protocol of the AWS SDK, for integration and soak tests.
+ * Implements {@code CreateLogGroup}, {@code CreateLogStream}, {@code DescribeLogGroups}, {@code DescribeLogStreams}
+ * and {@code PutLogEvents}, checks sequence tokens and the {@code PutLogEvents} limits, and can inject latency,
+ * throttling and server errors.
+ */
+class FakeCloudWatchLogs implements AutoCloseable {
+
+  private static final String CONTENT_TYPE = "application/x-amz-json-1.1";
+
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final Map<String, Map<String, Stream>> groups = new ConcurrentHashMap<>();
+
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder throttledRequests = new LongAdder();
+  private final LongAdder failedRequests = new LongAdder();
+  private final LongAdder rejectedRequests = new LongAdder();
+
+  private volatile long latencyMillis;
+  private volatile double throttlingRate;
+  private volatile double errorRate;
+  private volatile boolean checkSequenceTokens = true;
+
+  FakeCloudWatchLogs() throws IOException {
+    // without it, delayed acknowledgements add 40 ms to every request
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    executor = Executors.newCachedThreadPool();
+    server.setExecutor(executor);
+    server.createContext("/", this::handle);
+    server.start();
+  }
+
+  /**
+   * @return a synchronous client of this endpoint, without the SDK retries so the appender handles the errors
+   */
+  AWSLogs newClient() {
+    return AWSLogsClientBuilder.standard()
+        .withEndpointConfiguration(endpoint())
+        .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("key", "secret")))
+        .withClientConfiguration(new ClientConfiguration().withMaxErrorRetry(0))
+        .build();
+  }
+
+  AWSLogsAsync newAsyncClient(int threads) {
+    return AWSLogsAsyncClientBuilder.standard()
+        .withEndpointConfiguration(endpoint())
+        .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("key", "secret")))
+        .withClientConfiguration(new ClientConfiguration().withMaxErrorRetry(0).withMaxConnections(threads))
+        .withExecutorFactory(() -> Executors.newFixedThreadPool(threads))
+        .build();
+  }
+
+  /**
+   * Delays every response
+   */
+  FakeCloudWatchLogs withLatency(long latency, TimeUnit unit) {
+    this.latencyMillis = unit.toMillis(latency);
+    return this;
+  }
+
+  /**
+   * Fraction of {@code PutLogEvents} requests answered with a {@code ThrottlingException}
+   */
+  FakeCloudWatchLogs withThrottlingRate(double throttlingRate) {
+    this.throttlingRate = throttlingRate;
+    return this;
+  }
+
+  /**
+   * Fraction of {@code PutLogEvents} requests answered with a {@code ServiceUnavailableException}
+   */
+  FakeCloudWatchLogs withErrorRate(double errorRate) {
+    this.errorRate = errorRate;
+    return this;
+  }
+
+  /**
+   * CloudWatch Logs stopped checking sequence tokens in 2023
+   */
+  FakeCloudWatchLogs withSequenceTokens(boolean checkSequenceTokens) {
+    this.checkSequenceTokens = checkSequenceTokens;
+    return this;
+  }
+
+  /**
+   * @return the events received by the stream, in the order they were accepted
+   */
+  List<ReceivedEvent> getEvents(String logGroupName, String logStreamName) {
+    Stream stream = groups.getOrDefault(logGroupName, new ConcurrentHashMap<>()).get(logStreamName);
+    if(stream == null) {
+      return new ArrayList<>();
+    }
+    synchronized(stream) {
+      return new ArrayList<>(stream.events);
+    }
+  }
+
+  /**
+   * @return the events received by all the streams of the group
+   */
+  List<ReceivedEvent> getEvents(String logGroupName) {
+    List<ReceivedEvent> events = new ArrayList<>();
+    for(String logStreamName : groups.getOrDefault(logGroupName, new ConcurrentHashMap<>()).keySet()) {
+      events.addAll(getEvents(logGroupName, logStreamName));
+    }
+    return events;
+  }
+
+  long getRequests() {
+    return requests.sum();
+  }
+
+  long getThrottledRequests() {
+    return throttledRequests.sum();
+  }
+
+  long getFailedRequests() {
+    return failedRequests.sum();
+  }
+
+  /**
+   * @return the requests rejected as invalid: over the limits, out of order or with a wrong sequence token
+   */
+  long getRejectedRequests() {
+    return rejectedRequests.sum();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private EndpointConfiguration endpoint() {
+    InetSocketAddress address = server.getAddress();
+    return new EndpointConfiguration("http://" + address.getHostString() + ":" + address.getPort(), "us-east-1");
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      requests.increment();
+      if(latencyMillis > 0) {
+        TimeUnit.MILLISECONDS.sleep(latencyMillis);
+      }
+      String target = exchange.getRequestHeaders().getFirst("X-Amz-Target");
+      JsonNode request = mapper.readTree(exchange.getRequestBody());
+      String operation = target == null ? "" : target.substring(target.indexOf('.') + 1);
+      respond(exchange, 200, dispatch(operation, request));
+    } catch(FakeException e) {
+      ObjectNode error = mapper.createObjectNode().put("__type", e.type).put("message", e.getMessage());
+      if(e.expectedSequenceToken != null) {
+        error.put("expectedSequenceToken", e.expectedSequenceToken);
+      }
+      respond(exchange, e.status, error);
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      respond(exchange, 500, mapper.createObjectNode().put("__type", "InternalFailure"));
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private JsonNode dispatch(String operation, JsonNode request) {
+    switch(operation) {
+      case "CreateLogGroup":
+        if(groups.putIfAbsent(request.path("logGroupName").asText(), new ConcurrentHashMap<>()) != null) {
+          throw new FakeException(400, "ResourceAlreadyExistsException", "The specified log group already exists");
+        }
+        return mapper.createObjectNode();
+      case "CreateLogStream":
+        if(group(request).putIfAbsent(request.path("logStreamName").asText(), new Stream()) != null) {
+          throw new FakeException(400, "ResourceAlreadyExistsException", "The specified log stream already exists");
+        }
+        return mapper.createObjectNode();
+      case "DescribeLogGroups":
+        return describeLogGroups(request);
+      case "DescribeLogStreams":
+        return describeLogStreams(request);
+      case "PutLogEvents":
+        return putLogEvents(request);
+      default:
+        throw new FakeException(400, "UnknownOperationException", operation);
+    }
+  }
+
+  private JsonNode describeLogGroups(JsonNode request) {
+    String prefix = request.path("logGroupNamePrefix").asText("");
+    ObjectNode response = mapper.createObjectNode();
+    ArrayNode logGroups = response.putArray("logGroups");
+    groups.keySet().stream()
+        .filter(name -> name.startsWith(prefix))
+        .sorted()
+        .forEach(name -> logGroups.addObject().put("logGroupName", name));
+    return response;
+  }
+
+  private JsonNode describeLogStreams(JsonNode request) {
+    String prefix = request.path("logStreamNamePrefix").asText("");
+    ObjectNode response = mapper.createObjectNode();
+    ArrayNode logStreams = response.putArray("logStreams");
+    group(request).entrySet().stream()
+        .filter(entry -> entry.getKey().startsWith(prefix))
+        .sorted(Map.Entry.comparingByKey())
+        .forEach(entry -> logStreams.addObject()
+            .put("logStreamName", entry.getKey())
+            .put("uploadSequenceToken", entry.getValue().sequenceToken()));
+    return response;
+  }
+
+  private JsonNode putLogEvents(JsonNode request) {
+    double random = ThreadLocalRandom.current().nextDouble();
+    if(random < throttlingRate) {
+      throttledRequests.increment();
+      throw new FakeException(400, "ThrottlingException", "Rate exceeded");
+    }
+    if(random < throttlingRate + errorRate) {
+      failedRequests.increment();
+      throw new FakeException(503, "ServiceUnavailableException", "The service cannot complete the request");
+    }
+    Stream stream = group(request).get(request.path("logStreamName").asText());
+    if(stream == null) {
+      rejectedRequests.increment();
+      throw new FakeException(400, "ResourceNotFoundException", "The specified log stream does not exist");
+    }
+    List<ReceivedEvent> events = validate(request.path("logEvents"));
+    synchronized(stream) {
+      String sequenceToken = request.path("sequenceToken").asText(null);
+      if(checkSequenceTokens && stream.sequence > 0 && !stream.sequenceToken().equals(sequenceToken)) {
+        rejectedRequests.increment();
+        throw new FakeException(400, "InvalidSequenceTokenException", "The given sequenceToken is invalid",
+            stream.sequenceToken());
+      }
+      stream.events.addAll(events);
+      stream.sequence++;
+      return mapper.createObjectNode().put("nextSequenceToken", stream.sequenceToken());
+    }
+  }
+
+  private List<ReceivedEvent> validate(JsonNode logEvents) {
+    if(logEvents.size() == 0 || logEvents.size() > BatchBuilder.MAX_BATCH_EVENTS) {
+      throw invalid("Invalid number of log events: " + logEvents.size());
+    }
+    long receivedNanos = System.nanoTime();
+    List<ReceivedEvent> events = new ArrayList<>(logEvents.size());
+    long bytes = 0;
+    for(JsonNode logEvent : logEvents) {
+      String message = logEvent.path("message").asText("");
+      long timestamp = logEvent.path("timestamp").asLong();
+      int eventBytes = message.getBytes(UTF_8).length + BatchBuilder.EVENT_OVERHEAD_BYTES;
+      if(message.isEmpty() || eventBytes > BatchBuilder.MAX_EVENT_BYTES) {
+        throw invalid("Log event too large or empty: " + eventBytes + " bytes");
+      }
+      if(!events.isEmpty() && timestamp < events.get(events.size() - 1).timestamp) {
+        throw invalid("Log events in a single PutLogEvents request must be in chronological order");
+      }
+      bytes += eventBytes;
+      events.add(new ReceivedEvent(timestamp, message, receivedNanos));
+    }
+    if(bytes > BatchBuilder.MAX_BATCH_BYTES) {
+      throw invalid("Upload too large: " + bytes + " bytes");
+    }
+    if(events.get(events.size() - 1).timestamp - events.get(0).timestamp > BatchBuilder.MAX_BATCH_SPAN_MILLIS) {
+      throw invalid("A batch of log events in a single request cannot span more than 24 hours");
+    }
+    return events;
+  }
+
+  private FakeException invalid(String message) {
+    rejectedRequests.increment();
+    return new FakeException(400, "InvalidParameterException", message);
+  }
+
+  private Map<String, Stream> group(JsonNode request) {
+    Map<String, Stream> streams = groups.get(request.path("logGroupName").asText());
+    if(streams == null) {
+      throw new FakeException(400, "ResourceNotFoundException", "The specified log group does not exist");
+    }
+    return streams;
+  }
+
+  private void respond(HttpExchange exchange, int status, JsonNode body) throws IOException {
+    byte[] bytes = mapper.writeValueAsBytes(body);
+    exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+    exchange.sendResponseHeaders(status, bytes.length);
+    try(OutputStream output = exchange.getResponseBody()) {
+      output.write(bytes);
+    }
+  }
+
+  static final class ReceivedEvent {
+
+    final long timestamp;
+    final String message;
+
+    /**
+     * {@link System#nanoTime()} when the request was received
+     */
+    final long receivedNanos;
+
+    ReceivedEvent(long timestamp, String message, long receivedNanos) {
+      this.timestamp = timestamp;
+      this.message = message;
+      this.receivedNanos = receivedNanos;
+    }
+
+  }
+
+  private static final class Stream {
+
+    private final List<ReceivedEvent> events = new ArrayList<>();
+    private long sequence;
+
+    private String sequenceToken() {
+      return String.format("%056d", sequence);
+    }
+
+  }
+
+  private static final class FakeException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+    private final String type;
+    private final String expectedSequenceToken;
+
+    private FakeException(int status, String type, String message) {
+      this(status, type, message, null);
+    }
+
+    private FakeException(int status, String type, String message, String expectedSequenceToken) {
+      super(message);
+      this.status = status;
+      this.type = type;
+      this.expectedSequenceToken = expectedSequenceToken;
+    }
+
+  }
+
+}
@@ -0,0 +1,118 @@
+package io.sensefly.logging.log4j;
+
+import com.amazonaws.services.logs.AWSLogs;
+import com.amazonaws.services.logs.model.InputLogEvent;
+import com.amazonaws.services.logs.model.InvalidParameterException;
+import com.amazonaws.services.logs.model.PutLogEventsRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.time.ZoneOffset.UTC;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+import static org.assertj.core.util.Lists.newArrayList;
+
+public class FakeCloudWatchLogsTest {
+
+  private static final String GROUP_NAME = "test_group";
+  private static final String STREAM_NAME_PREFIX = "test_stream";
+  private static final String STREAM_NAME = "test_stream/2017/09";
+
+  private final Clock clock = Clock.fixed(LocalDate.of(2017, 9, 1).atStartOfDay().toInstant(UTC), UTC.normalized());
+
+  private FakeCloudWatchLogs fake;
+  private AWSLogs awsLogs;
+  private final SenderPool senderPool = new SenderPool(1);
+
+  @Before
+  public void startFake() throws IOException {
+    fake = new FakeCloudWatchLogs();
+    awsLogs = fake.newClient();
+  }
+
+  @After
+  public void stopFake() {
+    senderPool.shutdown();
+    awsLogs.shutdown();
+    fake.close();
+  }
+
+  @Test
+  public void service_should_create_group_and_stream_and_send_over_http() throws InterruptedException {
+    CloudWatchLogService service = newService(new AppenderSettings());
+
+    service.sendMessages(newArrayList(event(1, "message 1"), event(2, "message 2")));
+    service.sendMessages(newArrayList(event(3, "message 3")));
+    assertThat(service.awaitIdle(5, TimeUnit.SECONDS)).isTrue();
+
+    assertThat(fake.getEvents(GROUP_NAME, STREAM_NAME))
+        .extracting(receivedEvent -> receivedEvent.message)
+        .containsExactly("message 1", "message 2", "message 3");
+    assertThat(fake.getRejectedRequests()).isZero();
+  }
+
+  @Test
+  public void limits_should_be_enforced() {
+    newService(new AppenderSettings()).sendMessages(newArrayList(event(1, "create stream")));
+
+    Throwable error = catchThrowable(() -> awsLogs.putLogEvents(new PutLogEventsRequest(GROUP_NAME, STREAM_NAME,
+        newArrayList(event(2, "later"), event(1, "earlier")))));
+
+    assertThat(error).isInstanceOf(InvalidParameterException.class);
+    assertThat(fake.getRejectedRequests()).isEqualTo(1);
+  }
+
+  @Test
+  public void throttled_requests_should_be_retried_then_handed_to_handler() throws InterruptedException {
+    fake.withThrottlingRate(1);
+    CloudWatchLogService service = newService(new AppenderSettings()
+        .withMaxRetries(2)
+        .withRetryBaseDelayMs(1)
+        .withMaxRequestsPerSecond(0));
+    List<InputLogEvent> failed = new ArrayList<>();
+    service.setFailedEventsHandler((destination, events) -> failed.addAll(events));
+
+    service.sendMessages(newArrayList(event(1, "message")));
+
+    assertThat(service.awaitIdle(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(fake.getThrottledRequests()).isEqualTo(3);
+    assertThat(failed).extracting(InputLogEvent::getMessage).containsExactly("message");
+  }
+
+  @Test
+  public void concurrent_writers_should_recover_from_sequence_token_conflicts() throws InterruptedException {
+    AppenderSettings settings = new AppenderSettings().withRetryBaseDelayMs(1).withMaxRequestsPerSecond(0);
+    CloudWatchLogService first = newService(settings);
+    CloudWatchLogService second = newService(settings);
+
+    for(int i = 0; i < 5; i++) {
+      first.sendMessages(newArrayList(event(i, "first " + i)));
+      second.sendMessages(newArrayList(event(i, "second " + i)));
+    }
+
+    assertThat(first.awaitIdle(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(second.awaitIdle(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(fake.getEvents(GROUP_NAME, STREAM_NAME)).hasSize(10);
+    assertThat(fake.getRejectedRequests()).isPositive();
+  }
+
+  private CloudWatchLogService newService(AppenderSettings settings) {
+    CloudWatchLogService service = CloudWatchLogService.createShards(GROUP_NAME, STREAM_NAME_PREFIX, settings,
+        awsLogs, new SyncLogTransport(awsLogs), clock, "host").get(0);
+    service.setSenderPool(senderPool);
+    return service;
+  }
+
+  private static InputLogEvent event(long timestamp, String message) {
+    return new InputLogEvent().withTimestamp(timestamp).withMessage(message);
+  }
+
+}
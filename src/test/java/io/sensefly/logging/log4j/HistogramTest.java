@@ -0,0 +1,64 @@
+package io.sensefly.logging.log4j;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HistogramTest {
+
+  @Test
+  public void buckets_should_bound_values_within_relative_error() {
+    for(long value : new long[] { 0, 1, 7, 8, 9, 15, 16, 17, 100, 1_000, 123_456_789, Long.MAX_VALUE >> 2 }) {
+      long upperBound = Histogram.upperBound(Histogram.bucket(value));
+      assertThat(upperBound).isGreaterThanOrEqualTo(value);
+      assertThat(upperBound - value).isLessThanOrEqualTo(value / 8);
+    }
+  }
+
+  @Test
+  public void percentiles_should_be_approximated() {
+    Histogram histogram = new Histogram();
+    for(int i = 1; i <= 1000; i++) {
+      histogram.record(i);
+    }
+
+    assertThat(histogram.getCount()).isEqualTo(1000);
+    assertThat(histogram.getMean()).isEqualTo(500.5);
+    assertThat(histogram.getMax()).isEqualTo(1000);
+    assertThat(histogram.getPercentile(50)).isBetween(500L, 500L + 500 / 8);
+    assertThat(histogram.getPercentile(99)).isBetween(990L, 1000L);
+    assertThat(histogram.getPercentile(100)).isEqualTo(1000);
+  }
+
+  @Test
+  public void empty_histogram_should_report_zero() {
+    Histogram histogram = new Histogram();
+
+    assertThat(histogram.getMean()).isZero();
+    assertThat(histogram.getPercentile(99)).isZero();
+  }
+
+  @Test
+  public void windowed_histogram_should_forget_values_older_than_two_windows() {
+    AtomicLong clock = new AtomicLong();
+    Histogram histogram = new Histogram(100, clock::get);
+    histogram.record(1000);
+
+    clock.set(150);
+    histogram.record(10);
+    assertThat(histogram.getCount()).isEqualTo(2);
+    assertThat(histogram.getMax()).isEqualTo(1000);
+
+    clock.set(200);
+    assertThat(histogram.getCount()).isEqualTo(1);
+    assertThat(histogram.getMax()).isEqualTo(10);
+    assertThat(histogram.getPercentile(99)).isEqualTo(10);
+
+    clock.set(1000);
+    assertThat(histogram.getCount()).isZero();
+    assertThat(histogram.getMean()).isZero();
+  }
+
+}
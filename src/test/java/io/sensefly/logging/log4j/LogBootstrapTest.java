@@ -0,0 +1,167 @@
+package io.sensefly.logging.log4j;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.logs.AWSLogs;
+import com.amazonaws.services.logs.model.AWSLogsException;
+import com.amazonaws.services.logs.model.DescribeLogGroupsRequest;
+import com.amazonaws.services.logs.model.DescribeLogGroupsResult;
+import com.amazonaws.services.logs.model.LogGroup;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class LogBootstrapTest {
+
+  private static final String GROUP_NAME = "test_group";
+
+  @Mock
+  private AWSLogs awsLogs;
+
+  private final AtomicInteger clientsCreated = new AtomicInteger();
+
+  @Before
+  public void initMocks() {
+    MockitoAnnotations.initMocks(this);
+  }
+
+  @Test
+  public void bootstrap_should_retry_until_log_group_is_reachable() throws InterruptedException {
+    when(awsLogs.describeLogGroups(any(DescribeLogGroupsRequest.class)))
+        .thenThrow(new SdkClientException("unreachable", new IOException("connect timed out")))
+        .thenReturn(new DescribeLogGroupsResult().withLogGroups(new LogGroup().withLogGroupName(GROUP_NAME)));
+
+    LogBootstrap.Client client = newBootstrap(false).await(5, TimeUnit.SECONDS);
+
+    assertThat(client.awsLogs).isSameAs(awsLogs);
+    assertThat(clientsCreated).hasValue(1);
+    verify(awsLogs, times(2)).describeLogGroups(any(DescribeLogGroupsRequest.class));
+  }
+
+  @Test
+  public void assume_exists_should_skip_describe_calls() throws InterruptedException {
+    LogBootstrap bootstrap = newBootstrap(true);
+
+    bootstrap.await(5, TimeUnit.SECONDS);
+
+    assertThat(bootstrap.isReady()).isTrue();
+    verify(awsLogs, never()).describeLogGroups(any(DescribeLogGroupsRequest.class));
+  }
+
+  @Test
+  public void listeners_should_run_once_bootstrap_is_done() throws InterruptedException {
+    LogBootstrap bootstrap = newBootstrap(true);
+    CountDownLatch done = new CountDownLatch(1);
+    bootstrap.addListener(done::countDown);
+    assertThat(bootstrap.isDone()).isFalse();
+
+    bootstrap.start();
+
+    assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(bootstrap.isDone()).isTrue();
+    AtomicInteger runs = new AtomicInteger();
+    bootstrap.addListener(runs::incrementAndGet);
+    assertThat(runs).hasValue(1);
+  }
+
+  @Test
+  public void client_should_not_be_built_before_start() {
+    newBootstrap(true);
+
+    assertThat(clientsCreated).hasValue(0);
+  }
+
+  @Test
+  public void closed_bootstrap_should_stop_retrying() {
+    when(awsLogs.describeLogGroups(any(DescribeLogGroupsRequest.class)))
+        .thenThrow(new SdkClientException("unreachable", new IOException("connect timed out")));
+    LogBootstrap bootstrap = new LogBootstrap(this::newClient, GROUP_NAME, false, new RetryPolicy(0, 60_000, 60_000));
+    bootstrap.start();
+
+    bootstrap.close();
+
+    assertThatThrownBy(() -> bootstrap.await(5, TimeUnit.SECONDS)).isInstanceOf(IllegalStateException.class);
+    assertThat(bootstrap.isReady()).isFalse();
+  }
+
+  @Test
+  public void permanent_error_should_not_be_retried() {
+    AWSLogsException denied = new AWSLogsException("denied");
+    denied.setErrorCode("AccessDeniedException");
+    denied.setStatusCode(400);
+    when(awsLogs.describeLogGroups(any(DescribeLogGroupsRequest.class))).thenThrow(denied);
+    LogBootstrap bootstrap = newBootstrap(false);
+
+    assertThatThrownBy(() -> bootstrap.await(5, TimeUnit.SECONDS))
+        .isInstanceOf(IllegalStateException.class)
+        .hasCause(denied);
+    assertThat(bootstrap.isFailed()).isTrue();
+    verify(awsLogs, times(1)).describeLogGroups(any(DescribeLogGroupsRequest.class));
+  }
+
+  @Test
+  public void await_should_time_out() {
+    when(awsLogs.describeLogGroups(any(DescribeLogGroupsRequest.class))).thenAnswer(invocation -> hang());
+    LogBootstrap bootstrap = newBootstrap(false);
+
+    assertThatThrownBy(() -> bootstrap.await(100, TimeUnit.MILLISECONDS))
+        .isInstanceOf(IllegalStateException.class)
+        .hasMessageContaining("within 100 ms");
+    assertThat(bootstrap.isDone()).isFalse();
+    bootstrap.close();
+  }
+
+  @Test
+  public void close_should_interrupt_the_attempt_in_progress() throws InterruptedException {
+    CountDownLatch attempting = new CountDownLatch(1);
+    when(awsLogs.describeLogGroups(any(DescribeLogGroupsRequest.class))).thenAnswer(invocation -> {
+      attempting.countDown();
+      return hang();
+    });
+    LogBootstrap bootstrap = newBootstrap(false);
+    bootstrap.start();
+    assertThat(attempting.await(5, TimeUnit.SECONDS)).isTrue();
+
+    bootstrap.close();
+
+    assertThatThrownBy(() -> bootstrap.await(5, TimeUnit.SECONDS)).isInstanceOf(IllegalStateException.class);
+    assertThat(bootstrap.isDone()).isTrue();
+    assertThat(bootstrap.isFailed()).isFalse();
+  }
+
+  /**
+   * Blocks like a request to an unreachable endpoint, until interrupted like the AWS client
+   */
+  private static DescribeLogGroupsResult hang() {
+    try {
+      Thread.sleep(Long.MAX_VALUE);
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    throw new AbortedException();
+  }
+
+  private LogBootstrap newBootstrap(boolean assumeExists) {
+    return new LogBootstrap(this::newClient, GROUP_NAME, assumeExists, new RetryPolicy(0, 1, 10));
+  }
+
+  private LogBootstrap.Client newClient() {
+    clientsCreated.incrementAndGet();
+    return new LogBootstrap.Client(awsLogs, new SyncLogTransport(awsLogs));
+  }
+
+}
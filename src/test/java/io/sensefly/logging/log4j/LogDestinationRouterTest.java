@@ -0,0 +1,64 @@
+package io.sensefly.logging.log4j;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.MarkerManager;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LogDestinationRouterTest {
+
+  @Test
+  public void router_without_patterns_should_not_be_dynamic() {
+    LogDestinationRouter router = LogDestinationRouter.create(null, null, null);
+
+    assertThat(router.isDynamic()).isFalse();
+    assertThat(router.route(newEvent("tenant"))).isSameAs(LogDestination.DEFAULT);
+  }
+
+  @Test
+  public void destination_should_be_resolved_from_event() {
+    LogDestinationRouter router = LogDestinationRouter.create("app-%X{tenant}", "%c/%markerSimpleName", null);
+
+    LogDestination destination = router.route(newEvent("acme"));
+
+    assertThat(router.isDynamic()).isTrue();
+    assertThat(destination.logGroupName).isEqualTo("app-acme");
+    assertThat(destination.logStreamNamePrefix).isEqualTo("io.sensefly.Test/AUDIT");
+    assertThat(destination).isEqualTo(router.route(newEvent("acme")));
+  }
+
+  @Test
+  public void empty_name_should_route_to_default() {
+    LogDestinationRouter router = LogDestinationRouter.create("%X{missing}", null, null);
+
+    assertThat(router.route(newEvent("acme"))).isEqualTo(LogDestination.DEFAULT);
+  }
+
+  @Test
+  public void invalid_characters_should_be_replaced() {
+    LogDestinationRouter router = LogDestinationRouter.create("app %X{tenant}", "a:b*c %X{tenant}", null);
+
+    LogDestination destination = router.route(newEvent("ac/me"));
+
+    assertThat(destination.logGroupName).isEqualTo("app_ac/me");
+    assertThat(destination.logStreamNamePrefix).isEqualTo("a_b_c ac/me");
+  }
+
+  private static LogEvent newEvent(String tenant) {
+    SortedArrayStringMap contextData = new SortedArrayStringMap();
+    contextData.putValue("tenant", tenant);
+    return Log4jLogEvent.newBuilder()
+        .setLoggerName("io.sensefly.Test")
+        .setLevel(Level.INFO)
+        .setMarker(MarkerManager.getMarker("AUDIT"))
+        .setContextData(contextData)
+        .setMessage(new SimpleMessage("message"))
+        .build();
+  }
+
+}
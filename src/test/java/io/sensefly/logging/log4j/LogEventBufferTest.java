@@ -0,0 +1,309 @@
+package io.sensefly.logging.log4j;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LogEventBufferTest {
+
+  @Test
+  public void drop_newest_should_keep_buffered_events() {
+    LogEventBuffer buffer = new LogEventBuffer(2, OverflowPolicy.DROP_NEWEST, 0, Level.WARN);
+    assertThat(buffer.offer(newEvent(Level.INFO, "first"))).isTrue();
+    assertThat(buffer.offer(newEvent(Level.INFO, "second"))).isTrue();
+    assertThat(buffer.offer(newEvent(Level.INFO, "third"))).isFalse();
+
+    assertThat(buffer.getDroppedCount()).isEqualTo(1);
+    assertThat(buffer.poll().getMessage().getFormattedMessage()).isEqualTo("first");
+  }
+
+  @Test
+  public void drop_oldest_should_keep_appended_event() {
+    LogEventBuffer buffer = new LogEventBuffer(2, OverflowPolicy.DROP_OLDEST, 0, Level.WARN);
+    assertThat(buffer.offer(newEvent(Level.INFO, "first"))).isTrue();
+    assertThat(buffer.offer(newEvent(Level.INFO, "second"))).isTrue();
+    assertThat(buffer.offer(newEvent(Level.INFO, "third"))).isTrue();
+
+    assertThat(buffer.getDroppedCount()).isEqualTo(1);
+    assertThat(buffer.poll().getMessage().getFormattedMessage()).isEqualTo("second");
+  }
+
+  @Test
+  public void drop_below_level_should_keep_more_specific_events() {
+    LogEventBuffer buffer = new LogEventBuffer(2, OverflowPolicy.DROP_BELOW_LEVEL, 0, Level.WARN);
+    assertThat(buffer.offer(newEvent(Level.INFO, "first"))).isTrue();
+    assertThat(buffer.offer(newEvent(Level.INFO, "second"))).isTrue();
+    assertThat(buffer.offer(newEvent(Level.DEBUG, "third"))).isFalse();
+    assertThat(buffer.offer(newEvent(Level.ERROR, "fourth"))).isTrue();
+
+    assertThat(buffer.getDroppedCount()).isEqualTo(2);
+    assertThat(buffer.poll().getMessage().getFormattedMessage()).isEqualTo("second");
+  }
+
+  @Test
+  public void drop_below_level_should_only_evict_less_specific_events() {
+    LogEventBuffer buffer = new LogEventBuffer(3, OverflowPolicy.DROP_BELOW_LEVEL, 0, Level.WARN, event -> false, 0,
+        Level.OFF, 1024 * 1024);
+    buffer.offer(newEvent(Level.WARN, "first"));
+    buffer.offer(newEvent(Level.INFO, "second"));
+    buffer.offer(newEvent(Level.ERROR, "third"));
+    assertThat(buffer.offer(newEvent(Level.ERROR, "fourth"))).isTrue();
+
+    assertThat(buffer.getDroppedCount()).isEqualTo(1);
+    assertThat(buffer.size()).isEqualTo(3);
+    assertThat(buffer.poll().getMessage().getFormattedMessage()).isEqualTo("first");
+    assertThat(buffer.poll().getMessage().getFormattedMessage()).isEqualTo("third");
+    assertThat(buffer.poll().getMessage().getFormattedMessage()).isEqualTo("fourth");
+    assertThat(buffer.isEmpty()).isTrue();
+    assertThat(buffer.bytes()).isZero();
+  }
+
+  @Test
+  public void drop_below_level_should_reject_event_when_no_less_specific_event_is_buffered() {
+    LogEventBuffer buffer = new LogEventBuffer(2, OverflowPolicy.DROP_BELOW_LEVEL, 0, Level.WARN);
+    buffer.offer(newEvent(Level.WARN, "first"));
+    buffer.offer(newEvent(Level.ERROR, "second"));
+
+    assertThat(buffer.offer(newEvent(Level.ERROR, "third"))).isFalse();
+
+    assertThat(buffer.getDroppedCount()).isEqualTo(1);
+    assertThat(buffer.poll().getMessage().getFormattedMessage()).isEqualTo("first");
+    assertThat(buffer.poll().getMessage().getFormattedMessage()).isEqualTo("second");
+  }
+
+  @Test
+  public void drop_below_level_should_keep_order_while_polled_concurrently() throws InterruptedException {
+    LogEventBuffer buffer = new LogEventBuffer(8, OverflowPolicy.DROP_BELOW_LEVEL, 0, Level.WARN);
+    int events = 200_000;
+    Thread producer = new Thread(() -> {
+      for(int i = 0; i < events; i++) {
+        buffer.offer(newEvent(i % 4 == 0 ? Level.INFO : Level.WARN, Integer.toString(i)));
+      }
+    });
+    producer.start();
+
+    int last = -1;
+    int outOfOrder = 0;
+    while(producer.isAlive() || !buffer.isEmpty()) {
+      LogEvent event = buffer.poll();
+      if(event != null) {
+        int current = Integer.parseInt(event.getMessage().getFormattedMessage());
+        if(current < last) {
+          outOfOrder++;
+        }
+        last = current;
+      }
+    }
+    producer.join();
+
+    assertThat(outOfOrder).isZero();
+    assertThat(buffer.size()).isZero();
+  }
+
+  @Test
+  public void capacity_should_be_exact() {
+    LogEventBuffer buffer = new LogEventBuffer(3, OverflowPolicy.DROP_NEWEST, 0, Level.WARN);
+    for(int i = 0; i < 4; i++) {
+      buffer.offer(newEvent(Level.INFO, "event" + i));
+    }
+
+    assertThat(buffer.capacity()).isEqualTo(3);
+    assertThat(buffer.size()).isEqualTo(3);
+    assertThat(buffer.getDroppedCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void block_should_wait_for_free_space() throws InterruptedException {
+    LogEventBuffer buffer = new LogEventBuffer(2, OverflowPolicy.BLOCK, 5000, Level.WARN);
+    buffer.offer(newEvent(Level.INFO, "first"));
+    buffer.offer(newEvent(Level.INFO, "second"));
+
+    Thread consumer = new Thread(() -> {
+      try {
+        Thread.sleep(100);
+        buffer.poll();
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    consumer.start();
+
+    assertThat(buffer.offer(newEvent(Level.INFO, "third"))).isTrue();
+    consumer.join();
+    assertThat(buffer.getDroppedCount()).isZero();
+  }
+
+  @Test
+  public void block_should_drop_after_timeout() {
+    LogEventBuffer buffer = new LogEventBuffer(2, OverflowPolicy.BLOCK, 10, Level.WARN);
+    buffer.offer(newEvent(Level.INFO, "first"));
+    buffer.offer(newEvent(Level.INFO, "second"));
+
+    assertThat(buffer.offer(newEvent(Level.INFO, "third"))).isFalse();
+    assertThat(buffer.getDroppedCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void priority_events_should_be_polled_first() {
+    LogEventBuffer buffer = newPriorityBuffer(OverflowPolicy.DROP_NEWEST);
+    buffer.offer(newEvent(Level.INFO, "first"));
+    buffer.offer(newEvent(Level.ERROR, "second"));
+    buffer.offer(newEvent(Level.FATAL, "third"));
+
+    assertThat(buffer.size()).isEqualTo(3);
+    assertThat(buffer.prioritySize()).isEqualTo(2);
+    assertThat(buffer.poll().getMessage().getFormattedMessage()).isEqualTo("second");
+    assertThat(buffer.poll().getMessage().getFormattedMessage()).isEqualTo("third");
+    assertThat(buffer.poll().getMessage().getFormattedMessage()).isEqualTo("first");
+    assertThat(buffer.isEmpty()).isTrue();
+  }
+
+  @Test
+  public void priority_events_should_evict_oldest_events_when_full() {
+    LogEventBuffer buffer = newPriorityBuffer(OverflowPolicy.DROP_NEWEST);
+    for(int i = 0; i < 4; i++) {
+      buffer.offer(newEvent(Level.INFO, "info" + i));
+    }
+    for(int i = 0; i < 3; i++) {
+      assertThat(buffer.offer(newEvent(Level.ERROR, "error" + i))).isTrue();
+    }
+
+    assertThat(buffer.getDroppedCount()).isEqualTo(1);
+    assertThat(buffer.getPriorityDroppedCount()).isZero();
+    assertThat(buffer.poll().getMessage().getFormattedMessage()).isEqualTo("error0");
+    assertThat(buffer.poll().getMessage().getFormattedMessage()).isEqualTo("error1");
+    assertThat(buffer.poll().getMessage().getFormattedMessage()).isEqualTo("info1");
+  }
+
+  @Test
+  public void verbose_events_should_not_use_priority_ring() {
+    LogEventBuffer buffer = newPriorityBuffer(OverflowPolicy.DROP_NEWEST);
+    for(int i = 0; i < 5; i++) {
+      buffer.offer(newEvent(Level.WARN, "warn" + i));
+    }
+
+    assertThat(buffer.getDroppedCount()).isEqualTo(1);
+    assertThat(buffer.getPriorityDroppedCount()).isZero();
+    assertThat(buffer.prioritySize()).isZero();
+  }
+
+  @Test
+  public void disabled_priority_ring_should_keep_order() {
+    LogEventBuffer buffer = new LogEventBuffer(4, OverflowPolicy.DROP_NEWEST, 0, Level.WARN, event -> false, 0,
+        Level.ERROR);
+    buffer.offer(newEvent(Level.INFO, "first"));
+    buffer.offer(newEvent(Level.ERROR, "second"));
+
+    assertThat(buffer.priorityCapacity()).isZero();
+    assertThat(buffer.poll().getMessage().getFormattedMessage()).isEqualTo("first");
+  }
+
+  @Test
+  public void discard_should_hand_events_to_overflow_handler() {
+    List<LogEvent> spilled = new ArrayList<>();
+    LogEventBuffer buffer = new LogEventBuffer(4, OverflowPolicy.DROP_NEWEST, 0, Level.WARN,
+        event -> event.getLevel() == Level.ERROR && spilled.add(event));
+    buffer.offer(newEvent(Level.INFO, "first"));
+    buffer.offer(newEvent(Level.ERROR, "second"));
+
+    assertThat(buffer.discard()).isEqualTo(2);
+    assertThat(buffer.isEmpty()).isTrue();
+    assertThat(spilled).extracting(event -> event.getMessage().getFormattedMessage()).containsExactly("second");
+    assertThat(buffer.getSpilledCount()).isEqualTo(1);
+    assertThat(buffer.getDroppedCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void buffered_bytes_should_be_accounted() {
+    LogEventBuffer buffer = new LogEventBuffer(4, OverflowPolicy.DROP_NEWEST, 0, Level.WARN, event -> false, 0,
+        Level.OFF, 1024 * 1024);
+    LogEvent event = newEvent(Level.INFO, "first");
+    int size = LogEventSize.estimate(event);
+
+    buffer.offer(event);
+    buffer.offer(newEvent(Level.INFO, "other"));
+    assertThat(buffer.bytes()).isEqualTo(2L * size);
+
+    buffer.poll();
+    buffer.poll();
+    assertThat(buffer.bytes()).isZero();
+    assertThat(buffer.highWaterBytes()).isEqualTo(2L * size);
+    assertThat(buffer.maxBytes()).isEqualTo(1024 * 1024);
+  }
+
+  @Test
+  public void buffer_bounded_by_count_should_not_account_bytes() {
+    LogEventBuffer buffer = new LogEventBuffer(4, OverflowPolicy.DROP_NEWEST, 0, Level.WARN);
+
+    buffer.offer(newEvent(Level.INFO, "first"));
+    buffer.poll();
+
+    assertThat(buffer.bytes()).isZero();
+    assertThat(buffer.highWaterBytes()).isZero();
+    assertThat(buffer.maxBytes()).isZero();
+  }
+
+  @Test
+  public void polled_event_should_release_the_bytes_estimated_when_buffered() {
+    LogEventBuffer buffer = new LogEventBuffer(4, OverflowPolicy.DROP_NEWEST, 0, Level.WARN, event -> false, 0,
+        Level.OFF, 1024 * 1024);
+    StringBuilder parameter = new StringBuilder("short");
+    buffer.offer(Log4jLogEvent.newBuilder()
+        .setLevel(Level.INFO)
+        .setMessage(new ParameterizedMessage("value {}", parameter))
+        .build());
+
+    parameter.append(" grown after being buffered");
+    buffer.poll();
+
+    assertThat(buffer.bytes()).isZero();
+  }
+
+  @Test
+  public void max_bytes_should_apply_overflow_policy() {
+    int size = LogEventSize.estimate(newEvent(Level.INFO, "first"));
+    LogEventBuffer buffer = new LogEventBuffer(1024, OverflowPolicy.DROP_OLDEST, 0, Level.WARN, event -> false, 0,
+        Level.OFF, 2L * size);
+
+    assertThat(buffer.offer(newEvent(Level.INFO, "first"))).isTrue();
+    assertThat(buffer.offer(newEvent(Level.INFO, "other"))).isTrue();
+    assertThat(buffer.offer(newEvent(Level.INFO, "third"))).isTrue();
+
+    assertThat(buffer.size()).isEqualTo(2);
+    assertThat(buffer.getDroppedCount()).isEqualTo(1);
+    assertThat(buffer.bytes()).isEqualTo(2L * size);
+    assertThat(buffer.poll().getMessage().getFormattedMessage()).isEqualTo("other");
+  }
+
+  @Test
+  public void event_larger_than_max_bytes_should_be_buffered_alone() {
+    LogEventBuffer buffer = new LogEventBuffer(1024, OverflowPolicy.DROP_NEWEST, 0, Level.WARN, event -> false, 0,
+        Level.OFF, 1);
+
+    assertThat(buffer.offer(newEvent(Level.INFO, "first"))).isTrue();
+    assertThat(buffer.offer(newEvent(Level.INFO, "other"))).isFalse();
+    buffer.poll();
+    assertThat(buffer.offer(newEvent(Level.INFO, "third"))).isTrue();
+  }
+
+  private static LogEventBuffer newPriorityBuffer(OverflowPolicy overflowPolicy) {
+    return new LogEventBuffer(4, overflowPolicy, 0, Level.WARN, event -> false, 2, Level.ERROR);
+  }
+
+  private static LogEvent newEvent(Level level, String message) {
+    return Log4jLogEvent.newBuilder()
+        .setLoggerName("TestLogger")
+        .setLevel(level)
+        .setMessage(new SimpleMessage(message))
+        .build();
+  }
+
+}
@@ -0,0 +1,119 @@
+package io.sensefly.logging.log4j;
+
+import com.amazonaws.services.logs.model.InputLogEvent;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.Test;
+
+import static io.sensefly.logging.log4j.BatchBuilder.MAX_BATCH_BYTES;
+import static io.sensefly.logging.log4j.BatchBuilder.MAX_BATCH_EVENTS;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+public class LogEventEncoderTest {
+
+  private final LogEventEncoder encoder = new LogEventEncoder(PatternLayout.newBuilder()
+      .withPattern("%p %m")
+      .withCharset(UTF_8)
+      .build());
+
+  @Test
+  public void event_should_be_encoded_with_layout() {
+    BatchBuilder builder = new BatchBuilder(MAX_BATCH_EVENTS, MAX_BATCH_BYTES, true);
+    encoder.encode(newEvent("message 1", 1L), builder);
+    encoder.encode(newEvent("café €", 2L), builder);
+
+    assertThat(builder.build().get(0))
+        .extracting(InputLogEvent::getMessage, InputLogEvent::getTimestamp)
+        .containsExactly(
+            tuple("INFO message 1", 1L),
+            tuple("INFO café €", 2L));
+  }
+
+  @Test
+  public void buffer_should_grow_for_large_events() {
+    StringBuilder message = new StringBuilder();
+    while(message.length() < 100_000) {
+      message.append("0123456789");
+    }
+    BatchBuilder builder = new BatchBuilder(MAX_BATCH_EVENTS, MAX_BATCH_BYTES, true);
+    encoder.encode(newEvent(message.toString(), 1L), builder);
+    encoder.encode(newEvent("small", 2L), builder);
+
+    assertThat(builder.build().get(0))
+        .extracting(InputLogEvent::getMessage)
+        .containsExactly("INFO " + message, "INFO small");
+  }
+
+  @Test
+  public void json_layout_text_should_be_added_directly() {
+    LogEventEncoder jsonEncoder = new LogEventEncoder(CloudWatchJsonLayout.createLayout(0, true));
+    BatchBuilder builder = new BatchBuilder(MAX_BATCH_EVENTS, MAX_BATCH_BYTES, true);
+    jsonEncoder.encode(newEvent("café €", 1L), builder);
+
+    String expected = "{\"timestamp\":1,\"level\":\"INFO\",\"logger\":\"TestLogger\",\"thread\":\""
+        + Thread.currentThread().getName() + "\",\"message\":\"café €\"}";
+    assertThat(builder.bytes()).isEqualTo(expected.getBytes(UTF_8).length + BatchBuilder.EVENT_OVERHEAD_BYTES);
+    assertThat(builder.build().get(0)).extracting(InputLogEvent::getMessage).containsExactly(expected);
+  }
+
+  @Test
+  public void captured_event_should_keep_its_text() {
+    EncodedLogEvent captured = encoder.capture(newEvent("café", 1L), null);
+    BatchBuilder builder = new BatchBuilder(MAX_BATCH_EVENTS, MAX_BATCH_BYTES, true);
+    encoder.encode(captured, builder);
+
+    assertThat(captured.getLevel()).isEqualTo(Level.INFO);
+    assertThat(captured.getText()).isEqualTo("INFO café");
+    assertThat(captured.getBytes()).isEqualTo("INFO café".getBytes(UTF_8).length);
+    assertThat(builder.build().get(0))
+        .extracting(InputLogEvent::getTimestamp, InputLogEvent::getMessage)
+        .containsExactly(tuple(1L, "INFO café"));
+  }
+
+  @Test
+  public void captured_event_should_create_its_message_once() {
+    EncodedLogEvent captured = encoder.capture(newEvent("café", 1L), null);
+
+    assertThat(captured.getMessage()).isSameAs(captured.getMessage());
+    assertThat(captured.getMessage().getFormattedMessage()).isEqualTo("INFO café");
+  }
+
+  @Test
+  public void throwable_should_be_rendered_after_layout() {
+    LogEventEncoder compacting = new LogEventEncoder(
+        PatternLayout.newBuilder().withPattern("%p %m%n").withCharset(UTF_8).build(),
+        new ThrowableRenderer(1, null, 0, 16));
+    LogEvent event = Log4jLogEvent.newBuilder()
+        .setLoggerName("TestLogger")
+        .setLevel(Level.ERROR)
+        .setMessage(new SimpleMessage("café"))
+        .setThrown(new IllegalStateException("failed"))
+        .build();
+    BatchBuilder builder = new BatchBuilder(MAX_BATCH_EVENTS, MAX_BATCH_BYTES, true);
+
+    compacting.encode(event, builder);
+
+    String message = builder.build().get(0).get(0).getMessage();
+    String[] lines = message.split("\n");
+    assertThat(lines).hasSize(4);
+    assertThat(lines[0]).isEqualTo("ERROR café");
+    assertThat(lines[1]).startsWith("java.lang.IllegalStateException: failed [stack trace ");
+    assertThat(lines[2]).startsWith("\tat " + LogEventEncoderTest.class.getName());
+    assertThat(lines[3]).matches("\t\\.\\.\\. \\d+ more");
+  }
+
+  private static LogEvent newEvent(String message, long timestamp) {
+    return Log4jLogEvent.newBuilder()
+        .setLoggerName("TestLogger")
+        .setLevel(Level.INFO)
+        .setTimeMillis(timestamp)
+        .setMessage(new SimpleMessage(message))
+        .build();
+  }
+
+}
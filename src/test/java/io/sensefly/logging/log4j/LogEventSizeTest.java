@@ -0,0 +1,62 @@
+package io.sensefly.logging.log4j;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LogEventSizeTest {
+
+  @Test
+  public void size_should_grow_with_message() {
+    int empty = LogEventSize.estimate(newEvent(new SimpleMessage("")));
+
+    assertThat(empty).isEqualTo(LogEventSize.EVENT_BYTES);
+    assertThat(LogEventSize.estimate(newEvent(new SimpleMessage("abcd")))).isEqualTo(empty + 8);
+  }
+
+  @Test
+  public void size_should_count_template_and_parameters() {
+    int size = LogEventSize.estimate(newEvent(new ParameterizedMessage("a {} {}", "bc", 1)));
+
+    assertThat(size).isEqualTo(LogEventSize.EVENT_BYTES + 14 + 2 * LogEventSize.PARAMETER_BYTES + 4);
+  }
+
+  @Test
+  public void size_should_count_context_data_and_throwables() {
+    SortedArrayStringMap contextData = new SortedArrayStringMap();
+    contextData.putValue("key", "value");
+    LogEvent event = Log4jLogEvent.newBuilder()
+        .setLoggerName("TestLogger")
+        .setLevel(Level.ERROR)
+        .setMessage(new SimpleMessage(""))
+        .setContextData(contextData)
+        .setThrown(new IllegalStateException("ab", new RuntimeException()))
+        .build();
+
+    assertThat(LogEventSize.estimate(event)).isEqualTo(LogEventSize.EVENT_BYTES + LogEventSize.CONTEXT_ENTRY_BYTES
+        + 2 * LogEventSize.THROWABLE_BYTES + 4);
+  }
+
+  @Test
+  public void size_of_encoded_event_should_count_its_text() {
+    LogEvent event = new EncodedLogEvent(newEvent(new ParameterizedMessage("a {}", "bc")), "INFO a bc", 9, null);
+
+    assertThat(LogEventSize.estimate(event)).isEqualTo(LogEventSize.EVENT_BYTES + 18);
+  }
+
+  private static LogEvent newEvent(Message message) {
+    return Log4jLogEvent.newBuilder()
+        .setLoggerName("TestLogger")
+        .setLevel(Level.INFO)
+        .setMessage(message)
+        .build();
+  }
+
+}
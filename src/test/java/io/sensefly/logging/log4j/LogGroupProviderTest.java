@@ -5,6 +5,7 @@ import com.amazonaws.services.logs.model.CreateLogGroupRequest;
 import com.amazonaws.services.logs.model.DescribeLogGroupsRequest;
 import com.amazonaws.services.logs.model.DescribeLogGroupsResult;
 import com.amazonaws.services.logs.model.LogGroup;
+import com.amazonaws.services.logs.model.ResourceAlreadyExistsException;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
@@ -57,4 +58,31 @@ public class LogGroupProviderTest {
     verify(awsLogs, times(1)).createLogGroup(groupCaptor.capture());
     assertThat(groupCaptor.getValue().getLogGroupName()).isEqualTo(GROUP_NAME);
   }
-}
\ No newline at end of file
+
+  @Test
+  public void log_group_created_concurrently_should_not_fail() {
+    DescribeLogGroupsRequest request = new DescribeLogGroupsRequest().withLogGroupNamePrefix(GROUP_NAME);
+    when(awsLogs.describeLogGroups(request))
+        .thenReturn(new DescribeLogGroupsResult());
+    when(awsLogs.createLogGroup(any(CreateLogGroupRequest.class)))
+        .thenThrow(new ResourceAlreadyExistsException("exists"));
+
+    new LogGroupProvider(awsLogs).ensureExists(GROUP_NAME);
+
+    verify(awsLogs, times(1)).createLogGroup(any(CreateLogGroupRequest.class));
+  }
+
+  @Test
+  public void ensured_log_group_should_not_be_described_again() {
+    DescribeLogGroupsRequest request = new DescribeLogGroupsRequest().withLogGroupNamePrefix(GROUP_NAME);
+    when(awsLogs.describeLogGroups(request))
+        .thenReturn(new DescribeLogGroupsResult());
+
+    LogGroupProvider provider = new LogGroupProvider(awsLogs);
+    provider.ensureExists(GROUP_NAME);
+    provider.ensureExists(GROUP_NAME);
+
+    verify(awsLogs, times(1)).describeLogGroups(any(DescribeLogGroupsRequest.class));
+    verify(awsLogs, times(1)).createLogGroup(any(CreateLogGroupRequest.class));
+  }
+}
@@ -2,12 +2,9 @@ package io.sensefly.logging.log4j;
 
 import com.amazonaws.services.logs.AWSLogs;
 import com.amazonaws.services.logs.model.CreateLogStreamRequest;
-import com.amazonaws.services.logs.model.DescribeLogGroupsRequest;
-import com.amazonaws.services.logs.model.DescribeLogGroupsResult;
 import com.amazonaws.services.logs.model.DescribeLogStreamsRequest;
-import com.amazonaws.services.logs.model.DescribeLogStreamsResult;
-import com.amazonaws.services.logs.model.LogGroup;
-import com.amazonaws.services.logs.model.LogStream;
+import com.amazonaws.services.logs.model.ResourceAlreadyExistsException;
+import com.amazonaws.services.logs.model.ServiceUnavailableException;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
@@ -19,7 +16,9 @@ import java.time.LocalDate;
 
 import static java.time.ZoneOffset.UTC;
 import static java.time.temporal.ChronoUnit.DAYS;
+import static java.time.temporal.ChronoUnit.MINUTES;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
@@ -47,40 +46,23 @@ public class LogStreamProviderTest {
 
     when(clock.instant()).thenReturn(fixedClock.instant());
     when(clock.getZone()).thenReturn(fixedClock.getZone());
-
-    DescribeLogGroupsRequest groupRequest = new DescribeLogGroupsRequest().withLogGroupNamePrefix(GROUP_NAME);
-    DescribeLogGroupsResult groupResult = new DescribeLogGroupsResult()
-        .withLogGroups(new LogGroup().withLogGroupName(GROUP_NAME));
-    when(awsLogs.describeLogGroups(groupRequest))
-        .thenReturn(groupResult);
   }
 
   @Test
-  public void log_stream_should_not_be_created_if_already_exists() {
-    DescribeLogStreamsRequest streamsRequest = new DescribeLogStreamsRequest()
-        .withLogGroupName(GROUP_NAME)
-        .withLogStreamNamePrefix(STREAM_NAME_PREFIX);
-    DescribeLogStreamsResult streamsResult = new DescribeLogStreamsResult()
-        .withLogStreams(new LogStream().withLogStreamName(STREAM_NAME_PREFIX));
-    when(awsLogs.describeLogStreams(streamsRequest))
-        .thenReturn(streamsResult);
-
-    LogStreamProvider provider = new LogStreamProvider(awsLogs, clock);
-    provider.getName(STREAM_NAME_PREFIX, GROUP_NAME);
+  public void existing_log_stream_should_be_used() {
+    when(awsLogs.createLogStream(any(CreateLogStreamRequest.class)))
+        .thenThrow(new ResourceAlreadyExistsException("exists"));
 
-    verify(awsLogs, never()).createLogStream(any(CreateLogStreamRequest.class));
+    LogStreamProvider provider = new LogStreamProvider(awsLogs, clock, GROUP_NAME, STREAM_NAME_PREFIX);
+
+    assertThat(provider.getName()).isEqualTo(STREAM_NAME);
+    verify(awsLogs, never()).describeLogStreams(any(DescribeLogStreamsRequest.class));
   }
 
   @Test
   public void log_stream_should_be_created_if_not_existing() {
-    DescribeLogStreamsRequest streamsRequest = new DescribeLogStreamsRequest()
-        .withLogGroupName(GROUP_NAME)
-        .withLogStreamNamePrefix(STREAM_NAME);
-    when(awsLogs.describeLogStreams(streamsRequest))
-        .thenReturn(new DescribeLogStreamsResult());
-
-    LogStreamProvider provider = new LogStreamProvider(awsLogs, clock);
-    String logStream = provider.getName(STREAM_NAME_PREFIX, GROUP_NAME);
+    LogStreamProvider provider = new LogStreamProvider(awsLogs, clock, GROUP_NAME, STREAM_NAME_PREFIX);
+    String logStream = provider.getName();
     assertThat(logStream).isEqualTo(STREAM_NAME);
 
     ArgumentCaptor<CreateLogStreamRequest> streamCaptor = ArgumentCaptor.forClass(CreateLogStreamRequest.class);
@@ -89,46 +71,96 @@ public class LogStreamProviderTest {
     assertThat(streamCaptor.getValue().getLogStreamName()).isEqualTo(STREAM_NAME);
   }
 
+  @Test
+  public void log_stream_should_be_created_once_per_period() {
+    LogStreamProvider provider = new LogStreamProvider(awsLogs, clock, GROUP_NAME, STREAM_NAME_PREFIX);
+    provider.getName();
+    when(clock.instant()).thenReturn(fixedClock.instant().plus(10, DAYS));
+    provider.getName();
+
+    verify(awsLogs, times(1)).createLogStream(any(CreateLogStreamRequest.class));
+  }
+
+  @Test
+  public void failed_creation_should_be_retried() {
+    when(awsLogs.createLogStream(any(CreateLogStreamRequest.class)))
+        .thenThrow(new ServiceUnavailableException("unavailable"))
+        .thenReturn(null);
+    LogStreamProvider provider = new LogStreamProvider(awsLogs, clock, GROUP_NAME, STREAM_NAME_PREFIX);
+
+    assertThatThrownBy(provider::getName).isInstanceOf(ServiceUnavailableException.class);
+    assertThat(provider.getName()).isEqualTo(STREAM_NAME);
+    verify(awsLogs, times(2)).createLogStream(any(CreateLogStreamRequest.class));
+  }
+
   @Test
   public void stream_name_should_support_prefix() {
-    LogStreamProvider provider = new LogStreamProvider(awsLogs, clock);
-    String logStream = provider.getName(STREAM_NAME_PREFIX, GROUP_NAME);
+    LogStreamProvider provider = new LogStreamProvider(awsLogs, clock, GROUP_NAME, STREAM_NAME_PREFIX);
+    String logStream = provider.getName();
     assertThat(logStream).isEqualTo(STREAM_NAME);
   }
 
   @Test
   public void stream_name_should_support_no_prefix() {
-    LogStreamProvider provider = new LogStreamProvider(awsLogs, clock);
-    String logStream = provider.getName(null, GROUP_NAME);
+    LogStreamProvider provider = new LogStreamProvider(awsLogs, clock, GROUP_NAME, null);
+    String logStream = provider.getName();
     assertThat(logStream).isEqualTo("2017/09");
   }
 
   @Test
-  public void log_stream_should_be_created_on_new_month() {
-    LogStreamProvider provider = new LogStreamProvider(awsLogs, clock);
-    String logStream = provider.getName(STREAM_NAME_PREFIX, GROUP_NAME);
-    assertThat(logStream).isEqualTo(STREAM_NAME);
+  public void stream_name_should_follow_rollover() {
+    when(clock.instant()).thenReturn(fixedClock.instant().plus(14 * 60 + 30, MINUTES));
 
-    DescribeLogGroupsRequest groupRequest = new DescribeLogGroupsRequest().withLogGroupNamePrefix(GROUP_NAME);
-    when(awsLogs.describeLogGroups(groupRequest))
-        .thenReturn(new DescribeLogGroupsResult());
+    assertThat(newProvider(LogStreamRollover.HOUR).getName()).isEqualTo("test_stream/2017/09/01/14/host");
+    assertThat(newProvider(LogStreamRollover.DAY).getName()).isEqualTo("test_stream/2017/09/01/host");
+    assertThat(newProvider(LogStreamRollover.MONTH).getName()).isEqualTo("test_stream/2017/09/host");
+  }
 
-    DescribeLogStreamsRequest streamsRequest = new DescribeLogStreamsRequest()
-        .withLogGroupName(GROUP_NAME)
-        .withLogStreamNamePrefix("test_stream/2017/10");
-    when(awsLogs.describeLogStreams(streamsRequest))
-        .thenReturn(new DescribeLogStreamsResult());
+  @Test
+  public void log_stream_should_be_created_on_new_month() {
+    LogStreamProvider provider = new LogStreamProvider(awsLogs, clock, GROUP_NAME, STREAM_NAME_PREFIX);
+    String logStream = provider.getName();
+    assertThat(logStream).isEqualTo(STREAM_NAME);
 
     when(clock.instant()).thenReturn(fixedClock.instant().plus(31, DAYS));
 
-    String newLogStream = provider.getName(STREAM_NAME_PREFIX, GROUP_NAME);
+    String newLogStream = provider.getName();
     assertThat(newLogStream).isEqualTo("test_stream/2017/10");
 
     ArgumentCaptor<CreateLogStreamRequest> streamCaptor = ArgumentCaptor.forClass(CreateLogStreamRequest.class);
-    verify(awsLogs, times(1)).createLogStream(streamCaptor.capture());
+    verify(awsLogs, times(2)).createLogStream(streamCaptor.capture());
     assertThat(streamCaptor.getValue().getLogGroupName()).isEqualTo(GROUP_NAME);
     assertThat(streamCaptor.getValue().getLogStreamName()).isEqualTo("test_stream/2017/10");
+  }
+
+  @Test
+  public void next_log_stream_should_be_created_before_rollover() {
+    LogStreamProvider provider = newProvider(LogStreamRollover.HOUR);
+    provider.getName();
+
+    when(clock.instant()).thenReturn(fixedClock.instant().plus(59, MINUTES).plusSeconds(30));
+    assertThat(provider.getName()).isEqualTo("test_stream/2017/09/01/00/host");
+    when(clock.instant()).thenReturn(fixedClock.instant().plus(61, MINUTES));
+    assertThat(provider.getName()).isEqualTo("test_stream/2017/09/01/01/host");
+
+    ArgumentCaptor<CreateLogStreamRequest> streamCaptor = ArgumentCaptor.forClass(CreateLogStreamRequest.class);
+    verify(awsLogs, times(2)).createLogStream(streamCaptor.capture());
+    assertThat(streamCaptor.getAllValues())
+        .extracting(CreateLogStreamRequest::getLogStreamName)
+        .containsExactly("test_stream/2017/09/01/00/host", "test_stream/2017/09/01/01/host");
+  }
+
+  @Test
+  public void assume_exists_should_never_create_streams() {
+    LogStreamProvider provider = new LogStreamProvider(awsLogs, clock, GROUP_NAME, STREAM_NAME_PREFIX, null,
+        LogStreamRollover.MONTH, true);
+
+    assertThat(provider.getName()).isEqualTo(STREAM_NAME);
+    verify(awsLogs, never()).createLogStream(any(CreateLogStreamRequest.class));
+  }
 
+  private LogStreamProvider newProvider(LogStreamRollover rollover) {
+    return new LogStreamProvider(awsLogs, clock, GROUP_NAME, STREAM_NAME_PREFIX, "host", rollover, false);
   }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,128 @@
+package io.sensefly.logging.log4j;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LogSuppressorTest {
+
+  private static final long NOW = 1_500_000_000_000L;
+
+  private final List<LogEvent> summaries = new ArrayList<>();
+
+  @Test
+  public void disabled_suppressor_should_accept_all_events() {
+    LogSuppressor suppressor = new LogSuppressor(0, 0, summaries::add);
+
+    assertThat(suppressor.isEnabled()).isFalse();
+    assertThat(suppressor.accept(newEvent("TestLogger", Level.ERROR, "failed {}", 1, NOW))).isTrue();
+    assertThat(suppressor.accept(newEvent("TestLogger", Level.ERROR, "failed {}", 1, NOW))).isTrue();
+  }
+
+  @Test
+  public void repeats_should_be_suppressed_within_window() {
+    LogSuppressor suppressor = new LogSuppressor(1000, 0, summaries::add);
+
+    assertThat(suppressor.accept(newEvent("TestLogger", Level.ERROR, "failed {}", 1, NOW))).isTrue();
+    assertThat(suppressor.accept(newEvent("TestLogger", Level.ERROR, "failed {}", 2, NOW + 10))).isFalse();
+    assertThat(suppressor.accept(newEvent("TestLogger", Level.ERROR, "failed {}", 3, NOW + 999))).isFalse();
+    assertThat(summaries).isEmpty();
+
+    assertThat(suppressor.accept(newEvent("TestLogger", Level.ERROR, "failed {}", 4, NOW + 1000))).isTrue();
+    assertThat(summaries).hasSize(1);
+    assertThat(summaries.get(0).getMessage().getFormattedMessage())
+        .isEqualTo("Suppressed 2 repeats within 1000 ms of: failed {}");
+    assertThat(summaries.get(0).getLevel()).isEqualTo(Level.ERROR);
+    assertThat(summaries.get(0).getLoggerName()).isEqualTo("TestLogger");
+    assertThat(summaries.get(0).getTimeMillis()).isEqualTo(NOW + 1000);
+  }
+
+  @Test
+  public void different_logger_level_or_template_should_not_be_repeats() {
+    LogSuppressor suppressor = new LogSuppressor(1000, 0, summaries::add);
+
+    assertThat(suppressor.accept(newEvent("TestLogger", Level.ERROR, "failed {}", 1, NOW))).isTrue();
+    assertThat(suppressor.accept(newEvent("OtherLogger", Level.ERROR, "failed {}", 1, NOW))).isTrue();
+    assertThat(suppressor.accept(newEvent("TestLogger", Level.WARN, "failed {}", 1, NOW))).isTrue();
+    assertThat(suppressor.accept(newEvent("TestLogger", Level.ERROR, "timeout {}", 1, NOW))).isTrue();
+  }
+
+  @Test
+  public void flush_should_summarize_ended_windows_only() {
+    LogSuppressor suppressor = new LogSuppressor(1000, 0, summaries::add);
+    suppressor.accept(newEvent("TestLogger", Level.ERROR, "failed {}", 1, NOW));
+    suppressor.accept(newEvent("TestLogger", Level.ERROR, "failed {}", 1, NOW));
+    suppressor.accept(newEvent("TestLogger", Level.INFO, "done", null, NOW + 500));
+
+    suppressor.flush(NOW + 500);
+    assertThat(summaries).isEmpty();
+
+    suppressor.flush(NOW + 1000);
+    assertThat(summaries)
+        .extracting(event -> event.getMessage().getFormattedMessage())
+        .containsExactly("Suppressed 1 repeats within 1000 ms of: failed {}");
+
+    // the window ended so the next event is kept
+    assertThat(suppressor.accept(newEvent("TestLogger", Level.ERROR, "failed {}", 1, NOW + 1001))).isTrue();
+  }
+
+  @Test
+  public void events_over_rate_limit_should_be_suppressed() {
+    LogSuppressor suppressor = new LogSuppressor(0, 10, summaries::add);
+
+    int accepted = 0;
+    for(int i = 0; i < 100; i++) {
+      if(suppressor.accept(newEvent("TestLogger", Level.INFO, "event " + i, null, NOW))) {
+        accepted++;
+      }
+    }
+    assertThat(accepted).isEqualTo(10);
+    assertThat(suppressor.accept(newEvent("OtherLogger", Level.INFO, "event", null, NOW))).isTrue();
+    assertThat(suppressor.accept(newEvent("TestLogger", Level.WARN, "event", null, NOW))).isTrue();
+
+    // refilled by one event every 100 ms
+    assertThat(suppressor.accept(newEvent("TestLogger", Level.INFO, "event", null, NOW + 100))).isTrue();
+    assertThat(suppressor.accept(newEvent("TestLogger", Level.INFO, "event", null, NOW + 100))).isFalse();
+
+    suppressor.flush(NOW + 100);
+    assertThat(summaries)
+        .extracting(event -> event.getMessage().getFormattedMessage())
+        .containsExactly("Suppressed 91 events of TestLogger over 10 events per second");
+
+    summaries.clear();
+    suppressor.flush(NOW + 200);
+    assertThat(summaries).isEmpty();
+  }
+
+  @Test
+  public void repeats_should_not_consume_rate_limit() {
+    LogSuppressor suppressor = new LogSuppressor(1000, 1, summaries::add);
+
+    assertThat(suppressor.accept(newEvent("TestLogger", Level.ERROR, "failed {}", 1, NOW))).isTrue();
+    assertThat(suppressor.accept(newEvent("TestLogger", Level.ERROR, "failed {}", 2, NOW))).isFalse();
+    assertThat(suppressor.accept(newEvent("TestLogger", Level.ERROR, "timeout {}", 1, NOW))).isFalse();
+
+    suppressor.flush(Long.MAX_VALUE);
+    assertThat(summaries)
+        .extracting(event -> event.getMessage().getFormattedMessage())
+        .containsExactlyInAnyOrder("Suppressed 1 repeats within 1000 ms of: failed {}",
+            "Suppressed 1 events of TestLogger over 1 events per second");
+  }
+
+  private static LogEvent newEvent(String loggerName, Level level, String format, Object param, long timeMillis) {
+    return Log4jLogEvent.newBuilder()
+        .setLoggerName(loggerName)
+        .setLevel(level)
+        .setMessage(new ParameterizedMessage(format, param))
+        .setTimeMillis(timeMillis)
+        .build();
+  }
+
+}
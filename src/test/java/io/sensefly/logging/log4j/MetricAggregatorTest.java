@@ -0,0 +1,150 @@
+package io.sensefly.logging.log4j;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.MarkerManager;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.message.StringMapMessage;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MetricAggregatorTest {
+
+  private static final String MARKER = "METRIC";
+
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final List<LogEvent> documents = new ArrayList<>();
+
+  @Test
+  public void metrics_should_be_aggregated_per_dimensions() throws IOException {
+    MetricAggregator aggregator = new MetricAggregator(MARKER, "MyApp", null, documents::add);
+
+    assertThat(aggregator.accept(newMetric(new StringMapMessage().with("operation", "get").with("latency", "10"))))
+        .isTrue();
+    assertThat(aggregator.accept(newMetric(new StringMapMessage().with("operation", "get").with("latency", "20"))))
+        .isTrue();
+    assertThat(aggregator.accept(newMetric(new StringMapMessage().with("operation", "get").with("latency", "10"))))
+        .isTrue();
+    assertThat(aggregator.accept(newMetric(new StringMapMessage().with("operation", "put").with("latency", 5.5))))
+        .isTrue();
+    aggregator.flush(1_500_000_000_000L);
+
+    assertThat(documents).hasSize(2);
+    assertThat(documents).allMatch(MetricAggregator::isDocument);
+    JsonNode get = document("get");
+    JsonNode metadata = get.get("_aws");
+    assertThat(metadata.get("Timestamp").asLong()).isEqualTo(1_500_000_000_000L);
+    assertThat(metadata.get("CloudWatchMetrics").get(0).get("Namespace").asText()).isEqualTo("MyApp");
+    assertThat(metadata.get("CloudWatchMetrics").get(0).get("Dimensions").toString()).isEqualTo("[[\"operation\"]]");
+    assertThat(metadata.get("CloudWatchMetrics").get(0).get("Metrics").toString())
+        .isEqualTo("[{\"Name\":\"latency\"}]");
+    assertThat(get.get("latency").toString())
+        .isEqualTo("{\"Values\":[10,20],\"Counts\":[2,1],\"Max\":20,\"Min\":10,\"Count\":3,\"Sum\":40}");
+    assertThat(document("put").get("latency").get("Sum").asDouble()).isEqualTo(5.5);
+  }
+
+  @Test
+  public void listed_dimensions_should_not_be_metrics() throws IOException {
+    MetricAggregator aggregator = new MetricAggregator(MARKER, "MyApp", "status, operation", documents::add);
+
+    aggregator.accept(newMetric(new StringMapMessage()
+        .with("operation", "get").with("status", 200).with("latency", 10).with("ignored", "text")));
+    aggregator.flush(0);
+
+    JsonNode document = mapper.readTree(documents.get(0).getMessage().getFormattedMessage());
+    assertThat(document.get("_aws").get("CloudWatchMetrics").get(0).get("Dimensions").toString())
+        .isEqualTo("[[\"operation\",\"status\"]]");
+    assertThat(document.get("status").asText()).isEqualTo("200");
+    assertThat(document.has("latency")).isTrue();
+    assertThat(document.has("ignored")).isFalse();
+  }
+
+  @Test
+  public void other_events_should_not_be_aggregated() {
+    MetricAggregator aggregator = new MetricAggregator(MARKER, "MyApp", null, documents::add);
+
+    assertThat(aggregator.accept(newEvent(null, new StringMapMessage().with("latency", 10)))).isFalse();
+    assertThat(aggregator.accept(newEvent(MARKER, new SimpleMessage("latency=10")))).isFalse();
+    assertThat(aggregator.accept(newMetric(new StringMapMessage().with("operation", "get")))).isFalse();
+    assertThat(new MetricAggregator(null, "MyApp", null, documents::add)
+        .accept(newMetric(new StringMapMessage().with("latency", 10)))).isFalse();
+  }
+
+  @Test
+  public void histogram_should_be_bounded() throws IOException {
+    MetricAggregator aggregator = new MetricAggregator(MARKER, "MyApp", null, documents::add);
+
+    for(int i = 1; i <= 10_000; i++) {
+      aggregator.accept(newMetric(new StringMapMessage().with("latency", i)));
+    }
+    aggregator.flush(0);
+
+    JsonNode latency = mapper.readTree(documents.get(0).getMessage().getFormattedMessage()).get("latency");
+    assertThat(latency.get("Values").size()).isLessThanOrEqualTo(MetricAggregator.MAX_VALUES);
+    long counts = 0;
+    for(JsonNode count : latency.get("Counts")) {
+      counts += count.asLong();
+    }
+    assertThat(counts).isEqualTo(10_000);
+    assertThat(latency.get("Count").asLong()).isEqualTo(10_000);
+    assertThat(latency.get("Min").asLong()).isEqualTo(1);
+    assertThat(latency.get("Max").asLong()).isEqualTo(10_000);
+  }
+
+  @Test
+  public void concurrent_metrics_should_all_be_counted() throws Exception {
+    MetricAggregator aggregator = new MetricAggregator(MARKER, "MyApp", null, documents::add);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    for(int thread = 0; thread < 4; thread++) {
+      String operation = "operation-" + thread % 2;
+      executor.execute(() -> {
+        for(int i = 0; i < 10_000; i++) {
+          aggregator.accept(newMetric(new StringMapMessage().with("operation", operation).with("count", 1)));
+        }
+      });
+    }
+    executor.shutdown();
+    assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+    aggregator.flush(0);
+
+    assertThat(document("operation-0").get("count").get("Count").asLong()).isEqualTo(20_000);
+    assertThat(document("operation-1").get("count").get("Count").asLong()).isEqualTo(20_000);
+  }
+
+  private JsonNode document(String operation) throws IOException {
+    for(LogEvent document : documents) {
+      JsonNode json = mapper.readTree(document.getMessage().getFormattedMessage());
+      if(operation.equals(json.path("operation").asText())) {
+        return json;
+      }
+    }
+    throw new AssertionError("No document of " + operation);
+  }
+
+  private static LogEvent newMetric(Message message) {
+    return newEvent(MARKER, message);
+  }
+
+  private static LogEvent newEvent(String marker, Message message) {
+    return Log4jLogEvent.newBuilder()
+        .setLoggerName("TestLogger")
+        .setLevel(Level.INFO)
+        .setMarker(marker == null ? null : MarkerManager.getMarker(marker))
+        .setMessage(message)
+        .build();
+  }
+
+}
@@ -0,0 +1,71 @@
+package io.sensefly.logging.log4j;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RateControllerTest {
+
+  @Test
+  public void throttling_should_halve_rate_and_success_should_raise_it_additively() {
+    RateController rateController = new RateController(40, 0);
+
+    rateController.onThrottled();
+    rateController.onThrottled();
+    assertThat(rateController.getRequestsPerSecond()).isEqualTo(10);
+
+    // 10 requests at 10 requests per second raise the rate by a tenth of the maximum
+    for(int i = 0; i < 10; i++) {
+      rateController.onSuccess();
+    }
+    assertThat(rateController.getRequestsPerSecond()).isBetween(13.0, 14.0);
+  }
+
+  @Test
+  public void throttling_should_halve_rate_once_per_interval() {
+    RateController rateController = new RateController(40);
+
+    rateController.onThrottled();
+    rateController.onThrottled();
+
+    assertThat(rateController.getRequestsPerSecond()).isEqualTo(20);
+  }
+
+  @Test
+  public void rate_should_stay_between_min_and_max() {
+    RateController rateController = new RateController(4, 0);
+
+    for(int i = 0; i < 10; i++) {
+      rateController.onThrottled();
+    }
+    assertThat(rateController.getRequestsPerSecond()).isEqualTo(RateController.MIN_REQUESTS_PER_SECOND);
+
+    for(int i = 0; i < 100; i++) {
+      rateController.onSuccess();
+    }
+    assertThat(rateController.getRequestsPerSecond()).isEqualTo(4);
+  }
+
+  @Test
+  public void requests_should_be_paced_at_current_rate() {
+    RateController rateController = new RateController(20);
+
+    long waitNanos = 0;
+    for(int i = 0; i < 5; i++) {
+      waitNanos = rateController.reserve();
+    }
+    assertThat(waitNanos).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(190));
+  }
+
+  @Test
+  public void unlimited_rate_should_never_wait() {
+    RateController rateController = new RateController(0);
+
+    for(int i = 0; i < 5; i++) {
+      assertThat(rateController.reserve()).isZero();
+    }
+  }
+
+}
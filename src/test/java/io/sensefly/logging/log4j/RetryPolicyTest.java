@@ -0,0 +1,105 @@
+package io.sensefly.logging.log4j;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RetryPolicyTest {
+
+  @Test
+  public void backoff_should_grow_exponentially_with_jitter_up_to_max() {
+    RetryPolicy retryPolicy = new RetryPolicy(10, 100, 1000);
+
+    for(int i = 0; i < 100; i++) {
+      assertThat(retryPolicy.backoffMillis(0)).isBetween(50L, 100L);
+      assertThat(retryPolicy.backoffMillis(2)).isBetween(200L, 400L);
+      assertThat(retryPolicy.backoffMillis(20)).isBetween(500L, 1000L);
+      assertThat(retryPolicy.backoffMillis(100)).isBetween(500L, 1000L);
+    }
+  }
+
+  @Test
+  public void retries_should_be_limited_per_request() {
+    RetryPolicy retryPolicy = new RetryPolicy(2, 100, 1000);
+
+    assertThat(retryPolicy.tryRetry(ErrorClass.THROTTLING, 0)).isTrue();
+    assertThat(retryPolicy.tryRetry(ErrorClass.THROTTLING, 1)).isTrue();
+    assertThat(retryPolicy.tryRetry(ErrorClass.THROTTLING, 2)).isFalse();
+    assertThat(retryPolicy.tryRetry(ErrorClass.PERMANENT, 0)).isFalse();
+  }
+
+  @Test
+  public void retries_should_stop_when_budget_is_exhausted_until_requests_succeed() {
+    RetryPolicy retryPolicy = new RetryPolicy(3, 100, 1000);
+
+    for(int i = 0; i < RetryPolicy.BUDGET_CAPACITY / RetryPolicy.RETRY_COST; i++) {
+      assertThat(retryPolicy.tryRetry(ErrorClass.SERVICE_UNAVAILABLE, 0)).isTrue();
+    }
+    assertThat(retryPolicy.tryRetry(ErrorClass.SERVICE_UNAVAILABLE, 0)).isFalse();
+
+    for(int i = 0; i < RetryPolicy.RETRY_COST; i++) {
+      retryPolicy.onSuccess();
+    }
+    assertThat(retryPolicy.tryRetry(ErrorClass.SERVICE_UNAVAILABLE, 0)).isTrue();
+    assertThat(retryPolicy.getBudget()).isZero();
+  }
+
+  @Test
+  public void retries_should_run_on_sender_pool_after_delay() throws InterruptedException {
+    RetryPolicy retryPolicy = new RetryPolicy(3, 100, 1000);
+    SenderPool senderPool = new SenderPool(1);
+    try {
+      CountDownLatch run = new CountDownLatch(1);
+      AtomicReference<String> thread = new AtomicReference<>();
+      retryPolicy.schedule(this, () -> {
+        thread.set(Thread.currentThread().getName());
+        run.countDown();
+      }, TimeUnit.MILLISECONDS.toNanos(10), senderPool);
+
+      assertThat(run.await(5, TimeUnit.SECONDS)).isTrue();
+      assertThat(thread.get()).contains("CloudWatchSender");
+      assertThat(retryPolicy.cancel(this)).isEmpty();
+    } finally {
+      senderPool.shutdown();
+    }
+  }
+
+  @Test
+  public void retries_should_run_at_once_once_sender_pool_shut_down() {
+    RetryPolicy retryPolicy = new RetryPolicy(3, 100, 1000);
+    SenderPool senderPool = new SenderPool(1);
+    senderPool.shutdown();
+    AtomicInteger runs = new AtomicInteger();
+
+    retryPolicy.schedule(this, runs::incrementAndGet, TimeUnit.SECONDS.toNanos(60), senderPool);
+
+    assertThat(runs.get()).isEqualTo(1);
+    assertThat(retryPolicy.cancel(this)).isEmpty();
+  }
+
+  @Test
+  public void cancel_should_only_return_the_retries_of_the_owner() {
+    RetryPolicy retryPolicy = new RetryPolicy(3, 100, 1000);
+    SenderPool senderPool = new SenderPool(1);
+    try {
+      Object owner = new Object();
+      Object other = new Object();
+      AtomicInteger runs = new AtomicInteger();
+      retryPolicy.schedule(owner, runs::incrementAndGet, TimeUnit.SECONDS.toNanos(60), senderPool);
+      retryPolicy.schedule(other, runs::incrementAndGet, TimeUnit.SECONDS.toNanos(60), senderPool);
+
+      assertThat(retryPolicy.cancel(owner)).hasSize(1);
+      assertThat(retryPolicy.cancel(owner)).isEmpty();
+      assertThat(retryPolicy.cancel(other)).hasSize(1);
+      assertThat(runs.get()).isZero();
+    } finally {
+      senderPool.shutdown();
+    }
+  }
+
+}
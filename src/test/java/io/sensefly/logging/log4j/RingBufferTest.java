@@ -0,0 +1,91 @@
+package io.sensefly.logging.log4j;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RingBufferTest {
+
+  @Test
+  public void capacity_should_be_exact() {
+    assertThat(new RingBuffer<>(0).capacity()).isEqualTo(1);
+    assertThat(new RingBuffer<>(1000).capacity()).isEqualTo(1000);
+    assertThat(new RingBuffer<>(1024).capacity()).isEqualTo(1024);
+
+    RingBuffer<Integer> buffer = new RingBuffer<>(3);
+    for(int lap = 0; lap < 3; lap++) {
+      assertThat(buffer.offer(1)).isTrue();
+      assertThat(buffer.offer(2)).isTrue();
+      assertThat(buffer.offer(3)).isTrue();
+      assertThat(buffer.offer(4)).isFalse();
+      assertThat(buffer.size()).isEqualTo(3);
+      assertThat(buffer.poll()).isEqualTo(1);
+      assertThat(buffer.poll()).isEqualTo(2);
+      assertThat(buffer.poll()).isEqualTo(3);
+    }
+  }
+
+  @Test
+  public void single_element_capacity_should_be_exact() {
+    RingBuffer<String> buffer = new RingBuffer<>(1);
+    assertThat(buffer.offer("a")).isTrue();
+    assertThat(buffer.offer("b")).isFalse();
+    assertThat(buffer.poll()).isEqualTo("a");
+    assertThat(buffer.offer("b")).isTrue();
+  }
+
+  @Test
+  public void offer_should_fail_when_full() {
+    RingBuffer<String> buffer = new RingBuffer<>(2);
+    assertThat(buffer.offer("a")).isTrue();
+    assertThat(buffer.offer("b")).isTrue();
+    assertThat(buffer.offer("c")).isFalse();
+    assertThat(buffer.size()).isEqualTo(2);
+
+    assertThat(buffer.poll()).isEqualTo("a");
+    assertThat(buffer.offer("c")).isTrue();
+    assertThat(buffer.poll()).isEqualTo("b");
+    assertThat(buffer.poll()).isEqualTo("c");
+    assertThat(buffer.poll()).isNull();
+    assertThat(buffer.isEmpty()).isTrue();
+  }
+
+  @Test
+  public void concurrent_producers_should_not_lose_elements() throws InterruptedException {
+    int producers = 4;
+    int perProducer = 50_000;
+    RingBuffer<Integer> buffer = new RingBuffer<>(128);
+
+    List<Thread> threads = new ArrayList<>();
+    for(int p = 0; p < producers; p++) {
+      int offset = p * perProducer;
+      Thread thread = new Thread(() -> {
+        for(int i = 0; i < perProducer; i++) {
+          while(!buffer.offer(offset + i)) {
+            Thread.yield();
+          }
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+
+    Set<Integer> received = new HashSet<>();
+    while(received.size() < producers * perProducer) {
+      Integer element = buffer.poll();
+      if(element != null) {
+        assertThat(received.add(element)).isTrue();
+      }
+    }
+    for(Thread thread : threads) {
+      thread.join();
+    }
+    assertThat(buffer.isEmpty()).isTrue();
+  }
+
+}
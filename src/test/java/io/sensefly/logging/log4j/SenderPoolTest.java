@@ -0,0 +1,176 @@
+package io.sensefly.logging.log4j;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SenderPoolTest {
+
+  private final SenderPool senderPool = new SenderPool(2);
+
+  @After
+  public void shutdown() {
+    senderPool.shutdown();
+  }
+
+  @Test
+  public void threads_should_follow_lanes_up_to_maximum() {
+    assertThat(senderPool.getThreads()).isEqualTo(1);
+
+    senderPool.addLanes(1);
+    assertThat(senderPool.getThreads()).isEqualTo(1);
+
+    senderPool.addLanes(4);
+    assertThat(senderPool.getThreads()).isEqualTo(2);
+  }
+
+  @Test
+  public void threads_should_shrink_with_removed_lanes() {
+    senderPool.addLanes(5);
+    assertThat(senderPool.getThreads()).isEqualTo(2);
+
+    senderPool.removeLanes(4);
+    assertThat(senderPool.getThreads()).isEqualTo(1);
+
+    senderPool.removeLanes(1);
+    assertThat(senderPool.getThreads()).isEqualTo(1);
+  }
+
+  @Test
+  public void requeued_tasks_should_be_served_round_robin() throws InterruptedException {
+    List<String> steps = new CopyOnWriteArrayList<>();
+    CountDownLatch done = new CountDownLatch(2);
+    CountDownLatch blocked = new CountDownLatch(1);
+    // holds the single thread until both lanes are queued
+    senderPool.execute(() -> await(blocked));
+    senderPool.execute(new Steps("busy", 3, steps, done));
+    senderPool.execute(new Steps("quiet", 1, steps, done));
+    blocked.countDown();
+
+    assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(steps).containsExactly("busy", "quiet", "busy", "busy");
+  }
+
+  @Test
+  public void shutdown_should_run_queued_tasks_but_not_delayed_ones() throws InterruptedException {
+    List<String> steps = new CopyOnWriteArrayList<>();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch blocked = new CountDownLatch(1);
+    senderPool.execute(() -> {
+      started.countDown();
+      await(blocked);
+    });
+    senderPool.execute(() -> steps.add("queued"));
+    senderPool.schedule(() -> steps.add("delayed"), TimeUnit.HOURS.toNanos(1));
+    await(started);
+
+    assertThat(senderPool.shutdown(100, TimeUnit.MILLISECONDS)).isFalse();
+    blocked.countDown();
+
+    assertThat(senderPool.shutdown(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(steps).containsExactly("queued");
+  }
+
+  @Test
+  public void registered_executor_should_run_tasks_and_delayed_tasks() throws InterruptedException {
+    ExecutorService executor = Executors.newSingleThreadExecutor(task -> new Thread(task, "application"));
+    SenderPool.registerExecutor("application", executor);
+    SenderPool pool = SenderPool.create(0, "application");
+    try {
+      List<String> threads = new CopyOnWriteArrayList<>();
+      CountDownLatch done = new CountDownLatch(2);
+      pool.execute(() -> {
+        threads.add(Thread.currentThread().getName());
+        done.countDown();
+      });
+      pool.schedule(() -> {
+        threads.add(Thread.currentThread().getName());
+        done.countDown();
+      }, TimeUnit.MILLISECONDS.toNanos(10));
+
+      assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+      assertThat(threads).containsExactly("application", "application");
+      assertThat(pool.shutdown(5, TimeUnit.SECONDS)).isTrue();
+      assertThat(executor.isShutdown()).isFalse();
+    } finally {
+      SenderPool.unregisterExecutor("application");
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void unknown_executor_should_fall_back_to_sender_threads() {
+    SenderPool pool = SenderPool.create(3, "unknown");
+    try {
+      pool.addLanes(5);
+      assertThat(pool.getThreads()).isEqualTo(3);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void virtual_executor_should_run_tasks_when_available() throws InterruptedException {
+    boolean java21 = !System.getProperty("java.specification.version").startsWith("1.")
+        && Integer.parseInt(System.getProperty("java.specification.version")) >= 21;
+    SenderPool pool = SenderPool.create(0, SenderPool.VIRTUAL);
+    try {
+      List<String> threads = new CopyOnWriteArrayList<>();
+      CountDownLatch done = new CountDownLatch(1);
+      pool.execute(() -> {
+        threads.add(Thread.currentThread().toString());
+        done.countDown();
+      });
+
+      assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+      assertThat(threads.get(0)).contains("CloudWatchSender");
+      // on Java 21, VirtualThread[#<id>,CloudWatchSender-1]/runnable@ForkJoinPool-1-worker-1
+      assertThat(threads.get(0).startsWith("VirtualThread")).isEqualTo(java21);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private final class Steps implements Runnable {
+
+    private final String name;
+    private final List<String> steps;
+    private final CountDownLatch done;
+    private int remaining;
+
+    private Steps(String name, int remaining, List<String> steps, CountDownLatch done) {
+      this.name = name;
+      this.remaining = remaining;
+      this.steps = steps;
+      this.done = done;
+    }
+
+    @Override
+    public void run() {
+      steps.add(name);
+      if(--remaining > 0) {
+        senderPool.execute(this);
+      } else {
+        done.countDown();
+      }
+    }
+
+  }
+
+}
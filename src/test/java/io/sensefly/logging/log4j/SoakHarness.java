@@ -0,0 +1,173 @@
+package io.sensefly.logging.log4j;
+
+import com.amazonaws.services.logs.AWSLogs;
+import com.amazonaws.services.logs.AWSLogsAsync;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives an appender against {@link FakeCloudWatchLogs} at a target event rate and reports the delivery latency,
+ * the loss and the throughput. Every message carries its sequence number and the time it was appended.
+ * <p>
+ * Run with {@code ./gradlew soakTest -Psoak.eventsPerSecond=5000 -Psoak.durationSeconds=60}, the other
+ * {@code soak.*} properties being the fields of {@link Options}.
+ */
+class SoakHarness {
+
+  private static final String LOG_GROUP_NAME = "soak";
+
+  static final class Options {
+    int eventsPerSecond = 1000;
+    int durationSeconds = 10;
+    int producerThreads = 4;
+    long latencyMillis = 20;
+    double throttlingRate = 0.01;
+    double errorRate = 0.01;
+    AppenderSettings settings = new AppenderSettings().withOverflowPolicy(OverflowPolicy.BLOCK);
+  }
+
+  static final class Report {
+    long appended;
+    long delivered;
+    long lost;
+    long duplicated;
+    long dropped;
+    double eventsPerSecond;
+    long latencyMillisP50;
+    long latencyMillisP99;
+    long latencyMillisMax;
+    long requests;
+    long throttledRequests;
+    long failedRequests;
+    long rejectedRequests;
+
+    @Override
+    public String toString() {
+      return String.format("appended=%d delivered=%d lost=%d (dropped=%d) duplicated=%d throughput=%.0f events/s "
+              + "latency p50=%dms p99=%dms max=%dms requests=%d throttled=%d failed=%d rejected=%d",
+          appended, delivered, lost, dropped, duplicated, eventsPerSecond, latencyMillisP50, latencyMillisP99,
+          latencyMillisMax, requests, throttledRequests, failedRequests, rejectedRequests);
+    }
+  }
+
+  static Report run(Options options) throws IOException, InterruptedException {
+    try(FakeCloudWatchLogs fake = new FakeCloudWatchLogs()
+        .withLatency(options.latencyMillis, TimeUnit.MILLISECONDS)
+        .withThrottlingRate(options.throttlingRate)
+        .withErrorRate(options.errorRate)) {
+      AppenderSettings settings = options.settings;
+      AWSLogs awsLogs;
+      LogTransport transport;
+      if(settings.getMaxInFlightRequests() > 1) {
+        AWSLogsAsync asyncLogs = fake.newAsyncClient(settings.getMaxInFlightRequests());
+        awsLogs = asyncLogs;
+        transport = new AsyncLogTransport(asyncLogs, settings.getMaxInFlightRequests());
+      } else {
+        awsLogs = fake.newClient();
+        transport = new SyncLogTransport(awsLogs);
+      }
+      CloudWatchAppender appender = new CloudWatchAppender("soak", null, CloudWatchLogService.createShards(
+          LOG_GROUP_NAME, "soak", settings, awsLogs, transport, Clock.systemUTC(), "soak"), settings);
+      appender.start();
+
+      AtomicLong sequence = new AtomicLong();
+      long periodNanos = TimeUnit.SECONDS.toNanos(1) * options.producerThreads / options.eventsPerSecond;
+      long start = System.nanoTime();
+      long end = start + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+      List<Thread> producers = new ArrayList<>();
+      for(int i = 0; i < options.producerThreads; i++) {
+        Thread producer = new Thread(() -> produce(appender, sequence, periodNanos, end), "soak-producer-" + i);
+        producers.add(producer);
+        producer.start();
+      }
+      for(Thread producer : producers) {
+        producer.join();
+      }
+      appender.stop();
+      long elapsedNanos = System.nanoTime() - start;
+
+      Report report = report(fake, sequence.get(), elapsedNanos);
+      report.dropped = appender.getDroppedCount();
+      return report;
+    }
+  }
+
+  private static void produce(CloudWatchAppender appender, AtomicLong sequence, long periodNanos, long end) {
+    long next = System.nanoTime();
+    while(next < end) {
+      long now = System.nanoTime();
+      if(now < next) {
+        LockSupport.parkNanos(next - now);
+        continue;
+      }
+      appender.append(Log4jLogEvent.newBuilder()
+          .setLoggerName("SoakHarness")
+          .setLevel(Level.INFO)
+          .setTimeMillis(System.currentTimeMillis())
+          .setMessage(new SimpleMessage("soak " + sequence.getAndIncrement() + " " + System.nanoTime()))
+          .build());
+      next += periodNanos;
+    }
+  }
+
+  private static Report report(FakeCloudWatchLogs fake, long appended, long elapsedNanos) {
+    Report report = new Report();
+    report.appended = appended;
+    BitSet received = new BitSet();
+    Histogram latency = new Histogram();
+    for(FakeCloudWatchLogs.ReceivedEvent event : fake.getEvents(LOG_GROUP_NAME)) {
+      // the layout appends the line separator
+      String[] fields = event.message.trim().split(" ");
+      int eventSequence = Integer.parseInt(fields[fields.length - 2]);
+      long appendedNanos = Long.parseLong(fields[fields.length - 1]);
+      if(received.get(eventSequence)) {
+        report.duplicated++;
+      } else {
+        received.set(eventSequence);
+        report.delivered++;
+      }
+      latency.record(TimeUnit.NANOSECONDS.toMillis(event.receivedNanos - appendedNanos));
+    }
+    report.lost = appended - report.delivered;
+    report.eventsPerSecond = report.delivered / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1));
+    report.latencyMillisP50 = latency.getPercentile(50);
+    report.latencyMillisP99 = latency.getPercentile(99);
+    report.latencyMillisMax = latency.getMax();
+    report.requests = fake.getRequests();
+    report.throttledRequests = fake.getThrottledRequests();
+    report.failedRequests = fake.getFailedRequests();
+    report.rejectedRequests = fake.getRejectedRequests();
+    return report;
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    Options options = new Options();
+    options.eventsPerSecond = Integer.getInteger("soak.eventsPerSecond", options.eventsPerSecond);
+    options.durationSeconds = Integer.getInteger("soak.durationSeconds", options.durationSeconds);
+    options.producerThreads = Integer.getInteger("soak.producerThreads", options.producerThreads);
+    options.latencyMillis = Long.getLong("soak.latencyMillis", options.latencyMillis);
+    options.throttlingRate = Double.parseDouble(System.getProperty("soak.throttlingRate", "" + options.throttlingRate));
+    options.errorRate = Double.parseDouble(System.getProperty("soak.errorRate", "" + options.errorRate));
+    options.settings
+        .withStreamShards(Integer.getInteger("soak.streamShards", 1))
+        .withMaxInFlightRequests(Integer.getInteger("soak.maxInFlightRequests", 1))
+        .withMessagesBatchSize(Integer.getInteger("soak.messagesBatchSize", AppenderSettings.DEFAULT_MESSAGE_BATCH_SIZE))
+        .withLingerMs(Long.getLong("soak.lingerMs", AppenderSettings.DEFAULT_LINGER_MS))
+        .withMaxRetries(Integer.getInteger("soak.maxRetries", AppenderSettings.DEFAULT_MAX_RETRIES));
+    Report report = run(options);
+    System.out.println(report);
+    // fails the build when events were lost, and does not wait for the sender threads
+    System.exit(report.lost == 0 ? 0 : 1);
+  }
+
+}
@@ -0,0 +1,34 @@
+package io.sensefly.logging.log4j;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SoakHarnessTest {
+
+  @Test
+  public void events_should_all_be_delivered_despite_faults() throws IOException, InterruptedException {
+    SoakHarness.Options options = new SoakHarness.Options();
+    options.eventsPerSecond = 500;
+    options.durationSeconds = 2;
+    options.producerThreads = 2;
+    options.latencyMillis = 5;
+    options.throttlingRate = 0.2;
+    options.errorRate = 0.1;
+    options.settings
+        .withLingerMs(50)
+        .withMaxRetries(10)
+        .withRetryBaseDelayMs(5)
+        .withMetricsEnabled(false);
+
+    SoakHarness.Report report = SoakHarness.run(options);
+
+    assertThat(report.appended).isBetween(900L, 1100L);
+    assertThat(report.lost).isZero();
+    assertThat(report.duplicated).isZero();
+    assertThat(report.throttledRequests + report.failedRequests).isPositive();
+  }
+
+}
@@ -0,0 +1,157 @@
+package io.sensefly.logging.log4j;
+
+import com.amazonaws.services.logs.model.InputLogEvent;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static io.sensefly.logging.log4j.BatchBuilder.MAX_BATCH_BYTES;
+import static io.sensefly.logging.log4j.BatchBuilder.MAX_BATCH_EVENTS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpillStoreTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void spilled_events_should_be_read_in_order() throws IOException {
+    SpillStore store = new SpillStore(folder.newFolder().toPath(), 1024, 1024 * 1024);
+    assertThat(store.isEmpty()).isTrue();
+    assertThat(store.append(LogDestination.DEFAULT, 1L, "first")).isTrue();
+    assertThat(store.append(LogDestination.DEFAULT, 2L, "second")).isTrue();
+    assertThat(store.isEmpty()).isFalse();
+
+    List<InputLogEvent> events = readAll(store);
+    assertThat(events).extracting(InputLogEvent::getMessage).containsExactly("first", "second");
+    assertThat(events).extracting(InputLogEvent::getTimestamp).containsExactly(1L, 2L);
+    assertThat(store.isEmpty()).isTrue();
+  }
+
+  @Test
+  public void replay_should_restart_from_checkpoint() throws IOException {
+    Path directory = folder.newFolder().toPath();
+    SpillStore store = new SpillStore(directory, 1024, 1024 * 1024);
+    store.append(LogDestination.DEFAULT, 1L, "first");
+    store.append(LogDestination.DEFAULT, 2L, "second");
+
+    BatchBuilder builder = new BatchBuilder(1, MAX_BATCH_BYTES, true);
+    assertThat(store.readInto(builder)).isSameAs(LogDestination.DEFAULT);
+    store.commit();
+    store.readInto(new BatchBuilder(1, MAX_BATCH_BYTES, true));
+    store.close();
+
+    SpillStore reopened = new SpillStore(directory, 1024, 1024 * 1024);
+    reopened.append(LogDestination.DEFAULT, 3L, "third");
+    assertThat(readAll(reopened)).extracting(InputLogEvent::getMessage).containsExactly("second", "third");
+  }
+
+  @Test
+  public void rewind_should_read_again_from_last_commit() throws IOException {
+    SpillStore store = new SpillStore(folder.newFolder().toPath(), 64, 1024 * 1024);
+    for(int i = 0; i < 10; i++) {
+      store.append(LogDestination.DEFAULT, i, "message " + i);
+    }
+    store.readInto(new BatchBuilder(2, MAX_BATCH_BYTES, true));
+    store.commit();
+    store.readInto(new BatchBuilder(5, MAX_BATCH_BYTES, true));
+
+    store.rewind();
+
+    assertThat(readAll(store)).extracting(InputLogEvent::getTimestamp).containsExactly(2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L);
+  }
+
+  @Test
+  public void read_segments_should_be_deleted() throws IOException {
+    Path directory = folder.newFolder().toPath();
+    SpillStore store = new SpillStore(directory, 64, 1024 * 1024);
+    for(int i = 0; i < 10; i++) {
+      store.append(LogDestination.DEFAULT, i, "message " + i);
+    }
+    assertThat(segmentCount(directory)).isGreaterThan(1);
+
+    assertThat(readAll(store)).hasSize(10);
+    store.commit();
+    assertThat(segmentCount(directory)).isEqualTo(1);
+  }
+
+  @Test
+  public void full_store_should_drop_events() throws IOException {
+    SpillStore store = new SpillStore(folder.newFolder().toPath(), 64, 64);
+    int appended = 0;
+    for(int i = 0; i < 10; i++) {
+      if(store.append(LogDestination.DEFAULT, i, "message " + i)) {
+        appended++;
+      }
+    }
+    assertThat(appended).isLessThan(10);
+    assertThat(store.getDroppedCount()).isEqualTo(10 - appended);
+    assertThat(readAll(store)).hasSize(appended);
+  }
+
+  @Test
+  public void events_should_be_read_per_destination() throws IOException {
+    SpillStore store = new SpillStore(folder.newFolder().toPath(), 1024, 1024 * 1024);
+    LogDestination tenant = new LogDestination("app-acme", "é/stream");
+    store.append(tenant, 1L, "first");
+    store.append(tenant, 2L, "second");
+    store.append(LogDestination.DEFAULT, 3L, "third");
+
+    BatchBuilder builder = new BatchBuilder(MAX_BATCH_EVENTS, MAX_BATCH_BYTES, true);
+    assertThat(store.readInto(builder)).isEqualTo(tenant);
+    assertThat(builder.build().get(0)).extracting(InputLogEvent::getMessage).containsExactly("first", "second");
+    builder = new BatchBuilder(MAX_BATCH_EVENTS, MAX_BATCH_BYTES, true);
+    assertThat(store.readInto(builder)).isSameAs(LogDestination.DEFAULT);
+    assertThat(builder.build().get(0)).extracting(InputLogEvent::getMessage).containsExactly("third");
+  }
+
+  @Test
+  public void locked_directory_should_not_be_opened_until_closed() throws IOException {
+    Path directory = folder.newFolder().toPath();
+    SpillStore store = SpillStore.open(directory, 1024 * 1024);
+    store.append(LogDestination.DEFAULT, 1L, "first");
+
+    assertThat(SpillStore.open(directory, 1024 * 1024)).isNull();
+
+    store.close();
+    SpillStore reopened = SpillStore.open(directory, 1024 * 1024);
+    assertThat(reopened).isNotNull();
+    assertThat(readAll(reopened)).extracting(InputLogEvent::getMessage).containsExactly("first");
+    reopened.close();
+  }
+
+  @Test
+  public void closed_store_should_drop_events() throws IOException {
+    SpillStore store = new SpillStore(folder.newFolder().toPath(), 64, 1024 * 1024);
+    for(int i = 0; i < 10; i++) {
+      store.append(LogDestination.DEFAULT, i, "message " + i);
+    }
+    store.readInto(new BatchBuilder(2, MAX_BATCH_BYTES, true));
+
+    store.close();
+
+    assertThat(store.append(LogDestination.DEFAULT, 10L, "message 10")).isFalse();
+    assertThat(store.getDroppedCount()).isEqualTo(1);
+    assertThat(store.isEmpty()).isTrue();
+    assertThat(store.readInto(new BatchBuilder(2, MAX_BATCH_BYTES, true))).isNull();
+  }
+
+  private static List<InputLogEvent> readAll(SpillStore store) {
+    BatchBuilder builder = new BatchBuilder(MAX_BATCH_EVENTS, MAX_BATCH_BYTES, true);
+    store.readInto(builder);
+    return builder.build().get(0);
+  }
+
+  private static long segmentCount(Path directory) throws IOException {
+    try(Stream<Path> files = Files.list(directory)) {
+      return files.filter(file -> file.getFileName().toString().startsWith("segment-")).count();
+    }
+  }
+
+}
@@ -0,0 +1,132 @@
+package io.sensefly.logging.log4j;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ThrowableRendererTest {
+
+  @Test
+  public void repeated_throwable_should_only_reference_its_trace_within_window() {
+    ThrowableRenderer renderer = new ThrowableRenderer(0, null, 60_000, 16);
+    Throwable[] thrown = new Throwable[3];
+    for(int i = 0; i < thrown.length; i++) {
+      thrown[i] = new IllegalStateException("failed " + i);
+    }
+
+    String first = render(renderer, thrown[0], 0);
+    String repeated = render(renderer, thrown[1], 1_000);
+    String afterWindow = render(renderer, thrown[2], 60_000);
+
+    String fingerprint = first.substring(first.indexOf("[stack trace "), first.indexOf(']') + 1);
+    assertThat(first).startsWith("java.lang.IllegalStateException: failed 0 " + fingerprint + "\n\tat ");
+    assertThat(repeated).isEqualTo("java.lang.IllegalStateException: failed 1 " + fingerprint);
+    assertThat(afterWindow).startsWith("java.lang.IllegalStateException: failed 2 " + fingerprint + "\n\tat ");
+  }
+
+  @Test
+  public void throwables_of_other_frames_should_have_other_fingerprints() {
+    ThrowableRenderer renderer = new ThrowableRenderer(0, null, 60_000, 16);
+
+    String first = render(renderer, new IllegalStateException("failed"), 0);
+    String other = render(renderer, new IllegalStateException("failed"), 0);
+
+    assertThat(other).isNotEqualTo(first).contains("\n\tat ");
+  }
+
+  @Test
+  public void frames_should_be_limited_and_filtered() {
+    ThrowableRenderer renderer = new ThrowableRenderer(2, "org.junit, sun.reflect", 0, 16);
+    IllegalStateException thrown = new IllegalStateException("failed");
+    thrown.setStackTrace(new StackTraceElement[] {
+        new StackTraceElement("com.example.Service", "call", "Service.java", 10),
+        new StackTraceElement("sun.reflect.NativeMethodAccessorImpl", "invoke", null, -1),
+        new StackTraceElement("org.junit.Runner", "run", "Runner.java", 20),
+        new StackTraceElement("com.example.Main", "main", "Main.java", 5),
+        new StackTraceElement("com.example.Launcher", "launch", "Launcher.java", 1),
+        new StackTraceElement("java.lang.Thread", "run", "Thread.java", 748)
+    });
+
+    String[] lines = render(renderer, thrown, 0).split("\n");
+
+    assertThat(lines).hasSize(5);
+    assertThat(lines[1]).isEqualTo("\tat com.example.Service.call(Service.java:10)");
+    assertThat(lines[2]).isEqualTo("\t... 2 filtered");
+    assertThat(lines[3]).isEqualTo("\tat com.example.Main.main(Main.java:5)");
+    assertThat(lines[4]).isEqualTo("\t... 2 more");
+  }
+
+  @Test
+  public void frames_in_common_with_enclosing_trace_should_be_elided() {
+    ThrowableRenderer renderer = new ThrowableRenderer(0, null, 1, 16);
+    StackTraceElement main = new StackTraceElement("com.example.Main", "main", "Main.java", 5);
+    IllegalArgumentException cause = new IllegalArgumentException("cause");
+    cause.setStackTrace(new StackTraceElement[] {
+        new StackTraceElement("com.example.Parser", "parse", "Parser.java", 42), main });
+    IllegalStateException thrown = new IllegalStateException("failed", cause);
+    thrown.setStackTrace(new StackTraceElement[] { main });
+
+    String[] lines = render(renderer, thrown, 0).split("\n");
+
+    assertThat(lines).containsExactly(
+        lines[0],
+        "\tat com.example.Main.main(Main.java:5)",
+        "Caused by: java.lang.IllegalArgumentException: cause",
+        "\tat com.example.Parser.parse(Parser.java:42)",
+        "\t... 1 more");
+  }
+
+  @Test
+  public void suppressed_throwables_should_be_rendered_and_fingerprinted() {
+    ThrowableRenderer renderer = new ThrowableRenderer(0, null, 1, 16);
+    StackTraceElement main = new StackTraceElement("com.example.Main", "main", "Main.java", 5);
+    IllegalStateException plain = new IllegalStateException("failed");
+    plain.setStackTrace(new StackTraceElement[] { main });
+    IllegalArgumentException suppressed = new IllegalArgumentException("close failed");
+    suppressed.setStackTrace(new StackTraceElement[] {
+        new StackTraceElement("com.example.Resource", "close", "Resource.java", 12), main });
+    IllegalStateException thrown = new IllegalStateException("failed");
+    thrown.setStackTrace(new StackTraceElement[] { main });
+    thrown.addSuppressed(suppressed);
+
+    String[] lines = render(renderer, thrown, 0).split("\n");
+
+    assertThat(lines).containsExactly(
+        lines[0],
+        "\tat com.example.Main.main(Main.java:5)",
+        "\tSuppressed: java.lang.IllegalArgumentException: close failed",
+        "\t\tat com.example.Resource.close(Resource.java:12)",
+        "\t\t... 1 more");
+    assertThat(lines[0]).isNotEqualTo(render(renderer, plain, 0).split("\n")[0]);
+  }
+
+  @Test
+  public void causes_past_the_limit_should_be_counted() {
+    ThrowableRenderer renderer = new ThrowableRenderer(0, null, 1, 16);
+    Throwable thrown = new IllegalStateException("cause 10");
+    for(int i = 9; i > 0; i--) {
+      thrown = new IllegalStateException("cause " + i, thrown);
+    }
+    thrown.addSuppressed(new IllegalArgumentException("suppressed"));
+
+    String rendered = render(renderer, thrown, 0);
+
+    assertThat(rendered).contains("Suppressed: java.lang.IllegalArgumentException: suppressed");
+    assertThat(rendered).contains("Caused by: java.lang.IllegalStateException: cause 7");
+    assertThat(rendered).doesNotContain("cause 8");
+    assertThat(rendered).endsWith("\n... 3 more causes");
+  }
+
+  @Test
+  public void renderer_should_not_be_created_without_option() {
+    assertThat(ThrowableRenderer.create(0, null, 0, 16)).isNull();
+    assertThat(ThrowableRenderer.create(0, "org.junit", 0, 16)).isNotNull();
+  }
+
+  private static String render(ThrowableRenderer renderer, Throwable thrown, long timeMillis) {
+    StringBuilder text = new StringBuilder();
+    renderer.render(thrown, timeMillis, text);
+    return text.toString();
+  }
+
+}